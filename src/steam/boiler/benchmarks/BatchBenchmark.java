@@ -0,0 +1,167 @@
+package steam.boiler.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import steam.boiler.core.BatchController;
+import steam.boiler.core.BoilerFleet;
+import steam.boiler.core.ControllerStatus;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Compares the cost of a cycle of a {@link BatchController} against the cost
+ * of the same cycle of a {@link BoilerFleet}. Every boiler is simulated by its
+ * own physical units and driven into normal mode by the fleet, and is then
+ * loaded once into the batch from a snapshot of its controller. On every
+ * measured cycle, the readings just transmitted by each boiler are set in the
+ * batch, then the batch and the fleet are each clocked on them. Both run on a
+ * single thread, so the times are directly comparable.
+ *
+ * <p>For every fleet size this reports the median time to set the readings,
+ * to clock the batch, and to clock the fleet, and the ratio of the fleet cycle
+ * to the batch cycle. The fleet also decodes its messages and sends its
+ * commands, which the batch leaves to its caller.
+ *
+ * @author paula
+ *
+ */
+public final class BatchBenchmark {
+
+  /**
+   * Fleet sizes benchmarked.
+   */
+  private static final int[] FLEET_SIZES = { 1000, 10000, 100000 };
+
+  /**
+   * Number of cycles simulated before measuring, enough to reach normal mode.
+   */
+  private static final int WARMUP_CYCLES = 40;
+
+  /**
+   * Number of cycles measured.
+   */
+  private static final int CYCLES = 40;
+
+  /**
+   * Interval between transmissions (ms).
+   */
+  private static final int CYCLE = 5000;
+
+  /**
+   * Prevents instantiation.
+   */
+  private BatchBenchmark() {
+  }
+
+  /**
+   * Run every benchmark and print the results.
+   *
+   * @param args Ignored.
+   */
+  public static void main(String[] args) {
+    System.out.println(String.format("%8s %12s %12s %12s %8s", //$NON-NLS-1$
+        "boilers", "read (us)", "batch (us)", "fleet (us)", "ratio")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+    ForkJoinPool pool = new ForkJoinPool(1);
+    try {
+      for (int size : FLEET_SIZES) {
+        double[] medians = measure(size, pool);
+        System.out.println(String.format("%8d %12.1f %12.1f %12.1f %8.1f", //$NON-NLS-1$
+            Integer.valueOf(size), Double.valueOf(medians[0] / 1000),
+            Double.valueOf(medians[1] / 1000), Double.valueOf(medians[2] / 1000),
+            Double.valueOf(medians[2] / medians[1])));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Run a fleet of boilers into normal mode, then measure its cycles and those
+   * of a batch of the same boilers.
+   *
+   * @param size The number of boilers.
+   * @param pool The pool on which the fleet is clocked.
+   * @return the median times to set the readings, clock the batch and clock the
+   *         fleet (ns).
+   */
+  private static double[] measure(int size, ForkJoinPool pool) {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    SteamBoilerCharacteristics[] configs = new SteamBoilerCharacteristics[size];
+    PhysicalUnits[] models = new PhysicalUnits[size];
+    for (int i = 0; i != size; ++i) {
+      configs[i] = config;
+      models[i] = new PhysicalUnits.Template(config).construct();
+      models[i].setMode(PhysicalUnits.Mode.WAITING);
+    }
+    BoilerFleet fleet = new BoilerFleet(configs, pool);
+    BatchController batch = new BatchController(config, size);
+    ControllerStatus status = new ControllerStatus(config.getNumberOfPumps());
+    Mailbox[] incoming = new Mailbox[size];
+    Mailbox[] outgoing = new Mailbox[size];
+    long[][] times = new long[3][CYCLES];
+    for (int cycle = 0; cycle != WARMUP_CYCLES + CYCLES; ++cycle) {
+      for (int i = 0; i != size; ++i) {
+        incoming[i] = new UnboundedMailbox(32);
+        outgoing[i] = new UnboundedMailbox(32);
+        models[i].transmit(incoming[i]);
+      }
+      if (cycle == WARMUP_CYCLES) {
+        for (int i = 0; i != size; ++i) {
+          fleet.getController(i).getStatus(status);
+          batch.load(i, status);
+        }
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i != size; ++i) {
+        setReadings(batch, i, incoming[i]);
+      }
+      long loaded = System.nanoTime();
+      batch.clock();
+      long evaluated = System.nanoTime();
+      long makespan = fleet.clock(incoming, outgoing);
+      if (cycle >= WARMUP_CYCLES) {
+        times[0][cycle - WARMUP_CYCLES] = loaded - start;
+        times[1][cycle - WARMUP_CYCLES] = evaluated - loaded;
+        times[2][cycle - WARMUP_CYCLES] = makespan;
+      }
+      for (int i = 0; i != size; ++i) {
+        models[i].receive(outgoing[i]);
+        models[i].clock(CYCLE);
+      }
+    }
+    double[] medians = new double[times.length];
+    for (int t = 0; t != times.length; ++t) {
+      Arrays.sort(times[t]);
+      medians[t] = times[t][CYCLES / 2];
+    }
+    return medians;
+  }
+
+  /**
+   * Set the readings of a boiler in a batch from the messages it transmitted.
+   *
+   * @param batch    The batch.
+   * @param boiler   The index of the boiler.
+   * @param incoming The messages.
+   */
+  private static void setReadings(BatchController batch, int boiler, Mailbox incoming) {
+    double level = -1;
+    double steam = -1;
+    long open = 0;
+    for (int i = 0; i != incoming.size(); ++i) {
+      Message m = incoming.read(i);
+      if (m.getKind() == MessageKind.LEVEL_v) {
+        level = m.getDoubleParameter();
+      } else if (m.getKind() == MessageKind.STEAM_v) {
+        steam = m.getDoubleParameter();
+      } else if (m.getKind() == MessageKind.PUMP_STATE_n_b && m.getBooleanParameter()) {
+        open |= 1L << m.getIntegerParameter();
+      }
+    }
+    batch.setReadings(boiler, level, steam, open);
+  }
+}
@@ -0,0 +1,295 @@
+package steam.boiler.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.MySteamBoilerController.State;
+import steam.boiler.core.SimulationEngine;
+import steam.boiler.model.LevelSensorModels;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Measures the cost of a single call to {@link MySteamBoilerController#clock}
+ * in each operating mode and for several pump counts. For every combination
+ * this reports the average time and the number of bytes allocated per call.
+ *
+ * <p>A simulated boiler is first driven into the required mode. The controller
+ * is then checkpointed, and the messages the physical units transmit over the
+ * following cycles are recorded for as long as the controller stays in that
+ * mode. Each pass of a measurement restores the checkpoint and clocks the
+ * controller through the recorded messages, so it sees exactly the traffic it
+ * saw in the simulation, and its pump commands always agree with the pump
+ * states reported back. The mode is checked after every call, and a
+ * measurement fails if it ever differs from the scenario's.
+ *
+ * <p>Each measurement is preceded by warmup iterations so that the JIT has
+ * compiled the controller, and is repeated over several iterations. The time
+ * and allocation reported are those of the fastest iteration. Restoring the
+ * checkpoint between passes is not measured.
+ *
+ * @author paula
+ *
+ */
+public final class ClockBenchmark {
+
+  /**
+   * Pump counts benchmarked for each mode.
+   */
+  private static final int[] PUMP_COUNTS = { 2, 4, 6 };
+
+  /**
+   * Least number of clock calls per iteration.
+   */
+  private static final int BATCH = 2000;
+
+  /**
+   * Number of iterations run before measuring.
+   */
+  private static final int WARMUP_ITERATIONS = 20;
+
+  /**
+   * Number of iterations measured.
+   */
+  private static final int ITERATIONS = 10;
+
+  /**
+   * Largest number of cycles recorded for a scenario. In rescue mode the
+   * uncertainty of the level estimate grows on every cycle, so this is kept
+   * well within the time the controller is known to stay in that mode.
+   */
+  private static final int RECORDED_CYCLES = 24;
+
+  /**
+   * Operating modes which a benchmark can be set up in.
+   */
+  public enum Scenario {
+    /**
+     * Controller initialising an empty boiler, waiting for it to fill.
+     */
+    WAITING(State.WAITING),
+    /**
+     * Controller running without failures.
+     */
+    NORMAL(State.NORMAL),
+    /**
+     * Controller running with a failed steam sensor.
+     */
+    DEGRADED(State.DEGRADED),
+    /**
+     * Controller running with a failed level sensor.
+     */
+    RESCUE(State.RESCUE),
+    /**
+     * Controller stopped after a transmission failure.
+     */
+    EMERGENCY_STOP(State.EMERGENCY_STOP);
+
+    /**
+     * Mode the controller is in throughout the scenario.
+     */
+    final State mode;
+
+    /**
+     * Construct a scenario.
+     *
+     * @param mode1 Mode the controller is in throughout the scenario.
+     */
+    Scenario(State mode1) {
+      this.mode = mode1;
+    }
+  }
+
+  /**
+   * The state of a controller in a given mode, and the messages which keep it
+   * there.
+   *
+   * @author paula
+   *
+   */
+  public static final class Recording {
+
+    /**
+     * Checkpoint of the controller at the start of the recording.
+     */
+    final ByteBuffer checkpoint;
+
+    /**
+     * Messages transmitted by the physical units on each recorded cycle.
+     */
+    final Mailbox[] inputs;
+
+    /**
+     * Mode the controller is in after each recorded cycle.
+     */
+    final State mode;
+
+    /**
+     * Construct a recording.
+     *
+     * @param checkpoint1 Checkpoint of the controller at the start.
+     * @param inputs1     Messages transmitted on each recorded cycle.
+     * @param mode1       Mode the controller is in after each cycle.
+     */
+    Recording(ByteBuffer checkpoint1, Mailbox[] inputs1, State mode1) {
+      this.checkpoint = checkpoint1;
+      this.inputs = inputs1;
+      this.mode = mode1;
+    }
+
+    /**
+     * Get the number of cycles recorded.
+     *
+     * @return the number of cycles.
+     */
+    public int size() {
+      return this.inputs.length;
+    }
+  }
+
+  /**
+   * Prevents instantiation.
+   */
+  private ClockBenchmark() {
+  }
+
+  /**
+   * Run every benchmark and print the results.
+   *
+   * @param args Ignored.
+   */
+  public static void main(String[] args) {
+    System.out.println(String.format("%-16s %6s %8s %12s %12s", //$NON-NLS-1$
+        "scenario", "pumps", "cycles", "ns/op", "bytes/op")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+    for (Scenario scenario : Scenario.values()) {
+      for (int pumps : PUMP_COUNTS) {
+        SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+        config = config.setNumberOfPumps(pumps, config.getPumpCapacity(0));
+        MySteamBoilerController controller = new MySteamBoilerController(config);
+        Recording recording = setup(scenario, config, controller);
+        double[] result = measure(controller, recording);
+        System.out.println(String.format("%-16s %6d %8d %12.1f %12.1f", //$NON-NLS-1$
+            scenario, Integer.valueOf(pumps), Integer.valueOf(recording.size()),
+            Double.valueOf(result[0]), Double.valueOf(result[1])));
+      }
+    }
+  }
+
+  /**
+   * Drive a simulated boiler until its controller is in the mode required by a
+   * scenario, then record the messages the physical units transmit for as long
+   * as it stays in that mode.
+   *
+   * @param scenario   The scenario to set up.
+   * @param config     The characteristics of the boiler.
+   * @param controller The controller being benchmarked.
+   * @return The recording to benchmark the controller with.
+   * @throws IllegalStateException if the controller does not reach the mode.
+   */
+  public static Recording setup(Scenario scenario, SteamBoilerCharacteristics config,
+      MySteamBoilerController controller) {
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    SimulationEngine engine = new SimulationEngine(controller, model);
+    switch (scenario) {
+      case WAITING:
+        break;
+      case NORMAL:
+        engine.run(120 * 1000, null);
+        break;
+      case DEGRADED:
+        engine.run(120 * 1000, null);
+        model.setSteamSensor(new SteamSensorModels.StuckNegativeOne(model));
+        engine.run(SimulationEngine.TRANSMISSION_INTERVAL, null);
+        break;
+      case RESCUE:
+        engine.run(120 * 1000, null);
+        model.setLevelSensor(new LevelSensorModels.StuckNegativeOne(model));
+        engine.run(SimulationEngine.TRANSMISSION_INTERVAL, null);
+        break;
+      case EMERGENCY_STOP:
+        engine.run(120 * 1000, null);
+        model.setLevelSensor(new LevelSensorModels.TxFailure(model));
+        engine.run(SimulationEngine.TRANSMISSION_INTERVAL, null);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown scenario"); //$NON-NLS-1$
+    }
+    if (controller.getMode() != scenario.mode) {
+      throw new IllegalStateException(scenario + " not reached: " //$NON-NLS-1$
+          + controller.getMode());
+    }
+    ByteBuffer checkpoint = ByteBuffer.allocate(controller.getCheckpointSize());
+    controller.checkpoint(checkpoint);
+    checkpoint.flip();
+    ArrayList<Mailbox> inputs = new ArrayList<>();
+    engine.run(RECORDED_CYCLES * SimulationEngine.TRANSMISSION_INTERVAL,
+        (elapsed, incoming, outgoing) -> {
+          if (controller.getMode() != scenario.mode) {
+            return true;
+          }
+          Mailbox copy = new UnboundedMailbox(incoming.size());
+          for (int i = 0; i != incoming.size(); ++i) {
+            copy.send(incoming.read(i));
+          }
+          inputs.add(copy);
+          return false;
+        });
+    if (inputs.isEmpty()) {
+      throw new IllegalStateException(scenario + " left at once"); //$NON-NLS-1$
+    }
+    return new Recording(checkpoint, inputs.toArray(new Mailbox[inputs.size()]), scenario.mode);
+  }
+
+  /**
+   * Repeatedly clock a controller through a recording.
+   *
+   * @param controller The controller being benchmarked.
+   * @param recording  The recording, taken from this controller.
+   * @return The average time per call (ns) and the bytes allocated per call,
+   *         both of the fastest iteration.
+   * @throws IllegalStateException if the controller leaves the mode of the
+   *                               recording.
+   */
+  public static double[] measure(MySteamBoilerController controller, Recording recording) {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    Mailbox[] inputs = recording.inputs;
+    Mailbox[] outputs = new Mailbox[inputs.length];
+    double best = Double.MAX_VALUE;
+    double bytes = 0;
+    for (int iteration = 0; iteration != WARMUP_ITERATIONS + ITERATIONS; ++iteration) {
+      long time = 0;
+      long allocated = 0;
+      int calls = 0;
+      while (calls < BATCH) {
+        for (int i = 0; i != outputs.length; ++i) {
+          outputs[i] = new UnboundedMailbox(100);
+        }
+        controller.restore(recording.checkpoint.duplicate());
+        long before = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        for (int i = 0; i != inputs.length; ++i) {
+          controller.clock(inputs[i], outputs[i]);
+          if (controller.getMode() != recording.mode) {
+            throw new IllegalStateException("left " + recording.mode + " on cycle " + i //$NON-NLS-1$ //$NON-NLS-2$
+                + ": " + controller.getMode()); //$NON-NLS-1$
+          }
+        }
+        time += System.nanoTime() - start;
+        allocated += threads.getThreadAllocatedBytes(id) - before;
+        calls += inputs.length;
+      }
+      if (iteration >= WARMUP_ITERATIONS && (double) time / calls < best) {
+        best = (double) time / calls;
+        bytes = (double) allocated / calls;
+      }
+    }
+    return new double[] { best, bytes };
+  }
+}
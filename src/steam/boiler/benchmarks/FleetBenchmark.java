@@ -0,0 +1,140 @@
+package steam.boiler.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import steam.boiler.core.BoilerFleet;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Measures the makespan of a {@link BoilerFleet} cycle for several fleet sizes
+ * and pool sizes, to show how it scales with the number of threads. Every
+ * boiler is simulated by its own physical units, driven into normal mode before
+ * measuring and kept there, so each cycle clocks realistic traffic. Only the
+ * call to {@link BoilerFleet#clock} is timed; simulating the physical units is
+ * not.
+ *
+ * <p>For every combination this reports the median makespan, the number of
+ * boilers clocked per millisecond, and the speedup and efficiency relative to
+ * a single thread.
+ *
+ * @author paula
+ *
+ */
+public final class FleetBenchmark {
+
+  /**
+   * Fleet sizes benchmarked.
+   */
+  private static final int[] FLEET_SIZES = { 1000, 10000 };
+
+  /**
+   * Number of cycles simulated before measuring, enough to reach normal mode.
+   */
+  private static final int WARMUP_CYCLES = 40;
+
+  /**
+   * Number of cycles measured.
+   */
+  private static final int CYCLES = 40;
+
+  /**
+   * Interval between transmissions (ms).
+   */
+  private static final int CYCLE = 5000;
+
+  /**
+   * Prevents instantiation.
+   */
+  private FleetBenchmark() {
+  }
+
+  /**
+   * Run every benchmark and print the results.
+   *
+   * @param args Optionally, the largest number of threads (by default, the
+   *             number of processors).
+   */
+  public static void main(String[] args) {
+    int processors = args.length > 0 ? Integer.parseInt(args[0])
+        : Runtime.getRuntime().availableProcessors();
+    System.out.println(String.format("%8s %8s %14s %14s %9s %11s", //$NON-NLS-1$
+        "boilers", "threads", "makespan (us)", "boilers/ms", "speedup", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+        "efficiency")); //$NON-NLS-1$
+    for (int size : FLEET_SIZES) {
+      double single = 0;
+      for (int threads = 1; threads <= processors; threads = next(threads, processors)) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+          double makespan = measure(size, pool) / 1000.0;
+          if (threads == 1) {
+            single = makespan;
+          }
+          double speedup = single / makespan;
+          System.out.println(String.format("%8d %8d %14.1f %14.1f %9.2f %11.2f", //$NON-NLS-1$
+              Integer.valueOf(size), Integer.valueOf(threads), Double.valueOf(makespan),
+              Double.valueOf(size / (makespan / 1000)), Double.valueOf(speedup),
+              Double.valueOf(speedup / threads)));
+        } finally {
+          pool.shutdown();
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the next number of threads to benchmark: doubling each time, and always
+   * ending with the largest.
+   *
+   * @param threads The number of threads just benchmarked.
+   * @param max     The largest number of threads.
+   * @return the next number of threads, or more than the largest when done.
+   */
+  private static int next(int threads, int max) {
+    if (threads == max) {
+      return max + 1;
+    }
+    return Math.min(threads * 2, max);
+  }
+
+  /**
+   * Run a fleet of boilers into normal mode, then measure its cycles.
+   *
+   * @param size The number of boilers.
+   * @param pool The pool on which the fleet is clocked.
+   * @return the median makespan of the measured cycles (ns).
+   */
+  private static double measure(int size, ForkJoinPool pool) {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    SteamBoilerCharacteristics[] configs = new SteamBoilerCharacteristics[size];
+    PhysicalUnits[] models = new PhysicalUnits[size];
+    for (int i = 0; i != size; ++i) {
+      configs[i] = config;
+      models[i] = new PhysicalUnits.Template(config).construct();
+      models[i].setMode(PhysicalUnits.Mode.WAITING);
+    }
+    BoilerFleet fleet = new BoilerFleet(configs, pool);
+    Mailbox[] incoming = new Mailbox[size];
+    Mailbox[] outgoing = new Mailbox[size];
+    long[] makespans = new long[CYCLES];
+    for (int cycle = 0; cycle != WARMUP_CYCLES + CYCLES; ++cycle) {
+      for (int i = 0; i != size; ++i) {
+        incoming[i] = new UnboundedMailbox(32);
+        outgoing[i] = new UnboundedMailbox(32);
+        models[i].transmit(incoming[i]);
+      }
+      long makespan = fleet.clock(incoming, outgoing);
+      if (cycle >= WARMUP_CYCLES) {
+        makespans[cycle - WARMUP_CYCLES] = makespan;
+      }
+      for (int i = 0; i != size; ++i) {
+        models[i].receive(outgoing[i]);
+        models[i].clock(CYCLE);
+      }
+    }
+    Arrays.sort(makespans);
+    return makespans[CYCLES / 2];
+  }
+}
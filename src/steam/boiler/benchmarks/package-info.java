@@ -0,0 +1,4 @@
+@NonNullByDefault
+package steam.boiler.benchmarks;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
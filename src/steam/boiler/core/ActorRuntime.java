@@ -0,0 +1,192 @@
+package steam.boiler.core;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ObjIntConsumer;
+import org.eclipse.jdt.annotation.Nullable;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Runs the controllers of many boilers as {@link BoilerActor}s sharing one
+ * executor. Threads receiving telemetry, such as those of a gateway, hand each
+ * cycle to the boiler's actor and carry on; they never touch a controller.
+ *
+ * <p>When the JVM provides virtual threads, each actor task runs on a virtual
+ * thread of its own, so a reply callback which blocks on slow I/O only holds
+ * up its own boiler. Otherwise tasks run on a work-stealing pool with at least
+ * two threads, on which reply callbacks should hand their output off rather
+ * than block. Either way an idle actor holds no thread, so a JVM can host far
+ * more boilers than it could threads.
+ *
+ * @author paula
+ *
+ */
+public final class ActorRuntime implements Closeable {
+
+  /**
+   * Every actor, by boiler number.
+   */
+  private final ConcurrentHashMap<Integer, BoilerActor> actors = new ConcurrentHashMap<>();
+
+  /**
+   * Executor on which actor tasks run.
+   */
+  private final Executor executor;
+
+  /**
+   * Whether the executor was created by this runtime, and so is shut down with it.
+   */
+  private final boolean ownsExecutor;
+
+  /**
+   * Number of cycles which can wait in each actor's inbound queue.
+   */
+  private final int queueCapacity;
+
+  /**
+   * Whether the runtime has been closed, so that cycles are refused.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Construct a runtime on the default executor.
+   */
+  public ActorRuntime() {
+    this(defaultExecutor(), true, BoilerActor.DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Construct a runtime on a given executor, which is not shut down with it.
+   *
+   * @param executor1      Executor on which actor tasks run.
+   * @param queueCapacity1 Number of cycles which can wait in each actor's
+   *                       inbound queue.
+   */
+  public ActorRuntime(Executor executor1, int queueCapacity1) {
+    this(executor1, false, queueCapacity1);
+  }
+
+  /**
+   * Construct a runtime.
+   *
+   * @param executor1      Executor on which actor tasks run.
+   * @param ownsExecutor1  Whether to shut the executor down with the runtime.
+   * @param queueCapacity1 Number of cycles which can wait in each actor's
+   *                       inbound queue.
+   */
+  private ActorRuntime(Executor executor1, boolean ownsExecutor1, int queueCapacity1) {
+    if (queueCapacity1 <= 0) {
+      throw new IllegalArgumentException("invalid queue capacity"); //$NON-NLS-1$
+    }
+    this.executor = executor1;
+    this.ownsExecutor = ownsExecutor1;
+    this.queueCapacity = queueCapacity1;
+  }
+
+  /**
+   * Create an executor which starts a virtual thread per task if the JVM
+   * supports them, or else a work-stealing pool.
+   *
+   * @return the executor.
+   */
+  public static ExecutorService defaultExecutor() {
+    try {
+      Object virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor") //$NON-NLS-1$
+          .invoke(null);
+      if (virtual instanceof ExecutorService) {
+        return (ExecutorService) virtual;
+      }
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      // Fall through to a platform thread pool
+    }
+    int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    return new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+  }
+
+  /**
+   * Start an actor for a boiler.
+   *
+   * @param boiler          The number identifying the boiler.
+   * @param characteristics The characteristics of the boiler.
+   * @param reply           Given the boiler number and outgoing mailbox of every
+   *                        cycle, on the actor's thread.
+   * @return the actor.
+   * @throws IllegalStateException if the runtime is closed.
+   */
+  public BoilerActor spawn(int boiler, SteamBoilerCharacteristics characteristics,
+      ObjIntConsumer<Mailbox> reply) {
+    if (this.closed) {
+      throw new IllegalStateException("runtime closed"); //$NON-NLS-1$
+    }
+    BoilerActor actor = new BoilerActor(boiler, characteristics, this.queueCapacity,
+        this.executor, reply);
+    if (this.actors.putIfAbsent(Integer.valueOf(boiler), actor) != null) {
+      throw new IllegalArgumentException("boiler already running: " + boiler); //$NON-NLS-1$
+    }
+    if (this.closed) {
+      // Closed while spawning, so the new actor may have been missed
+      actor.close();
+    }
+    return actor;
+  }
+
+  /**
+   * Get the actor of a boiler.
+   *
+   * @param boiler The number identifying the boiler.
+   * @return the actor, or <code>null</code> if the boiler has none.
+   */
+  public @Nullable BoilerActor getActor(int boiler) {
+    return this.actors.get(Integer.valueOf(boiler));
+  }
+
+  /**
+   * Hand the incoming mailbox of a cycle to the actor of a boiler.
+   *
+   * @param boiler   The number identifying the boiler.
+   * @param incoming The messages from the physical units.
+   * @return true if the cycle was queued, or false if the actor's queue was full or
+   *         the runtime is closed.
+   */
+  public boolean tell(int boiler, Mailbox incoming) {
+    if (this.closed) {
+      return false;
+    }
+    BoilerActor actor = this.actors.get(Integer.valueOf(boiler));
+    if (actor == null) {
+      throw new IllegalArgumentException("unknown boiler: " + boiler); //$NON-NLS-1$
+    }
+    return actor.tell(incoming);
+  }
+
+  /**
+   * Get the number of actors.
+   *
+   * @return the number of boilers running.
+   */
+  public int size() {
+    return this.actors.size();
+  }
+
+  /**
+   * Stop accepting cycles, whether told through the runtime or to an actor
+   * directly. Cycles already queued may still be clocked. An executor given
+   * to the runtime is left running.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    for (BoilerActor actor : this.actors.values()) {
+      actor.close();
+    }
+    if (this.ownsExecutor && this.executor instanceof ExecutorService) {
+      ((ExecutorService) this.executor).shutdown();
+    }
+  }
+}
@@ -0,0 +1,586 @@
+package steam.boiler.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import steam.boiler.core.MySteamBoilerController.State;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Runs the control cycle of many boilers with the same characteristics at
+ * once. The state of every boiler is held in parallel primitive arrays, one
+ * element per boiler, and each stage of the cycle is a single loop over those
+ * arrays, so there is no per-boiler object to dispatch on or pointer to chase.
+ *
+ * <p>Each {@link #clock()} advances every boiler in the normal, degraded or
+ * rescue mode by one cycle from the readings set with
+ * {@link #setReadings(int, double, double, long)}: it brings the level
+ * estimate up to date, remembers the steam rate, computes the lowest and
+ * highest level each boiler can reach by the next cycle, stops the boilers
+ * which may leave their limits, and chooses the pumps to open. Boilers in the
+ * waiting and emergency stop modes are left alone.
+ *
+ * <p>Every stage is computed exactly as {@link MySteamBoilerController} does
+ * it, down to the last bit, for controllers which do not filter their
+ * readings: the same operations are applied in the same order, and pumps are
+ * chosen from the same {@link PumpScheduler} tables. Initialisation, the
+ * detection and repair of failed units, and every change of mode other than an
+ * emergency stop on the level limits, are driven by messages and remain with
+ * the caller, who passes them on through {@link #setMode(int, State)} and
+ * {@link #setFailed(int, long)}. A boiler is normally loaded once, from a
+ * {@link ControllerStatus}, when its controller leaves initialisation.
+ *
+ * <p>Pump sets are held as single 64-bit masks, so boilers may have at most
+ * {@link #MAX_PUMPS} pumps.
+ *
+ * @author paula
+ *
+ */
+public final class BatchController {
+
+  /**
+   * Largest number of pumps a boiler may have.
+   */
+  public static final int MAX_PUMPS = 64;
+
+  /**
+   * Largest number of pumps for which the inflow of every subset of pumps is
+   * tabulated, rather than summed on every cycle.
+   */
+  private static final int TABLE_PUMPS = 12;
+
+  /**
+   * All modes, indexed by ordinal.
+   */
+  private static final State[] STATES = State.values();
+
+  /**
+   * Pumps which may be chosen from, and the pumps each entry of their table
+   * opens.
+   *
+   * @author paula
+   *
+   */
+  private static final class Choice {
+
+    /**
+     * Table of the inflows the pumps can deliver.
+     */
+    final PumpScheduler scheduler;
+
+    /**
+     * Pumps opened by each entry of the table.
+     */
+    final long[] masks;
+
+    /**
+     * Construct a choice.
+     *
+     * @param scheduler1 Table of the inflows the pumps can deliver.
+     */
+    Choice(PumpScheduler scheduler1) {
+      this.scheduler = scheduler1;
+      this.masks = new long[scheduler1.size()];
+      PumpSet pumps = new PumpSet(MAX_PUMPS);
+      for (int e = 0; e != this.masks.length; ++e) {
+        scheduler1.select(e, pumps);
+        this.masks[e] = pumps.word(0);
+      }
+    }
+  }
+
+  /**
+   * Thresholds of the boilers.
+   */
+  private final ControlProfile profile;
+
+  /**
+   * Capacity of each pump (l/s).
+   */
+  private final double[] capacities;
+
+  /**
+   * Combined capacity of every subset of pumps, indexed by mask, or an empty
+   * array if there are too many pumps to tabulate.
+   */
+  private final double[] inflows;
+
+  /**
+   * Choice when no pump has failed, shared by most boilers.
+   */
+  private final Choice healthy;
+
+  /**
+   * Choices for each set of failed pumps seen so far, keyed by mask.
+   */
+  private final HashMap<Long, Choice> degraded = new HashMap<>();
+
+  /**
+   * Ordinal of the mode of each boiler.
+   */
+  private final byte[] modes;
+
+  /**
+   * Lowest level the water of each boiler can be at (l).
+   */
+  private final double[] low;
+
+  /**
+   * Highest level the water of each boiler can be at (l).
+   */
+  private final double[] high;
+
+  /**
+   * Lowest rate at which steam was leaving each boiler when its level was last
+   * estimated (l/s).
+   */
+  private final double[] steamLow;
+
+  /**
+   * Highest rate at which steam was leaving each boiler when its level was last
+   * estimated (l/s).
+   */
+  private final double[] steamHigh;
+
+  /**
+   * Whether the level of each boiler was not measured in the current cycle.
+   */
+  private final boolean[] estimated;
+
+  /**
+   * Level reading of each boiler in the current cycle (l).
+   */
+  private final double[] level;
+
+  /**
+   * Steam reading of each boiler in the current cycle (l/s).
+   */
+  private final double[] steam;
+
+  /**
+   * Most recent steam reading of each boiler which was within range (l/s).
+   */
+  private final double[] steamRate;
+
+  /**
+   * Pumps of each boiler commanded open.
+   */
+  private final long[] commanded;
+
+  /**
+   * Pumps of each boiler reported open in the current cycle.
+   */
+  private final long[] open;
+
+  /**
+   * Pumps of each boiler which have failed.
+   */
+  private final long[] failed;
+
+  /**
+   * Choice of pumps for the failed pumps of each boiler.
+   */
+  private final Choice[] choices;
+
+  /**
+   * Lowest level each boiler can reach by the next cycle (l).
+   */
+  private final double[] min;
+
+  /**
+   * Highest level each boiler can reach by the next cycle (l).
+   */
+  private final double[] max;
+
+  /**
+   * Whether each boiler is to stop at the end of the current cycle.
+   */
+  private final boolean[] stopping;
+
+  /**
+   * Construct a batch of boilers, all in the waiting mode with nothing known.
+   *
+   * @param characteristics The characteristics shared by every boiler.
+   * @param size            The number of boilers.
+   * @throws IllegalArgumentException if the boilers have more than
+   *                                  {@link #MAX_PUMPS} pumps.
+   */
+  public BatchController(SteamBoilerCharacteristics characteristics, int size) {
+    ControlProfile p = ControlProfile.of(characteristics);
+    int pumps = p.getNumberOfPumps();
+    if (pumps > MAX_PUMPS) {
+      throw new IllegalArgumentException("too many pumps: " + pumps); //$NON-NLS-1$
+    }
+    this.profile = p;
+    this.capacities = new double[pumps];
+    for (int i = 0; i != pumps; ++i) {
+      this.capacities[i] = characteristics.getPumpCapacity(i);
+    }
+    this.inflows = new double[pumps <= TABLE_PUMPS ? 1 << pumps : 0];
+    for (int m = 0; m != this.inflows.length; ++m) {
+      this.inflows[m] = sum(m);
+    }
+    this.healthy = new Choice(p.getScheduler(new PumpSet(pumps)));
+    this.modes = new byte[size];
+    this.low = new double[size];
+    this.high = new double[size];
+    this.steamLow = new double[size];
+    this.steamHigh = new double[size];
+    this.estimated = new boolean[size];
+    this.level = new double[size];
+    this.steam = new double[size];
+    this.steamRate = new double[size];
+    this.commanded = new long[size];
+    this.open = new long[size];
+    this.failed = new long[size];
+    this.choices = new Choice[size];
+    Arrays.fill(this.choices, this.healthy);
+    this.min = new double[size];
+    this.max = new double[size];
+    this.stopping = new boolean[size];
+  }
+
+  /**
+   * Get the number of boilers.
+   *
+   * @return the number of boilers.
+   */
+  public int size() {
+    return this.modes.length;
+  }
+
+  /**
+   * Load the state of one boiler from a snapshot of its controller, so that the
+   * batch carries on from where the controller is.
+   *
+   * @param boiler The index of the boiler.
+   * @param status The snapshot, taken between two cycles.
+   * @throws IllegalArgumentException if the snapshot is for a different
+   *                                  number of pumps.
+   */
+  public void load(int boiler, ControllerStatus status) {
+    if (status.getPumps() != this.capacities.length) {
+      throw new IllegalArgumentException("status is for " + status.getPumps() //$NON-NLS-1$
+          + " pumps"); //$NON-NLS-1$
+    }
+    this.modes[boiler] = (byte) status.getModeOrdinal();
+    this.low[boiler] = status.getMinLevel();
+    this.high[boiler] = status.getMaxLevel();
+    this.steamLow[boiler] = status.getSteamLow();
+    this.steamHigh[boiler] = status.getSteamHigh();
+    this.estimated[boiler] = status.hasFlag(ControllerStatus.LEVEL_ESTIMATED);
+    this.steamRate[boiler] = status.getSteam();
+    this.commanded[boiler] = status.words() == 0 ? 0 : status.getCommanded(0);
+    this.open[boiler] = status.words() == 0 ? 0 : status.getOpen(0);
+    setFailed(boiler, status.words() == 0 ? 0 : status.getFailed(0));
+  }
+
+  /**
+   * Change the mode of one boiler, as its controller would on the messages of
+   * the current cycle. The next {@link #clock()} runs in the new mode.
+   *
+   * @param boiler The index of the boiler.
+   * @param mode   The new mode.
+   */
+  public void setMode(int boiler, State mode) {
+    this.modes[boiler] = (byte) mode.ordinal();
+  }
+
+  /**
+   * Change the pumps of one boiler which have failed, as its controller would
+   * on detecting a failure or being told of a repair. The pumps are chosen from
+   * the table for the new set from the next {@link #clock()}; the table is
+   * built here the first time the set is seen, never during a cycle.
+   *
+   * @param boiler The index of the boiler.
+   * @param mask   The failed pumps.
+   */
+  public void setFailed(int boiler, long mask) {
+    this.failed[boiler] = mask;
+    this.choices[boiler] = mask == 0 ? this.healthy : choice(mask);
+  }
+
+  /**
+   * Set the readings of one boiler for the next cycle.
+   *
+   * @param boiler The index of the boiler.
+   * @param level1 The level reading (l).
+   * @param steam1 The steam reading (l/s).
+   * @param open1  The pumps reported open.
+   */
+  public void setReadings(int boiler, double level1, double steam1, long open1) {
+    this.level[boiler] = level1;
+    this.steam[boiler] = steam1;
+    this.open[boiler] = open1;
+  }
+
+  /**
+   * Advance every boiler which controls its pumps by one cycle, in the order
+   * the controller's modes do it. The level estimate is updated first. In the
+   * normal and rescue modes the bounds are then checked against the limits
+   * before the pumps are chosen; in the degraded mode the pumps are chosen
+   * first, so the bounds count the pumps just commanded. A boiler which may
+   * leave its limits still has its pumps chosen, and is in emergency stop once
+   * the cycle is over. In the normal and degraded modes the limits are only
+   * checked when the level was measured, in the rescue mode always.
+   */
+  public void clock() {
+    estimate();
+    int n = size();
+    byte normal = (byte) State.NORMAL.ordinal();
+    byte rescue = (byte) State.RESCUE.ordinal();
+    byte degradedMode = (byte) State.DEGRADED.ordinal();
+    double lowest = this.profile.getMinimalLimitLevel();
+    double highest = this.profile.getMaximalLimitLevel();
+    for (int i = 0; i != n; ++i) {
+      byte m = this.modes[i];
+      if (m == normal || m == rescue) {
+        bound(i);
+        this.stopping[i] = (m == rescue || !this.estimated[i])
+            && (this.min[i] <= lowest || this.max[i] >= highest);
+      }
+    }
+    choosePumps();
+    for (int i = 0; i != n; ++i) {
+      if (this.modes[i] == degradedMode) {
+        bound(i);
+        this.stopping[i] = !this.estimated[i]
+            && (this.min[i] <= lowest || this.max[i] >= highest);
+      }
+    }
+    byte stop = (byte) State.EMERGENCY_STOP.ordinal();
+    for (int i = 0; i != n; ++i) {
+      if (this.stopping[i]) {
+        this.modes[i] = stop;
+        this.stopping[i] = false;
+      }
+    }
+  }
+
+  /**
+   * Bring the level estimate of every boiler which controls its pumps up to
+   * date, as the controller's <code>estimateLevel</code> and
+   * {@link LevelEstimator} do. A level reading within range is taken as is.
+   * Otherwise the previous estimate is moved on by the water the pumps
+   * certainly and possibly open could have pumped, less the steam which could
+   * have left at the fastest and slowest rates seen since the previous update.
+   */
+  private void estimate() {
+    int n = size();
+    double maxSteam = this.profile.getMaximalSteamRate();
+    double highest = this.profile.getMaximalLimitLevel();
+    double capacity = this.profile.getCapacity();
+    for (int i = 0; i != n; ++i) {
+      if (!controlsPumps(this.modes[i])) {
+        continue;
+      }
+      double s = this.steam[i];
+      double sLow = 0;
+      double sHigh = maxSteam;
+      if (!(s == -1 || maxSteam < s)) {
+        sLow = s;
+        sHigh = s;
+      }
+      double l = this.level[i];
+      if (!(l == -1 || highest < l)) {
+        this.low[i] = l;
+        this.high[i] = l;
+        this.estimated[i] = false;
+      } else {
+        long c = this.commanded[i];
+        long o = this.open[i];
+        double fastest = Math.max(this.steamHigh[i], sHigh);
+        double slowest = Math.min(this.steamLow[i], sLow);
+        this.low[i] = Math.max(0,
+            this.low[i] + ControlProfile.CYCLE_SECONDS * (inflow(c & o) - fastest));
+        this.high[i] = Math.min(capacity,
+            this.high[i] + ControlProfile.CYCLE_SECONDS * (inflow(c | o) - slowest));
+        this.estimated[i] = true;
+      }
+      this.steamLow[i] = sLow;
+      this.steamHigh[i] = sHigh;
+    }
+  }
+
+  /**
+   * Compute the lowest and highest level a boiler can reach by the next cycle,
+   * as the controller's <code>getMin</code> and <code>getMax</code> do. Only
+   * pumps both commanded and reported open count towards the lowest level,
+   * while pumps either commanded or reported open count towards the highest.
+   *
+   * @param boiler The index of the boiler.
+   */
+  private void bound(int boiler) {
+    long c = this.commanded[boiler];
+    long o = this.open[boiler];
+    this.min[boiler] = this.low[boiler] + (ControlProfile.CYCLE_SECONDS * inflow(c & o))
+        - this.profile.getSteamOutflowPerCycle();
+    this.max[boiler] = this.high[boiler] + (ControlProfile.CYCLE_SECONDS * inflow(c | o))
+        - (ControlProfile.CYCLE_SECONDS * this.steam[boiler]);
+  }
+
+  /**
+   * Choose the pumps to open for every boiler which controls its pumps, as the
+   * controller's <code>openPumps</code> does: first remember the steam reading
+   * if it is within range, then aim for the inflow which brings the level, or
+   * the middle of its estimate, to the middle of the normal band by the next
+   * cycle. The chosen pumps become the ones commanded open.
+   */
+  private void choosePumps() {
+    int n = size();
+    double maxSteam = this.profile.getMaximalSteamRate();
+    double midpoint = this.profile.getMidpoint();
+    for (int i = 0; i != n; ++i) {
+      if (!controlsPumps(this.modes[i])) {
+        continue;
+      }
+      double s = this.steam[i];
+      if (!(s == -1 || maxSteam < s)) {
+        this.steamRate[i] = s;
+      }
+      double wanted = (midpoint - (this.low[i] + this.high[i]) / 2) / ControlProfile.CYCLE_SECONDS
+          + this.steamRate[i];
+      Choice c = this.choices[i];
+      this.commanded[i] = c.masks[c.scheduler.nearest(wanted)];
+    }
+  }
+
+  /**
+   * Get the mode of a boiler.
+   *
+   * @param boiler The index of the boiler.
+   * @return the mode.
+   */
+  public State getMode(int boiler) {
+    return STATES[this.modes[boiler]];
+  }
+
+  /**
+   * Get the lowest level the water of a boiler can be at.
+   *
+   * @param boiler The index of the boiler.
+   * @return the level (l).
+   */
+  public double getLow(int boiler) {
+    return this.low[boiler];
+  }
+
+  /**
+   * Get the highest level the water of a boiler can be at.
+   *
+   * @param boiler The index of the boiler.
+   * @return the level (l).
+   */
+  public double getHigh(int boiler) {
+    return this.high[boiler];
+  }
+
+  /**
+   * Get the lowest level a boiler can reach by the next cycle, as last checked
+   * against its limits.
+   *
+   * @param boiler The index of the boiler.
+   * @return the level (l).
+   */
+  public double getMin(int boiler) {
+    return this.min[boiler];
+  }
+
+  /**
+   * Get the highest level a boiler can reach by the next cycle, as last checked
+   * against its limits.
+   *
+   * @param boiler The index of the boiler.
+   * @return the level (l).
+   */
+  public double getMax(int boiler) {
+    return this.max[boiler];
+  }
+
+  /**
+   * Get the pumps of a boiler commanded open.
+   *
+   * @param boiler The index of the boiler.
+   * @return the mask of pumps.
+   */
+  public long getCommanded(int boiler) {
+    return this.commanded[boiler];
+  }
+
+  /**
+   * Get the pumps of a boiler which have failed.
+   *
+   * @param boiler The index of the boiler.
+   * @return the mask of pumps.
+   */
+  public long getFailed(int boiler) {
+    return this.failed[boiler];
+  }
+
+  /**
+   * Get the most recent steam reading of a boiler which was within range.
+   *
+   * @param boiler The index of the boiler.
+   * @return the rate at which steam is leaving (l/s).
+   */
+  public double getSteamRate(int boiler) {
+    return this.steamRate[boiler];
+  }
+
+  /**
+   * Check whether the controller chooses pumps in a given mode.
+   *
+   * @param mode The ordinal of the mode.
+   * @return true for the normal, degraded and rescue modes.
+   */
+  private static boolean controlsPumps(byte mode) {
+    return mode == State.NORMAL.ordinal() || mode == State.DEGRADED.ordinal()
+        || mode == State.RESCUE.ordinal();
+  }
+
+  /**
+   * Get the choice for boilers with a given set of failed pumps, building its
+   * table the first time the set is seen.
+   *
+   * @param mask The failed pumps.
+   * @return the choice.
+   */
+  private Choice choice(long mask) {
+    Long key = Long.valueOf(mask);
+    Choice c = this.degraded.get(key);
+    if (c == null) {
+      PumpSet unavailable = new PumpSet(this.capacities.length);
+      unavailable.setWord(0, mask);
+      c = new Choice(this.profile.getScheduler(unavailable));
+      this.degraded.put(key, c);
+    }
+    return c;
+  }
+
+  /**
+   * Get the combined capacity of a set of pumps.
+   *
+   * @param mask The pumps.
+   * @return their combined capacity (l/s).
+   */
+  private double inflow(long mask) {
+    double[] table = this.inflows;
+    return table.length != 0 ? table[(int) mask] : sum(mask);
+  }
+
+  /**
+   * Sum the capacities of a set of pumps in ascending order, as
+   * {@link PumpScheduler#inflow(PumpSet)} does.
+   *
+   * @param mask The pumps.
+   * @return their combined capacity (l/s).
+   */
+  private double sum(long mask) {
+    double total = 0;
+    for (int i = 0; i != this.capacities.length; ++i) {
+      if ((mask & (1L << i)) != 0) {
+        total += this.capacities[i];
+      }
+    }
+    return total;
+  }
+}
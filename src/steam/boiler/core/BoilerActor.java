@@ -0,0 +1,233 @@
+package steam.boiler.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjIntConsumer;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Runs the controller of one boiler as an actor. Other threads hand the actor
+ * the incoming mailbox of each cycle through {@link #tell(Mailbox)}, which
+ * never blocks; the actor clocks its controller with them, in order, as a task
+ * on an executor, and passes every outgoing mailbox to a reply callback.
+ *
+ * <p>At most one task of an actor runs at a time, so its controller is only
+ * ever touched by one thread at once and needs no locking. The task clocks at
+ * most {@link #BATCH} cycles before giving its thread back to the executor, so
+ * a busy actor cannot starve the others sharing that executor.
+ *
+ * <p>An actor holds no thread while it has nothing to do, so many more actors
+ * than threads can be run. The inbound queue is bounded: when a boiler falls
+ * that far behind, further cycles are refused rather than queued. Cycles are
+ * also refused once the actor is closed, or if the executor rejects its task.
+ *
+ * @author paula
+ *
+ */
+public final class BoilerActor {
+
+  /**
+   * Default number of cycles which can wait in an actor's inbound queue.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+  /**
+   * Largest number of cycles clocked by one task.
+   */
+  public static final int BATCH = 16;
+
+  /**
+   * The number identifying the boiler.
+   */
+  private final int boiler;
+
+  /**
+   * The controller of the boiler, only touched by the actor's task.
+   */
+  private final MySteamBoilerController controller;
+
+  /**
+   * Incoming mailboxes waiting to be clocked.
+   */
+  private final ArrayBlockingQueue<Mailbox> inbound;
+
+  /**
+   * Executor on which the actor's tasks run.
+   */
+  private final Executor executor;
+
+  /**
+   * Given the boiler number and outgoing mailbox at the end of every cycle.
+   */
+  private final ObjIntConsumer<Mailbox> reply;
+
+  /**
+   * Whether a task of this actor is queued or running.
+   */
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  /**
+   * Number of cycles clocked.
+   */
+  private final AtomicLong cycles = new AtomicLong();
+
+  /**
+   * Number of cycles refused because the inbound queue was full.
+   */
+  private final AtomicLong refused = new AtomicLong();
+
+  /**
+   * Mode of the controller at the end of the last cycle clocked, published for
+   * other threads.
+   */
+  private volatile MySteamBoilerController.State mode;
+
+  /**
+   * Whether the actor has been closed, so that cycles are refused.
+   */
+  private volatile boolean closed;
+
+  /**
+   * The actor's task, allocated once.
+   */
+  private final Runnable drain = this::drain;
+
+  /**
+   * Construct an actor for a boiler.
+   *
+   * @param boiler1          The number identifying the boiler.
+   * @param characteristics  The characteristics of the boiler.
+   * @param queueCapacity    Number of cycles which can wait in the inbound queue.
+   * @param executor1        Executor on which the actor's tasks run.
+   * @param reply1           Given the boiler number and outgoing mailbox of every
+   *                         cycle, on the actor's thread.
+   */
+  public BoilerActor(int boiler1, SteamBoilerCharacteristics characteristics, int queueCapacity,
+      Executor executor1, ObjIntConsumer<Mailbox> reply1) {
+    this.boiler = boiler1;
+    this.controller = new MySteamBoilerController(characteristics);
+    this.inbound = new ArrayBlockingQueue<>(queueCapacity);
+    this.executor = executor1;
+    this.reply = reply1;
+    this.mode = this.controller.getMode();
+  }
+
+  /**
+   * Get the number identifying the boiler.
+   *
+   * @return the boiler number.
+   */
+  public int getBoiler() {
+    return this.boiler;
+  }
+
+  /**
+   * Get the mode of the boiler's controller at the end of the last cycle
+   * clocked. This may be read from any thread, though it may be a cycle out of
+   * date.
+   *
+   * @return the mode.
+   */
+  public MySteamBoilerController.State getMode() {
+    return this.mode;
+  }
+
+  /**
+   * Get the number of cycles clocked.
+   *
+   * @return the number of cycles.
+   */
+  public long getCycles() {
+    return this.cycles.get();
+  }
+
+  /**
+   * Get the number of cycles refused because the inbound queue was full.
+   *
+   * @return the number of cycles.
+   */
+  public long getRefused() {
+    return this.refused.get();
+  }
+
+  /**
+   * Hand the actor the incoming mailbox of a cycle. The mailbox must not be
+   * changed afterwards.
+   *
+   * @param incoming The messages from the physical units.
+   * @return true if the cycle was queued, or false if the queue was full, the
+   *         actor is closed or the executor rejected the actor's task.
+   */
+  public boolean tell(Mailbox incoming) {
+    if (this.closed) {
+      return false;
+    }
+    if (!this.inbound.offer(incoming)) {
+      this.refused.incrementAndGet();
+      return false;
+    }
+    if (!schedule()) {
+      // Nothing would ever clock the cycle
+      this.inbound.remove(incoming);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Refuse every further cycle. Cycles already queued may still be clocked.
+   */
+  public void close() {
+    this.closed = true;
+  }
+
+  /**
+   * Submit a task, unless one is already queued or running.
+   *
+   * @return false if the executor rejected the task.
+   */
+  private boolean schedule() {
+    if (this.scheduled.compareAndSet(false, true)) {
+      try {
+        this.executor.execute(this.drain);
+      } catch (RejectedExecutionException e) {
+        this.scheduled.set(false);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Clock the controller with queued cycles, then reschedule if any arrived
+   * meanwhile. An exception from the controller or the reply callback ends the
+   * task, and is passed on to the executor, but the actor carries on with the
+   * next cycle.
+   */
+  private void drain() {
+    try {
+      for (int i = 0; i != BATCH; ++i) {
+        Mailbox incoming = this.inbound.poll();
+        if (incoming == null) {
+          break;
+        }
+        Mailbox outgoing = new UnboundedMailbox(16);
+        this.controller.clock(incoming, outgoing);
+        this.mode = this.controller.getMode();
+        this.cycles.incrementAndGet();
+        this.reply.accept(outgoing, this.boiler);
+      }
+    } finally {
+      this.scheduled.set(false);
+      // A cycle queued after the last poll would otherwise wait for the next tell
+      if (!this.inbound.isEmpty()) {
+        schedule();
+      }
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package steam.boiler.core;
+
+import java.util.concurrent.atomic.LongAdder;
+import steam.boiler.core.MySteamBoilerController.State;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Counters of what one or more controllers have done: cycles processed, time
+ * spent in each mode, transitions between each pair of modes, and failure
+ * detections sent. A single instance is normally shared by a whole fleet, each
+ * controller feeding it through its own {@link #listener(MySteamBoilerController)}.
+ *
+ * <p>Every counter is a {@link LongAdder}, which stripes updates across cells
+ * under contention, so controllers never wait on each other and reading the
+ * counters never waits on, or slows down, a controller. A read taken while
+ * controllers are running is not an atomic snapshot, but every counter only
+ * goes up.
+ *
+ * @author paula
+ *
+ */
+public final class BoilerCounters {
+
+  /**
+   * All modes, indexed by ordinal.
+   */
+  private static final State[] STATES = State.values();
+
+  /**
+   * The kinds of message counted as detections, in the order exposed.
+   */
+  private static final MessageKind[] DETECTIONS = { MessageKind.PUMP_FAILURE_DETECTION_n,
+      MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n, MessageKind.STEAM_FAILURE_DETECTION,
+      MessageKind.LEVEL_FAILURE_DETECTION };
+
+  /**
+   * Cycles processed.
+   */
+  private final LongAdder cycles = new LongAdder();
+
+  /**
+   * Cycles which ended in each mode, indexed by ordinal.
+   */
+  private final LongAdder[] residency = new LongAdder[STATES.length];
+
+  /**
+   * Transitions between modes, indexed by the ordinal of the mode left times
+   * the number of modes plus that of the mode entered.
+   */
+  private final LongAdder[] transitions = new LongAdder[STATES.length * STATES.length];
+
+  /**
+   * Detection messages sent, indexed as {@link #DETECTIONS}.
+   */
+  private final LongAdder[] detections = new LongAdder[DETECTIONS.length];
+
+  /**
+   * Construct counters which are all zero.
+   */
+  public BoilerCounters() {
+    fill(this.residency);
+    fill(this.transitions);
+    fill(this.detections);
+  }
+
+  /**
+   * Get a listener which counts every cycle of a controller. Each controller
+   * needs its own listener, since the listener remembers the mode the
+   * controller was in.
+   *
+   * @param controller The controller, whose current mode is the one its first
+   *                   cycle starts in.
+   * @return the listener.
+   */
+  public CycleListener listener(MySteamBoilerController controller) {
+    return new Tracker(controller.getMode());
+  }
+
+  /**
+   * Count one cycle.
+   *
+   * @param from     The mode the controller was in before the cycle.
+   * @param to       The mode the controller was in after the cycle.
+   * @param outgoing The messages sent by the controller.
+   */
+  public void record(State from, State to, Mailbox outgoing) {
+    this.cycles.increment();
+    this.residency[to.ordinal()].increment();
+    if (from != to) {
+      this.transitions[from.ordinal() * STATES.length + to.ordinal()].increment();
+    }
+    for (int i = 0; i != outgoing.size(); ++i) {
+      int d = detection(outgoing.read(i).getKind());
+      if (d >= 0) {
+        this.detections[d].increment();
+      }
+    }
+  }
+
+  /**
+   * Get the number of cycles processed.
+   *
+   * @return the number of cycles.
+   */
+  public long getCycles() {
+    return this.cycles.sum();
+  }
+
+  /**
+   * Get the time spent in a given mode. A cycle counts towards the mode the
+   * controller was left in, which lasts until the next cycle.
+   *
+   * @param state The mode.
+   * @return the time (s).
+   */
+  public long getResidency(State state) {
+    return ControlProfile.CYCLE_SECONDS * this.residency[state.ordinal()].sum();
+  }
+
+  /**
+   * Get the number of transitions between two modes.
+   *
+   * @param from The mode left.
+   * @param to   The mode entered.
+   * @return the number of transitions.
+   */
+  public long getTransitions(State from, State to) {
+    return this.transitions[from.ordinal() * STATES.length + to.ordinal()].sum();
+  }
+
+  /**
+   * Get the number of detection messages of a given kind sent.
+   *
+   * @param kind The kind of message.
+   * @return the number of messages, which is zero for a kind which is not a
+   *         detection.
+   */
+  public long getDetections(MessageKind kind) {
+    int d = detection(kind);
+    return d < 0 ? 0 : this.detections[d].sum();
+  }
+
+  /**
+   * Append the counters in the Prometheus text exposition format. Transitions
+   * which have never happened are left out.
+   *
+   * @param out Where the counters are written.
+   */
+  public void format(StringBuilder out) {
+    header(out, "steam_boiler_cycles_total", //$NON-NLS-1$
+        "Controller cycles processed."); //$NON-NLS-1$
+    out.append("steam_boiler_cycles_total ").append(getCycles()).append('\n'); //$NON-NLS-1$
+    header(out, "steam_boiler_mode_seconds_total", //$NON-NLS-1$
+        "Time controllers spent in each mode."); //$NON-NLS-1$
+    for (State s : STATES) {
+      out.append("steam_boiler_mode_seconds_total{mode=\"").append(s) //$NON-NLS-1$
+          .append("\"} ").append(getResidency(s)).append('\n'); //$NON-NLS-1$
+    }
+    header(out, "steam_boiler_transitions_total", //$NON-NLS-1$
+        "Transitions of controllers between modes."); //$NON-NLS-1$
+    for (State from : STATES) {
+      for (State to : STATES) {
+        long n = getTransitions(from, to);
+        if (n != 0) {
+          out.append("steam_boiler_transitions_total{from=\"").append(from) //$NON-NLS-1$
+              .append("\",to=\"").append(to).append("\"} ").append(n) //$NON-NLS-1$ //$NON-NLS-2$
+              .append('\n');
+        }
+      }
+    }
+    header(out, "steam_boiler_detections_total", //$NON-NLS-1$
+        "Failure detection messages sent by controllers."); //$NON-NLS-1$
+    for (int i = 0; i != DETECTIONS.length; ++i) {
+      out.append("steam_boiler_detections_total{kind=\"").append(DETECTIONS[i]) //$NON-NLS-1$
+          .append("\"} ").append(this.detections[i].sum()).append('\n'); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Append the help and type lines of a counter.
+   *
+   * @param out  Where the lines are written.
+   * @param name The name of the counter.
+   * @param help A description of the counter.
+   */
+  private static void header(StringBuilder out, String name, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n'); //$NON-NLS-1$
+    out.append("# TYPE ").append(name).append(" counter\n"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Find the index of the counter for a kind of message.
+   *
+   * @param kind The kind of message.
+   * @return the index into {@link #DETECTIONS}, or -1 if the kind is not a
+   *         detection.
+   */
+  private static int detection(MessageKind kind) {
+    switch (kind) {
+      case PUMP_FAILURE_DETECTION_n:
+        return 0;
+      case PUMP_CONTROL_FAILURE_DETECTION_n:
+        return 1;
+      case STEAM_FAILURE_DETECTION:
+        return 2;
+      case LEVEL_FAILURE_DETECTION:
+        return 3;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Fill an array with new counters.
+   *
+   * @param counters The array.
+   */
+  private static void fill(LongAdder[] counters) {
+    for (int i = 0; i != counters.length; ++i) {
+      counters[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Listener feeding the counters from one controller.
+   *
+   * @author paula
+   *
+   */
+  private final class Tracker implements CycleListener {
+
+    /**
+     * The mode the controller was in after its previous cycle.
+     */
+    private State previous;
+
+    /**
+     * Construct a tracker.
+     *
+     * @param initial The mode the controller is in now.
+     */
+    Tracker(State initial) {
+      this.previous = initial;
+    }
+
+    @Override
+    public void cycleCompleted(MySteamBoilerController controller, Mailbox incoming,
+        Mailbox outgoing) {
+      State now = controller.getMode();
+      record(this.previous, now, outgoing);
+      this.previous = now;
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package steam.boiler.core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Hosts a fleet of steam boiler controllers in the same JVM. On every clock
+ * signal the controllers are clocked in parallel on a work-stealing pool, and
+ * the time taken for the whole fleet to complete the cycle (its makespan) is
+ * recorded.
+ *
+ * @author paula
+ *
+ */
+public final class BoilerFleet {
+
+  /**
+   * Number of work units created per pool thread, giving idle threads some work
+   * to steal when controllers take uneven amounts of time.
+   */
+  private static final int TASKS_PER_THREAD = 8;
+
+  /**
+   * The controller of each boiler in the fleet.
+   */
+  private final MySteamBoilerController[] controllers;
+
+  /**
+   * The pool on which controllers are clocked.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Largest number of controllers clocked sequentially by a single task.
+   */
+  private final int threshold;
+
+  /**
+   * Time taken by the most recent fleet cycle, in nanoseconds.
+   */
+  private volatile long lastMakespan;
+
+  /**
+   * Construct a fleet with one controller per set of characteristics, clocked on
+   * the common pool.
+   *
+   * @param characteristics1 The characteristics of each boiler.
+   */
+  public BoilerFleet(SteamBoilerCharacteristics[] characteristics1) {
+    this(characteristics1, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Construct a fleet with one controller per set of characteristics.
+   *
+   * @param characteristics1 The characteristics of each boiler.
+   * @param pool1            The pool on which controllers are clocked.
+   */
+  public BoilerFleet(SteamBoilerCharacteristics[] characteristics1, ForkJoinPool pool1) {
+    this.controllers = new MySteamBoilerController[characteristics1.length];
+    for (int i = 0; i != characteristics1.length; ++i) {
+      this.controllers[i] = new MySteamBoilerController(characteristics1[i]);
+    }
+    this.pool = pool1;
+    int tasks = Math.max(1, pool1.getParallelism() * TASKS_PER_THREAD);
+    this.threshold = Math.max(1, characteristics1.length / tasks);
+  }
+
+  /**
+   * Get the number of boilers in the fleet.
+   *
+   * @return the fleet size.
+   */
+  public int size() {
+    return this.controllers.length;
+  }
+
+  /**
+   * Get the controller of a given boiler.
+   *
+   * @param boiler The boiler index.
+   * @return the controller of that boiler.
+   */
+  public MySteamBoilerController getController(int boiler) {
+    return this.controllers[boiler];
+  }
+
+  /**
+   * Get the characteristics of a given boiler. After its controller has been
+   * reconfigured, these are the new characteristics once they are in effect.
+   *
+   * @param boiler The boiler index.
+   * @return the characteristics of that boiler.
+   */
+  public SteamBoilerCharacteristics getCharacteristics(int boiler) {
+    SteamBoilerCharacteristics c = this.controllers[boiler].getCharacteristics();
+    assert c != null;
+    return c;
+  }
+
+  /**
+   * Get the time taken by the most recent fleet cycle.
+   *
+   * @return the makespan of the last cycle in nanoseconds, or zero if the fleet
+   *         has not been clocked yet.
+   */
+  public long getLastMakespan() {
+    return this.lastMakespan;
+  }
+
+  /**
+   * Process a clock signal for every boiler in the fleet. The ith controller
+   * reads <code>incoming[i]</code> and writes to <code>outgoing[i]</code>. This
+   * returns once every controller has completed its cycle.
+   *
+   * @param incoming The incoming messages of each boiler.
+   * @param outgoing Where the messages generated for each boiler are written.
+   * @return the makespan of this cycle in nanoseconds.
+   */
+  public long clock(Mailbox[] incoming, Mailbox[] outgoing) {
+    if (incoming.length != this.controllers.length
+        || outgoing.length != this.controllers.length) {
+      throw new IllegalArgumentException("one mailbox pair required per boiler"); //$NON-NLS-1$
+    }
+    long start = System.nanoTime();
+    this.pool.invoke(new ClockTask(this.controllers, incoming, outgoing, 0,
+        this.controllers.length, this.threshold));
+    long makespan = System.nanoTime() - start;
+    this.lastMakespan = makespan;
+    return makespan;
+  }
+
+  /**
+   * Clocks a contiguous range of controllers, splitting the range in half until
+   * it is small enough to process sequentially.
+   *
+   * @author paula
+   *
+   */
+  private static final class ClockTask extends RecursiveAction {
+
+    /**
+     * Required as RecursiveAction is serialisable.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The controllers of the fleet.
+     */
+    private final MySteamBoilerController[] controllers;
+
+    /**
+     * The incoming messages of each boiler.
+     */
+    private final Mailbox[] incoming;
+
+    /**
+     * The outgoing messages of each boiler.
+     */
+    private final Mailbox[] outgoing;
+
+    /**
+     * First boiler of the range (inclusive).
+     */
+    private final int from;
+
+    /**
+     * Last boiler of the range (exclusive).
+     */
+    private final int to;
+
+    /**
+     * Largest range processed without splitting.
+     */
+    private final int threshold;
+
+    /**
+     * Construct a task for a range of boilers.
+     *
+     * @param controllers1 The controllers of the fleet.
+     * @param incoming1    The incoming messages of each boiler.
+     * @param outgoing1    The outgoing messages of each boiler.
+     * @param from1        First boiler of the range (inclusive).
+     * @param to1          Last boiler of the range (exclusive).
+     * @param threshold1   Largest range processed without splitting.
+     */
+    ClockTask(MySteamBoilerController[] controllers1, Mailbox[] incoming1,
+        Mailbox[] outgoing1, int from1, int to1, int threshold1) {
+      this.controllers = controllers1;
+      this.incoming = incoming1;
+      this.outgoing = outgoing1;
+      this.from = from1;
+      this.to = to1;
+      this.threshold = threshold1;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from <= this.threshold) {
+        for (int i = this.from; i != this.to; ++i) {
+          this.controllers[i].clock(this.incoming[i], this.outgoing[i]);
+        }
+      } else {
+        int mid = (this.from + this.to) >>> 1;
+        invokeAll(new ClockTask(this.controllers, this.incoming, this.outgoing, this.from, mid,
+            this.threshold),
+            new ClockTask(this.controllers, this.incoming, this.outgoing, mid, this.to,
+            this.threshold));
+      }
+    }
+  }
+}
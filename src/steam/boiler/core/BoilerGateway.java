@@ -0,0 +1,451 @@
+package steam.boiler.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.jdt.annotation.Nullable;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Non-blocking TCP front end which serves many boilers from a single thread.
+ * Physical units send telemetry frames over any number of connections, and
+ * each frame is routed to the controller of the boiler it names. The messages
+ * the controller produces are written back on the same connection.
+ *
+ * <p>Frames in both directions have the layout
+ * <code>[u16 length][i32 boiler][mailbox frame]</code>, where the length
+ * counts the bytes after itself and the mailbox frame is encoded by
+ * {@link MessageCodec}. Each connection has fixed size buffers. When a client
+ * does not read its responses, the gateway stops reading its requests until the
+ * responses have drained, so a slow client cannot make the gateway buffer more.
+ * A connection which sends a malformed frame, or a frame for an unknown
+ * boiler, is closed.
+ *
+ * @author paula
+ *
+ */
+public final class BoilerGateway implements Closeable {
+
+  /**
+   * Largest frame accepted or produced, including its length field (bytes).
+   */
+  public static final int MAX_FRAME = 1024;
+
+  /**
+   * Number of bytes in a frame header (length and boiler).
+   */
+  public static final int HEADER_SIZE = 2 + 4;
+
+  /**
+   * Size of the buffer holding requests received on a connection (bytes).
+   */
+  private static final int READ_BUFFER = 4 * MAX_FRAME;
+
+  /**
+   * Size of the buffer holding responses waiting to be written to a connection
+   * (bytes).
+   */
+  private static final int WRITE_BUFFER = 8 * MAX_FRAME;
+
+  /**
+   * A boiler served by the gateway.
+   *
+   * @author paula
+   *
+   */
+  private static final class Boiler {
+
+    /**
+     * The controller of the boiler.
+     */
+    final MySteamBoilerController controller;
+
+    /**
+     * Decodes the telemetry of the boiler.
+     */
+    final MessageCodec codec;
+
+    /**
+     * Construct a boiler.
+     *
+     * @param characteristics The characteristics of the boiler.
+     */
+    Boiler(SteamBoilerCharacteristics characteristics) {
+      this.controller = new MySteamBoilerController(characteristics);
+      this.codec = new MessageCodec(ControlProfile.of(characteristics).getMessages());
+    }
+  }
+
+  /**
+   * The state of a connection from physical units.
+   *
+   * @author paula
+   *
+   */
+  private static final class Connection {
+
+    /**
+     * The channel of the connection.
+     */
+    final SocketChannel channel;
+
+    /**
+     * Requests received but not yet processed, in write mode.
+     */
+    final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+
+    /**
+     * Responses not yet written, in write mode.
+     */
+    final ByteBuffer out = ByteBuffer.allocate(WRITE_BUFFER);
+
+    /**
+     * Construct a connection.
+     *
+     * @param channel1 The channel of the connection.
+     */
+    Connection(SocketChannel channel1) {
+      this.channel = channel1;
+    }
+  }
+
+  /**
+   * Boilers served, by boiler number.
+   */
+  private final ConcurrentHashMap<Integer, Boiler> boilers = new ConcurrentHashMap<>();
+
+  /**
+   * Selector on which every channel is registered.
+   */
+  private final Selector selector;
+
+  /**
+   * Channel accepting new connections.
+   */
+  private final ServerSocketChannel server;
+
+  /**
+   * Thread running the selector loop, or <code>null</code> if not started.
+   */
+  private @Nullable Thread thread;
+
+  /**
+   * Set to stop the selector loop.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Number of frames processed.
+   */
+  private volatile long frames;
+
+  /**
+   * Messages of the frame being handled, reused by every frame.
+   */
+  private final RingMailbox incoming = new RingMailbox(MAX_FRAME);
+
+  /**
+   * Response to the frame being handled, reused by every frame.
+   */
+  private final RingMailbox outgoing = new RingMailbox(MAX_FRAME);
+
+  /**
+   * Construct a gateway listening on a given address.
+   *
+   * @param address The address to listen on; use port zero for any free port.
+   * @throws IOException if the address could not be bound.
+   */
+  public BoilerGateway(SocketAddress address) throws IOException {
+    this.selector = Selector.open();
+    this.server = ServerSocketChannel.open();
+    try {
+      this.server.bind(address);
+      this.server.configureBlocking(false);
+      this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      this.server.close();
+      this.selector.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Serve a boiler. Telemetry frames for it are accepted from then on.
+   *
+   * @param boiler          The number identifying the boiler.
+   * @param characteristics The characteristics of the boiler.
+   * @return the controller of the boiler.
+   */
+  public MySteamBoilerController register(int boiler,
+      SteamBoilerCharacteristics characteristics) {
+    Boiler b = new Boiler(characteristics);
+    this.boilers.put(Integer.valueOf(boiler), b);
+    return b.controller;
+  }
+
+  /**
+   * Get the controller of a boiler.
+   *
+   * @param boiler The number identifying the boiler.
+   * @return the controller, or <code>null</code> if the boiler is not served.
+   */
+  public @Nullable MySteamBoilerController getController(int boiler) {
+    Boiler b = this.boilers.get(Integer.valueOf(boiler));
+    return b == null ? null : b.controller;
+  }
+
+  /**
+   * Get the address the gateway is listening on.
+   *
+   * @return the bound address.
+   * @throws IOException if the address cannot be determined.
+   */
+  public InetSocketAddress getAddress() throws IOException {
+    return (InetSocketAddress) this.server.getLocalAddress();
+  }
+
+  /**
+   * Get the number of telemetry frames processed so far.
+   *
+   * @return the number of controller cycles run.
+   */
+  public long getFrames() {
+    return this.frames;
+  }
+
+  /**
+   * Start serving on a background thread.
+   */
+  public synchronized void start() {
+    if (this.thread != null) {
+      throw new IllegalStateException("gateway already started"); //$NON-NLS-1$
+    }
+    Thread t = new Thread(this::serve, "boiler-gateway"); //$NON-NLS-1$
+    t.setDaemon(true);
+    this.thread = t;
+    t.start();
+  }
+
+  /**
+   * Stop serving and close every connection.
+   *
+   * @throws IOException if the channels could not be closed.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    this.closed = true;
+    Thread t = this.thread;
+    if (t == null) {
+      shutdown();
+      return;
+    }
+    this.selector.wakeup();
+    try {
+      t.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Run the selector loop until the gateway is closed.
+   */
+  private void serve() {
+    try {
+      while (!this.closed) {
+        this.selector.select();
+        Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isValid() && key.isAcceptable()) {
+            accept();
+          } else if (key.isValid()) {
+            Connection c = (Connection) key.attachment();
+            try {
+              if (key.isReadable()) {
+                read(key, c);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write(key, c);
+              }
+            } catch (IOException | RuntimeException e) {
+              // Drop the connection, but keep serving the others
+              key.cancel();
+              c.channel.close();
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      // Selector failed; nothing more can be served
+    } finally {
+      try {
+        shutdown();
+      } catch (IOException e) {
+        // Already stopping
+      }
+    }
+  }
+
+  /**
+   * Accept a pending connection.
+   *
+   * @throws IOException if the connection could not be set up.
+   */
+  private void accept() throws IOException {
+    SocketChannel channel = this.server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+    channel.register(this.selector, SelectionKey.OP_READ, new Connection(channel));
+  }
+
+  /**
+   * Read requests from a connection and process every complete frame.
+   *
+   * @param key The key of the connection.
+   * @param c   The connection.
+   * @throws IOException if the connection failed or sent a malformed frame.
+   */
+  private void read(SelectionKey key, Connection c) throws IOException {
+    if (c.channel.read(c.in) < 0) {
+      throw new IOException("connection closed"); //$NON-NLS-1$
+    }
+    process(c);
+    flush(key, c);
+  }
+
+  /**
+   * Write pending responses to a connection, then process any requests which
+   * were held back while the responses could not be buffered.
+   *
+   * @param key The key of the connection.
+   * @param c   The connection.
+   * @throws IOException if the connection failed or sent a malformed frame.
+   */
+  private void write(SelectionKey key, Connection c) throws IOException {
+    flush(key, c);
+    process(c);
+    flush(key, c);
+  }
+
+  /**
+   * Process the complete frames received on a connection, for as long as there
+   * is room to buffer their responses.
+   *
+   * @param c The connection.
+   * @throws IOException if a frame is malformed or names an unknown boiler.
+   */
+  private void process(Connection c) throws IOException {
+    ByteBuffer in = c.in;
+    in.flip();
+    try {
+      while (in.remaining() >= 2 && c.out.remaining() >= MAX_FRAME) {
+        int length = in.getShort(in.position()) & 0xFFFF;
+        if (length < HEADER_SIZE - 2 || length > MAX_FRAME - 2) {
+          throw new IOException("invalid frame length: " + length); //$NON-NLS-1$
+        }
+        if (in.remaining() < 2 + length) {
+          break;
+        }
+        int end = in.position() + 2 + length;
+        int limit = in.limit();
+        in.position(in.position() + 2);
+        in.limit(end);
+        handle(in, c.out);
+        if (in.hasRemaining()) {
+          throw new IOException("trailing bytes in frame"); //$NON-NLS-1$
+        }
+        in.limit(limit);
+      }
+    } finally {
+      in.compact();
+    }
+  }
+
+  /**
+   * Clock the controller of the boiler named by a frame, and buffer its response.
+   *
+   * @param in  The frame, positioned after its length and limited to its end.
+   * @param out The buffer holding responses, with room for a whole frame.
+   * @throws IOException if the boiler is unknown or the response is too large.
+   */
+  private void handle(ByteBuffer in, ByteBuffer out) throws IOException {
+    int id = in.getInt();
+    Boiler b = this.boilers.get(Integer.valueOf(id));
+    if (b == null) {
+      throw new IOException("unknown boiler: " + id); //$NON-NLS-1$
+    }
+    RingMailbox incoming1 = this.incoming;
+    RingMailbox outgoing1 = this.outgoing;
+    incoming1.reset();
+    outgoing1.reset();
+    try {
+      b.codec.decodeFrame(in, incoming1);
+      b.controller.clock(incoming1, outgoing1);
+    } catch (IllegalStateException e) {
+      throw new IOException("too many messages for boiler " + id, e); //$NON-NLS-1$
+    }
+    int size = HEADER_SIZE + MessageCodec.frameSize(outgoing1);
+    if (size > MAX_FRAME) {
+      throw new IOException("response too large for boiler " + id); //$NON-NLS-1$
+    }
+    out.putShort((short) (size - 2));
+    out.putInt(id);
+    MessageCodec.encodeFrame(outgoing1, out);
+    this.frames++;
+  }
+
+  /**
+   * Write as many pending responses as the connection accepts, and select the
+   * operations to wait for next.
+   *
+   * @param key The key of the connection.
+   * @param c   The connection.
+   * @throws IOException if the connection failed.
+   */
+  private static void flush(SelectionKey key, Connection c) throws IOException {
+    ByteBuffer out = c.out;
+    out.flip();
+    try {
+      c.channel.write(out);
+    } finally {
+      out.compact();
+    }
+    int ops = 0;
+    if (out.position() > 0) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    if (c.in.hasRemaining() && out.remaining() >= MAX_FRAME) {
+      ops |= SelectionKey.OP_READ;
+    }
+    key.interestOps(ops);
+  }
+
+  /**
+   * Close the selector and every channel registered on it.
+   *
+   * @throws IOException if a channel could not be closed.
+   */
+  private void shutdown() throws IOException {
+    if (this.selector.isOpen()) {
+      for (SelectionKey key : this.selector.keys()) {
+        key.channel().close();
+      }
+      this.selector.close();
+    }
+    this.server.close();
+  }
+}
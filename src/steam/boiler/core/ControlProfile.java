@@ -0,0 +1,471 @@
+package steam.boiler.core;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.jdt.annotation.Nullable;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Immutable, precompiled view of a boiler's characteristics. Every threshold
+ * the controller compares against is read from the characteristics once and
+ * held as a primitive, together with the middle of the normal band, the
+ * largest amount of water which can leave the boiler in one cycle and the
+ * tables of inflows the pumps can deliver.
+ *
+ * <p>The pump table for when every pump is available, and those for when any
+ * one pump has failed, are built with the profile. The table for any other set
+ * of failed pumps is built the first time it is asked for and kept with the
+ * profile, so a controller only ever builds a table during a cycle when a set
+ * of failures turns up which no controller sharing its profile has seen.
+ *
+ * <p>Profiles are interned by value: controllers for boilers with identical
+ * characteristics share a single profile (and its pre-built pump messages and
+ * pump table), no matter how many controllers are constructed. Profiles are
+ * looked up by the values read from the characteristics, so nothing is built
+ * for a boiler already seen, and are only held weakly, so a profile no longer
+ * used by any controller is forgotten.
+ *
+ * @author paula
+ *
+ */
+public final class ControlProfile {
+
+  /**
+   * Time between two cycles of the controller (s).
+   */
+  public static final int CYCLE_SECONDS = 5;
+
+  /**
+   * Profiles still in use, keyed by the values they were compiled from.
+   */
+  private static final ConcurrentHashMap<Key, Ref> PROFILES = new ConcurrentHashMap<>();
+
+  /**
+   * Where references to profiles no longer in use are queued for removal.
+   */
+  private static final ReferenceQueue<ControlProfile> UNUSED = new ReferenceQueue<>();
+
+  /**
+   * Capacity of the boiler (l).
+   */
+  private final double capacity;
+
+  /**
+   * Lower limit below which the boiler is in danger (l).
+   */
+  private final double minimalLimitLevel;
+
+  /**
+   * Upper limit above which the boiler is in danger (l).
+   */
+  private final double maximalLimitLevel;
+
+  /**
+   * Lower end of the normal operating band (l).
+   */
+  private final double minimalNormalLevel;
+
+  /**
+   * Upper end of the normal operating band (l).
+   */
+  private final double maximalNormalLevel;
+
+  /**
+   * Largest rate at which steam can leave the boiler (l/s).
+   */
+  private final double maximalSteamRate;
+
+  /**
+   * Capacity of each pump (l/s), indexed by pump number.
+   */
+  private final double[] pumpCapacities;
+
+  /**
+   * Middle of the normal operating band (l).
+   */
+  private final double midpoint;
+
+
+  /**
+   * Largest amount of water which can leave as steam in one cycle (l).
+   */
+  private final double steamOutflowPerCycle;
+
+  /**
+   * Pre-built pump indexed messages for this number of pumps.
+   */
+  private final MessageCache messages;
+
+  /**
+   * Pump table for when every pump is available.
+   */
+  private final PumpScheduler scheduler;
+
+  /**
+   * Pump table for when only one pump is unavailable, indexed by that pump.
+   */
+  private final PumpScheduler[] singleFailures;
+
+  /**
+   * Pump tables for when several pumps are unavailable, built on demand.
+   */
+  private final ConcurrentHashMap<Failures, PumpScheduler> multipleFailures =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Construct a profile from the values of a set of characteristics.
+   *
+   * @param key The values read from the characteristics of the boiler.
+   */
+  private ControlProfile(Key key) {
+    this.capacity = key.capacity;
+    this.minimalLimitLevel = key.minimalLimitLevel;
+    this.maximalLimitLevel = key.maximalLimitLevel;
+    this.minimalNormalLevel = key.minimalNormalLevel;
+    this.maximalNormalLevel = key.maximalNormalLevel;
+    this.maximalSteamRate = key.maximalSteamRate;
+    this.pumpCapacities = key.pumpCapacities;
+    this.midpoint = ((this.maximalNormalLevel + this.minimalNormalLevel) / 2);
+    this.steamOutflowPerCycle = CYCLE_SECONDS * this.maximalSteamRate;
+    this.messages = new MessageCache(this.pumpCapacities.length);
+    PumpSet unavailable = new PumpSet(this.pumpCapacities.length);
+    this.scheduler = new PumpScheduler(this.pumpCapacities, unavailable);
+    this.singleFailures = new PumpScheduler[this.pumpCapacities.length];
+    for (int i = 0; i != this.singleFailures.length; ++i) {
+      unavailable.set(i, true);
+      this.singleFailures[i] = new PumpScheduler(this.pumpCapacities, unavailable);
+      unavailable.set(i, false);
+    }
+  }
+
+  /**
+   * Get the profile for a set of characteristics. Equal characteristics yield
+   * the same instance for as long as it is in use.
+   *
+   * @param characteristics The characteristics of the boiler.
+   * @return the shared profile.
+   */
+  public static ControlProfile of(SteamBoilerCharacteristics characteristics) {
+    expunge();
+    Key key = new Key(characteristics);
+    while (true) {
+      @Nullable Ref ref = PROFILES.get(key);
+      @Nullable ControlProfile existing = ref == null ? null : ref.get();
+      if (existing != null) {
+        return existing;
+      }
+      ControlProfile candidate = new ControlProfile(key);
+      Ref fresh = new Ref(candidate, key);
+      if (ref == null ? PROFILES.putIfAbsent(key, fresh) == null
+          : PROFILES.replace(key, ref, fresh)) {
+        return candidate;
+      }
+    }
+  }
+
+  /**
+   * Get the number of profiles currently held for sharing.
+   *
+   * @return the number of profiles, including any no longer used but not yet
+   *         forgotten.
+   */
+  public static int cached() {
+    expunge();
+    return PROFILES.size();
+  }
+
+  /**
+   * Forget every profile which is no longer used.
+   */
+  private static void expunge() {
+    @Nullable Reference<? extends ControlProfile> r;
+    while ((r = UNUSED.poll()) != null) {
+      Ref ref = (Ref) r;
+      PROFILES.remove(ref.key, ref);
+    }
+  }
+
+  /**
+   * Get the capacity of the boiler.
+   *
+   * @return the capacity (l).
+   */
+  public double getCapacity() {
+    return this.capacity;
+  }
+
+  /**
+   * Get the lower limit below which the boiler is in danger.
+   *
+   * @return the level (l).
+   */
+  public double getMinimalLimitLevel() {
+    return this.minimalLimitLevel;
+  }
+
+  /**
+   * Get the upper limit above which the boiler is in danger.
+   *
+   * @return the level (l).
+   */
+  public double getMaximalLimitLevel() {
+    return this.maximalLimitLevel;
+  }
+
+  /**
+   * Get the lower end of the normal operating band.
+   *
+   * @return the level (l).
+   */
+  public double getMinimalNormalLevel() {
+    return this.minimalNormalLevel;
+  }
+
+  /**
+   * Get the upper end of the normal operating band.
+   *
+   * @return the level (l).
+   */
+  public double getMaximalNormalLevel() {
+    return this.maximalNormalLevel;
+  }
+
+  /**
+   * Get the largest rate at which steam can leave the boiler.
+   *
+   * @return the rate (l/s).
+   */
+  public double getMaximalSteamRate() {
+    return this.maximalSteamRate;
+  }
+
+  /**
+   * Get the number of pumps in the boiler.
+   *
+   * @return the number of pumps.
+   */
+  public int getNumberOfPumps() {
+    return this.pumpCapacities.length;
+  }
+
+  /**
+   * Get the capacity of a given pump.
+   *
+   * @param pump The pump number.
+   * @return the capacity (l/s).
+   */
+  public double getPumpCapacity(int pump) {
+    return this.pumpCapacities[pump];
+  }
+
+  /**
+   * Get the middle of the normal operating band.
+   *
+   * @return the level (l).
+   */
+  public double getMidpoint() {
+    return this.midpoint;
+  }
+
+  /**
+   * Get the largest amount of water which can leave as steam in one cycle.
+   *
+   * @return the amount of water (l).
+   */
+  public double getSteamOutflowPerCycle() {
+    return this.steamOutflowPerCycle;
+  }
+
+  /**
+   * Get the pre-built pump indexed messages for this boiler.
+   *
+   * @return the shared message cache.
+   */
+  public MessageCache getMessages() {
+    return this.messages;
+  }
+
+  /**
+   * Get the pump table for a given set of unavailable pumps. Tables are shared
+   * by every controller with this profile. Those for no or one unavailable
+   * pump are built with the profile; any other is built the first time it is
+   * asked for.
+   *
+   * @param unavailable Pumps which must not be used.
+   * @return the pump table.
+   */
+  public PumpScheduler getScheduler(PumpSet unavailable) {
+    int failures = unavailable.cardinality();
+    if (failures == 0) {
+      return this.scheduler;
+    }
+    int first = unavailable.next(0);
+    if (failures == 1 && first < this.singleFailures.length) {
+      return this.singleFailures[first];
+    }
+    Failures key = new Failures(unavailable);
+    @Nullable PumpScheduler s = this.multipleFailures.get(key);
+    if (s == null) {
+      s = new PumpScheduler(this.pumpCapacities, unavailable);
+      @Nullable PumpScheduler existing = this.multipleFailures.putIfAbsent(key, s);
+      if (existing != null) {
+        s = existing;
+      }
+    }
+    return s;
+  }
+
+  /**
+   * A set of unavailable pumps, as a key for the pump tables built for it.
+   *
+   * @author paula
+   *
+   */
+  private static final class Failures {
+
+    /**
+     * The bitmask of unavailable pumps, one word per 64 pumps.
+     */
+    final long[] words;
+
+    /**
+     * Copy a set of unavailable pumps.
+     *
+     * @param unavailable The pumps.
+     */
+    Failures(PumpSet unavailable) {
+      this.words = new long[unavailable.words()];
+      for (int i = 0; i != this.words.length; ++i) {
+        this.words[i] = unavailable.word(i);
+      }
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+      return o instanceof Failures && Arrays.equals(this.words, ((Failures) o).words);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(this.words);
+    }
+  }
+
+  /**
+   * The values a profile is compiled from, read from a set of characteristics.
+   * Profiles are looked up by these values before anything else is built.
+   *
+   * @author paula
+   *
+   */
+  private static final class Key {
+
+    /**
+     * Capacity of the boiler (l).
+     */
+    final double capacity;
+
+    /**
+     * Lower limit below which the boiler is in danger (l).
+     */
+    final double minimalLimitLevel;
+
+    /**
+     * Upper limit above which the boiler is in danger (l).
+     */
+    final double maximalLimitLevel;
+
+    /**
+     * Lower end of the normal operating band (l).
+     */
+    final double minimalNormalLevel;
+
+    /**
+     * Upper end of the normal operating band (l).
+     */
+    final double maximalNormalLevel;
+
+    /**
+     * Largest rate at which steam can leave the boiler (l/s).
+     */
+    final double maximalSteamRate;
+
+    /**
+     * Capacity of each pump (l/s), indexed by pump number.
+     */
+    final double[] pumpCapacities;
+
+    /**
+     * Read the values of a set of characteristics.
+     *
+     * @param characteristics The characteristics of the boiler.
+     */
+    Key(SteamBoilerCharacteristics characteristics) {
+      this.capacity = characteristics.getCapacity();
+      this.minimalLimitLevel = characteristics.getMinimalLimitLevel();
+      this.maximalLimitLevel = characteristics.getMaximalLimitLevel();
+      this.minimalNormalLevel = characteristics.getMinimalNormalLevel();
+      this.maximalNormalLevel = characteristics.getMaximalNormalLevel();
+      this.maximalSteamRate = characteristics.getMaximualSteamRate();
+      this.pumpCapacities = new double[characteristics.getNumberOfPumps()];
+      for (int i = 0; i != this.pumpCapacities.length; ++i) {
+        this.pumpCapacities[i] = characteristics.getPumpCapacity(i);
+      }
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return Double.compare(this.capacity, k.capacity) == 0
+          && Double.compare(this.minimalLimitLevel, k.minimalLimitLevel) == 0
+          && Double.compare(this.maximalLimitLevel, k.maximalLimitLevel) == 0
+          && Double.compare(this.minimalNormalLevel, k.minimalNormalLevel) == 0
+          && Double.compare(this.maximalNormalLevel, k.maximalNormalLevel) == 0
+          && Double.compare(this.maximalSteamRate, k.maximalSteamRate) == 0
+          && Arrays.equals(this.pumpCapacities, k.pumpCapacities);
+    }
+
+    @Override
+    public int hashCode() {
+      int h = Double.hashCode(this.capacity);
+      h = 31 * h + Double.hashCode(this.minimalLimitLevel);
+      h = 31 * h + Double.hashCode(this.maximalLimitLevel);
+      h = 31 * h + Double.hashCode(this.minimalNormalLevel);
+      h = 31 * h + Double.hashCode(this.maximalNormalLevel);
+      h = 31 * h + Double.hashCode(this.maximalSteamRate);
+      return 31 * h + Arrays.hashCode(this.pumpCapacities);
+    }
+  }
+
+  /**
+   * A weak reference to a shared profile, remembering the key under which it is
+   * held so that it can be removed once the profile is no longer used.
+   *
+   * @author paula
+   *
+   */
+  private static final class Ref extends WeakReference<ControlProfile> {
+
+    /**
+     * The key under which the profile is held.
+     */
+    final Key key;
+
+    /**
+     * Construct a reference to a profile.
+     *
+     * @param profile The profile.
+     * @param key1    The key under which it is held.
+     */
+    Ref(ControlProfile profile, Key key1) {
+      super(profile, UNUSED);
+      this.key = key1;
+    }
+  }
+}
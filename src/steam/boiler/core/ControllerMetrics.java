@@ -0,0 +1,166 @@
+package steam.boiler.core;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import steam.boiler.core.MySteamBoilerController.State;
+
+/**
+ * Cycle latency histograms of one or more controllers. Latencies are recorded
+ * per mode, and each cycle is also broken down into phases. A single instance
+ * may be shared by several controllers to obtain a fleet wide view, since
+ * recording is lock-free.
+ *
+ * @author paula
+ *
+ */
+public final class ControllerMetrics implements ControllerMetricsMBean {
+
+  /**
+   * The phases into which a controller cycle is broken down.
+   *
+   * @author paula
+   *
+   */
+  public enum Phase {
+    /**
+     * Decoding the incoming mailbox.
+     */
+    DECODE,
+    /**
+     * Checking for transmission, sensor and pump failures.
+     */
+    FAILURE_CHECKS,
+    /**
+     * Deciding which pumps to open or close.
+     */
+    PUMP_DECISION,
+    /**
+     * Writing the remaining messages to the outgoing mailbox.
+     */
+    EMIT
+  }
+
+  /**
+   * Latency of whole cycles, regardless of mode.
+   */
+  private final LatencyHistogram cycles = new LatencyHistogram();
+
+  /**
+   * Latency of whole cycles, indexed by the ordinal of the mode the cycle began
+   * in.
+   */
+  private final LatencyHistogram[] states = new LatencyHistogram[State.values().length];
+
+  /**
+   * Time spent in each phase per cycle, indexed by phase ordinal.
+   */
+  private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+  /**
+   * Construct empty metrics.
+   */
+  public ControllerMetrics() {
+    for (int i = 0; i != this.states.length; ++i) {
+      this.states[i] = new LatencyHistogram();
+    }
+    for (int i = 0; i != this.phases.length; ++i) {
+      this.phases[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Record a completed cycle.
+   *
+   * @param state      The mode in which the cycle began.
+   * @param nanos      The duration of the whole cycle.
+   * @param phaseNanos The time spent in each phase, indexed by phase ordinal.
+   */
+  public void recordCycle(State state, long nanos, long[] phaseNanos) {
+    this.cycles.record(nanos);
+    this.states[state.ordinal()].record(nanos);
+    for (int i = 0; i != this.phases.length; ++i) {
+      this.phases[i].record(phaseNanos[i]);
+    }
+  }
+
+  /**
+   * Get the cycle latency histogram for a given mode.
+   *
+   * @param state The mode.
+   * @return the histogram of cycles which began in that mode.
+   */
+  public LatencyHistogram getStateHistogram(State state) {
+    return this.states[state.ordinal()];
+  }
+
+  /**
+   * Get the latency histogram for a given phase.
+   *
+   * @param phase The phase.
+   * @return the histogram of time spent in that phase per cycle.
+   */
+  public LatencyHistogram getPhaseHistogram(Phase phase) {
+    return this.phases[phase.ordinal()];
+  }
+
+  /**
+   * Register these metrics with the platform MBean server.
+   *
+   * @param name The name identifying the controller, or fleet, measured.
+   * @return the name under which the metrics were registered.
+   * @throws JMException if the metrics could not be registered.
+   */
+  public ObjectName register(String name) throws JMException {
+    ObjectName objectName = new ObjectName("steam.boiler:type=ControllerMetrics,name=" //$NON-NLS-1$
+        + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+
+  @Override
+  public long getCycles() {
+    return this.cycles.count();
+  }
+
+  @Override
+  public long getP50() {
+    return this.cycles.percentile(0.5);
+  }
+
+  @Override
+  public long getP99() {
+    return this.cycles.percentile(0.99);
+  }
+
+  @Override
+  public long getP999() {
+    return this.cycles.percentile(0.999);
+  }
+
+  @Override
+  public long getMax() {
+    return this.cycles.max();
+  }
+
+  @Override
+  public long getStatePercentile(String state, double quantile) {
+    return this.states[State.valueOf(state).ordinal()].percentile(quantile);
+  }
+
+  @Override
+  public long getPhasePercentile(String phase, double quantile) {
+    return this.phases[Phase.valueOf(phase).ordinal()].percentile(quantile);
+  }
+
+  @Override
+  public void reset() {
+    this.cycles.reset();
+    for (LatencyHistogram h : this.states) {
+      h.reset();
+    }
+    for (LatencyHistogram h : this.phases) {
+      h.reset();
+    }
+  }
+}
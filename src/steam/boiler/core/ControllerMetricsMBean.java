@@ -0,0 +1,70 @@
+package steam.boiler.core;
+
+/**
+ * Management interface through which controller cycle latencies are exposed
+ * over JMX. All latencies are in nanoseconds.
+ *
+ * @author paula
+ *
+ */
+public interface ControllerMetricsMBean {
+
+  /**
+   * Get the number of cycles recorded.
+   *
+   * @return the number of calls to clock.
+   */
+  long getCycles();
+
+  /**
+   * Get the median cycle latency across all modes.
+   *
+   * @return the p50 latency.
+   */
+  long getP50();
+
+  /**
+   * Get the 99th percentile cycle latency across all modes.
+   *
+   * @return the p99 latency.
+   */
+  long getP99();
+
+  /**
+   * Get the 99.9th percentile cycle latency across all modes.
+   *
+   * @return the p99.9 latency.
+   */
+  long getP999();
+
+  /**
+   * Get the largest cycle latency across all modes.
+   *
+   * @return the maximum latency.
+   */
+  long getMax();
+
+  /**
+   * Get a percentile of the cycle latency for cycles which began in a given
+   * mode.
+   *
+   * @param state    The name of the mode, e.g. NORMAL.
+   * @param quantile The fraction, between 0 and 1 (e.g. 0.99 for p99).
+   * @return the latency.
+   */
+  long getStatePercentile(String state, double quantile);
+
+  /**
+   * Get a percentile of the time spent in one phase of a cycle.
+   *
+   * @param phase    The name of the phase, e.g. DECODE.
+   * @param quantile The fraction, between 0 and 1 (e.g. 0.99 for p99).
+   * @return the latency.
+   */
+  long getPhasePercentile(String phase, double quantile);
+
+  /**
+   * Forget every recorded latency.
+   */
+  void reset();
+}
@@ -0,0 +1,281 @@
+package steam.boiler.core;
+
+import steam.boiler.core.MySteamBoilerController.State;
+
+/**
+ * Snapshot of the status of a controller, filled in by
+ * {@link MySteamBoilerController#getStatus(ControllerStatus)}. Everything is
+ * held in primitive fields and arrays allocated up front, so that one snapshot
+ * can be refilled from every controller of a fleet in turn without allocating.
+ *
+ * <p>Pumps are given as bitmasks split into 64-bit words, where bit
+ * <code>i % 64</code> of word <code>i / 64</code> stands for pump
+ * <code>i</code>.
+ *
+ * @author paula
+ *
+ */
+public final class ControllerStatus {
+
+  /**
+   * Flag set if the steam sensor is considered to have failed.
+   */
+  public static final int STEAM_FAILED = 1;
+
+  /**
+   * Flag set if the level was not measured on the last cycle, so the interval
+   * is an estimate.
+   */
+  public static final int LEVEL_ESTIMATED = 2;
+
+  /**
+   * Flag set if any pump has failed.
+   */
+  public static final int PUMP_FAILED = 4;
+
+  /**
+   * Flag set if the controller of any pump has failed.
+   */
+  public static final int PUMP_CONTROL_FAILED = 8;
+
+  /**
+   * All modes, indexed by ordinal.
+   */
+  private static final State[] STATES = State.values();
+
+  /**
+   * Number of pumps of the boilers whose status can be held.
+   */
+  private final int pumps;
+
+  /**
+   * Ordinal of the mode.
+   */
+  int mode;
+
+  /**
+   * Combination of the flags above.
+   */
+  int flags;
+
+  /**
+   * Most recent level reading which was within range (l).
+   */
+  double level;
+
+  /**
+   * Most recent steam reading which was within range (l/s).
+   */
+  double steam;
+
+  /**
+   * Lowest level the water can be at (l).
+   */
+  double minLevel;
+
+  /**
+   * Highest level the water can be at (l).
+   */
+  double maxLevel;
+
+  /**
+   * Lowest rate at which steam was leaving when the level was last estimated
+   * (l/s).
+   */
+  double steamLow;
+
+  /**
+   * Highest rate at which steam was leaving when the level was last estimated
+   * (l/s).
+   */
+  double steamHigh;
+
+  /**
+   * Pumps commanded open.
+   */
+  final long[] commanded;
+
+  /**
+   * Pumps last reported open.
+   */
+  final long[] open;
+
+  /**
+   * Pumps which have failed.
+   */
+  final long[] failed;
+
+  /**
+   * Pumps whose controllers have failed.
+   */
+  final long[] controlFailed;
+
+  /**
+   * Construct an empty snapshot for boilers with a given number of pumps.
+   *
+   * @param pumps1 The number of pumps.
+   */
+  public ControllerStatus(int pumps1) {
+    if (pumps1 < 0) {
+      throw new IllegalArgumentException("invalid number of pumps"); //$NON-NLS-1$
+    }
+    int words = (pumps1 + 63) >>> 6;
+    this.pumps = pumps1;
+    this.commanded = new long[words];
+    this.open = new long[words];
+    this.failed = new long[words];
+    this.controlFailed = new long[words];
+  }
+
+  /**
+   * Get the number of pumps of the boilers whose status can be held.
+   *
+   * @return the number of pumps.
+   */
+  public int getPumps() {
+    return this.pumps;
+  }
+
+  /**
+   * Get the number of words in each pump bitmask.
+   *
+   * @return the number of words.
+   */
+  public int words() {
+    return this.commanded.length;
+  }
+
+  /**
+   * Get the ordinal of the mode the controller was in.
+   *
+   * @return the ordinal of the mode.
+   */
+  public int getModeOrdinal() {
+    return this.mode;
+  }
+
+  /**
+   * Get the mode the controller was in.
+   *
+   * @return the mode.
+   */
+  public State getMode() {
+    return STATES[this.mode];
+  }
+
+  /**
+   * Get the flags describing which units have failed.
+   *
+   * @return a combination of {@link #STEAM_FAILED}, {@link #LEVEL_ESTIMATED},
+   *         {@link #PUMP_FAILED} and {@link #PUMP_CONTROL_FAILED}.
+   */
+  public int getFlags() {
+    return this.flags;
+  }
+
+  /**
+   * Check whether a flag is set.
+   *
+   * @param flag The flag.
+   * @return true if it is set.
+   */
+  public boolean hasFlag(int flag) {
+    return (this.flags & flag) != 0;
+  }
+
+  /**
+   * Get the most recent level reading which was within range.
+   *
+   * @return the level (l), or NaN if there has been none.
+   */
+  public double getLevel() {
+    return this.level;
+  }
+
+  /**
+   * Get the most recent steam reading which was within range.
+   *
+   * @return the rate at which steam is leaving (l/s).
+   */
+  public double getSteam() {
+    return this.steam;
+  }
+
+  /**
+   * Get the lowest level the water can be at.
+   *
+   * @return the level (l).
+   */
+  public double getMinLevel() {
+    return this.minLevel;
+  }
+
+  /**
+   * Get the highest level the water can be at.
+   *
+   * @return the level (l).
+   */
+  public double getMaxLevel() {
+    return this.maxLevel;
+  }
+
+  /**
+   * Get the lowest rate at which steam was leaving when the level was last
+   * estimated.
+   *
+   * @return the rate (l/s).
+   */
+  public double getSteamLow() {
+    return this.steamLow;
+  }
+
+  /**
+   * Get the highest rate at which steam was leaving when the level was last
+   * estimated.
+   *
+   * @return the rate (l/s).
+   */
+  public double getSteamHigh() {
+    return this.steamHigh;
+  }
+
+  /**
+   * Get a word of the bitmask of pumps commanded open.
+   *
+   * @param index The index of the word.
+   * @return the word.
+   */
+  public long getCommanded(int index) {
+    return this.commanded[index];
+  }
+
+  /**
+   * Get a word of the bitmask of pumps last reported open.
+   *
+   * @param index The index of the word.
+   * @return the word.
+   */
+  public long getOpen(int index) {
+    return this.open[index];
+  }
+
+  /**
+   * Get a word of the bitmask of pumps which have failed.
+   *
+   * @param index The index of the word.
+   * @return the word.
+   */
+  public long getFailed(int index) {
+    return this.failed[index];
+  }
+
+  /**
+   * Get a word of the bitmask of pumps whose controllers have failed.
+   *
+   * @param index The index of the word.
+   * @return the word.
+   */
+  public long getControlFailed(int index) {
+    return this.controlFailed[index];
+  }
+}
@@ -0,0 +1,38 @@
+package steam.boiler.core;
+
+import steam.boiler.util.Mailbox;
+
+/**
+ * Notified by a controller at the end of every cycle, with the messages the
+ * cycle consumed and produced. Listeners are called on the thread clocking the
+ * controller, so they should be quick and must not block.
+ *
+ * @author paula
+ *
+ */
+@FunctionalInterface
+public interface CycleListener {
+
+  /**
+   * Called once a controller has processed a cycle.
+   *
+   * @param controller The controller.
+   * @param incoming   The messages received from the physical units.
+   * @param outgoing   The messages sent to the physical units.
+   */
+  void cycleCompleted(MySteamBoilerController controller, Mailbox incoming, Mailbox outgoing);
+
+  /**
+   * Get a listener which notifies this listener and then another, since a
+   * controller only holds one.
+   *
+   * @param next The listener notified second.
+   * @return the combined listener.
+   */
+  default CycleListener andThen(CycleListener next) {
+    return (controller, incoming, outgoing) -> {
+      cycleCompleted(controller, incoming, outgoing);
+      next.cycleCompleted(controller, incoming, outgoing);
+    };
+  }
+}
@@ -0,0 +1,137 @@
+package steam.boiler.core;
+
+import java.util.Arrays;
+import org.eclipse.jdt.annotation.Nullable;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Snapshot of the incoming messages for a single clock cycle, indexed by
+ * message kind. The mailbox is walked exactly once when the snapshot is
+ * decoded, after which every lookup made by the mode handlers is constant time.
+ * A snapshot is meant to be reused from one cycle to the next.
+ *
+ * @author paula
+ *
+ */
+public final class DecodedMailbox {
+
+  /**
+   * All message kinds, cached to avoid cloning the values array.
+   */
+  private static final MessageKind[] KINDS = MessageKind.values();
+
+  /**
+   * Initial number of slots reserved for each message kind.
+   */
+  private static final int INITIAL_SLOTS = 8;
+
+  /**
+   * Number of messages of each kind, indexed by kind ordinal.
+   */
+  private final int[] counts = new int[KINDS.length];
+
+  /**
+   * Messages of each kind in the order they were received, indexed by kind
+   * ordinal.
+   */
+  private final Message[][] messages = new Message[KINDS.length][];
+
+  /**
+   * Construct an empty snapshot.
+   */
+  public DecodedMailbox() {
+    for (int i = 0; i != KINDS.length; ++i) {
+      this.messages[i] = new Message[INITIAL_SLOTS];
+    }
+  }
+
+  /**
+   * Replace the contents of this snapshot with the messages in a given mailbox.
+   *
+   * @param incoming The mailbox to decode.
+   */
+  public void decode(Mailbox incoming) {
+    Arrays.fill(this.counts, 0);
+    for (int i = 0; i != incoming.size(); ++i) {
+      Message ith = incoming.read(i);
+      int kind = ith.getKind().ordinal();
+      Message[] slots = this.messages[kind];
+      int count = this.counts[kind];
+      if (count == slots.length) {
+        slots = Arrays.copyOf(slots, count * 2);
+        this.messages[kind] = slots;
+      }
+      slots[count] = ith;
+      this.counts[kind] = count + 1;
+    }
+  }
+
+  /**
+   * Get the number of messages of a given kind.
+   *
+   * @param kind The kind of message to look for.
+   * @return the number of matching messages.
+   */
+  public int count(MessageKind kind) {
+    return this.counts[kind.ordinal()];
+  }
+
+  /**
+   * Check whether at least one message of a given kind was received.
+   *
+   * @param kind The kind of message to look for.
+   * @return true if there was at least one match.
+   */
+  public boolean contains(MessageKind kind) {
+    return this.counts[kind.ordinal()] != 0;
+  }
+
+  /**
+   * Find the message of a given kind. This must the only match in the mailbox,
+   * else <code>null</code> is returned.
+   *
+   * @param kind The kind of message to look for.
+   * @return The matching message, or <code>null</code> if there was not exactly
+   *         one match.
+   */
+  public @Nullable Message only(MessageKind kind) {
+    int k = kind.ordinal();
+    if (this.counts[k] != 1) {
+      return null;
+    }
+    return this.messages[k][0];
+  }
+
+  /**
+   * Get the ith message of a given kind, in the order they were received.
+   *
+   * @param kind  The kind of message to look for.
+   * @param index The index of the message amongst those of the same kind.
+   * @return The matching message.
+   */
+  public Message get(MessageKind kind, int index) {
+    int k = kind.ordinal();
+    if (index < 0 || index >= this.counts[k]) {
+      throw new IndexOutOfBoundsException();
+    }
+    return this.messages[k][index];
+  }
+
+  /**
+   * Get the value of the only reading of a given kind.
+   *
+   * @param kind The kind of reading, such as <code>LEVEL_v</code>.
+   * @return the value.
+   * @throws IllegalStateException if there was not exactly one reading of
+   *                               that kind.
+   */
+  public double value(MessageKind kind) {
+    Message m = only(kind);
+    if (m == null) {
+      throw new IllegalStateException("no single " + kind); //$NON-NLS-1$
+    }
+    return m.getDoubleParameter();
+  }
+}
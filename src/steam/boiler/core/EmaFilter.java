@@ -0,0 +1,52 @@
+package steam.boiler.core;
+
+/**
+ * Filter returning an exponentially weighted moving average of the samples.
+ * Each output moves a fixed fraction of the way from the previous output to the
+ * new sample, so noise is damped at the cost of some lag. The first sample is
+ * returned unchanged.
+ *
+ * @author paula
+ *
+ */
+public final class EmaFilter implements SensorFilter {
+
+  /**
+   * Weight of the new sample.
+   */
+  private final double alpha;
+
+  /**
+   * The previous output.
+   */
+  private double average;
+
+  /**
+   * Whether any sample has been seen.
+   */
+  private boolean primed;
+
+  /**
+   * Construct a filter.
+   *
+   * @param alpha1 Weight of each new sample, greater than zero and at most one;
+   *               smaller weights smooth more.
+   */
+  public EmaFilter(double alpha1) {
+    if (!(alpha1 > 0 && alpha1 <= 1)) {
+      throw new IllegalArgumentException("invalid weight: " + alpha1); //$NON-NLS-1$
+    }
+    this.alpha = alpha1;
+  }
+
+  @Override
+  public double apply(double sample) {
+    if (this.primed) {
+      this.average += this.alpha * (sample - this.average);
+    } else {
+      this.average = sample;
+      this.primed = true;
+    }
+    return this.average;
+  }
+}
@@ -0,0 +1,549 @@
+package steam.boiler.core;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import org.eclipse.jdt.annotation.Nullable;
+import steam.boiler.model.LevelSensorModels;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpControllerModels;
+import steam.boiler.model.PumpModels;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Monte Carlo fault injection sweep. Generates randomised scenarios, each
+ * varying the boiler characteristics, the fault injected, the pump it affects
+ * and when it occurs, and simulates them in parallel using the headless
+ * {@link SimulationEngine}. Results are aggregated per kind of fault: how often
+ * the controller stopped the boiler, how often the water level went beyond its
+ * limits, and how long the controller took to report the fault.
+ *
+ * @author paula
+ *
+ */
+public final class FaultSweep {
+
+  /**
+   * Faults which can be injected into a scenario.
+   *
+   * @author paula
+   *
+   */
+  public enum Fault {
+    /**
+     * No fault, used as a baseline.
+     */
+    NONE(null) {
+      @Override
+      void inject(PhysicalUnits model, SteamBoilerCharacteristics c, int pump) {
+        // Nothing to inject
+      }
+    },
+    /**
+     * A pump stops delivering water and reports itself closed.
+     */
+    PUMP_STUCK_CLOSED(MessageKind.PUMP_FAILURE_DETECTION_n) {
+      @Override
+      void inject(PhysicalUnits model, SteamBoilerCharacteristics c, int pump) {
+        model.setPump(pump, new PumpModels.StuckClosed(pump, 0.0, model));
+      }
+    },
+    /**
+     * A pump sticks open at its normal capacity.
+     */
+    PUMP_STICKS_OPEN(MessageKind.PUMP_FAILURE_DETECTION_n) {
+      @Override
+      void inject(PhysicalUnits model, SteamBoilerCharacteristics c, int pump) {
+        model.setPump(pump, new PumpModels.SticksOpen(pump, c.getPumpCapacity(pump), model));
+      }
+    },
+    /**
+     * A pump controller always reports that no water is flowing.
+     */
+    PUMP_CONTROLLER_STUCK_OFF(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n) {
+      @Override
+      void inject(PhysicalUnits model, SteamBoilerCharacteristics c, int pump) {
+        model.setPumpController(pump, new PumpControllerModels.StuckOff(pump, model));
+      }
+    },
+    /**
+     * The steam sensor reports -1.
+     */
+    STEAM_STUCK_NEGATIVE_ONE(MessageKind.STEAM_FAILURE_DETECTION) {
+      @Override
+      void inject(PhysicalUnits model, SteamBoilerCharacteristics c, int pump) {
+        model.setSteamSensor(new SteamSensorModels.StuckNegativeOne(model));
+      }
+    },
+    /**
+     * The steam sensor reports more steam than the boiler can produce.
+     */
+    STEAM_STUCK_HIGH(MessageKind.STEAM_FAILURE_DETECTION) {
+      @Override
+      void inject(PhysicalUnits model, SteamBoilerCharacteristics c, int pump) {
+        model.setSteamSensor(new SteamSensorModels.Stuck(model,
+            c.getMaximualSteamRate() * 1.5));
+      }
+    },
+    /**
+     * The level sensor reports -1.
+     */
+    LEVEL_STUCK_NEGATIVE_ONE(MessageKind.LEVEL_FAILURE_DETECTION) {
+      @Override
+      void inject(PhysicalUnits model, SteamBoilerCharacteristics c, int pump) {
+        model.setLevelSensor(new LevelSensorModels.StuckNegativeOne(model));
+      }
+    },
+    /**
+     * The level sensor reports a full boiler.
+     */
+    LEVEL_STUCK(MessageKind.LEVEL_FAILURE_DETECTION) {
+      @Override
+      void inject(PhysicalUnits model, SteamBoilerCharacteristics c, int pump) {
+        model.setLevelSensor(new LevelSensorModels.Stuck(model, c.getCapacity()));
+      }
+    };
+
+    /**
+     * The message by which the controller reports this fault, or
+     * <code>null</code> if there is nothing to report.
+     */
+    private final @Nullable MessageKind detection;
+
+    /**
+     * Construct a fault.
+     *
+     * @param detection1 The message reporting this fault.
+     */
+    Fault(@Nullable MessageKind detection1) {
+      this.detection = detection1;
+    }
+
+    /**
+     * Get the message by which the controller reports this fault.
+     *
+     * @return the detection message kind, or <code>null</code> if none.
+     */
+    public @Nullable MessageKind getDetection() {
+      return this.detection;
+    }
+
+    /**
+     * Inject this fault into the physical units.
+     *
+     * @param model The physical units.
+     * @param c     The characteristics of the boiler.
+     * @param pump  The pump affected, for pump faults.
+     */
+    abstract void inject(PhysicalUnits model, SteamBoilerCharacteristics c, int pump);
+  }
+
+  /**
+   * Aggregated results for one kind of fault. Counters may be updated
+   * concurrently by many scenarios.
+   *
+   * @author paula
+   *
+   */
+  public static final class Summary {
+
+    /**
+     * The fault summarised.
+     */
+    private final Fault fault;
+
+    /**
+     * Number of scenarios run.
+     */
+    final LongAdder runs = new LongAdder();
+
+    /**
+     * Number of controller cycles simulated.
+     */
+    final LongAdder cycles = new LongAdder();
+
+    /**
+     * Number of scenarios in which the controller stopped the boiler.
+     */
+    final LongAdder emergencyStops = new LongAdder();
+
+    /**
+     * Number of scenarios in which the water went beyond a limit level.
+     */
+    final LongAdder limitViolations = new LongAdder();
+
+    /**
+     * Number of scenarios in which the fault was injected.
+     */
+    final LongAdder injections = new LongAdder();
+
+    /**
+     * Number of scenarios in which the fault was reported.
+     */
+    final LongAdder detections = new LongAdder();
+
+    /**
+     * Total time between fault onset and its report (ms).
+     */
+    final LongAdder detectionTime = new LongAdder();
+
+    /**
+     * Construct an empty summary.
+     *
+     * @param fault1 The fault summarised.
+     */
+    Summary(Fault fault1) {
+      this.fault = fault1;
+    }
+
+    /**
+     * Get the fault summarised.
+     *
+     * @return the fault.
+     */
+    public Fault getFault() {
+      return this.fault;
+    }
+
+    /**
+     * Get the number of scenarios run.
+     *
+     * @return the number of scenarios.
+     */
+    public long getRuns() {
+      return this.runs.sum();
+    }
+
+    /**
+     * Get the number of controller cycles simulated.
+     *
+     * @return the number of cycles.
+     */
+    public long getCycles() {
+      return this.cycles.sum();
+    }
+
+    /**
+     * Get the number of scenarios in which the fault was injected. A fault is
+     * not injected if the controller never leaves initialisation.
+     *
+     * @return the number of scenarios with the fault injected.
+     */
+    public long getInjections() {
+      return this.injections.sum();
+    }
+
+    /**
+     * Get the number of scenarios in which the controller stopped the boiler.
+     *
+     * @return the number of emergency stops.
+     */
+    public long getEmergencyStops() {
+      return this.emergencyStops.sum();
+    }
+
+    /**
+     * Get the fraction of scenarios in which the controller stopped the boiler.
+     *
+     * @return the emergency stop rate.
+     */
+    public double getEmergencyStopRate() {
+      long n = getRuns();
+      return n == 0 ? 0 : (double) this.emergencyStops.sum() / n;
+    }
+
+    /**
+     * Get the number of scenarios in which the water went beyond a limit level.
+     *
+     * @return the number of limit violations.
+     */
+    public long getLimitViolations() {
+      return this.limitViolations.sum();
+    }
+
+    /**
+     * Get the fraction of scenarios with the fault injected in which it was
+     * reported.
+     *
+     * @return the detection rate.
+     */
+    public double getDetectionRate() {
+      long n = getInjections();
+      return n == 0 ? 0 : (double) this.detections.sum() / n;
+    }
+
+    /**
+     * Get the average time between fault onset and its report.
+     *
+     * @return the mean time to detection (ms), or -1 if never detected.
+     */
+    public double getMeanTimeToDetection() {
+      long n = this.detections.sum();
+      return n == 0 ? -1 : (double) this.detectionTime.sum() / n;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-26s runs=%d stops=%.3f violations=%d detected=%.3f ttd=%.0fms", //$NON-NLS-1$
+          this.fault, Long.valueOf(getRuns()), Double.valueOf(getEmergencyStopRate()),
+          Long.valueOf(getLimitViolations()), Double.valueOf(getDetectionRate()),
+          Double.valueOf(getMeanTimeToDetection()));
+    }
+  }
+
+  /**
+   * Seed from which every scenario is derived.
+   */
+  private final long seed;
+
+  /**
+   * Simulated duration of each scenario (ms).
+   */
+  private final int duration;
+
+  /**
+   * Largest step the physical model is advanced by (ms).
+   */
+  private final int maxStep;
+
+  /**
+   * Faults which scenarios choose from.
+   */
+  private final Fault[] faults;
+
+  /**
+   * Construct a sweep over every kind of fault.
+   *
+   * @param seed1     Seed from which every scenario is derived.
+   * @param duration1 Simulated duration of each scenario (ms).
+   * @param maxStep1  Largest step the physical model is advanced by (ms).
+   */
+  public FaultSweep(long seed1, int duration1, int maxStep1) {
+    this(seed1, duration1, maxStep1, Fault.values());
+  }
+
+  /**
+   * Construct a sweep over some kinds of fault.
+   *
+   * @param seed1     Seed from which every scenario is derived.
+   * @param duration1 Simulated duration of each scenario (ms).
+   * @param maxStep1  Largest step the physical model is advanced by (ms).
+   * @param faults1   Faults which scenarios choose from.
+   * @throws IllegalArgumentException if no fault is given.
+   */
+  public FaultSweep(long seed1, int duration1, int maxStep1, Fault... faults1) {
+    if (faults1.length == 0) {
+      throw new IllegalArgumentException("no faults to inject"); //$NON-NLS-1$
+    }
+    this.seed = seed1;
+    this.duration = duration1;
+    this.maxStep = maxStep1;
+    this.faults = faults1.clone();
+  }
+
+  /**
+   * Run a number of scenarios in parallel.
+   *
+   * @param scenarios The number of scenarios.
+   * @param pool      The pool on which scenarios are run.
+   * @return A summary for each kind of fault, indexed by fault ordinal.
+   */
+  public Summary[] run(int scenarios, ForkJoinPool pool) {
+    Fault[] faults = Fault.values();
+    Summary[] summaries = new Summary[faults.length];
+    for (int i = 0; i != faults.length; ++i) {
+      summaries[i] = new Summary(faults[i]);
+    }
+    pool.submit(() -> IntStream.range(0, scenarios).parallel()
+        .forEach(i -> runScenario(i, summaries))).join();
+    return summaries;
+  }
+
+  /**
+   * Generate and simulate a single scenario. Scenarios are derived from the
+   * sweep seed and their index alone, so any scenario can be reproduced. Every
+   * pump bank can keep up with the maximal steam rate, so that a scenario
+   * without faults should never stop the boiler. Fault onsets are drawn from
+   * all but the last two cycles, leaving the controller time to report them,
+   * but a fault due during initialisation is held back until the controller
+   * has left it. Initialisation is where the boiler is filled, and the modes
+   * which report faults only follow it.
+   *
+   * <p>The water level is checked after every step of the physical units, not
+   * only at transmissions. With steps longer than the default granularity a
+   * level which crosses a limit and comes back within one step goes unseen,
+   * so sweeps counting limit violations should use short steps. Levels are
+   * only checked once the controller has left initialisation, as the boiler
+   * starts empty.
+   *
+   * @param index     The index of the scenario.
+   * @param summaries Where the outcome is recorded.
+   */
+  void runScenario(int index, Summary[] summaries) {
+    SplittableRandom random = new SplittableRandom(this.seed * 31 + index);
+    Fault fault = this.faults[random.nextInt(this.faults.length)];
+    // Vary the pump bank
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    int pumps = 3 + random.nextInt(4);
+    config = config.setNumberOfPumps(pumps, config.getPumpCapacity(0));
+    for (int i = 0; i != pumps; ++i) {
+      double scale = 1 + random.nextDouble() * 0.5;
+      config = config.setPumpCapacity(i, config.getPumpCapacity(i) * scale);
+    }
+    SteamBoilerCharacteristics c = config;
+    int pump = random.nextInt(pumps);
+    int onset = random.nextInt(
+        Math.max(1, this.duration - 2 * SimulationEngine.TRANSMISSION_INTERVAL));
+    // Set up the simulation
+    MySteamBoilerController controller = new MySteamBoilerController(c);
+    PhysicalUnits model = new PhysicalUnits.Template(c).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    SimulationEngine engine = new SimulationEngine(controller, model,
+        SimulationEngine.DEFAULT_GRANULARITY, this.maxStep);
+    Injection injection = new Injection(engine, controller, fault, c, pump);
+    engine.schedule(onset, injection);
+    MessageKind detection = fault.getDetection();
+    long[] outcome = { -1, 0, 0 };
+    engine.setStepListener(m -> {
+      double level = m.getBoiler().getWaterLevel();
+      if (controller.getMode() != MySteamBoilerController.State.WAITING
+          && (level < c.getMinimalLimitLevel() || level > c.getMaximalLimitLevel())) {
+        outcome[2] = 1;
+      }
+    });
+    engine.run(this.duration, (elapsed, incoming, outgoing) -> {
+      for (int i = 0; i != outgoing.size(); ++i) {
+        Message m = outgoing.read(i);
+        if (m.getKind() == MessageKind.MODE_m
+            && m.getModeParameter() == Mailbox.Mode.EMERGENCY_STOP) {
+          outcome[1] = 1;
+        } else if (m.getKind() == detection && outcome[0] < 0 && injection.time >= 0) {
+          outcome[0] = engine.getTime() - injection.time;
+        }
+      }
+      // Nothing more to learn once the boiler is stopped
+      return outcome[1] != 0;
+    });
+    Summary s = summaries[fault.ordinal()];
+    s.runs.increment();
+    s.cycles.add(engine.getTransmissions());
+    s.emergencyStops.add(outcome[1]);
+    s.limitViolations.add(outcome[2]);
+    if (injection.time >= 0) {
+      s.injections.increment();
+    }
+    if (outcome[0] >= 0) {
+      s.detections.increment();
+      s.detectionTime.add(outcome[0]);
+    }
+  }
+
+  /**
+   * Injects the fault of a scenario once the controller has left
+   * initialisation, trying again every cycle until then.
+   *
+   * @author paula
+   *
+   */
+  private static final class Injection implements Consumer<PhysicalUnits> {
+
+    /**
+     * The engine running the scenario.
+     */
+    private final SimulationEngine engine;
+
+    /**
+     * The controller under test.
+     */
+    private final MySteamBoilerController controller;
+
+    /**
+     * The fault to inject.
+     */
+    private final Fault fault;
+
+    /**
+     * The characteristics of the boiler.
+     */
+    private final SteamBoilerCharacteristics characteristics;
+
+    /**
+     * The pump affected, for pump faults.
+     */
+    private final int pump;
+
+    /**
+     * Simulated time at which the fault was injected (ms), or -1 if not yet.
+     */
+    int time = -1;
+
+    /**
+     * Construct an injection.
+     *
+     * @param engine1          The engine running the scenario.
+     * @param controller1      The controller under test.
+     * @param fault1           The fault to inject.
+     * @param characteristics1 The characteristics of the boiler.
+     * @param pump1            The pump affected, for pump faults.
+     */
+    Injection(SimulationEngine engine1, MySteamBoilerController controller1, Fault fault1,
+        SteamBoilerCharacteristics characteristics1, int pump1) {
+      this.engine = engine1;
+      this.controller = controller1;
+      this.fault = fault1;
+      this.characteristics = characteristics1;
+      this.pump = pump1;
+    }
+
+    @Override
+    public void accept(PhysicalUnits model) {
+      if (this.controller.getMode() == MySteamBoilerController.State.WAITING) {
+        this.engine.schedule(this.engine.getTime() + SimulationEngine.TRANSMISSION_INTERVAL,
+            this);
+      } else {
+        this.fault.inject(model, this.characteristics, this.pump);
+        this.time = this.engine.getTime();
+      }
+    }
+  }
+
+  /**
+   * Run a sweep from the command line and print the results. By default the
+   * physical model is advanced in steps of
+   * {@link SimulationEngine#DEFAULT_GRANULARITY}, as in the tests. A coarser
+   * step, up to one {@link SimulationEngine#TRANSMISSION_INTERVAL}, runs faster
+   * but lets the level move further between the events of the model, so its
+   * results are labelled with it.
+   *
+   * @param args The number of scenarios, the simulated seconds per scenario,
+   *             the seed and the largest step of the model (ms), all optional.
+   */
+  public static void main(String[] args) {
+    int scenarios = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+    long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+    int maxStep = args.length > 3 ? Integer.parseInt(args[3])
+        : SimulationEngine.DEFAULT_GRANULARITY;
+    FaultSweep sweep = new FaultSweep(seed, seconds * 1000, maxStep);
+    if (maxStep != SimulationEngine.DEFAULT_GRANULARITY) {
+      System.out.println(String.format("coarse model step: %d ms", //$NON-NLS-1$
+          Integer.valueOf(maxStep)));
+    }
+    long start = System.nanoTime();
+    Summary[] summaries = sweep.run(scenarios, ForkJoinPool.commonPool());
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    long cycles = 0;
+    for (Summary s : summaries) {
+      System.out.println(s);
+      cycles += s.getCycles();
+    }
+    System.out.println(String.format("%d cycles in %.2fs (%.0f cycles/min)", //$NON-NLS-1$
+        Long.valueOf(cycles), Double.valueOf(elapsed), Double.valueOf(cycles * 60 / elapsed)));
+  }
+}
@@ -0,0 +1,647 @@
+package steam.boiler.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import org.eclipse.jdt.annotation.Nullable;
+import steam.boiler.core.MySteamBoilerController.State;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Records the incoming and outgoing mailboxes of every controller cycle, along
+ * with the resulting mode, into a memory-mapped ring file. The file holds a
+ * fixed number of fixed size slots; once full, the oldest cycles are
+ * overwritten. Since the file is mapped, recorded cycles survive a crash of the
+ * process.
+ *
+ * <p>Recording claims a sequence number with a single atomic increment and
+ * encodes the mailboxes straight into the mapping using {@link MessageCodec},
+ * so any number of controllers may record concurrently, and recording never
+ * waits. Only one writer at a time may hold a slot: a writer which finds its
+ * slot taken by a later cycle, or still being filled by an earlier one, drops
+ * its own cycle rather than wait or overwrite, and the drop is counted (see
+ * {@link #getDrops()}).
+ *
+ * <p>Plain stores to a mapping may become visible to another process in any
+ * order, so each slot carries a CRC-32 checksum of its sequence number and
+ * body. A reader copies the slot, skips it unless its sequence number reads the
+ * same before and after the copy, and then skips it unless the copy matches its
+ * checksum; a copy mixing two cycles, or a slot left half written by a crash,
+ * fails the checksum. A cycle whose mailboxes do not fit in a slot is recorded
+ * without its messages and flagged as truncated.
+ *
+ * <p>The layout is a header of {@link #HEADER_SIZE} bytes followed by the
+ * slots. The header holds a magic number, the format version, the slot size
+ * and the number of slots. Each slot holds: the sequence number plus one (zero
+ * for an empty slot), the time of the cycle (ms since the epoch), the boiler
+ * number, the mode, a flags byte, the sizes of the two encoded frames, the
+ * checksum, and then the frames themselves.
+ *
+ * @author paula
+ *
+ */
+public final class FlightRecorder implements Closeable {
+
+  /**
+   * Identifies a flight recording.
+   */
+  private static final int MAGIC = 0x53424652;
+
+  /**
+   * Version of the file layout.
+   */
+  private static final int VERSION = 2;
+
+  /**
+   * Number of bytes before the first slot.
+   */
+  public static final int HEADER_SIZE = 64;
+
+  /**
+   * Number of bytes in a slot before the encoded frames.
+   */
+  public static final int SLOT_HEADER_SIZE = 30;
+
+  /**
+   * Offset of the checksum within a slot.
+   */
+  private static final int CHECKSUM = 26;
+
+  /**
+   * Default size of a slot, enough for the traffic of a boiler with a dozen
+   * pumps (bytes).
+   */
+  public static final int DEFAULT_SLOT_SIZE = 256;
+
+  /**
+   * Flag set on a cycle whose messages did not fit in its slot.
+   */
+  public static final int TRUNCATED = 1;
+
+  /**
+   * All modes, indexed by ordinal.
+   */
+  private static final State[] STATES = State.values();
+
+  /**
+   * A cycle read back from a recording.
+   *
+   * @author paula
+   *
+   */
+  public static final class Entry {
+
+    /**
+     * Order in which the cycle was recorded.
+     */
+    private final long sequence;
+
+    /**
+     * Time of the cycle (ms since the epoch).
+     */
+    private final long time;
+
+    /**
+     * The boiler whose controller ran the cycle.
+     */
+    private final int boiler;
+
+    /**
+     * The mode of the controller after the cycle.
+     */
+    private final State mode;
+
+    /**
+     * Whether the messages of the cycle were too large to record.
+     */
+    private final boolean truncated;
+
+    /**
+     * Messages received by the controller.
+     */
+    private final Mailbox incoming;
+
+    /**
+     * Messages sent by the controller.
+     */
+    private final Mailbox outgoing;
+
+    /**
+     * Construct an entry.
+     *
+     * @param sequence1  Order in which the cycle was recorded.
+     * @param time1      Time of the cycle (ms since the epoch).
+     * @param boiler1    The boiler whose controller ran the cycle.
+     * @param mode1      The mode of the controller after the cycle.
+     * @param truncated1 Whether the messages of the cycle were too large to record.
+     * @param incoming1  Messages received by the controller.
+     * @param outgoing1  Messages sent by the controller.
+     */
+    Entry(long sequence1, long time1, int boiler1, State mode1, boolean truncated1,
+        Mailbox incoming1, Mailbox outgoing1) {
+      this.sequence = sequence1;
+      this.time = time1;
+      this.boiler = boiler1;
+      this.mode = mode1;
+      this.truncated = truncated1;
+      this.incoming = incoming1;
+      this.outgoing = outgoing1;
+    }
+
+    /**
+     * Get the order in which the cycle was recorded.
+     *
+     * @return the sequence number.
+     */
+    public long getSequence() {
+      return this.sequence;
+    }
+
+    /**
+     * Get the time of the cycle.
+     *
+     * @return the time (ms since the epoch).
+     */
+    public long getTime() {
+      return this.time;
+    }
+
+    /**
+     * Get the boiler whose controller ran the cycle.
+     *
+     * @return the boiler number.
+     */
+    public int getBoiler() {
+      return this.boiler;
+    }
+
+    /**
+     * Get the mode of the controller after the cycle.
+     *
+     * @return the mode.
+     */
+    public State getMode() {
+      return this.mode;
+    }
+
+    /**
+     * Check whether the messages of the cycle were too large to record, in which
+     * case both mailboxes are empty.
+     *
+     * @return true if the messages are missing.
+     */
+    public boolean isTruncated() {
+      return this.truncated;
+    }
+
+    /**
+     * Get the messages received by the controller.
+     *
+     * @return the incoming mailbox.
+     */
+    public Mailbox getIncoming() {
+      return this.incoming;
+    }
+
+    /**
+     * Get the messages sent by the controller.
+     *
+     * @return the outgoing mailbox.
+     */
+    public Mailbox getOutgoing() {
+      return this.outgoing;
+    }
+  }
+
+  /**
+   * The channel of the recording file.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The mapping of the whole file.
+   */
+  private final MappedByteBuffer mapping;
+
+  /**
+   * A view of the mapping for each recording thread, since encoding moves the
+   * position of the buffer.
+   */
+  private final ThreadLocal<ByteBuffer> views;
+
+  /**
+   * A checksum for each recording thread.
+   */
+  private final ThreadLocal<CRC32> checksums = ThreadLocal.withInitial(CRC32::new);
+
+  /**
+   * Size of each slot (bytes).
+   */
+  private final int slotSize;
+
+  /**
+   * Number of slots.
+   */
+  private final int slots;
+
+  /**
+   * Sequence number of the next cycle recorded.
+   */
+  private final AtomicLong next;
+
+  /**
+   * For each slot, the sequence number plus one of the latest cycle to claim
+   * it, shifted up a bit, with the low bit set while that cycle is being
+   * written.
+   */
+  private final AtomicLongArray claims;
+
+  /**
+   * Number of cycles recorded without their messages.
+   */
+  private final LongAdder truncations = new LongAdder();
+
+  /**
+   * Number of cycles dropped because their slot was held by another cycle.
+   */
+  private final LongAdder drops = new LongAdder();
+
+  /**
+   * Open a recording file, creating it if needed. Recording continues after the
+   * last cycle already in the file.
+   *
+   * @param file      The recording file.
+   * @param slotSize1 Size of each slot (bytes).
+   * @param slots1    Number of slots.
+   * @throws IOException if the file cannot be mapped, or is a recording with a
+   *                     different layout.
+   */
+  public FlightRecorder(Path file, int slotSize1, int slots1) throws IOException {
+    if (slotSize1 < SLOT_HEADER_SIZE + 2 * MessageCodec.FRAME_HEADER_SIZE || slots1 <= 0
+        || HEADER_SIZE + (long) slotSize1 * slots1 > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("invalid recording size"); //$NON-NLS-1$
+    }
+    this.slotSize = slotSize1;
+    this.slots = slots1;
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      boolean fresh = this.channel.size() == 0;
+      this.mapping = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          HEADER_SIZE + (long) slotSize1 * slots1);
+      if (fresh) {
+        this.mapping.putInt(0, MAGIC);
+        this.mapping.putInt(4, VERSION);
+        this.mapping.putInt(8, slotSize1);
+        this.mapping.putInt(12, slots1);
+      } else if (this.mapping.getInt(0) != MAGIC || this.mapping.getInt(4) != VERSION
+          || this.mapping.getInt(8) != slotSize1 || this.mapping.getInt(12) != slots1) {
+        throw new IOException("not a recording with this layout: " + file); //$NON-NLS-1$
+      }
+    } catch (IOException | RuntimeException e) {
+      this.channel.close();
+      throw e;
+    }
+    long last = 0;
+    this.claims = new AtomicLongArray(slots1);
+    for (int i = 0; i != slots1; ++i) {
+      long stamp = this.mapping.getLong(HEADER_SIZE + i * slotSize1);
+      this.claims.set(i, stamp << 1);
+      last = Math.max(last, stamp);
+    }
+    this.next = new AtomicLong(last);
+    MappedByteBuffer m = this.mapping;
+    this.views = ThreadLocal.withInitial(() -> m.duplicate());
+  }
+
+  /**
+   * Get a listener which records every cycle of a controller.
+   *
+   * @param boiler The number identifying the controller's boiler in the recording.
+   * @return the listener.
+   */
+  public CycleListener listener(int boiler) {
+    return (controller, incoming, outgoing) -> record(boiler, controller.getMode(), incoming,
+        outgoing);
+  }
+
+  /**
+   * Record one cycle.
+   *
+   * @param boiler   The number identifying the boiler.
+   * @param mode     The mode of the controller after the cycle.
+   * @param incoming Messages received by the controller.
+   * @param outgoing Messages sent by the controller.
+   */
+  public void record(int boiler, State mode, Mailbox incoming, Mailbox outgoing) {
+    long sequence = this.next.getAndIncrement();
+    int slot = (int) (sequence % this.slots);
+    long claim = (sequence + 1) << 1;
+    for (;;) {
+      long current = this.claims.get(slot);
+      if (current >>> 1 > sequence + 1 || (current & 1) != 0) {
+        // A writer a lap ahead already has this slot, or one a lap behind is
+        // still filling it
+        this.drops.increment();
+        return;
+      } else if (this.claims.compareAndSet(slot, current, claim | 1)) {
+        break;
+      }
+    }
+    try {
+      write(HEADER_SIZE + slot * this.slotSize, sequence, boiler, mode, incoming, outgoing);
+    } finally {
+      this.claims.set(slot, claim);
+    }
+  }
+
+  /**
+   * Write one cycle into a slot held by the calling thread.
+   *
+   * @param base     Offset of the slot in the mapping.
+   * @param sequence Order in which the cycle was recorded.
+   * @param boiler   The number identifying the boiler.
+   * @param mode     The mode of the controller after the cycle.
+   * @param incoming Messages received by the controller.
+   * @param outgoing Messages sent by the controller.
+   */
+  private void write(int base, long sequence, int boiler, State mode, Mailbox incoming,
+      Mailbox outgoing) {
+    ByteBuffer view = this.views.get();
+    view.putLong(base, 0);
+    view.putLong(base + 8, System.currentTimeMillis());
+    view.putInt(base + 16, boiler);
+    view.put(base + 20, (byte) mode.ordinal());
+    int in = MessageCodec.frameSize(incoming);
+    int out = MessageCodec.frameSize(outgoing);
+    if (SLOT_HEADER_SIZE + in + out <= this.slotSize) {
+      view.position(base + SLOT_HEADER_SIZE);
+      MessageCodec.encodeFrame(incoming, view);
+      MessageCodec.encodeFrame(outgoing, view);
+      view.put(base + 21, (byte) 0);
+    } else {
+      in = 0;
+      out = 0;
+      view.put(base + 21, (byte) TRUNCATED);
+      this.truncations.increment();
+    }
+    view.putShort(base + 22, (short) in);
+    view.putShort(base + 24, (short) out);
+    view.putInt(base + CHECKSUM, checksum(this.checksums.get(), view, base, sequence + 1,
+        in + out));
+    view.putLong(base, sequence + 1);
+  }
+
+  /**
+   * Get the number of cycles recorded so far, including those since overwritten.
+   *
+   * @return the number of cycles.
+   */
+  public long getRecorded() {
+    return this.next.get();
+  }
+
+  /**
+   * Get the number of cycles recorded without their messages because they did
+   * not fit in a slot.
+   *
+   * @return the number of truncated cycles.
+   */
+  public long getTruncations() {
+    return this.truncations.sum();
+  }
+
+  /**
+   * Get the number of cycles dropped because, by the time they were written,
+   * their slot held a cycle recorded a whole ring later, or was still being
+   * filled by one recorded a whole ring earlier.
+   *
+   * @return the number of dropped cycles.
+   */
+  public long getDrops() {
+    return this.drops.sum();
+  }
+
+  /**
+   * Write every recorded cycle to the storage device.
+   */
+  public void force() {
+    this.mapping.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.mapping.force();
+    this.channel.close();
+  }
+
+  /**
+   * Read the cycles of a recording which fall within a time window, in the order
+   * in which they were recorded. The recording may be read while it is being
+   * written: slots being written, slots which fail their checksum and slots
+   * which cannot be decoded are skipped.
+   *
+   * @param file     The recording file.
+   * @param from     Start of the window (ms since the epoch, inclusive).
+   * @param to       End of the window (ms since the epoch, inclusive).
+   * @param consumer Given each cycle in the window.
+   * @return the number of slots skipped.
+   * @throws IOException if the file cannot be read or is not a recording.
+   */
+  public static int read(Path file, long from, long to, Consumer<Entry> consumer)
+      throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (ch.size() < HEADER_SIZE) {
+        throw new IOException("not a recording: " + file); //$NON-NLS-1$
+      }
+      ByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      int slotSize = map.getInt(8);
+      int slots = map.getInt(12);
+      if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+          || slotSize < SLOT_HEADER_SIZE || slots <= 0
+          || HEADER_SIZE + (long) slotSize * slots > ch.size()) {
+        throw new IOException("not a recording: " + file); //$NON-NLS-1$
+      }
+      // Recover the order of the slots from their sequence numbers
+      ArrayList<long[]> order = new ArrayList<>();
+      for (int i = 0; i != slots; ++i) {
+        int base = HEADER_SIZE + i * slotSize;
+        long sequence = map.getLong(base);
+        if (sequence != 0) {
+          order.add(new long[] { sequence, base });
+        }
+      }
+      order.sort((a, b) -> Long.compare(a[0], b[0]));
+      MessageCodec codec = new MessageCodec(new MessageCache(0));
+      CRC32 crc = new CRC32();
+      ByteBuffer copy = ByteBuffer.allocate(slotSize);
+      int skipped = 0;
+      for (long[] slot : order) {
+        int base = (int) slot[1];
+        // Copy the slot between two reads of its sequence number, which must
+        // agree with each other and with the scan above, then check the copy
+        long before = map.getLong(base);
+        map.limit(base + slotSize).position(base);
+        copy.clear();
+        copy.put(map);
+        map.clear();
+        if (before != slot[0] || map.getLong(base) != before || !valid(crc, copy, slotSize)) {
+          skipped++;
+          continue;
+        }
+        long time = copy.getLong(8);
+        if (time < from || time > to) {
+          continue;
+        }
+        @Nullable Entry entry = decode(codec, copy, slot[0] - 1, slotSize);
+        if (entry == null) {
+          skipped++;
+        } else {
+          consumer.accept(entry);
+        }
+      }
+      return skipped;
+    }
+  }
+
+  /**
+   * Decode a copy of a slot.
+   *
+   * @param codec    The codec the frames are decoded with.
+   * @param slot     The copy of the slot.
+   * @param sequence Order in which the cycle was recorded.
+   * @param slotSize Size of the slot (bytes).
+   * @return the cycle, or <code>null</code> if the slot is corrupt.
+   */
+  private static @Nullable Entry decode(MessageCodec codec, ByteBuffer slot, long sequence,
+      int slotSize) {
+    int mode = slot.get(20) & 0xFF;
+    int in = slot.getShort(22) & 0xFFFF;
+    int out = slot.getShort(24) & 0xFFFF;
+    if (mode >= STATES.length || SLOT_HEADER_SIZE + in + out > slotSize) {
+      return null;
+    }
+    Mailbox incoming = new UnboundedMailbox(16);
+    Mailbox outgoing = new UnboundedMailbox(16);
+    if (in != 0) {
+      try {
+        slot.limit(SLOT_HEADER_SIZE + in).position(SLOT_HEADER_SIZE);
+        codec.decodeFrame(slot, incoming);
+        if (slot.hasRemaining()) {
+          return null;
+        }
+        slot.limit(SLOT_HEADER_SIZE + in + out);
+        codec.decodeFrame(slot, outgoing);
+        if (slot.hasRemaining()) {
+          return null;
+        }
+      } catch (IllegalArgumentException | BufferUnderflowException e) {
+        return null;
+      } finally {
+        slot.clear();
+      }
+    }
+    return new Entry(sequence, slot.getLong(8), slot.getInt(16), STATES[mode],
+        (slot.get(21) & TRUNCATED) != 0, incoming, outgoing);
+  }
+
+  /**
+   * Check a copy of a slot against its checksum.
+   *
+   * @param crc      The checksum to compute with.
+   * @param slot     The copy of the slot.
+   * @param slotSize Size of the slot (bytes).
+   * @return true if the sizes of the frames fit in the slot and the checksum
+   *         matches.
+   */
+  private static boolean valid(CRC32 crc, ByteBuffer slot, int slotSize) {
+    int frames = (slot.getShort(22) & 0xFFFF) + (slot.getShort(24) & 0xFFFF);
+    return SLOT_HEADER_SIZE + frames <= slotSize
+        && checksum(crc, slot, 0, slot.getLong(0), frames) == slot.getInt(CHECKSUM);
+  }
+
+  /**
+   * Compute the checksum of a slot: its sequence number, the fields of its
+   * header after that number, and its frames. This moves the position and limit
+   * of the buffer, and clears it afterwards.
+   *
+   * @param crc      The checksum to compute with.
+   * @param buffer   The buffer holding the slot.
+   * @param base     Offset of the slot in the buffer.
+   * @param stamp    The sequence number plus one of the slot.
+   * @param frames   Combined size of the frames (bytes).
+   * @return the checksum.
+   */
+  private static int checksum(CRC32 crc, ByteBuffer buffer, int base, long stamp, int frames) {
+    crc.reset();
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      crc.update((int) (stamp >>> shift));
+    }
+    buffer.limit(base + CHECKSUM).position(base + 8);
+    crc.update(buffer);
+    buffer.limit(base + SLOT_HEADER_SIZE + frames).position(base + SLOT_HEADER_SIZE);
+    crc.update(buffer);
+    buffer.clear();
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Dump the cycles of a recording which fall within a time window, one line
+   * per cycle.
+   *
+   * @param args The recording file, and optionally the start and end of the
+   *             window (ms since the epoch).
+   * @throws IOException if the file cannot be read or is not a recording.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1 && args.length != 3) {
+      System.err.println("usage: FlightRecorder file [from to]"); //$NON-NLS-1$
+      return;
+    }
+    long from = args.length == 3 ? Long.parseLong(args[1]) : Long.MIN_VALUE;
+    long to = args.length == 3 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+    PrintStream out = System.out;
+    int skipped = read(Paths.get(args[0]), from, to, entry -> {
+      StringBuilder line = new StringBuilder();
+      line.append(entry.getSequence()).append(' ').append(entry.getTime()).append(' ')
+          .append(entry.getBoiler()).append(' ').append(entry.getMode());
+      if (entry.isTruncated()) {
+        line.append(" TRUNCATED"); //$NON-NLS-1$
+      }
+      line.append(" in:"); //$NON-NLS-1$
+      append(line, entry.getIncoming());
+      line.append(" out:"); //$NON-NLS-1$
+      append(line, entry.getOutgoing());
+      out.println(line);
+    });
+    if (skipped != 0) {
+      System.err.println("skipped " + skipped + " unreadable slots"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+  }
+
+  /**
+   * Append the messages of a mailbox to a line of a dump.
+   *
+   * @param line    The line.
+   * @param mailbox The mailbox.
+   */
+  private static void append(StringBuilder line, Mailbox mailbox) {
+    for (int i = 0; i != mailbox.size(); ++i) {
+      line.append(' ').append(MessageCodec.format(mailbox.read(i)));
+    }
+  }
+}
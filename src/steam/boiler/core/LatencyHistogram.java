@@ -0,0 +1,140 @@
+package steam.boiler.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds. Values are counted in
+ * log-linear buckets: each power of two is split into 32 equal buckets, so any
+ * reported percentile is within about 3% of the true value. Recording is a
+ * single atomic increment, and readers never block writers.
+ *
+ * @author paula
+ *
+ */
+public final class LatencyHistogram {
+
+  /**
+   * Number of bits used to split each power of two into linear buckets.
+   */
+  private static final int SUB_BITS = 5;
+
+  /**
+   * Number of linear buckets per power of two.
+   */
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  /**
+   * Total number of buckets needed to cover every positive long.
+   */
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  /**
+   * Number of values recorded in each bucket.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  /**
+   * Largest value recorded.
+   */
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos The latency in nanoseconds; negative values count as zero.
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    this.counts.incrementAndGet(bucket(value));
+    long current = this.max.get();
+    while (value > current && !this.max.compareAndSet(current, value)) {
+      current = this.max.get();
+    }
+  }
+
+  /**
+   * Get the number of latencies recorded.
+   *
+   * @return the total count.
+   */
+  public long count() {
+    long total = 0;
+    for (int i = 0; i != BUCKETS; ++i) {
+      total += this.counts.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * Get the largest latency recorded.
+   *
+   * @return the maximum in nanoseconds, or zero if nothing was recorded.
+   */
+  public long max() {
+    return this.max.get();
+  }
+
+  /**
+   * Get the latency below which a given fraction of the recorded latencies fall.
+   *
+   * @param quantile The fraction, between 0 and 1 (e.g. 0.99 for p99).
+   * @return the latency in nanoseconds, or zero if nothing was recorded.
+   */
+  public long percentile(double quantile) {
+    long total = count();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(Math.min(1, Math.max(0, quantile)) * total);
+    long seen = 0;
+    for (int i = 0; i != BUCKETS; ++i) {
+      seen += this.counts.get(i);
+      if (seen >= Math.max(1, rank)) {
+        return Math.min(upperBound(i), this.max.get());
+      }
+    }
+    return this.max.get();
+  }
+
+  /**
+   * Forget every recorded latency. Values recorded concurrently with a reset may
+   * or may not be kept.
+   */
+  public void reset() {
+    for (int i = 0; i != BUCKETS; ++i) {
+      this.counts.set(i, 0);
+    }
+    this.max.set(0);
+  }
+
+  /**
+   * Determine the bucket holding a given value.
+   *
+   * @param value A non-negative value.
+   * @return the bucket index.
+   */
+  private static int bucket(long value) {
+    int msb = 63 - Long.numberOfLeadingZeros(value | 1);
+    if (msb < SUB_BITS) {
+      return (int) value;
+    }
+    int shift = msb - SUB_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  /**
+   * Determine the largest value held by a given bucket.
+   *
+   * @param bucket The bucket index.
+   * @return the upper bound of the bucket.
+   */
+  private static long upperBound(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lower + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,150 @@
+package steam.boiler.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interval within which the water level is known to lie, for when the level
+ * cannot be measured. Whenever the level is measured the interval collapses to
+ * the reading. Otherwise each cycle moves it on from its previous value by the
+ * water the pumps could have added and the steam could have taken away, so the
+ * interval widens only by what is not known about those flows.
+ *
+ * <p>Updates take constant time and do not allocate, so an estimator can be
+ * kept up to date on every cycle.
+ *
+ * @author paula
+ *
+ */
+public final class LevelEstimator {
+
+  /**
+   * Number of bytes written by {@link #save(ByteBuffer)}.
+   */
+  public static final int SAVED_SIZE = 4 * 8;
+
+  /**
+   * Lowest level the water can be at (l).
+   */
+  private double low;
+
+  /**
+   * Highest level the water can be at (l).
+   */
+  private double high;
+
+  /**
+   * Lowest rate at which steam was leaving at the previous update (l/s).
+   */
+  private double steamLow;
+
+  /**
+   * Highest rate at which steam was leaving at the previous update (l/s).
+   */
+  private double steamHigh;
+
+  /**
+   * Set the interval to a measured level.
+   *
+   * @param level      The water level measured (l).
+   * @param steamLow1  Lowest rate at which steam is leaving (l/s).
+   * @param steamHigh1 Highest rate at which steam is leaving (l/s).
+   */
+  public void reset(double level, double steamLow1, double steamHigh1) {
+    this.low = level;
+    this.high = level;
+    this.steamLow = steamLow1;
+    this.steamHigh = steamHigh1;
+  }
+
+  /**
+   * Move the interval on by one cycle without a level reading. Over the cycle,
+   * the steam rate is taken to have stayed between its bounds at the previous
+   * update and those given now.
+   *
+   * @param minInflow  Combined capacity of the pumps certainly open (l/s).
+   * @param maxInflow  Combined capacity of the pumps possibly open (l/s).
+   * @param steamLow1  Lowest rate at which steam is now leaving (l/s).
+   * @param steamHigh1 Highest rate at which steam is now leaving (l/s).
+   * @param capacity   Capacity of the boiler (l).
+   */
+  public void advance(double minInflow, double maxInflow, double steamLow1, double steamHigh1,
+      double capacity) {
+    double fastest = Math.max(this.steamHigh, steamHigh1);
+    double slowest = Math.min(this.steamLow, steamLow1);
+    this.low = Math.max(0, this.low + ControlProfile.CYCLE_SECONDS * (minInflow - fastest));
+    this.high = Math.min(capacity,
+        this.high + ControlProfile.CYCLE_SECONDS * (maxInflow - slowest));
+    this.steamLow = steamLow1;
+    this.steamHigh = steamHigh1;
+  }
+
+  /**
+   * Get the lowest level the water can be at.
+   *
+   * @return the level (l).
+   */
+  public double getLow() {
+    return this.low;
+  }
+
+  /**
+   * Get the highest level the water can be at.
+   *
+   * @return the level (l).
+   */
+  public double getHigh() {
+    return this.high;
+  }
+
+  /**
+   * Get the lowest rate at which steam was leaving at the previous update.
+   *
+   * @return the rate (l/s).
+   */
+  public double getSteamLow() {
+    return this.steamLow;
+  }
+
+  /**
+   * Get the highest rate at which steam was leaving at the previous update.
+   *
+   * @return the rate (l/s).
+   */
+  public double getSteamHigh() {
+    return this.steamHigh;
+  }
+
+  /**
+   * Write the state of the estimator at the position of a buffer.
+   *
+   * @param buffer The buffer written to.
+   */
+  public void save(ByteBuffer buffer) {
+    buffer.putDouble(this.low);
+    buffer.putDouble(this.high);
+    buffer.putDouble(this.steamLow);
+    buffer.putDouble(this.steamHigh);
+  }
+
+  /**
+   * Replace the state of the estimator with one written by
+   * {@link #save(ByteBuffer)}.
+   *
+   * @param buffer The buffer read from.
+   */
+  public void restore(ByteBuffer buffer) {
+    this.low = buffer.getDouble();
+    this.high = buffer.getDouble();
+    this.steamLow = buffer.getDouble();
+    this.steamHigh = buffer.getDouble();
+  }
+
+  /**
+   * Get the middle of the interval, which is the best estimate of the level.
+   *
+   * @return the level (l).
+   */
+  public double getMidpoint() {
+    return (this.low + this.high) / 2;
+  }
+}
@@ -0,0 +1,80 @@
+package steam.boiler.core;
+
+import java.util.Arrays;
+
+/**
+ * Filter returning the median of the last few samples, which removes isolated
+ * spikes without lagging behind a genuine step change by more than half the
+ * window. The samples are kept in a ring, and also in sorted order so that each
+ * new sample only costs one removal and one insertion into an array of the
+ * window's size.
+ *
+ * <p>Until the window has filled up, the median of the samples seen so far is
+ * returned, taking the lower of the two middle samples when there is an even
+ * number of them.
+ *
+ * @author paula
+ *
+ */
+public final class MedianFilter implements SensorFilter {
+
+  /**
+   * Largest window allowed.
+   */
+  public static final int MAX_WINDOW = 31;
+
+  /**
+   * The samples in the window, in the order they were seen.
+   */
+  private final double[] ring;
+
+  /**
+   * The samples in the window, in ascending order.
+   */
+  private final double[] sorted;
+
+  /**
+   * Number of samples in the window so far.
+   */
+  private int count;
+
+  /**
+   * Index in the ring of the next sample.
+   */
+  private int next;
+
+  /**
+   * Construct a filter.
+   *
+   * @param window The number of samples the median is taken over, which should
+   *               be odd.
+   */
+  public MedianFilter(int window) {
+    if (window <= 0 || window > MAX_WINDOW) {
+      throw new IllegalArgumentException("invalid window: " + window); //$NON-NLS-1$
+    }
+    this.ring = new double[window];
+    this.sorted = new double[window];
+  }
+
+  @Override
+  public double apply(double sample) {
+    int n = this.count;
+    if (n == this.ring.length) {
+      // Remove the oldest sample from the sorted samples
+      int i = Arrays.binarySearch(this.sorted, 0, n, this.ring[this.next]);
+      System.arraycopy(this.sorted, i + 1, this.sorted, i, n - i - 1);
+      --n;
+    }
+    this.ring[this.next] = sample;
+    this.next = (this.next + 1) % this.ring.length;
+    int i = n;
+    while (i > 0 && Double.compare(this.sorted[i - 1], sample) > 0) {
+      this.sorted[i] = this.sorted[i - 1];
+      --i;
+    }
+    this.sorted[i] = sample;
+    this.count = n + 1;
+    return this.sorted[n / 2];
+  }
+}
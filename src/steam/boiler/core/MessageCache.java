@@ -0,0 +1,177 @@
+package steam.boiler.core;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Pre-built, immutable outgoing messages. Messages are shared between cycles
+ * (and between controllers) so that a controller in steady state does not need
+ * to allocate anything to talk to the physical units. Pump state messages are
+ * also cached, so that decoded incoming traffic can share them too.
+ *
+ * @author paula
+ *
+ */
+public final class MessageCache {
+
+  /**
+   * All message kinds, cached to avoid cloning the values array.
+   */
+  private static final MessageKind[] KINDS = MessageKind.values();
+
+  /**
+   * Parameterless messages, indexed by kind ordinal.
+   */
+  private static final Message[] SIGNALS = new Message[KINDS.length];
+
+  /**
+   * MODE_m messages, indexed by mode ordinal.
+   */
+  private static final Message[] MODES = new Message[Mailbox.Mode.values().length];
+
+  static {
+    for (MessageKind kind : KINDS) {
+      if (!isIndexed(kind) && kind != MessageKind.MODE_m && kind != MessageKind.LEVEL_v
+          && kind != MessageKind.STEAM_v && kind != MessageKind.PUMP_STATE_n_b
+          && kind != MessageKind.PUMP_CONTROL_STATE_n_b) {
+        SIGNALS[kind.ordinal()] = new Message(kind);
+      }
+    }
+    for (Mailbox.Mode m : Mailbox.Mode.values()) {
+      MODES[m.ordinal()] = new Message(MessageKind.MODE_m, m);
+    }
+  }
+
+  /**
+   * Pump indexed messages (e.g. OPEN_PUMP_n), indexed by kind ordinal and then
+   * by pump number. Entries for kinds without a pump index are empty.
+   */
+  private final Message[][] indexed = new Message[KINDS.length][];
+
+  /**
+   * PUMP_STATE_n_b messages, indexed by twice the pump number plus one if open.
+   */
+  private final Message[] pumpStates;
+
+  /**
+   * PUMP_CONTROL_STATE_n_b messages, indexed by twice the pump number plus one if
+   * water is flowing.
+   */
+  private final Message[] pumpControlStates;
+
+  /**
+   * Construct the cache of pump indexed messages for a given number of pumps.
+   *
+   * @param numberOfPumps The number of pumps in the boiler.
+   */
+  public MessageCache(int numberOfPumps) {
+    for (MessageKind kind : KINDS) {
+      Message[] messages = new Message[isIndexed(kind) ? numberOfPumps : 0];
+      for (int i = 0; i != messages.length; ++i) {
+        messages[i] = new Message(kind, i);
+      }
+      this.indexed[kind.ordinal()] = messages;
+    }
+    this.pumpStates = new Message[2 * numberOfPumps];
+    this.pumpControlStates = new Message[2 * numberOfPumps];
+    for (int i = 0; i != numberOfPumps; ++i) {
+      this.pumpStates[2 * i] = new Message(MessageKind.PUMP_STATE_n_b, i, false);
+      this.pumpStates[2 * i + 1] = new Message(MessageKind.PUMP_STATE_n_b, i, true);
+      this.pumpControlStates[2 * i] = new Message(MessageKind.PUMP_CONTROL_STATE_n_b, i, false);
+      this.pumpControlStates[2 * i + 1] = new Message(MessageKind.PUMP_CONTROL_STATE_n_b, i, true);
+    }
+  }
+
+  /**
+   * Get the shared MODE_m message for a given mode.
+   *
+   * @param mode The mode to be transmitted.
+   * @return the cached message.
+   */
+  public static Message mode(Mailbox.Mode mode) {
+    return MODES[mode.ordinal()];
+  }
+
+  /**
+   * Get the shared message for a kind which carries no parameter, such as
+   * PROGRAM_READY or VALVE.
+   *
+   * @param kind The kind of message.
+   * @return the cached message.
+   */
+  public static Message signal(MessageKind kind) {
+    Message m = SIGNALS[kind.ordinal()];
+    if (m == null) {
+      throw new IllegalArgumentException("message kind has parameters: " + kind); //$NON-NLS-1$
+    }
+    return m;
+  }
+
+  /**
+   * Get the shared message for a kind which is parameterised by a pump number,
+   * such as OPEN_PUMP_n. A fresh message is returned for pump numbers beyond
+   * those the cache was built for.
+   *
+   * @param kind The kind of message.
+   * @param pump The pump number.
+   * @return the cached message.
+   */
+  public Message pump(MessageKind kind, int pump) {
+    Message[] messages = this.indexed[kind.ordinal()];
+    if (pump >= 0 && pump < messages.length) {
+      return messages[pump];
+    }
+    return new Message(kind, pump);
+  }
+
+  /**
+   * Get the shared PUMP_STATE_n_b or PUMP_CONTROL_STATE_n_b message for a given
+   * pump and state. A fresh message is returned for pump numbers beyond those the
+   * cache was built for.
+   *
+   * @param kind  Either PUMP_STATE_n_b or PUMP_CONTROL_STATE_n_b.
+   * @param pump  The pump number.
+   * @param value The state of the pump.
+   * @return the cached message.
+   */
+  public Message pumpState(MessageKind kind, int pump, boolean value) {
+    Message[] messages;
+    if (kind == MessageKind.PUMP_STATE_n_b) {
+      messages = this.pumpStates;
+    } else if (kind == MessageKind.PUMP_CONTROL_STATE_n_b) {
+      messages = this.pumpControlStates;
+    } else {
+      throw new IllegalArgumentException("not a pump state: " + kind); //$NON-NLS-1$
+    }
+    int index = 2 * pump + (value ? 1 : 0);
+    if (pump >= 0 && index < messages.length) {
+      return messages[index];
+    }
+    return new Message(kind, pump, value);
+  }
+
+  /**
+   * Check whether a given kind of message carries only a pump number.
+   *
+   * @param kind The kind of message.
+   * @return true if the message is parameterised by a pump number alone.
+   */
+  static boolean isIndexed(MessageKind kind) {
+    switch (kind) {
+      case OPEN_PUMP_n:
+      case CLOSE_PUMP_n:
+      case PUMP_FAILURE_DETECTION_n:
+      case PUMP_CONTROL_FAILURE_DETECTION_n:
+      case PUMP_REPAIRED_ACKNOWLEDGEMENT_n:
+      case PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n:
+      case PUMP_REPAIRED_n:
+      case PUMP_CONTROL_REPAIRED_n:
+      case PUMP_FAILURE_ACKNOWLEDGEMENT_n:
+      case PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
@@ -0,0 +1,435 @@
+package steam.boiler.core;
+
+import java.nio.ByteBuffer;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Compact binary encoding of mailbox messages. Each message starts with one
+ * byte giving the tag of its kind, followed by its parameter (if any):
+ *
+ * <ul>
+ * <li><code>MODE_m</code>: one byte giving the tag of the mode.</li>
+ * <li><code>LEVEL_v</code> and <code>STEAM_v</code>: an eight byte double.</li>
+ * <li><code>*_n</code>: an unsigned short giving the pump number.</li>
+ * <li><code>*_n_b</code>: an unsigned short whose top bit is the boolean and
+ * whose remaining bits are the pump number.</li>
+ * </ul>
+ *
+ * <p>A frame holds the whole mailbox of one cycle: an unsigned short giving the
+ * number of messages, followed by the messages. A cycle of a boiler with four
+ * pumps fits in under 50 bytes. Kinds and modes are encoded by the fixed tags of
+ * {@link #tag(MessageKind)} and {@link #tag(Mailbox.Mode)} rather than by
+ * ordinal, so frames keep their meaning if the library reorders or adds
+ * constants. A new constant must be given a new tag before it can be encoded;
+ * tags are never reused.
+ *
+ * <p>Encoding writes straight into the buffer. Decoding returns the shared
+ * messages of a {@link MessageCache} wherever one exists, so the only messages
+ * allocated are those carrying a level or steam reading.
+ *
+ * @author paula
+ *
+ */
+public final class MessageCodec {
+
+  /**
+   * Largest number of bytes any single message is encoded in.
+   */
+  public static final int MAX_MESSAGE_SIZE = 1 + 8;
+
+  /**
+   * Number of bytes in a frame header.
+   */
+  public static final int FRAME_HEADER_SIZE = 2;
+
+  /**
+   * Largest number of messages in a frame.
+   */
+  public static final int MAX_FRAME_MESSAGES = 0xFFFF;
+
+  /**
+   * Largest pump number which can be encoded.
+   */
+  public static final int MAX_PUMP = 0x7FFF;
+
+  /**
+   * Bit of a <code>*_n_b</code> parameter holding the boolean.
+   */
+  private static final int FLAG = 0x8000;
+
+  /**
+   * Tag marking a kind or mode which cannot be encoded.
+   */
+  private static final int NO_TAG = -1;
+
+  /**
+   * Message kinds, indexed by tag. Tags no kind is given are empty.
+   */
+  private static final MessageKind[] KINDS = new MessageKind[256];
+
+  /**
+   * Modes, indexed by tag. Tags no mode is given are empty.
+   */
+  private static final Mailbox.Mode[] MODES = new Mailbox.Mode[256];
+
+  static {
+    for (MessageKind kind : MessageKind.values()) {
+      int tag = tag(kind);
+      if (tag != NO_TAG) {
+        KINDS[tag] = kind;
+      }
+    }
+    for (Mailbox.Mode mode : Mailbox.Mode.values()) {
+      int tag = tag(mode);
+      if (tag != NO_TAG) {
+        MODES[tag] = mode;
+      }
+    }
+  }
+
+  /**
+   * Shared messages returned when decoding.
+   */
+  private final MessageCache messages;
+
+  /**
+   * Construct a codec which decodes into the shared messages of a given cache.
+   *
+   * @param messages1 The cache of shared messages.
+   */
+  public MessageCodec(MessageCache messages1) {
+    this.messages = messages1;
+  }
+
+  /**
+   * Determine the number of bytes a message is encoded in.
+   *
+   * @param message The message.
+   * @return the encoded size.
+   */
+  public static int size(Message message) {
+    switch (shape(message.getKind())) {
+      case MODE:
+        return 2;
+      case VALUE:
+        return 1 + 8;
+      case PUMP:
+      case PUMP_STATE:
+        return 1 + 2;
+      case NONE:
+      default:
+        return 1;
+    }
+  }
+
+  /**
+   * Determine the number of bytes the frame of a mailbox is encoded in.
+   *
+   * @param mailbox The mailbox.
+   * @return the encoded size, including the header.
+   */
+  public static int frameSize(Mailbox mailbox) {
+    int total = FRAME_HEADER_SIZE;
+    for (int i = 0; i != mailbox.size(); ++i) {
+      total += size(mailbox.read(i));
+    }
+    return total;
+  }
+
+  /**
+   * Encode a message at the position of a buffer.
+   *
+   * @param message The message.
+   * @param buffer  The buffer written to.
+   */
+  public static void encode(Message message, ByteBuffer buffer) {
+    MessageKind kind = message.getKind();
+    buffer.put((byte) checked(tag(kind), kind));
+    switch (shape(kind)) {
+      case MODE: {
+        Mailbox.Mode mode = message.getModeParameter();
+        buffer.put((byte) checked(tag(mode), mode));
+        break;
+      }
+      case VALUE:
+        buffer.putDouble(message.getDoubleParameter());
+        break;
+      case PUMP:
+        buffer.putShort((short) pump(message.getIntegerParameter()));
+        break;
+      case PUMP_STATE:
+        buffer.putShort((short) (pump(message.getIntegerParameter())
+            | (message.getBooleanParameter() ? FLAG : 0)));
+        break;
+      case NONE:
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Encode every message of a mailbox as one frame at the position of a buffer.
+   *
+   * @param mailbox The mailbox.
+   * @param buffer  The buffer written to.
+   */
+  public static void encodeFrame(Mailbox mailbox, ByteBuffer buffer) {
+    int count = mailbox.size();
+    if (count > MAX_FRAME_MESSAGES) {
+      throw new IllegalArgumentException("too many messages for one frame"); //$NON-NLS-1$
+    }
+    buffer.putShort((short) count);
+    for (int i = 0; i != count; ++i) {
+      encode(mailbox.read(i), buffer);
+    }
+  }
+
+  /**
+   * Decode the message at the position of a buffer.
+   *
+   * @param buffer The buffer read from.
+   * @return the decoded message.
+   */
+  public Message decode(ByteBuffer buffer) {
+    int tag = buffer.get() & 0xFF;
+    MessageKind kind = KINDS[tag];
+    if (kind == null) {
+      throw new IllegalArgumentException("unknown message kind: " + tag); //$NON-NLS-1$
+    }
+    switch (shape(kind)) {
+      case MODE: {
+        int modeTag = buffer.get() & 0xFF;
+        Mailbox.Mode mode = MODES[modeTag];
+        if (mode == null) {
+          throw new IllegalArgumentException("unknown mode: " + modeTag); //$NON-NLS-1$
+        }
+        return MessageCache.mode(mode);
+      }
+      case VALUE:
+        return new Message(kind, buffer.getDouble());
+      case PUMP:
+        return this.messages.pump(kind, pump(buffer.getShort() & 0xFFFF));
+      case PUMP_STATE: {
+        int bits = buffer.getShort() & 0xFFFF;
+        return this.messages.pumpState(kind, bits & MAX_PUMP, (bits & FLAG) != 0);
+      }
+      case NONE:
+      default:
+        return MessageCache.signal(kind);
+    }
+  }
+
+  /**
+   * Decode a frame at the position of a buffer, sending each message to a
+   * mailbox.
+   *
+   * @param buffer  The buffer read from.
+   * @param mailbox The mailbox the messages are sent to.
+   * @return the number of messages decoded.
+   */
+  public int decodeFrame(ByteBuffer buffer, Mailbox mailbox) {
+    int count = buffer.getShort() & 0xFFFF;
+    for (int i = 0; i != count; ++i) {
+      mailbox.send(decode(buffer));
+    }
+    return count;
+  }
+
+  /**
+   * Describe a message in a compact human readable form, such as
+   * <code>LEVEL_v(250.0)</code> or <code>PUMP_STATE_n_b(2,true)</code>.
+   *
+   * @param message The message.
+   * @return the description.
+   */
+  public static String format(Message message) {
+    MessageKind kind = message.getKind();
+    switch (shape(kind)) {
+      case MODE:
+        return kind + "(" + message.getModeParameter() + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+      case VALUE:
+        return kind + "(" + message.getDoubleParameter() + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+      case PUMP:
+        return kind + "(" + message.getIntegerParameter() + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+      case PUMP_STATE:
+        return kind + "(" + message.getIntegerParameter() + "," //$NON-NLS-1$ //$NON-NLS-2$
+            + message.getBooleanParameter() + ")"; //$NON-NLS-1$
+      case NONE:
+      default:
+        return kind.toString();
+    }
+  }
+
+  /**
+   * Check that a pump number can be encoded.
+   *
+   * @param pump The pump number.
+   * @return the pump number.
+   */
+  private static int pump(int pump) {
+    if (pump < 0 || pump > MAX_PUMP) {
+      throw new IllegalArgumentException("pump number out of range: " + pump); //$NON-NLS-1$
+    }
+    return pump;
+  }
+
+  /**
+   * Determine the tag a kind of message is encoded by. Tags are part of the
+   * encoding: once given, a tag must never change or be given to another kind.
+   *
+   * @param kind The kind of message.
+   * @return the tag, or -1 if the kind has none.
+   */
+  static int tag(MessageKind kind) {
+    switch (kind) {
+      case MODE_m:
+        return 0;
+      case PROGRAM_READY:
+        return 1;
+      case VALVE:
+        return 2;
+      case OPEN_PUMP_n:
+        return 3;
+      case CLOSE_PUMP_n:
+        return 4;
+      case PUMP_FAILURE_DETECTION_n:
+        return 5;
+      case PUMP_CONTROL_FAILURE_DETECTION_n:
+        return 6;
+      case LEVEL_FAILURE_DETECTION:
+        return 7;
+      case STEAM_FAILURE_DETECTION:
+        return 8;
+      case PUMP_REPAIRED_ACKNOWLEDGEMENT_n:
+        return 9;
+      case PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n:
+        return 10;
+      case LEVEL_REPAIRED_ACKNOWLEDGEMENT:
+        return 11;
+      case STEAM_REPAIRED_ACKNOWLEDGEMENT:
+        return 12;
+      case STOP:
+        return 13;
+      case STEAM_BOILER_WAITING:
+        return 14;
+      case PHYSICAL_UNITS_READY:
+        return 15;
+      case PUMP_STATE_n_b:
+        return 16;
+      case PUMP_CONTROL_STATE_n_b:
+        return 17;
+      case LEVEL_v:
+        return 18;
+      case STEAM_v:
+        return 19;
+      case PUMP_REPAIRED_n:
+        return 20;
+      case PUMP_CONTROL_REPAIRED_n:
+        return 21;
+      case LEVEL_REPAIRED:
+        return 22;
+      case STEAM_REPAIRED:
+        return 23;
+      case PUMP_FAILURE_ACKNOWLEDGEMENT_n:
+        return 24;
+      case PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n:
+        return 25;
+      case LEVEL_FAILURE_ACKNOWLEDGEMENT:
+        return 26;
+      case STEAM_OUTCOME_FAILURE_ACKNOWLEDGEMENT:
+        return 27;
+      default:
+        return NO_TAG;
+    }
+  }
+
+  /**
+   * Determine the tag a mode is encoded by. As with kinds, a tag once given
+   * must never change.
+   *
+   * @param mode The mode.
+   * @return the tag, or -1 if the mode has none.
+   */
+  static int tag(Mailbox.Mode mode) {
+    switch (mode) {
+      case INITIALISATION:
+        return 0;
+      case NORMAL:
+        return 1;
+      case DEGRADED:
+        return 2;
+      case RESCUE:
+        return 3;
+      case EMERGENCY_STOP:
+        return 4;
+      default:
+        return NO_TAG;
+    }
+  }
+
+  /**
+   * Check that a kind or mode has a tag.
+   *
+   * @param tag   The tag.
+   * @param value The kind or mode it was looked up for.
+   * @return the tag.
+   */
+  private static int checked(int tag, Object value) {
+    if (tag == NO_TAG) {
+      throw new IllegalArgumentException("no tag for " + value); //$NON-NLS-1$
+    }
+    return tag;
+  }
+
+  /**
+   * Determine the parameter carried by a kind of message.
+   *
+   * @param kind The kind of message.
+   * @return the shape of its parameter.
+   */
+  private static Shape shape(MessageKind kind) {
+    switch (kind) {
+      case MODE_m:
+        return Shape.MODE;
+      case LEVEL_v:
+      case STEAM_v:
+        return Shape.VALUE;
+      case PUMP_STATE_n_b:
+      case PUMP_CONTROL_STATE_n_b:
+        return Shape.PUMP_STATE;
+      default:
+        return MessageCache.isIndexed(kind) ? Shape.PUMP : Shape.NONE;
+    }
+  }
+
+  /**
+   * The parameters a message can carry.
+   *
+   * @author paula
+   *
+   */
+  private enum Shape {
+    /**
+     * No parameter.
+     */
+    NONE,
+    /**
+     * A mode.
+     */
+    MODE,
+    /**
+     * A double.
+     */
+    VALUE,
+    /**
+     * A pump number.
+     */
+    PUMP,
+    /**
+     * A pump number and a boolean.
+     */
+    PUMP_STATE
+  }
+}
@@ -0,0 +1,137 @@
+package steam.boiler.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Embedded HTTP server exposing a set of {@link BoilerCounters} at
+ * <code>/metrics</code>, in the text format scraped by Prometheus. The server
+ * only listens on the loopback interface, and answers on a single thread of
+ * its own, so scraping never runs on a thread clocking a controller.
+ *
+ * @author paula
+ *
+ */
+public final class MetricsEndpoint implements Closeable {
+
+  /**
+   * Path at which the counters are served.
+   */
+  public static final String PATH = "/metrics"; //$NON-NLS-1$
+
+  /**
+   * Content type of the text exposition format.
+   */
+  private static final String CONTENT_TYPE =
+      "text/plain; version=0.0.4; charset=utf-8"; //$NON-NLS-1$
+
+  /**
+   * The counters served.
+   */
+  private final BoilerCounters counters;
+
+  /**
+   * The server.
+   */
+  private final HttpServer server;
+
+  /**
+   * Start serving counters on a local port.
+   *
+   * @param counters1 The counters served.
+   * @param port      The port, or zero for any free port.
+   * @throws IOException if the port cannot be bound.
+   */
+  public MetricsEndpoint(BoilerCounters counters1, int port) throws IOException {
+    this.counters = counters1;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+        0);
+    this.server.createContext(PATH, this::handle);
+    this.server.start();
+  }
+
+  /**
+   * Get the address the server is listening on.
+   *
+   * @return the address.
+   */
+  public InetSocketAddress getAddress() {
+    return this.server.getAddress();
+  }
+
+  /**
+   * Answer one request.
+   *
+   * @param exchange The request and its response.
+   * @throws IOException if the response cannot be sent.
+   */
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) { //$NON-NLS-1$
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      StringBuilder text = new StringBuilder(4096);
+      this.counters.format(text);
+      byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE); //$NON-NLS-1$
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Stop serving, without waiting for requests in progress.
+   */
+  @Override
+  public void close() {
+    this.server.stop(0);
+  }
+
+  /**
+   * Serve the counters of a fleet of simulated boilers, clocked in real time.
+   *
+   * @param args The port, and the number of boilers.
+   * @throws IOException if the port cannot be bound.
+   * @throws InterruptedException if interrupted while running.
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length != 2) {
+      System.err.println("usage: MetricsEndpoint port boilers"); //$NON-NLS-1$
+      return;
+    }
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    BoilerCounters counters = new BoilerCounters();
+    int n = Integer.parseInt(args[1]);
+    SimulationEngine[] engines = new SimulationEngine[n];
+    for (int i = 0; i != n; ++i) {
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      controller.setCycleListener(counters.listener(controller));
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      engines[i] = new SimulationEngine(controller, model);
+    }
+    try (MetricsEndpoint endpoint = new MetricsEndpoint(counters, Integer.parseInt(args[0]))) {
+      System.out.println("serving http://localhost:" + endpoint.getAddress().getPort() //$NON-NLS-1$
+          + PATH);
+      while (true) {
+        for (SimulationEngine e : engines) {
+          e.run(SimulationEngine.TRANSMISSION_INTERVAL, null);
+        }
+        Thread.sleep(SimulationEngine.TRANSMISSION_INTERVAL);
+      }
+    }
+  }
+}
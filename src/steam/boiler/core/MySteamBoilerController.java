@@ -1,5 +1,9 @@
 package steam.boiler.core;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
 import steam.boiler.model.SteamBoilerController;
@@ -17,34 +21,6 @@ import steam.boiler.util.SteamBoilerCharacteristics;
  */
 public class MySteamBoilerController implements SteamBoilerController {
 
-  /**
- * Initializes pump1 to false (closed).
- */
-  boolean pump1 = false;
-  /**
- * Initializes pump2 to false (closed).
- */
-  boolean pump2 = false;
-  /**
- * Initializes pump3 to false (closed).
- */
-  boolean pump3 = false;
-  /**
- * Initializes pump4 to false (closed).
- */
-  boolean pump4 = false;
-  /**
- * Initializes pump5 to false (closed).
- */
-  boolean pump5 = false;
-  /**
- * Initializes pump6 to false (closed).
- */
-  boolean pump6 = false;
-  /**
- * Initializes pumpIsOpen to false.
- */
-  boolean pumpIsOpen = false;
   /**
  * Initializes a steam failure going into degraded to false.
  */
@@ -60,7 +36,7 @@ public class MySteamBoilerController implements SteamBoilerController {
    * @author David J. Pearce
    *
    */
-  private enum State {
+  public enum State {
         /**
          * Mode in which the program waits for the message STEAM_BOILER_WAITING
          * to come from the physical units.
@@ -103,15 +79,249 @@ public class MySteamBoilerController implements SteamBoilerController {
   }
 
   /**
-   * Records the configuration characteristics for the given boiler problem.
+   * Characteristics waiting to be applied at the start of the next cycle.
+   *
+   * @author paula
+   *
+   */
+  private static final class Reconfiguration {
+
+    /**
+     * The new characteristics.
+     */
+    final SteamBoilerCharacteristics characteristics;
+
+    /**
+     * Profile compiled from the new characteristics.
+     */
+    final ControlProfile profile;
+
+    /**
+     * Pump table of the new profile for the pumps which had failed when the reconfiguration
+     * was made.
+     */
+    final PumpScheduler scheduler;
+
+    /**
+     * Version the characteristics take once applied.
+     */
+    final long version;
+
+    /**
+     * Construct a pending reconfiguration.
+     *
+     * @param characteristics1 The new characteristics.
+     * @param profile1         Profile compiled from the new characteristics.
+     * @param scheduler1       Pump table of the new profile for the pumps which had failed.
+     * @param version1         Version the characteristics take once applied.
+     */
+    Reconfiguration(SteamBoilerCharacteristics characteristics1, ControlProfile profile1,
+        PumpScheduler scheduler1, long version1) {
+      this.characteristics = characteristics1;
+      this.profile = profile1;
+      this.scheduler = scheduler1;
+      this.version = version1;
+    }
+  }
+
+  /**
+   * First four bytes of every checkpoint ("SBCK").
+   */
+  public static final int CHECKPOINT_MAGIC = 0x5342434B;
+
+  /**
+   * Version of the checkpoint layout.
+   */
+  public static final short CHECKPOINT_VERSION = 1;
+
+  /**
+   * Checkpoint flag set when a steam failure has put the controller in degraded mode.
+   */
+  private static final int DEGRADED_STEAM = 1;
+
+  /**
+   * Checkpoint flag set when the steam sensor has been seen stuck at -1.
+   */
+  private static final int STEAM1_ERROR = 2;
+
+  /**
+   * Characteristics of the boiler in effect, or <code>null</code> if none were given. Only
+   * replaced between cycles, by a reconfiguration.
+   */
+  private volatile @Nullable SteamBoilerCharacteristics characteristics;
+
+  /**
+   * Thresholds and constants compiled from the configuration characteristics for the given
+   * boiler problem. Only replaced between cycles, by a reconfiguration.
    */
-  private final @Nullable SteamBoilerCharacteristics configuration;
+  private @Nullable ControlProfile profile;
+
+  /**
+   * Characteristics to apply at the start of the next cycle, or <code>null</code> if none.
+   */
+  private final AtomicReference<@Nullable Reconfiguration> pending = new AtomicReference<>();
+
+  /**
+   * Version of the most recent characteristics passed to {@link #reconfigure}, guarded by
+   * {@link #pending}.
+   */
+  private long issued;
+
+  /**
+   * Version of the characteristics in effect, starting at zero for those the controller was
+   * constructed with.
+   */
+  private volatile long version;
 
   /**
    * Identifies the current mode in which the controller is operating.
    */
   private State mode = State.WAITING;
 
+  /**
+   * Incoming messages of the current cycle, decoded once and shared by every mode handler.
+   */
+  private final DecodedMailbox decoded = new DecodedMailbox();
+
+  /**
+   * Pre-built outgoing messages, so that steady state cycles do not allocate. These are shared
+   * with every controller using the same profile.
+   */
+  private final MessageCache messages;
+
+  /**
+   * Pump commands and mode changes of the current cycle, written out once the cycle is complete.
+   */
+  private final OutgoingStage stage;
+
+  /**
+   * Pumps which the controller has commanded open.
+   */
+  private final PumpSet pumpsCommanded;
+
+  /**
+   * Pumps reported open by the PUMP_STATE_n_b messages of the current cycle.
+   */
+  private final PumpSet pumpStates;
+
+  /**
+   * Pumps reported as having water flowing by the PUMP_CONTROL_STATE_n_b messages of the
+   * current cycle.
+   */
+  private final PumpSet pumpControlStates;
+
+  /**
+   * Pumps for which a pump failure has been detected and not yet repaired.
+   */
+  private final PumpSet pumpFailures;
+
+  /**
+   * Pumps for which a pump controller failure has been detected and not yet repaired.
+   */
+  private final PumpSet pumpControlFailures;
+
+  /**
+   * Pumps whose state and control state disagree in the current cycle.
+   */
+  private final PumpSet mismatches;
+
+  /**
+   * Pumps which, in the current cycle, failed to follow the last command sent to them.
+   */
+  private final PumpSet suspects;
+
+  /**
+   * Pumps whose pump or pump controller is reported repaired in the current cycle. Their state
+   * reflects the repaired unit rather than the last command, so they are not checked for failures
+   * until the next cycle.
+   */
+  private final PumpSet repaired;
+
+  /**
+   * Pumps chosen to be open in the current cycle.
+   */
+  private final PumpSet chosen;
+
+  /**
+   * Scratch set of pumps whose water is counted by an estimate.
+   */
+  private final PumpSet flowing;
+
+  /**
+   * Table of the inflows the pumps which have not failed can deliver.
+   */
+  private PumpScheduler scheduler;
+
+  /**
+   * Most recent steam reading which was within range (l/s).
+   */
+  private double steamRate;
+
+  /**
+   * Most recent level reading which was within range (l), or NaN if there has been none since
+   * the controller was constructed or restored.
+   */
+  private double level = Double.NaN;
+
+  /**
+   * Whether the level was estimated, rather than measured, on the last cycle.
+   */
+  private boolean levelEstimated;
+
+  /**
+   * Interval within which the water level lies, kept up to date on every cycle so that it can
+   * stand in for the level sensor should that fail.
+   */
+  private final LevelEstimator estimator = new LevelEstimator();
+
+  /**
+   * Where cycle latencies are recorded, or <code>null</code> if they are not measured.
+   */
+  private @Nullable ControllerMetrics metrics;
+
+  /**
+   * Filter applied to level readings, or <code>null</code> if they are used as they are.
+   */
+  private @Nullable SensorFilter levelFilter;
+
+  /**
+   * Filter applied to steam readings, or <code>null</code> if they are used as they are.
+   */
+  private @Nullable SensorFilter steamFilter;
+
+  /**
+   * Level reading of the current cycle as seen by the pump decision, filtered if a filter is set
+   * and the reading is within range (l).
+   */
+  private double filteredLevel;
+
+  /**
+   * Steam reading of the current cycle as seen by the pump decision, filtered if a filter is set
+   * and the reading is within range (l/s).
+   */
+  private double filteredSteam;
+
+  /**
+   * Notified at the end of every cycle, or <code>null</code> if nothing is listening.
+   */
+  private @Nullable CycleListener listener;
+
+  /**
+   * Held for writing while a cycle or a restore changes the state of the controller, so that
+   * {@link #getStatus(ControllerStatus)} can take its snapshot from another thread.
+   */
+  private final StampedLock lock = new StampedLock();
+
+  /**
+   * Time spent in each phase of the current cycle, indexed by phase ordinal.
+   */
+  private final long[] phaseNanos = new long[ControllerMetrics.Phase.values().length];
+
+  /**
+   * Time at which the current phase of the cycle began.
+   */
+  private long phaseStart;
+
   /**
    * Construct a steam boiler controller for a given set of characteristics.
    *
@@ -119,7 +329,24 @@ public class MySteamBoilerController implements SteamBoilerController {
    *          The boiler characteristics to be used.
    */
   public MySteamBoilerController(@Nullable SteamBoilerCharacteristics configuration1) {
-    this.configuration = configuration1;
+    ControlProfile p = configuration1 == null ? null : ControlProfile.of(configuration1);
+    this.characteristics = configuration1;
+    this.profile = p;
+    int numberOfPumps = p == null ? 0 : p.getNumberOfPumps();
+    this.messages = p == null ? new MessageCache(0) : p.getMessages();
+    this.stage = new OutgoingStage(this.messages, numberOfPumps);
+    this.pumpsCommanded = new PumpSet(numberOfPumps);
+    this.pumpStates = new PumpSet(numberOfPumps);
+    this.pumpControlStates = new PumpSet(numberOfPumps);
+    this.pumpFailures = new PumpSet(numberOfPumps);
+    this.pumpControlFailures = new PumpSet(numberOfPumps);
+    this.mismatches = new PumpSet(numberOfPumps);
+    this.suspects = new PumpSet(numberOfPumps);
+    this.repaired = new PumpSet(numberOfPumps);
+    this.chosen = new PumpSet(numberOfPumps);
+    this.flowing = new PumpSet(numberOfPumps);
+    this.scheduler = p == null ? new PumpScheduler(new double[0], this.pumpFailures)
+        : p.getScheduler(this.pumpFailures);
   }
 
   /**
@@ -135,6 +362,297 @@ public class MySteamBoilerController implements SteamBoilerController {
     return this.mode.toString();
   }
 
+  /**
+   * Get the mode in which the controller is operating.
+   *
+   * @return the current mode.
+   */
+  public State getMode() {
+    return this.mode;
+  }
+
+  /**
+   * Replace the characteristics of the boiler without going through initialisation again, for
+   * example to retune its levels. The thresholds and the pump table for the pumps which have
+   * failed so far are compiled on the calling thread, and the controller switches to them
+   * atomically at the start of its next cycle. If
+   * several calls are made between two cycles, only the last takes effect. This may be called
+   * from any thread, and waits for a cycle which is running to finish.
+   *
+   * @param characteristics1 The new characteristics, for a boiler with the same number of
+   *                         pumps.
+   * @return the version the characteristics will have once in effect.
+   * @throws IllegalArgumentException if the characteristics are for a different number of
+   *                                  pumps.
+   */
+  public long reconfigure(SteamBoilerCharacteristics characteristics1) {
+    ControlProfile p = ControlProfile.of(characteristics1);
+    if (p.getNumberOfPumps() != this.pumpsCommanded.size()) {
+      throw new IllegalArgumentException("characteristics are for " //$NON-NLS-1$
+          + p.getNumberOfPumps() + " pumps"); //$NON-NLS-1$
+    }
+    PumpSet failed = new PumpSet(this.pumpFailures.size());
+    long stamp = this.lock.readLock();
+    try {
+      failed.copy(this.pumpFailures);
+    } finally {
+      this.lock.unlockRead(stamp);
+    }
+    PumpScheduler s = p.getScheduler(failed);
+    synchronized (this.pending) {
+      long v = ++this.issued;
+      this.pending.set(new Reconfiguration(characteristics1, p, s, v));
+      return v;
+    }
+  }
+
+  /**
+   * Get the characteristics of the boiler in effect. After a reconfiguration, these are the
+   * new characteristics once the controller has switched to them at the start of a cycle. This
+   * may be called from any thread.
+   *
+   * @return the characteristics, or <code>null</code> if the controller was constructed without
+   *         any.
+   */
+  public @Nullable SteamBoilerCharacteristics getCharacteristics() {
+    return this.characteristics;
+  }
+
+  /**
+   * Get the version of the characteristics in effect. This is zero until the first
+   * reconfiguration takes effect, then the value returned by {@link #reconfigure} for the
+   * characteristics most recently applied.
+   *
+   * @return the version.
+   */
+  public long getConfigurationVersion() {
+    return this.version;
+  }
+
+  /**
+   * Switch to the characteristics passed to {@link #reconfigure}, if any are waiting. The pump
+   * table compiled with them is used unless pumps have failed or been repaired since, in which
+   * case the profile's table for the pumps failed now is used instead.
+   */
+  private void applyReconfiguration() {
+    if (this.pending.get() == null) {
+      return;
+    }
+    Reconfiguration r = this.pending.getAndSet(null);
+    if (r != null) {
+      this.characteristics = r.characteristics;
+      this.profile = r.profile;
+      this.scheduler = r.scheduler.excludes(this.pumpFailures) ? r.scheduler
+          : r.profile.getScheduler(this.pumpFailures);
+      this.version = r.version;
+    }
+  }
+
+  /**
+   * Fill in a snapshot of the status of the controller. This may be called from any thread, also
+   * while a cycle is running: the snapshot is first copied without locking, and only copied
+   * again under the lock if a cycle or a restore ran meanwhile, so it always shows the state
+   * between two cycles, never a mix. Unless it has to wait for a cycle, this allocates nothing,
+   * so a monitor can sweep a whole fleet with one snapshot as often as it likes.
+   *
+   * @param status The snapshot filled in, for a boiler with the same number of pumps.
+   * @throws IllegalArgumentException if the snapshot is for a different number of pumps.
+   */
+  public void getStatus(ControllerStatus status) {
+    if (status.getPumps() != this.pumpsCommanded.size()) {
+      throw new IllegalArgumentException("status is for " + status.getPumps() //$NON-NLS-1$
+          + " pumps"); //$NON-NLS-1$
+    }
+    long stamp = this.lock.tryOptimisticRead();
+    copyStatus(status);
+    if (!this.lock.validate(stamp)) {
+      stamp = this.lock.readLock();
+      try {
+        copyStatus(status);
+      } finally {
+        this.lock.unlockRead(stamp);
+      }
+    }
+  }
+
+  /**
+   * Copy the status of the controller into a snapshot, without checking that nothing changed
+   * meanwhile.
+   *
+   * @param status The snapshot filled in, for a boiler with the same number of pumps.
+   */
+  private void copyStatus(ControllerStatus status) {
+    status.mode = this.mode.ordinal();
+    status.flags = (this.degradedSteam ? ControllerStatus.STEAM_FAILED : 0)
+        | (this.levelEstimated ? ControllerStatus.LEVEL_ESTIMATED : 0)
+        | (this.pumpFailures.isEmpty() ? 0 : ControllerStatus.PUMP_FAILED)
+        | (this.pumpControlFailures.isEmpty() ? 0 : ControllerStatus.PUMP_CONTROL_FAILED);
+    status.level = this.level;
+    status.steam = this.steamRate;
+    status.minLevel = this.estimator.getLow();
+    status.maxLevel = this.estimator.getHigh();
+    status.steamLow = this.estimator.getSteamLow();
+    status.steamHigh = this.estimator.getSteamHigh();
+    for (int i = 0; i != status.words(); ++i) {
+      status.commanded[i] = this.pumpsCommanded.word(i);
+      status.open[i] = this.pumpStates.word(i);
+      status.failed[i] = this.pumpFailures.word(i);
+      status.controlFailed[i] = this.pumpControlFailures.word(i);
+    }
+  }
+
+  /**
+   * Measure the latency of every subsequent cycle.
+   *
+   * @param metrics1 Where latencies are recorded, or <code>null</code> to stop measuring.
+   */
+  public void setMetrics(@Nullable ControllerMetrics metrics1) {
+    this.metrics = metrics1;
+  }
+
+  /**
+   * Filter the level and steam readings the pumps are chosen from, so that noise does not cause
+   * pumps to toggle. Only the pump decision sees filtered readings: the level estimate, the
+   * limit checks which stop the boiler and the failure checks all act on the raw readings, so
+   * a genuine change is never delayed by a filter. Filters are only fed once initialisation is
+   * over, and only with readings within the sensor's range. Filter state is not part of a
+   * checkpoint.
+   *
+   * @param level1 Filter for level readings, or <code>null</code> to use them as they are.
+   * @param steam1 Filter for steam readings, or <code>null</code> to use them as they are.
+   */
+  public void setFilters(@Nullable SensorFilter level1, @Nullable SensorFilter steam1) {
+    this.levelFilter = level1;
+    this.steamFilter = steam1;
+  }
+
+  /**
+   * Notify a listener at the end of every subsequent cycle.
+   *
+   * @param listener1 The listener, or <code>null</code> to stop notifying.
+   */
+  public void setCycleListener(@Nullable CycleListener listener1) {
+    this.listener = listener1;
+  }
+
+  /**
+   * Get the number of bytes in a checkpoint of this controller. This only depends on the number
+   * of pumps, so is the same for every cycle.
+   *
+   * @return the size of a checkpoint.
+   */
+  public int getCheckpointSize() {
+    return 4 + 2 + 2 + 1 + 1 + 8 + LevelEstimator.SAVED_SIZE
+        + 4 * 8 * this.pumpsCommanded.words();
+  }
+
+  /**
+   * Write the state the controller carries from one cycle to the next at the position of a
+   * buffer. Taken between two cycles, this is enough for {@link #restore(ByteBuffer)} to resume
+   * operation in another controller for the same boiler as if nothing had happened. The layout
+   * is a header (magic, version, number of pumps), the mode, the steam failure flags, the last
+   * valid steam reading, the level estimate, then the bitmasks of the pumps commanded open,
+   * failed, with failed controllers, and last sent an open command.
+   *
+   * @param buffer The buffer written to, with at least {@link #getCheckpointSize()} bytes
+   *               remaining.
+   */
+  public void checkpoint(ByteBuffer buffer) {
+    buffer.putInt(CHECKPOINT_MAGIC);
+    buffer.putShort(CHECKPOINT_VERSION);
+    buffer.putShort((short) this.pumpsCommanded.size());
+    buffer.put((byte) this.mode.ordinal());
+    buffer.put((byte) ((this.degradedSteam ? DEGRADED_STEAM : 0)
+        | (this.steam1Error ? STEAM1_ERROR : 0)));
+    buffer.putDouble(this.steamRate);
+    this.estimator.save(buffer);
+    putPumps(buffer, this.pumpsCommanded);
+    putPumps(buffer, this.pumpFailures);
+    putPumps(buffer, this.pumpControlFailures);
+    putPumps(buffer, this.stage.getSent());
+  }
+
+  /**
+   * Replace the state of the controller with a checkpoint taken by {@link #checkpoint(ByteBuffer)}
+   * from a controller for a boiler with the same number of pumps. Nothing is changed if the
+   * checkpoint is not valid.
+   *
+   * @param buffer The buffer read from, positioned at the checkpoint.
+   * @throws IllegalArgumentException if the checkpoint is incomplete, has the wrong layout, or
+   *                                  is for a different number of pumps.
+   */
+  public void restore(ByteBuffer buffer) {
+    long stamp = this.lock.writeLock();
+    try {
+      restoreLocked(buffer);
+    } finally {
+      this.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Replace the state of the controller with a checkpoint, while holding the lock.
+   *
+   * @param buffer The buffer read from, positioned at the checkpoint.
+   * @throws IllegalArgumentException if the checkpoint is not valid.
+   */
+  private void restoreLocked(ByteBuffer buffer) {
+    int size = getCheckpointSize();
+    if (buffer.remaining() < size) {
+      throw new IllegalArgumentException("incomplete checkpoint"); //$NON-NLS-1$
+    }
+    int p = buffer.position();
+    if (buffer.getInt(p) != CHECKPOINT_MAGIC || buffer.getShort(p + 4) != CHECKPOINT_VERSION) {
+      throw new IllegalArgumentException("not a checkpoint"); //$NON-NLS-1$
+    }
+    if (buffer.getShort(p + 6) != this.pumpsCommanded.size()) {
+      throw new IllegalArgumentException("checkpoint is for " + buffer.getShort(p + 6) //$NON-NLS-1$
+          + " pumps"); //$NON-NLS-1$
+    }
+    State[] states = State.values();
+    int ordinal = buffer.get(p + 8) & 0xFF;
+    if (ordinal >= states.length) {
+      throw new IllegalArgumentException("unknown mode: " + ordinal); //$NON-NLS-1$
+    }
+    buffer.position(p + 9);
+    this.mode = states[ordinal];
+    int flags = buffer.get();
+    this.degradedSteam = (flags & DEGRADED_STEAM) != 0;
+    this.steam1Error = (flags & STEAM1_ERROR) != 0;
+    this.steamRate = buffer.getDouble();
+    this.estimator.restore(buffer);
+    this.level = Double.NaN;
+    this.levelEstimated = false;
+    getPumps(buffer, this.pumpsCommanded);
+    getPumps(buffer, this.pumpFailures);
+    getPumps(buffer, this.pumpControlFailures);
+    getPumps(buffer, this.stage.getSent());
+  }
+
+  /**
+   * Write the bitmask of a set of pumps at the position of a buffer.
+   *
+   * @param buffer The buffer written to.
+   * @param pumps  The pumps.
+   */
+  private static void putPumps(ByteBuffer buffer, PumpSet pumps) {
+    for (int i = 0; i != pumps.words(); ++i) {
+      buffer.putLong(pumps.word(i));
+    }
+  }
+
+  /**
+   * Replace a set of pumps with a bitmask read from the position of a buffer.
+   *
+   * @param buffer The buffer read from.
+   * @param pumps  The pumps.
+   */
+  private static void getPumps(ByteBuffer buffer, PumpSet pumps) {
+    for (int i = 0; i != pumps.words(); ++i) {
+      pumps.setWord(i, buffer.getLong());
+    }
+  }
+
   /**
  * Process a clock signal which occurs every 5 seconds. This requires reading
  * the set of incoming messages from the physical units and producing a set of
@@ -146,31 +664,71 @@ public class MySteamBoilerController implements SteamBoilerController {
  */
   @Override
  public void clock(@NonNull Mailbox incoming, @NonNull Mailbox outgoing) {
+    long stamp = this.lock.writeLock();
+    try {
+      applyReconfiguration();
+      ControllerMetrics m = this.metrics;
+      if (m == null) {
+        step(incoming, outgoing);
+        this.stage.flush(this.pumpStates, outgoing);
+      } else {
+        State initial = this.mode;
+        long start = System.nanoTime();
+        Arrays.fill(this.phaseNanos, 0);
+        this.phaseStart = start;
+        step(incoming, outgoing);
+        this.stage.flush(this.pumpStates, outgoing);
+        mark(ControllerMetrics.Phase.EMIT);
+        m.recordCycle(initial, this.phaseStart - start, this.phaseNanos);
+      }
+    } finally {
+      this.lock.unlockWrite(stamp);
+    }
+    CycleListener l = this.listener;
+    if (l != null) {
+      l.cycleCompleted(this, incoming, outgoing);
+    }
+  }
+
+  /**
+   * Process one cycle of incoming messages.
+   *
+   * @param incoming The set of incoming messages from the physical units.
+   * @param outgoing Messages generated during the execution of this method
+   */
+  private void step(Mailbox incoming, Mailbox outgoing) {
+    // Decode incoming messages once for the whole cycle
+    DecodedMailbox input = this.decoded;
+    input.decode(incoming);
+    decodePumpStates(input);
+    mark(ControllerMetrics.Phase.DECODE);
     // Extract expected messages
-    Message levelMessage = extractOnlyMatch(MessageKind.LEVEL_v, incoming);
-    Message steamMessage = extractOnlyMatch(MessageKind.STEAM_v, incoming);
-    Message[] pumpStateMessages = extractAllMatches(MessageKind.PUMP_STATE_n_b, incoming);
-    Message[] pumpControlStateMessages = extractAllMatches(MessageKind.PUMP_CONTROL_STATE_n_b, 
-       incoming);
+    Message levelMessage = input.only(MessageKind.LEVEL_v);
+    Message steamMessage = input.only(MessageKind.STEAM_v);
     //
-    if (transmissionFailure(levelMessage, steamMessage, pumpStateMessages, 
-                    pumpControlStateMessages)) {
+    if (transmissionFailure(levelMessage, steamMessage, input.count(MessageKind.PUMP_STATE_n_b),
+                    input.count(MessageKind.PUMP_CONTROL_STATE_n_b))) {
       // Level and steam messages required, so emergency stop.
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
-      this.mode = State.EMERGENCY_STOP;
+      this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+      transition(State.EMERGENCY_STOP);
     }
-    SteamBoilerCharacteristics c = this.configuration;
+    mark(ControllerMetrics.Phase.FAILURE_CHECKS);
+    ControlProfile c = this.profile;
     if (c == null) {
       return;
     }
+    if (this.mode != State.EMERGENCY_STOP) {
+      filterReadings(input, c);
+      estimateLevel(input, c);
+    }
     if (this.mode == State.WAITING) {
-      initialisation(incoming, outgoing);
+      initialisation(input, outgoing);
     } else if (this.mode == State.NORMAL) {
-      normal(incoming, outgoing);
+      normal(input, outgoing);
     } else if (this.mode == State.DEGRADED) {
-      degraded(incoming, outgoing);
+      degraded(input, outgoing);
     } else if (this.mode == State.RESCUE) {
-      rescue(incoming, outgoing);
+      rescue(input, outgoing);
     }
   }
   
@@ -187,52 +745,51 @@ public class MySteamBoilerController implements SteamBoilerController {
  * @param incoming The set of incoming messages from the physical units.
  * @param outgoing Messages generated during the execution of this method
  */
-  public void initialisation(Mailbox incoming, Mailbox outgoing) {
+  public void initialisation(DecodedMailbox incoming, Mailbox outgoing) {
     // Extract expected messages
-    Message steamMessage = extractOnlyMatch(MessageKind.STEAM_v, incoming);
-    SteamBoilerCharacteristics c = this.configuration;
+    Message steamMessage = incoming.only(MessageKind.STEAM_v);
+    ControlProfile c = this.profile;
     if (c == null) {
       return;
     }
-    Message levelMessage = extractOnlyMatch(MessageKind.LEVEL_v, incoming);
+    Message levelMessage = incoming.only(MessageKind.LEVEL_v);
     checkFailuresInitialization(incoming, outgoing);
+    mark(ControllerMetrics.Phase.FAILURE_CHECKS);
     assert steamMessage != null;
     assert levelMessage != null;
-    outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.INITIALISATION));
-    if (extractOnlyMatch(MessageKind.STEAM_BOILER_WAITING, incoming) != null) {
-      double steamValue = steamMessage.getDoubleParameter();
+    this.stage.mode(Mailbox.Mode.INITIALISATION);
+    if (incoming.only(MessageKind.STEAM_BOILER_WAITING) != null) {
+      double steamValue = incoming.value(MessageKind.STEAM_v);
       //Checks if the steam level is zero. And if not goes into emergency stop.
       if (steamValue != 0.00) {
-        this.mode = State.EMERGENCY_STOP;
-        outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+        transition(State.EMERGENCY_STOP);
+        this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
       } 
       if (getWaterLevel(incoming) < 0 || c.getCapacity() < getWaterLevel(incoming)) {
-        this.mode = State.EMERGENCY_STOP;
-        outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
-        outgoing.send(new Message(MessageKind.STEAM_FAILURE_DETECTION));
+        transition(State.EMERGENCY_STOP);
+        this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+        outgoing.send(MessageCache.signal(MessageKind.STEAM_FAILURE_DETECTION));
       }
       if (getWaterLevel(incoming) > c.getMaximalNormalLevel()) {
-        outgoing.send(new Message(MessageKind.VALVE));
+        outgoing.send(MessageCache.signal(MessageKind.VALVE));
       }
       if (getWaterLevel(incoming) < c.getMinimalNormalLevel()) {
-        outgoing.send(new Message(MessageKind.OPEN_PUMP_n, 0));
-        this.pump1 = true;
-        outgoing.send(new Message(MessageKind.OPEN_PUMP_n, 1));
-        this.pump2 = true;
+        openPump(0);
+        openPump(1);
       }
-      if (extractOnlyMatch(MessageKind.LEVEL_FAILURE_ACKNOWLEDGEMENT, incoming) != null) {
-        this.mode = State.EMERGENCY_STOP;
-        outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+      if (incoming.only(MessageKind.LEVEL_FAILURE_ACKNOWLEDGEMENT) != null) {
+        transition(State.EMERGENCY_STOP);
+        this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
       }
       if (getWaterLevel(incoming) > c.getMinimalNormalLevel() 
               &&  getWaterLevel(incoming) < c.getMaximalNormalLevel()) {
-        outgoing.send(new Message(MessageKind.PROGRAM_READY));
+        outgoing.send(MessageCache.signal(MessageKind.PROGRAM_READY));
       }
     }  
-    Message physicalUnits = extractOnlyMatch(MessageKind.PHYSICAL_UNITS_READY, incoming);
+    Message physicalUnits = incoming.only(MessageKind.PHYSICAL_UNITS_READY);
     if (physicalUnits != null) {
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
-      this.mode = State.NORMAL;
+      this.stage.mode(Mailbox.Mode.NORMAL);
+      transition(State.NORMAL);
     }
   } 
   
@@ -243,49 +800,43 @@ public class MySteamBoilerController implements SteamBoilerController {
    * @param incoming The set of incoming messages from the physical units.
    * @param outgoing outgoing Messages generated during the execution of this method
    */
-  public void checkFailuresInitialization(Mailbox incoming, Mailbox outgoing) {
-    Message steamMessage = extractOnlyMatch(MessageKind.STEAM_v, incoming);
-    SteamBoilerCharacteristics c = this.configuration;
+  public void checkFailuresInitialization(DecodedMailbox incoming, Mailbox outgoing) {
+    Message steamMessage = incoming.only(MessageKind.STEAM_v);
+    ControlProfile c = this.profile;
     if (c == null) {
       return;
     }
     assert steamMessage != null;
     if (getWaterLevel(incoming) == -1 || c.getCapacity() < getWaterLevel(incoming)) {
-      this.mode = State.EMERGENCY_STOP;
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
-      outgoing.send(new Message(MessageKind.LEVEL_FAILURE_DETECTION));
-    }
-    Message[] pumpStateMessages = extractAllMatches(MessageKind.PUMP_STATE_n_b, incoming);
-    Message[] pumpControlStateMessages = extractAllMatches(MessageKind.PUMP_CONTROL_STATE_n_b, 
-      incoming);
-    if (((pumpStateMessages[0].getBooleanParameter() == true) 
-            && (pumpControlStateMessages[0].getBooleanParameter() == true)) 
+      transition(State.EMERGENCY_STOP);
+      this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+      outgoing.send(MessageCache.signal(MessageKind.LEVEL_FAILURE_DETECTION));
+    }
+    if ((this.pumpStates.get(0) && this.pumpControlStates.get(0)) 
              && getWaterLevel(incoming) == 0) {
-      this.mode = State.EMERGENCY_STOP;
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
-      outgoing.send(new Message(MessageKind.LEVEL_FAILURE_DETECTION));
+      transition(State.EMERGENCY_STOP);
+      this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+      outgoing.send(MessageCache.signal(MessageKind.LEVEL_FAILURE_DETECTION));
     }
-    if (((pumpStateMessages[0].getBooleanParameter() == false) 
-            && (pumpControlStateMessages[0].getBooleanParameter() == false)) 
+    if ((!this.pumpStates.get(0) && !this.pumpControlStates.get(0)) 
              && getWaterLevel(incoming) == 100) {
-      this.mode = State.EMERGENCY_STOP;
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
-      outgoing.send(new Message(MessageKind.LEVEL_FAILURE_DETECTION));
-    }
-    for (int i = 0; i <= pumpStateMessages.length - 1; i++) {
-      if ((pumpStateMessages[i].getBooleanParameter()) 
-            != (pumpControlStateMessages[i].getBooleanParameter()))  {
-        this.mode = State.DEGRADED;
-        outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-        outgoing.send(new Message(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n, i));
-      } 
+      transition(State.EMERGENCY_STOP);
+      this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+      outgoing.send(MessageCache.signal(MessageKind.LEVEL_FAILURE_DETECTION));
+    }
+    this.mismatches.xor(this.pumpStates, this.pumpControlStates);
+    for (int i = this.mismatches.next(0); i >= 0; i = this.mismatches.next(i + 1)) {
+      transition(State.DEGRADED);
+      this.pumpControlFailures.set(i, true);
+      this.stage.mode(Mailbox.Mode.DEGRADED);
+      outgoing.send(this.messages.pump(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n, i));
     }
-    if (steamMessage.getDoubleParameter() == -1 
-                || c.getMaximualSteamRate() < steamMessage.getDoubleParameter()) {
-      this.mode = State.DEGRADED;
+    if (incoming.value(MessageKind.STEAM_v) == -1 
+                || c.getMaximalSteamRate() < incoming.value(MessageKind.STEAM_v)) {
+      transition(State.DEGRADED);
       this.degradedSteam = true;
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-      outgoing.send(new Message(MessageKind.STEAM_FAILURE_DETECTION));
+      this.stage.mode(Mailbox.Mode.DEGRADED);
+      outgoing.send(MessageCache.signal(MessageKind.STEAM_FAILURE_DETECTION));
     }
   }
   
@@ -296,14 +847,12 @@ public class MySteamBoilerController implements SteamBoilerController {
  * 
  * @return the double value of the water level.
  */
-  public double getWaterLevel(Mailbox incoming) {
-    Message levelMessage = extractOnlyMatch(MessageKind.LEVEL_v, incoming);
-    assert levelMessage != null;
-    SteamBoilerCharacteristics c = this.configuration;
+  public double getWaterLevel(DecodedMailbox incoming) {
+    ControlProfile c = this.profile;
     if (c == null) {
       return 0;
     }
-    double waterValue = levelMessage.getDoubleParameter();
+    double waterValue = incoming.value(MessageKind.LEVEL_v);
     return waterValue;
   }
   
@@ -322,87 +871,65 @@ public class MySteamBoilerController implements SteamBoilerController {
    * @param incoming The set of incoming messages from the physical units.
    * @param outgoing Messages generated during the execution of this method
    */
-  public void normal(Mailbox incoming, Mailbox outgoing) {
+  public void normal(DecodedMailbox incoming, Mailbox outgoing) {
     // Extract expected messages
-    Message steamMessage = extractOnlyMatch(MessageKind.STEAM_v, incoming);
+    Message steamMessage = incoming.only(MessageKind.STEAM_v);
     assert steamMessage != null;
-    SteamBoilerCharacteristics c = this.configuration;
+    ControlProfile c = this.profile;
     if (c == null) {
       return;
     }
-    Message levelMessage = extractOnlyMatch(MessageKind.LEVEL_v, incoming);
-    outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
+    Message levelMessage = incoming.only(MessageKind.LEVEL_v);
+    this.stage.mode(Mailbox.Mode.NORMAL);
     assert levelMessage != null;
-    if (getMin(incoming, outgoing) <= c.getMinimalLimitLevel() 
-          ||  getMax(incoming, outgoing) >= c.getMaximalLimitLevel()) {
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
-      this.mode = State.EMERGENCY_STOP;
+    // A unit may be reported repaired before its failure was ever detected
+    checkPumpRepairs(incoming, outgoing);
+    if (!levelFailure(incoming, c) && (getMin(incoming, outgoing) <= c.getMinimalLimitLevel() 
+          ||  getMax(incoming, outgoing) >= c.getMaximalLimitLevel())) {
+      this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+      transition(State.EMERGENCY_STOP);
     }
+    mark(ControllerMetrics.Phase.FAILURE_CHECKS);
     openPumps(incoming, outgoing);
+    mark(ControllerMetrics.Phase.PUMP_DECISION);
     checkFailures(incoming, outgoing);  
+    mark(ControllerMetrics.Phase.FAILURE_CHECKS);
   }
   
   /**
- * Method that opens and closes a specific amount of pumps to maintain the water in a normal level.
- *
- * @param incoming The set of incoming messages from the physical units.
- * @param outgoing messages being called on.
- */
-  public void openPumps(Mailbox incoming, Mailbox outgoing) {
-    this.pump1 = false;
-    SteamBoilerCharacteristics c = this.configuration;
+   * Method that opens and closes pumps to bring the water level back to the middle of the
+   * normal band by the next cycle. The inflow needed is the water the estimated level is
+   * missing from the middle of the band spread over one cycle, plus the water leaving as
+   * steam. Of every combination of the pumps which have not failed, the one whose inflow is
+   * nearest to that is opened, and all other pumps are closed.
+   *
+   * @param incoming The set of incoming messages from the physical units.
+   * @param outgoing messages being called on.
+   */
+  public void openPumps(DecodedMailbox incoming, Mailbox outgoing) {
+    ControlProfile c = this.profile;
     if (c == null) {
       return;
     }
-    double midpoint = ((c.getMaximalNormalLevel() + c.getMinimalNormalLevel()) / 2);
-    double upperMid = ((midpoint + c.getMaximalNormalLevel()) / 2);
-    double lowerMid = ((midpoint + c.getMinimalNormalLevel()) / 2);
-   
-    if (getMax(incoming, outgoing) <= c.getMaximalNormalLevel() 
-        && getMax(incoming, outgoing) >= upperMid) {
-      outgoing.send(new Message(MessageKind.CLOSE_PUMP_n, 2));
-      this.pump3 = false;
-      outgoing.send(new Message(MessageKind.CLOSE_PUMP_n, 1));
-      this.pump2 = false;
-    }
-    
-    if (getMax(incoming, outgoing) >= midpoint && getMax(incoming, outgoing) <= upperMid) {
-      outgoing.send(new Message(MessageKind.CLOSE_PUMP_n, 2));
-      this.pump3 = false;
-    }
-   
-    if (this.pump1 == false) {
-      if (getMin(incoming, outgoing) <= midpoint && getMin(incoming, outgoing) >= lowerMid) {
-        this.pump1 = true;
-        this.pumpIsOpen = true;
-        outgoing.send(new Message(MessageKind.OPEN_PUMP_n, 0));
-      }
+    Message steamMessage = incoming.only(MessageKind.STEAM_v);
+    assert steamMessage != null;
+    if (!steamFailure(incoming, c)) {
+      this.steamRate = this.filteredSteam;
     }
-    
-    if (getMin(incoming, outgoing) >= c.getMinimalNormalLevel() 
-        && getMin(incoming, outgoing) <= lowerMid) {
-      outgoing.send(new Message(MessageKind.OPEN_PUMP_n, 2));
-      this.pump3 = true;
-      outgoing.send(new Message(MessageKind.OPEN_PUMP_n, 1));
-      this.pump2 = true;
-    }
-    if (getMax(incoming, outgoing) >= c.getMaximalNormalLevel()) {
-      outgoing.send(new Message(MessageKind.CLOSE_PUMP_n, 0));
-      this.pump1 = false;
-      outgoing.send(new Message(MessageKind.CLOSE_PUMP_n, 1));
-      this.pump2 = false;
-      outgoing.send(new Message(MessageKind.CLOSE_PUMP_n, 2));
-      this.pump3 = false;
+    PumpScheduler s = this.scheduler;
+    if (!s.excludes(this.pumpFailures)) {
+      s = c.getScheduler(this.pumpFailures);
+      this.scheduler = s;
     }
-      
-    if (getMin(incoming, outgoing) <= c.getMinimalNormalLevel()) {
-      outgoing.send(new Message(MessageKind.OPEN_PUMP_n, 0));
-      this.pump1 = true;
-      this.pumpIsOpen = false;
-      outgoing.send(new Message(MessageKind.OPEN_PUMP_n, 1));
-      this.pump2 = true;
-      outgoing.send(new Message(MessageKind.OPEN_PUMP_n, 2));
-      this.pump3 = true;
+    double level1 = this.levelEstimated ? this.estimator.getMidpoint() : this.filteredLevel;
+    double wanted = (c.getMidpoint() - level1) / ControlProfile.CYCLE_SECONDS + this.steamRate;
+    s.choose(wanted, this.chosen);
+    for (int i = 0; i != this.chosen.size(); ++i) {
+      if (this.chosen.get(i)) {
+        openPump(i);
+      } else {
+        closePump(i);
+      }
     }
   }
   
@@ -413,52 +940,49 @@ public class MySteamBoilerController implements SteamBoilerController {
  * @param incoming The set of incoming messages from the physical units.
  * @param outgoing outgoing Messages generated during the execution of this method
  */
-  public void checkFailures(Mailbox incoming, Mailbox outgoing) {
-    Message[] pumpStateMessages = extractAllMatches(MessageKind.PUMP_STATE_n_b, incoming);
-    Message[] pumpControlStateMessages = extractAllMatches(MessageKind.PUMP_CONTROL_STATE_n_b, 
-       incoming);
-    SteamBoilerCharacteristics c = this.configuration;
+  public void checkFailures(DecodedMailbox incoming, Mailbox outgoing) {
+    ControlProfile c = this.profile;
     if (c == null) {
       return;
     }
-    if (this.pump1 == true && (pumpStateMessages[0].getBooleanParameter() == false) 
-        && this.pumpIsOpen == false && this.degradedSteam == false) { 
-      this.mode = State.DEGRADED;
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-      outgoing.send(new Message(MessageKind.PUMP_FAILURE_DETECTION_n, 0));
-    }
-    for (int i = 0; i <= pumpStateMessages.length - 1; i++) {
-      if ((pumpStateMessages[i].getBooleanParameter()) 
-            != (pumpControlStateMessages[i].getBooleanParameter()))  {
-        this.mode = State.DEGRADED;
-        outgoing.send(new Message(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n, i));
-        outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-      }    
-    }
-    Message levelMessage = extractOnlyMatch(MessageKind.LEVEL_v, incoming);
-    Message steamMessage = extractOnlyMatch(MessageKind.STEAM_v, incoming);
+    checkPumpFailures(outgoing);
+    this.mismatches.xor(this.pumpStates, this.pumpControlStates);
+    this.mismatches.andNot(this.repaired);
+    for (int i = this.mismatches.next(0); i >= 0; i = this.mismatches.next(i + 1)) {
+      transition(State.DEGRADED);
+      this.pumpControlFailures.set(i, true);
+      outgoing.send(this.messages.pump(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n, i));
+      this.stage.mode(Mailbox.Mode.DEGRADED);
+    }
+    Message levelMessage = incoming.only(MessageKind.LEVEL_v);
+    Message steamMessage = incoming.only(MessageKind.STEAM_v);
     assert steamMessage != null;
     assert levelMessage != null;
     
-    if (steamMessage.getDoubleParameter() == -1 
-        || c.getMaximualSteamRate() < steamMessage.getDoubleParameter()) {
-      this.mode = State.DEGRADED;
+    if (incoming.value(MessageKind.STEAM_v) == -1 
+        || c.getMaximalSteamRate() < incoming.value(MessageKind.STEAM_v)) {
+      transition(State.DEGRADED);
       this.degradedSteam = true;
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-      outgoing.send(new Message(MessageKind.STEAM_FAILURE_DETECTION));
+      this.stage.mode(Mailbox.Mode.DEGRADED);
+      outgoing.send(MessageCache.signal(MessageKind.STEAM_FAILURE_DETECTION));
       this.steam1Error = true;
     }
-    if (steamMessage.getDoubleParameter() == 0 && this.pump2 == true) {
-      this.mode = State.DEGRADED;
+    if (incoming.value(MessageKind.STEAM_v) == 0 && this.pumpsCommanded.get(1)) {
+      transition(State.DEGRADED);
       this.degradedSteam = true;
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-      outgoing.send(new Message(MessageKind.STEAM_FAILURE_DETECTION));
-    }
-    if (getWaterLevel(incoming) == -1 
-         || c.getMaximalLimitLevel() < getWaterLevel(incoming)) {
-      this.mode = State.RESCUE;
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.RESCUE));
-      outgoing.send(new Message(MessageKind.LEVEL_FAILURE_DETECTION));
+      this.stage.mode(Mailbox.Mode.DEGRADED);
+      outgoing.send(MessageCache.signal(MessageKind.STEAM_FAILURE_DETECTION));
+    }
+    if (levelFailure(incoming, c)) {
+      outgoing.send(MessageCache.signal(MessageKind.LEVEL_FAILURE_DETECTION));
+      if (this.degradedSteam || steamFailure(incoming, c)) {
+        // Without either sensor the water level cannot be estimated
+        transition(State.EMERGENCY_STOP);
+        this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+      } else {
+        transition(State.RESCUE);
+        this.stage.mode(Mailbox.Mode.RESCUE);
+      }
     }  
   }
   
@@ -469,16 +993,19 @@ public class MySteamBoilerController implements SteamBoilerController {
    * @param outgoing Messages generated during the execution of this method
    * @return the min estimate.
    */
-  public double getMin(Mailbox incoming, Mailbox outgoing) {
-    SteamBoilerCharacteristics c = this.configuration;
+  public double getMin(DecodedMailbox incoming, Mailbox outgoing) {
+    ControlProfile c = this.profile;
     if (c == null) {
       return 0;
     }
-    double pumpCap = c.getPumpCapacity(0);
-    double steamRate = c.getMaximualSteamRate();
-    Message steamMessage = extractOnlyMatch(MessageKind.STEAM_v, incoming);
+    Message steamMessage = incoming.only(MessageKind.STEAM_v);
     assert steamMessage != null;
-    double min = getWaterLevel(incoming) + (5 * pumpCap * pumpsOpen()) - (5 * steamRate);
+    // Only count pumps which were both commanded and seen open
+    this.flowing.copy(this.pumpsCommanded);
+    this.flowing.and(this.pumpStates);
+    double min = this.estimator.getLow()
+        + (ControlProfile.CYCLE_SECONDS * this.scheduler.inflow(this.flowing))
+        - c.getSteamOutflowPerCycle();
     return min;
       
   }
@@ -490,16 +1017,19 @@ public class MySteamBoilerController implements SteamBoilerController {
    * @param outgoing Messages generated during the execution of this method
    * @return the max estimate.
    */
-  public double getMax(Mailbox incoming, Mailbox outgoing) {
-    SteamBoilerCharacteristics c = this.configuration;
+  public double getMax(DecodedMailbox incoming, Mailbox outgoing) {
+    ControlProfile c = this.profile;
     if (c == null) {
       return 0;
     }
-    double pumpCap = c.getPumpCapacity(0);
-    Message steamMessage = extractOnlyMatch(MessageKind.STEAM_v, incoming);
+    Message steamMessage = incoming.only(MessageKind.STEAM_v);
     assert steamMessage != null;
-    double max = getWaterLevel(incoming) + (5 * pumpCap * pumpsOpen()) 
-           -  (5 * steamMessage.getDoubleParameter());
+    // Count pumps which were either commanded or seen open
+    this.flowing.copy(this.pumpsCommanded);
+    this.flowing.or(this.pumpStates);
+    double max = this.estimator.getHigh()
+        + (ControlProfile.CYCLE_SECONDS * this.scheduler.inflow(this.flowing))
+        - (ControlProfile.CYCLE_SECONDS * incoming.value(MessageKind.STEAM_v));
     return max;
   }
   
@@ -509,26 +1039,7 @@ public class MySteamBoilerController implements SteamBoilerController {
  * @return the number of pumps open.
  */
   public int pumpsOpen() {
-    int pumps = 0;
-    if (this.pump1 != false) {
-      pumps++;
-    }
-    if (this.pump2 != false) {
-      pumps++;
-    }
-    if (this.pump3 != false) {
-      pumps++;
-    }
-    if (this.pump4 != false) {
-      pumps++;
-    }
-    if (this.pump5 != false) {
-      pumps++;
-    }
-    if (this.pump6 != false) {
-      pumps++;
-    }
-    return pumps;
+    return this.pumpsCommanded.cardinality();
   }
   
   /**
@@ -540,79 +1051,295 @@ public class MySteamBoilerController implements SteamBoilerController {
    * @param incoming The set of incoming messages from the physical units.
    * @param outgoing Messages generated during the execution of this method
    */
-  public void degraded(Mailbox incoming, Mailbox outgoing) {
-    Message steamMessage = extractOnlyMatch(MessageKind.STEAM_v, incoming);
-    Message[] pumpControlStateMessages = extractAllMatches(MessageKind.PUMP_CONTROL_STATE_n_b, 
-       incoming);
-    SteamBoilerCharacteristics c = this.configuration;
+  public void degraded(DecodedMailbox incoming, Mailbox outgoing) {
+    Message steamMessage = incoming.only(MessageKind.STEAM_v);
+    ControlProfile c = this.profile;
     if (c == null) {
       return;
     }
-    Message[] pumpStateMessages = extractAllMatches(MessageKind.PUMP_STATE_n_b, incoming);
+    this.stage.mode(Mailbox.Mode.DEGRADED);
+    checkPumpRepairs(incoming, outgoing);
     openPumps(incoming, outgoing);
+    mark(ControllerMetrics.Phase.PUMP_DECISION);
+    checkPumpFailures(outgoing);
     assert steamMessage != null;
-    if ((extractOnlyMatch(MessageKind.PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n, incoming) != null)) {
-      for (int i = 0; i <= pumpStateMessages.length - 1; i++) {
-        if ((pumpStateMessages[i].getBooleanParameter()) 
-                == (pumpControlStateMessages[i].getBooleanParameter()))  {
-          this.mode = State.NORMAL;
-          outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
-          outgoing.send(new Message(MessageKind.PUMP_CONTROL_REPAIRED_n, i));
-        } 
-      }
+    // The steam sensor is only used again once the physical units report it repaired
+    if (incoming.contains(MessageKind.STEAM_REPAIRED)) {
+      outgoing.send(MessageCache.signal(MessageKind.STEAM_REPAIRED_ACKNOWLEDGEMENT));
+      this.degradedSteam = false;
+      this.steam1Error = false;
     }
-    if ((extractOnlyMatch(MessageKind.PUMP_FAILURE_ACKNOWLEDGEMENT_n, incoming) != null)) {
-      if ((pumpStateMessages[0].getBooleanParameter()) 
-              == this.pump1)  {
-        this.mode = State.NORMAL;
-        outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
-        outgoing.send(new Message(MessageKind.PUMP_REPAIRED_n, 0));
-      } 
-    }
-    if ((extractOnlyMatch(MessageKind.STEAM_OUTCOME_FAILURE_ACKNOWLEDGEMENT, incoming) != null)) {
-      if (this.steam1Error == true && (steamMessage.getDoubleParameter() != -1 
-              || c.getMaximualSteamRate() > steamMessage.getDoubleParameter())) {
-        this.mode = State.NORMAL;
-        outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
-        outgoing.send(new Message(MessageKind.STEAM_REPAIRED));
-      }
+    if (this.pumpFailures.isEmpty() && this.pumpControlFailures.isEmpty()
+        && !this.degradedSteam) {
+      // Every unit which was defective has been repaired
+      transition(State.NORMAL);
+      this.stage.mode(Mailbox.Mode.NORMAL);
     }
-    if ((extractOnlyMatch(MessageKind.STEAM_OUTCOME_FAILURE_ACKNOWLEDGEMENT, incoming) != null)) {
-      if (this.steam1Error == false && (steamMessage.getDoubleParameter() > 0)) {
-        this.mode = State.NORMAL;
-        outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
-        outgoing.send(new Message(MessageKind.STEAM_REPAIRED));
+    if (levelFailure(incoming, c)) {
+      outgoing.send(MessageCache.signal(MessageKind.LEVEL_FAILURE_DETECTION));
+      if (this.degradedSteam || steamFailure(incoming, c)) {
+        // Without either sensor the water level cannot be estimated
+        transition(State.EMERGENCY_STOP);
+        this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+      } else {
+        transition(State.RESCUE);
+        this.stage.mode(Mailbox.Mode.RESCUE);
       }
-    }
-    if (getWaterLevel(incoming) == -1 
-            || c.getMaximalLimitLevel() < getWaterLevel(incoming)) {
-      this.mode = State.RESCUE;
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.RESCUE));
-      outgoing.send(new Message(MessageKind.LEVEL_FAILURE_DETECTION));
     } 
-    if (getMin(incoming, outgoing) <= c.getMinimalLimitLevel() 
-            ||  getMax(incoming, outgoing) >= c.getMaximalLimitLevel()) {
-      outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
-      this.mode = State.EMERGENCY_STOP;
+    if (!levelFailure(incoming, c) && (getMin(incoming, outgoing) <= c.getMinimalLimitLevel() 
+            ||  getMax(incoming, outgoing) >= c.getMaximalLimitLevel())) {
+      this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+      transition(State.EMERGENCY_STOP);
     } 
+    mark(ControllerMetrics.Phase.FAILURE_CHECKS);
   }
   
   /**
    * Mode in which the program tries to maintain a satisfactory water level despite
    * of the failure of the water measuring unit.
+   * The level is estimated from the previous estimate, the pumps seen open and the steam
+   * reading, and pumps are opened and closed according to that estimate.
    * As soon as the water measuring unit is repaired, the program returns to the mode
    * degraded, or normal.
    *
    * @param incoming The set of incoming messages from the physical units.
    * @param outgoing Messages generated during the execution of this method
    */
-  public void rescue(Mailbox incoming, Mailbox outgoing) {
-    SteamBoilerCharacteristics c = this.configuration;
+  public void rescue(DecodedMailbox incoming, Mailbox outgoing) {
+    Message steamMessage = incoming.only(MessageKind.STEAM_v);
+    ControlProfile c = this.profile;
     if (c == null) {
       return;
-    }       
+    }
+    assert steamMessage != null;
+    this.stage.mode(Mailbox.Mode.RESCUE);
+    checkPumpRepairs(incoming, outgoing);
+    if (steamFailure(incoming, c)) {
+      // Without either sensor the water level cannot be estimated
+      outgoing.send(MessageCache.signal(MessageKind.STEAM_FAILURE_DETECTION));
+      transition(State.EMERGENCY_STOP);
+      this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+    }
+    if (incoming.contains(MessageKind.LEVEL_REPAIRED)) {
+      outgoing.send(MessageCache.signal(MessageKind.LEVEL_REPAIRED_ACKNOWLEDGEMENT));
+      if (this.pumpFailures.isEmpty() && this.pumpControlFailures.isEmpty()
+          && !this.degradedSteam) {
+        transition(State.NORMAL);
+        this.stage.mode(Mailbox.Mode.NORMAL);
+      } else {
+        transition(State.DEGRADED);
+        this.stage.mode(Mailbox.Mode.DEGRADED);
+      }
+    }
+    if (getMin(incoming, outgoing) <= c.getMinimalLimitLevel()
+        || getMax(incoming, outgoing) >= c.getMaximalLimitLevel()) {
+      this.stage.mode(Mailbox.Mode.EMERGENCY_STOP);
+      transition(State.EMERGENCY_STOP);
+    }
+    mark(ControllerMetrics.Phase.FAILURE_CHECKS);
+    openPumps(incoming, outgoing);
+    mark(ControllerMetrics.Phase.PUMP_DECISION);
   }
   
+  /**
+   * Bring the estimate of the water level up to date. A valid reading is taken as is; otherwise
+   * the previous estimate is moved on by the water which the pumps seen open in this cycle, and
+   * the steam, could have moved since the previous cycle.
+   *
+   * @param incoming The set of incoming messages from the physical units.
+   * @param c The profile of the boiler.
+   */
+  private void estimateLevel(DecodedMailbox incoming, ControlProfile c) {
+    Message steamMessage = incoming.only(MessageKind.STEAM_v);
+    assert steamMessage != null;
+    double steamLow = 0;
+    double steamHigh = c.getMaximalSteamRate();
+    if (!steamFailure(incoming, c)) {
+      steamLow = incoming.value(MessageKind.STEAM_v);
+      steamHigh = steamLow;
+    }
+    if (!levelFailure(incoming, c)) {
+      this.level = getWaterLevel(incoming);
+      this.levelEstimated = false;
+      this.estimator.reset(this.level, steamLow, steamHigh);
+      return;
+    }
+    this.levelEstimated = true;
+    this.flowing.copy(this.pumpsCommanded);
+    this.flowing.and(this.pumpStates);
+    double minInflow = this.scheduler.inflow(this.flowing);
+    this.flowing.copy(this.pumpsCommanded);
+    this.flowing.or(this.pumpStates);
+    double maxInflow = this.scheduler.inflow(this.flowing);
+    this.estimator.advance(minInflow, maxInflow, steamLow, steamHigh, c.getCapacity());
+  }
+
+  /**
+   * Work out the level and steam readings of the current cycle which the pumps are chosen from.
+   * A reading is filtered if a filter is set, initialisation is over and the reading is within
+   * the range of its sensor; otherwise it is taken as it is. The readings in the mailbox are
+   * left alone, so every other check sees them raw.
+   *
+   * @param incoming The set of incoming messages from the physical units.
+   * @param c The profile of the boiler.
+   */
+  private void filterReadings(DecodedMailbox incoming, ControlProfile c) {
+    boolean feed = this.mode != State.WAITING;
+    double level1 = incoming.value(MessageKind.LEVEL_v);
+    SensorFilter f = this.levelFilter;
+    if (feed && f != null && level1 >= 0 && level1 <= c.getCapacity()) {
+      level1 = f.apply(level1);
+    }
+    this.filteredLevel = level1;
+    double steam = incoming.value(MessageKind.STEAM_v);
+    f = this.steamFilter;
+    if (feed && f != null && steam >= 0 && steam <= c.getMaximalSteamRate()) {
+      steam = f.apply(steam);
+    }
+    this.filteredSteam = steam;
+  }
+
+  /**
+   * Detect pumps which have failed. A pump has failed if it is not in the state it was last
+   * commanded to be in, while its controller agrees with the pump (otherwise it is the
+   * controller which has failed). Failed pumps are no longer used until repaired.
+   *
+   * @param outgoing Messages generated during the execution of this method
+   */
+  private void checkPumpFailures(Mailbox outgoing) {
+    this.suspects.xor(this.stage.getSent(), this.pumpStates);
+    this.mismatches.xor(this.pumpStates, this.pumpControlStates);
+    this.suspects.andNot(this.mismatches);
+    this.suspects.andNot(this.pumpFailures);
+    this.suspects.andNot(this.repaired);
+    for (int i = this.suspects.next(0); i >= 0; i = this.suspects.next(i + 1)) {
+      transition(State.DEGRADED);
+      this.pumpFailures.set(i, true);
+      this.stage.mode(Mailbox.Mode.DEGRADED);
+      outgoing.send(this.messages.pump(MessageKind.PUMP_FAILURE_DETECTION_n, i));
+    }
+  }
+
+  /**
+   * Acknowledge the pumps and pump controllers which the physical units report repaired, so
+   * that they are used again. A failure acknowledgement, on the other hand, changes nothing.
+   *
+   * @param incoming The set of incoming messages from the physical units.
+   * @param outgoing Messages generated during the execution of this method
+   */
+  private void checkPumpRepairs(DecodedMailbox incoming, Mailbox outgoing) {
+    this.repaired.clear();
+    for (int i = 0; i != incoming.count(MessageKind.PUMP_REPAIRED_n); ++i) {
+      int pump = incoming.get(MessageKind.PUMP_REPAIRED_n, i).getIntegerParameter();
+      if (pump >= 0 && pump < this.pumpFailures.size()) {
+        this.pumpFailures.set(pump, false);
+        this.repaired.set(pump, true);
+        outgoing.send(this.messages.pump(MessageKind.PUMP_REPAIRED_ACKNOWLEDGEMENT_n, pump));
+      }
+    }
+    for (int i = 0; i != incoming.count(MessageKind.PUMP_CONTROL_REPAIRED_n); ++i) {
+      int pump = incoming.get(MessageKind.PUMP_CONTROL_REPAIRED_n, i).getIntegerParameter();
+      if (pump >= 0 && pump < this.pumpControlFailures.size()) {
+        this.pumpControlFailures.set(pump, false);
+        this.repaired.set(pump, true);
+        outgoing.send(
+            this.messages.pump(MessageKind.PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n, pump));
+      }
+    }
+  }
+
+  /**
+   * Attribute the time elapsed since the previous mark to a given phase of the
+   * current cycle. This does nothing unless latencies are being measured.
+   *
+   * @param phase The phase which has just completed.
+   */
+  private void mark(ControllerMetrics.Phase phase) {
+    if (this.metrics != null) {
+      long now = System.nanoTime();
+      this.phaseNanos[phase.ordinal()] += now - this.phaseStart;
+      this.phaseStart = now;
+    }
+  }
+
+  /**
+   * Change the mode of the controller. Once in emergency stop the controller stays there.
+   *
+   * @param next The new mode.
+   */
+  private void transition(State next) {
+    if (this.mode != State.EMERGENCY_STOP) {
+      this.mode = next;
+    }
+  }
+
+  /**
+   * Command a pump to open. Pumps which the boiler does not have are ignored.
+   *
+   * @param pump The pump number.
+   */
+  private void openPump(int pump) {
+    if (pump < this.pumpsCommanded.size()) {
+      this.stage.pump(pump, true);
+      this.pumpsCommanded.set(pump, true);
+    }
+  }
+
+  /**
+   * Command a pump to close. Pumps which the boiler does not have are ignored.
+   *
+   * @param pump The pump number.
+   */
+  private void closePump(int pump) {
+    if (pump < this.pumpsCommanded.size()) {
+      this.stage.pump(pump, false);
+      this.pumpsCommanded.set(pump, false);
+    }
+  }
+
+  /**
+   * Check whether the level reading of the current cycle is nonsensical, in which case
+   * estimates based on it cannot be trusted.
+   *
+   * @param incoming The set of incoming messages from the physical units.
+   * @param c The profile of the boiler.
+   * @return true if the level measuring unit has failed.
+   */
+  private boolean levelFailure(DecodedMailbox incoming, ControlProfile c) {
+    return getWaterLevel(incoming) == -1 || c.getMaximalLimitLevel() < getWaterLevel(incoming);
+  }
+
+  /**
+   * Check whether the steam reading of the current cycle is nonsensical.
+   *
+   * @param incoming The set of incoming messages from the physical units.
+   * @param c The profile of the boiler.
+   * @return true if the steam measuring unit has failed.
+   */
+  private static boolean steamFailure(DecodedMailbox incoming, ControlProfile c) {
+    double steam = incoming.value(MessageKind.STEAM_v);
+    return steam == -1 || c.getMaximalSteamRate() < steam;
+  }
+
+  /**
+   * Record the pump and pump controller states reported in the current cycle.
+   * Each PUMP_STATE_n_b and PUMP_CONTROL_STATE_n_b message sets the bit of pump n.
+   *
+   * @param incoming The set of incoming messages from the physical units.
+   */
+  private void decodePumpStates(DecodedMailbox incoming) {
+    this.pumpStates.clear();
+    for (int i = 0; i != incoming.count(MessageKind.PUMP_STATE_n_b); ++i) {
+      Message m = incoming.get(MessageKind.PUMP_STATE_n_b, i);
+      this.pumpStates.set(m.getIntegerParameter(), m.getBooleanParameter());
+    }
+    this.pumpControlStates.clear();
+    for (int i = 0; i != incoming.count(MessageKind.PUMP_CONTROL_STATE_n_b); ++i) {
+      Message m = incoming.get(MessageKind.PUMP_CONTROL_STATE_n_b, i);
+      this.pumpControlStates.set(m.getIntegerParameter(), m.getBooleanParameter());
+    }
+  }
+
   /**
  * Check whether there was a transmission failure. This is indicated in several
  * ways. Firstly, when one of the required messages is missing. Secondly, when
@@ -620,14 +1347,14 @@ public class MySteamBoilerController implements SteamBoilerController {
  *
  * @param levelMessage      Extracted LEVEL_v message.
  * @param steamMessage      Extracted STEAM_v message.
- * @param pumpStates        Extracted PUMP_STATE_n_b messages.
- * @param pumpControlStates Extracted PUMP_CONTROL_STATE_n_b messages.
+ * @param pumpStates        Number of PUMP_STATE_n_b messages.
+ * @param pumpControlStates Number of PUMP_CONTROL_STATE_n_b messages.
  * @return false for when a failure was detected and true for when no failure occurred.
  */
   private boolean transmissionFailure(@Nullable Message levelMessage, 
       @Nullable Message steamMessage, 
-      Message[] pumpStates, Message[] pumpControlStates) {
-    SteamBoilerCharacteristics c = this.configuration;
+      int pumpStates, int pumpControlStates) {
+    ControlProfile c = this.profile;
     if (c != null) {
       // Check level readings
       if (levelMessage == null) {
@@ -636,10 +1363,10 @@ public class MySteamBoilerController implements SteamBoilerController {
       } else if (steamMessage == null) {
         // Nonsense or missing steam reading
         return true;
-      } else if (pumpStates.length != c.getNumberOfPumps()) {
+      } else if (pumpStates != c.getNumberOfPumps()) {
         // Nonsense pump state readings
         return true;
-      } else if (pumpControlStates.length != c.getNumberOfPumps()) {
+      } else if (pumpControlStates != c.getNumberOfPumps()) {
         // Nonsense pump control state readings
         return true;
       }
@@ -648,57 +1375,4 @@ public class MySteamBoilerController implements SteamBoilerController {
     return false;
 
   }
-
-  /**
-  * Find and extract a message of a given kind in a mailbox. This must the only
-  * match in the mailbox, else <code>null</code> is returned.
-  *
-  * @param kind     The kind of message to look for.
-  * @param incoming The mailbox to search through.
-  * @return The matching message, or <code>null</code> if there was not exactly
-  *         one match.
-  */
-  private static @Nullable Message extractOnlyMatch(MessageKind kind, Mailbox incoming) {
-    Message match = null;
-    for (int i = 0; i != incoming.size(); ++i) {
-      Message ith = incoming.read(i);
-      if (ith.getKind() == kind) {
-        if (match == null) {
-          match = ith;
-        } else {
-          // This indicates that we matched more than one message of the given kind.
-          return null;
-        }
-      }
-    }
-    return match;
-  }
-
-  /**
-     * Find and extract all messages of a given kind.
-     *
-     * @param kind     The kind of message to look for.
-     * @param incoming The mailbox to search through.
-     * @return The array of matches, which can empty if there were none.
-     */
-  private static Message[] extractAllMatches(MessageKind kind, Mailbox incoming) {
-    int count = 0;
-    // Count the number of matches
-    for (int i = 0; i != incoming.size(); ++i) {
-      Message ith = incoming.read(i);
-      if (ith.getKind() == kind) {
-        count = count + 1;
-      }
-    }
-    // Now, construct resulting array
-    Message[] matches = new Message[count];
-    int index = 0;
-    for (int i = 0; i != incoming.size(); ++i) {
-      Message ith = incoming.read(i);
-      if (ith.getKind() == kind) {
-        matches[index++] = ith;
-      }
-    }
-    return matches;
-  }
 }
@@ -0,0 +1,132 @@
+package steam.boiler.core;
+
+import org.eclipse.jdt.annotation.Nullable;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Collects the pump commands and mode changes requested while a controller
+ * processes a cycle, and writes only what is needed to the outgoing mailbox at
+ * the end of it.
+ *
+ * <p>For each pump the stage remembers the last command actually sent. A
+ * command is only sent again when it differs from that, or when the pump was
+ * observed not to be in the commanded state (e.g. because a command was lost).
+ * When a pump is commanded several times in one cycle, only the final command
+ * counts. Likewise, only the final mode requested in a cycle is sent, except
+ * that once an emergency stop has been requested no other mode can replace it.
+ *
+ * @author paula
+ *
+ */
+public final class OutgoingStage {
+
+  /**
+   * Pre-built pump messages.
+   */
+  private final MessageCache messages;
+
+  /**
+   * Pumps commanded (open or closed) during the current cycle.
+   */
+  private final PumpSet commanded;
+
+  /**
+   * Final command of the current cycle for each commanded pump (set means open).
+   */
+  private final PumpSet desired;
+
+  /**
+   * Last command sent to each pump (set means open). Pumps start closed.
+   */
+  private final PumpSet sent;
+
+  /**
+   * Scratch set of the pumps whose command must be sent this cycle.
+   */
+  private final PumpSet changes;
+
+  /**
+   * Scratch set of the pumps not observed in their desired state.
+   */
+  private final PumpSet disagreeing;
+
+  /**
+   * Final mode requested in the current cycle, or <code>null</code> if none.
+   */
+  private Mailbox.@Nullable Mode mode;
+
+  /**
+   * Construct an empty stage.
+   *
+   * @param messages1     Pre-built pump messages.
+   * @param numberOfPumps The number of pumps in the boiler.
+   */
+  public OutgoingStage(MessageCache messages1, int numberOfPumps) {
+    this.messages = messages1;
+    this.commanded = new PumpSet(numberOfPumps);
+    this.desired = new PumpSet(numberOfPumps);
+    this.sent = new PumpSet(numberOfPumps);
+    this.changes = new PumpSet(numberOfPumps);
+    this.disagreeing = new PumpSet(numberOfPumps);
+  }
+
+  /**
+   * Request that a pump be opened (<code>true</code>) or closed at the end of
+   * the cycle. Pumps which the boiler does not have are ignored.
+   *
+   * @param pump The pump number.
+   * @param open Whether the pump should be open.
+   */
+  public void pump(int pump, boolean open) {
+    this.commanded.set(pump, true);
+    this.desired.set(pump, open);
+  }
+
+  /**
+   * Request the mode to be reported at the end of the cycle. An emergency stop
+   * cannot be replaced by a later request.
+   *
+   * @param mode1 The mode.
+   */
+  public void mode(Mailbox.Mode mode1) {
+    if (this.mode != Mailbox.Mode.EMERGENCY_STOP) {
+      this.mode = mode1;
+    }
+  }
+
+  /**
+   * Write the pump commands which change something, followed by the final mode
+   * of the cycle, and start a new cycle.
+   *
+   * @param observed Pumps observed open in the current cycle.
+   * @param outgoing The mailbox to write to.
+   */
+  public void flush(PumpSet observed, Mailbox outgoing) {
+    this.changes.xor(this.desired, this.sent);
+    this.disagreeing.xor(this.desired, observed);
+    this.changes.or(this.disagreeing);
+    this.changes.and(this.commanded);
+    for (int i = this.changes.next(0); i >= 0; i = this.changes.next(i + 1)) {
+      boolean open = this.desired.get(i);
+      outgoing.send(this.messages.pump(open ? MessageKind.OPEN_PUMP_n : MessageKind.CLOSE_PUMP_n,
+          i));
+      this.sent.set(i, open);
+    }
+    Mailbox.Mode m = this.mode;
+    if (m != null) {
+      outgoing.send(MessageCache.mode(m));
+    }
+    this.commanded.clear();
+    this.mode = null;
+  }
+
+  /**
+   * Get the last command sent to each pump.
+   *
+   * @return the pumps last commanded open. This is live state, not a copy.
+   */
+  public PumpSet getSent() {
+    return this.sent;
+  }
+}
@@ -0,0 +1,204 @@
+package steam.boiler.core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Stand-in for the physical units of many boilers, which talks to a
+ * {@link BoilerGateway} over a single TCP connection. Each boiler is simulated
+ * by its own {@link PhysicalUnits}; on every exchange their telemetry is sent to
+ * the gateway and the controllers' responses are applied to them. Requests are
+ * pipelined in windows, so that a round trip is not needed per boiler.
+ *
+ * @author paula
+ *
+ */
+public final class PhysicalUnitsClient implements Closeable {
+
+  /**
+   * Largest number of requests sent before their responses are read.
+   */
+  private static final int WINDOW = 64;
+
+  /**
+   * The connection to the gateway.
+   */
+  private final SocketChannel channel;
+
+  /**
+   * Numbers identifying the boilers simulated.
+   */
+  private final ArrayList<Integer> ids = new ArrayList<>();
+
+  /**
+   * The physical units of each boiler.
+   */
+  private final ArrayList<PhysicalUnits> models = new ArrayList<>();
+
+  /**
+   * Decodes the responses of each boiler's controller.
+   */
+  private final ArrayList<MessageCodec> codecs = new ArrayList<>();
+
+  /**
+   * The last response received for each boiler.
+   */
+  private final ArrayList<Mailbox> responses = new ArrayList<>();
+
+  /**
+   * Buffer requests are encoded into.
+   */
+  private final ByteBuffer out = ByteBuffer.allocate(WINDOW * BoilerGateway.MAX_FRAME);
+
+  /**
+   * Buffer responses are read into.
+   */
+  private final ByteBuffer in = ByteBuffer.allocate(BoilerGateway.MAX_FRAME);
+
+  /**
+   * Connect to a gateway.
+   *
+   * @param address The address of the gateway.
+   * @throws IOException if the connection could not be made.
+   */
+  public PhysicalUnitsClient(SocketAddress address) throws IOException {
+    this.channel = SocketChannel.open(address);
+    this.channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+  }
+
+  /**
+   * Simulate a boiler.
+   *
+   * @param boiler          The number identifying the boiler at the gateway.
+   * @param characteristics The characteristics of the boiler.
+   * @param model           The physical units of the boiler.
+   * @return the index of the boiler in this client.
+   */
+  public int add(int boiler, SteamBoilerCharacteristics characteristics, PhysicalUnits model) {
+    this.ids.add(Integer.valueOf(boiler));
+    this.models.add(model);
+    this.codecs.add(new MessageCodec(ControlProfile.of(characteristics).getMessages()));
+    this.responses.add(new UnboundedMailbox(0));
+    return this.models.size() - 1;
+  }
+
+  /**
+   * Get the physical units of a boiler.
+   *
+   * @param index The index of the boiler in this client.
+   * @return the physical units.
+   */
+  public PhysicalUnits getModel(int index) {
+    return this.models.get(index);
+  }
+
+  /**
+   * Get the last response of a boiler's controller.
+   *
+   * @param index The index of the boiler in this client.
+   * @return the messages received in the last exchange.
+   */
+  public Mailbox getResponse(int index) {
+    return this.responses.get(index);
+  }
+
+  /**
+   * Advance the physical units of every boiler.
+   *
+   * @param elapsed The amount of time to simulate (ms).
+   */
+  public void clock(int elapsed) {
+    for (PhysicalUnits model : this.models) {
+      model.clock(elapsed);
+    }
+  }
+
+  /**
+   * Send the telemetry of every boiler to the gateway, and apply the responses.
+   *
+   * @throws IOException if the connection failed or a response was malformed.
+   */
+  public void exchange() throws IOException {
+    for (int start = 0; start < this.models.size(); start += WINDOW) {
+      int end = Math.min(this.models.size(), start + WINDOW);
+      this.out.clear();
+      for (int i = start; i != end; ++i) {
+        Mailbox incoming = new UnboundedMailbox(16);
+        this.models.get(i).transmit(incoming);
+        int size = BoilerGateway.HEADER_SIZE + MessageCodec.frameSize(incoming);
+        if (size > BoilerGateway.MAX_FRAME) {
+          throw new IOException("telemetry too large"); //$NON-NLS-1$
+        }
+        this.out.putShort((short) (size - 2));
+        this.out.putInt(this.ids.get(i).intValue());
+        MessageCodec.encodeFrame(incoming, this.out);
+      }
+      this.out.flip();
+      while (this.out.hasRemaining()) {
+        this.channel.write(this.out);
+      }
+      for (int i = start; i != end; ++i) {
+        receive(i);
+      }
+    }
+  }
+
+  /**
+   * Read the response of a boiler's controller and apply it to its physical
+   * units.
+   *
+   * @param index The index of the boiler in this client.
+   * @throws IOException if the connection failed or the response was malformed.
+   */
+  private void receive(int index) throws IOException {
+    ByteBuffer buffer = this.in;
+    buffer.clear();
+    buffer.limit(2);
+    fill(buffer);
+    int length = buffer.getShort(0) & 0xFFFF;
+    if (length < BoilerGateway.HEADER_SIZE - 2 || length > BoilerGateway.MAX_FRAME - 2) {
+      throw new IOException("invalid frame length: " + length); //$NON-NLS-1$
+    }
+    buffer.limit(2 + length);
+    fill(buffer);
+    buffer.flip();
+    buffer.position(2);
+    int id = buffer.getInt();
+    if (id != this.ids.get(index).intValue()) {
+      throw new IOException("unexpected response for boiler " + id); //$NON-NLS-1$
+    }
+    Mailbox outgoing = new UnboundedMailbox(16);
+    this.codecs.get(index).decodeFrame(buffer, outgoing);
+    this.responses.set(index, outgoing);
+    this.models.get(index).receive(outgoing);
+  }
+
+  /**
+   * Read from the connection until a buffer is full.
+   *
+   * @param buffer The buffer to fill up to its limit.
+   * @throws IOException if the connection failed or was closed.
+   */
+  private void fill(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (this.channel.read(buffer) < 0) {
+        throw new EOFException("connection closed by gateway"); //$NON-NLS-1$
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+  }
+}
@@ -0,0 +1,281 @@
+package steam.boiler.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Chooses which pumps to open to obtain a given inflow. Every total inflow which
+ * some subset of the available pumps can deliver is computed up front and held
+ * in a sorted table, so choosing the subset whose inflow is nearest to the one
+ * wanted is a binary search.
+ *
+ * <p>Pumps with the same capacity are interchangeable, so the table is built
+ * over capacity classes rather than individual pumps: a boiler with six
+ * identical pumps has seven entries rather than 64. Subsets giving the same
+ * inflow are stored once, using the fewest pumps and, within a class, the
+ * lowest numbered ones. If the number of distinct inflows would exceed
+ * {@link #MAX_ENTRIES}, inflows closer together than the table's resolution
+ * are merged.
+ *
+ * <p>A scheduler is immutable. Its table only depends on the pump capacities
+ * and on which pumps are unavailable, so a new scheduler is only needed when a
+ * pump fails or is repaired.
+ *
+ * @author paula
+ *
+ */
+public final class PumpScheduler {
+
+  /**
+   * Largest number of entries in a table.
+   */
+  public static final int MAX_ENTRIES = 4096;
+
+  /**
+   * A subset of pumps, described by how many pumps of each class it uses.
+   *
+   * @author paula
+   *
+   */
+  private static final class Combination {
+
+    /**
+     * Total inflow of the subset (l/s).
+     */
+    final double inflow;
+
+    /**
+     * Number of pumps used from each class.
+     */
+    final short[] counts;
+
+    /**
+     * Total number of pumps used.
+     */
+    final int pumps;
+
+    /**
+     * Construct a combination.
+     *
+     * @param inflow1 Total inflow of the subset (l/s).
+     * @param counts1 Number of pumps used from each class.
+     * @param pumps1  Total number of pumps used.
+     */
+    Combination(double inflow1, short[] counts1, int pumps1) {
+      this.inflow = inflow1;
+      this.counts = counts1;
+      this.pumps = pumps1;
+    }
+  }
+
+  /**
+   * Capacity of every pump (l/s), indexed by pump number.
+   */
+  private final double[] capacities;
+
+  /**
+   * Available pumps of each capacity class, in ascending order.
+   */
+  private final int[][] classes;
+
+  /**
+   * Every inflow which can be delivered, in ascending order (l/s).
+   */
+  private final double[] inflows;
+
+  /**
+   * Number of pumps used from each class by each entry, indexed by entry times
+   * the number of classes plus class.
+   */
+  private final short[] counts;
+
+  /**
+   * Pumps which were excluded from the table.
+   */
+  private final PumpSet unavailable;
+
+  /**
+   * Build the table for a set of pumps.
+   *
+   * @param capacities1  Capacity of every pump (l/s), indexed by pump number.
+   * @param unavailable1 Pumps which must not be used, such as failed ones.
+   */
+  public PumpScheduler(double[] capacities1, PumpSet unavailable1) {
+    this.capacities = capacities1.clone();
+    this.unavailable = new PumpSet(capacities1.length);
+    this.unavailable.copy(unavailable1);
+    // Group the available pumps by capacity
+    ArrayList<int[]> groups = new ArrayList<>();
+    for (int i = 0; i != capacities1.length; ++i) {
+      if (unavailable1.get(i)) {
+        continue;
+      }
+      int g = 0;
+      while (g != groups.size()
+          && Double.compare(capacities1[groups.get(g)[0]], capacities1[i]) != 0) {
+        ++g;
+      }
+      if (g == groups.size()) {
+        groups.add(new int[] { i });
+      } else {
+        int[] group = Arrays.copyOf(groups.get(g), groups.get(g).length + 1);
+        group[group.length - 1] = i;
+        groups.set(g, group);
+      }
+    }
+    this.classes = groups.toArray(new int[groups.size()][]);
+    // Extend the table one class at a time
+    int n = this.classes.length;
+    ArrayList<Combination> table = new ArrayList<>();
+    table.add(new Combination(0, new short[n], 0));
+    for (int c = 0; c != n; ++c) {
+      double capacity = capacities1[this.classes[c][0]];
+      ArrayList<Combination> next = new ArrayList<>();
+      for (Combination e : table) {
+        for (int k = 0; k <= this.classes[c].length; ++k) {
+          short[] counts1 = e.counts.clone();
+          counts1[c] = (short) k;
+          next.add(new Combination(e.inflow + k * capacity, counts1, e.pumps + k));
+        }
+      }
+      table = compact(next);
+    }
+    this.inflows = new double[table.size()];
+    this.counts = new short[table.size() * n];
+    for (int e = 0; e != table.size(); ++e) {
+      this.inflows[e] = table.get(e).inflow;
+      System.arraycopy(table.get(e).counts, 0, this.counts, e * n, n);
+    }
+  }
+
+  /**
+   * Sort combinations by inflow, keep only one per inflow, and merge inflows
+   * which are too close together for the table to stay within its maximum size.
+   *
+   * @param combinations The combinations.
+   * @return the compacted combinations.
+   */
+  private static ArrayList<Combination> compact(ArrayList<Combination> combinations) {
+    combinations.sort((a, b) -> {
+      int r = Double.compare(a.inflow, b.inflow);
+      return r != 0 ? r : Integer.compare(a.pumps, b.pumps);
+    });
+    double last = combinations.get(combinations.size() - 1).inflow;
+    double resolution = 0;
+    if (combinations.size() > MAX_ENTRIES) {
+      resolution = (last - combinations.get(0).inflow) / MAX_ENTRIES;
+    }
+    ArrayList<Combination> kept = new ArrayList<>();
+    double previous = Double.NEGATIVE_INFINITY;
+    for (Combination e : combinations) {
+      if (e.inflow > previous + resolution) {
+        kept.add(e);
+        previous = e.inflow;
+      }
+    }
+    // The largest inflow is always reachable, so never merge it away
+    if (previous != last) {
+      int i = combinations.size() - 1;
+      while (combinations.get(i - 1).inflow == last) {
+        --i;
+      }
+      kept.add(combinations.get(i));
+    }
+    return kept;
+  }
+
+  /**
+   * Check whether this table was built excluding exactly a given set of pumps.
+   *
+   * @param unavailable1 Pumps which must not be used.
+   * @return true if the table can be used as is.
+   */
+  public boolean excludes(PumpSet unavailable1) {
+    return this.unavailable.sameAs(unavailable1);
+  }
+
+  /**
+   * Get the number of distinct inflows in the table.
+   *
+   * @return the number of entries.
+   */
+  public int size() {
+    return this.inflows.length;
+  }
+
+  /**
+   * Get the largest inflow the available pumps can deliver.
+   *
+   * @return the inflow with every available pump open (l/s).
+   */
+  public double getMaximalInflow() {
+    return this.inflows[this.inflows.length - 1];
+  }
+
+  /**
+   * Choose the pumps whose combined inflow is nearest to the one wanted. When
+   * two inflows are equally near, the smaller is chosen.
+   *
+   * @param wanted The inflow wanted (l/s).
+   * @param result Set to the pumps to open; all other pumps should be closed.
+   * @return the inflow of the chosen pumps (l/s).
+   */
+  public double choose(double wanted, PumpSet result) {
+    int e = nearest(wanted);
+    select(e, result);
+    return this.inflows[e];
+  }
+
+  /**
+   * Find the entry whose inflow is nearest to the one wanted. When two inflows
+   * are equally near, the smaller is chosen.
+   *
+   * @param wanted The inflow wanted (l/s).
+   * @return the index of the entry.
+   */
+  int nearest(double wanted) {
+    int e = Arrays.binarySearch(this.inflows, wanted);
+    if (e < 0) {
+      int above = -e - 1;
+      if (above == this.inflows.length) {
+        e = above - 1;
+      } else if (above == 0) {
+        e = 0;
+      } else {
+        e = wanted - this.inflows[above - 1] <= this.inflows[above] - wanted ? above - 1 : above;
+      }
+    }
+    return e;
+  }
+
+  /**
+   * Get the pumps an entry opens.
+   *
+   * @param entry  The index of the entry.
+   * @param result Set to the pumps to open; all other pumps should be closed.
+   */
+  void select(int entry, PumpSet result) {
+    result.clear();
+    int n = this.classes.length;
+    for (int c = 0; c != n; ++c) {
+      int[] pumps = this.classes[c];
+      for (int k = 0; k != this.counts[entry * n + c]; ++k) {
+        result.set(pumps[k], true);
+      }
+    }
+  }
+
+  /**
+   * Determine the combined capacity of a set of pumps, whether available or not.
+   *
+   * @param pumps The pumps.
+   * @return the sum of their capacities (l/s).
+   */
+  public double inflow(PumpSet pumps) {
+    double total = 0;
+    for (int i = pumps.next(0); i >= 0 && i < this.capacities.length; i = pumps.next(i + 1)) {
+      total += this.capacities[i];
+    }
+    return total;
+  }
+}
@@ -0,0 +1,263 @@
+package steam.boiler.core;
+
+/**
+ * A fixed size set of pump numbers, stored as a bitmask. One bit is used per
+ * pump, so that whole pump banks can be compared and counted a word at a time
+ * rather than pump by pump. The set is sized once from the number of pumps in
+ * the boiler and never allocates afterwards.
+ *
+ * @author paula
+ *
+ */
+public final class PumpSet {
+
+  /**
+   * Number of bits held in each word.
+   */
+  private static final int WORD_BITS = 64;
+
+  /**
+   * The number of pumps which this set can hold.
+   */
+  private final int size;
+
+  /**
+   * Bits of the set, pump i being bit (i % 64) of word (i / 64).
+   */
+  private final long[] words;
+
+  /**
+   * Construct an empty set able to hold pumps <code>0</code> to
+   * <code>size-1</code>.
+   *
+   * @param size1 The number of pumps in the boiler.
+   */
+  public PumpSet(int size1) {
+    this.size = size1;
+    this.words = new long[(size1 + WORD_BITS - 1) / WORD_BITS];
+  }
+
+  /**
+   * Get the number of pumps this set can hold.
+   *
+   * @return the number of pumps in the boiler.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Check whether a given pump is in the set. Pumps outside the range of the set
+   * are never members.
+   *
+   * @param pump The pump number.
+   * @return true if the pump is in the set.
+   */
+  public boolean get(int pump) {
+    if (pump < 0 || pump >= this.size) {
+      return false;
+    }
+    return (this.words[pump / WORD_BITS] & (1L << pump)) != 0;
+  }
+
+  /**
+   * Add or remove a given pump. Pumps outside the range of the set are ignored.
+   *
+   * @param pump  The pump number.
+   * @param value true to add the pump, false to remove it.
+   */
+  public void set(int pump, boolean value) {
+    if (pump < 0 || pump >= this.size) {
+      return;
+    }
+    if (value) {
+      this.words[pump / WORD_BITS] |= 1L << pump;
+    } else {
+      this.words[pump / WORD_BITS] &= ~(1L << pump);
+    }
+  }
+
+  /**
+   * Remove every pump from this set.
+   */
+  public void clear() {
+    for (int i = 0; i != this.words.length; ++i) {
+      this.words[i] = 0;
+    }
+  }
+
+  /**
+   * Add every pump to this set.
+   */
+  public void fill() {
+    for (int i = 0; i != this.words.length; ++i) {
+      this.words[i] = -1L;
+    }
+    trim();
+  }
+
+  /**
+   * Get the number of pumps in this set.
+   *
+   * @return the population count of the set.
+   */
+  public int cardinality() {
+    int count = 0;
+    for (int i = 0; i != this.words.length; ++i) {
+      count += Long.bitCount(this.words[i]);
+    }
+    return count;
+  }
+
+  /**
+   * Check whether this set is empty.
+   *
+   * @return true if no pump is in the set.
+   */
+  public boolean isEmpty() {
+    for (int i = 0; i != this.words.length; ++i) {
+      if (this.words[i] != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Find the first pump in this set at or after a given pump number.
+   *
+   * @param from The pump number to start from.
+   * @return the next pump in the set, or -1 if there is none.
+   */
+  public int next(int from) {
+    if (from < 0 || from >= this.size) {
+      return -1;
+    }
+    int w = from / WORD_BITS;
+    long word = this.words[w] & (-1L << from);
+    while (true) {
+      if (word != 0) {
+        int pump = w * WORD_BITS + Long.numberOfTrailingZeros(word);
+        return pump < this.size ? pump : -1;
+      }
+      if (++w == this.words.length) {
+        return -1;
+      }
+      word = this.words[w];
+    }
+  }
+
+  /**
+   * Make this set a copy of another set of the same size.
+   *
+   * @param other The set to copy.
+   */
+  public void copy(PumpSet other) {
+    System.arraycopy(other.words, 0, this.words, 0, this.words.length);
+  }
+
+  /**
+   * Make this set the pumps which are in exactly one of two sets of the same
+   * size.
+   *
+   * @param a The first set.
+   * @param b The second set.
+   */
+  public void xor(PumpSet a, PumpSet b) {
+    for (int i = 0; i != this.words.length; ++i) {
+      this.words[i] = a.words[i] ^ b.words[i];
+    }
+  }
+
+  /**
+   * Remove from this set every pump which is in another set of the same size.
+   *
+   * @param other The pumps to remove.
+   */
+  public void andNot(PumpSet other) {
+    for (int i = 0; i != this.words.length; ++i) {
+      this.words[i] &= ~other.words[i];
+    }
+  }
+
+  /**
+   * Add to this set every pump which is in another set of the same size.
+   *
+   * @param other The pumps to add.
+   */
+  public void or(PumpSet other) {
+    for (int i = 0; i != this.words.length; ++i) {
+      this.words[i] |= other.words[i];
+    }
+  }
+
+  /**
+   * Remove from this set every pump which is not in another set of the same
+   * size.
+   *
+   * @param other The pumps to keep.
+   */
+  public void and(PumpSet other) {
+    for (int i = 0; i != this.words.length; ++i) {
+      this.words[i] &= other.words[i];
+    }
+  }
+
+  /**
+   * Check whether this set holds exactly the same pumps as another set of the
+   * same size.
+   *
+   * @param other The set to compare with.
+   * @return true if both sets are equal.
+   */
+  public boolean sameAs(PumpSet other) {
+    for (int i = 0; i != this.words.length; ++i) {
+      if (this.words[i] != other.words[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get a word of the underlying bitmask, pump i being bit (i % 64) of word
+   * (i / 64).
+   *
+   * @param index The word index.
+   * @return the bits of that word.
+   */
+  public long word(int index) {
+    return this.words[index];
+  }
+
+  /**
+   * Replace a word of the underlying bitmask. Bits for pumps beyond the size of
+   * the set are discarded.
+   *
+   * @param index The word index.
+   * @param bits  The new bits of that word.
+   */
+  public void setWord(int index, long bits) {
+    this.words[index] = bits;
+    trim();
+  }
+
+  /**
+   * Get the number of words in the underlying bitmask.
+   *
+   * @return the number of words.
+   */
+  public int words() {
+    return this.words.length;
+  }
+
+  /**
+   * Clear any bits beyond the last pump in the set.
+   */
+  private void trim() {
+    int spare = this.size % WORD_BITS;
+    if (spare != 0) {
+      this.words[this.words.length - 1] &= (1L << spare) - 1;
+    }
+  }
+}
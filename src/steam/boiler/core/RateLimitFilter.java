@@ -0,0 +1,52 @@
+package steam.boiler.core;
+
+/**
+ * Filter limiting how far the output may move from one sample to the next. A
+ * reading which jumps further than is physically possible in one cycle is only
+ * followed by the largest possible step, so a single wild reading has a bounded
+ * effect. The first sample is returned unchanged.
+ *
+ * @author paula
+ *
+ */
+public final class RateLimitFilter implements SensorFilter {
+
+  /**
+   * Largest change in the output per sample.
+   */
+  private final double maxStep;
+
+  /**
+   * The previous output.
+   */
+  private double last;
+
+  /**
+   * Whether any sample has been seen.
+   */
+  private boolean primed;
+
+  /**
+   * Construct a filter.
+   *
+   * @param maxStep1 Largest change in the output per sample, which must not be
+   *                 negative.
+   */
+  public RateLimitFilter(double maxStep1) {
+    if (!(maxStep1 >= 0)) {
+      throw new IllegalArgumentException("invalid step: " + maxStep1); //$NON-NLS-1$
+    }
+    this.maxStep = maxStep1;
+  }
+
+  @Override
+  public double apply(double sample) {
+    if (this.primed) {
+      this.last = Math.max(this.last - this.maxStep, Math.min(this.last + this.maxStep, sample));
+    } else {
+      this.last = sample;
+      this.primed = true;
+    }
+    return this.last;
+  }
+}
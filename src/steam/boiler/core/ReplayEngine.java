@@ -0,0 +1,252 @@
+package steam.boiler.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Replays the cycles of a boiler, as captured by a {@link FlightRecorder},
+ * through a fresh controller as fast as it will run. There is no physical
+ * model and no waiting between cycles: each recorded incoming mailbox is given
+ * to the controller in turn. Every outgoing mailbox, and the mode after each
+ * cycle, is then compared with the recording, message for message, using their
+ * {@link MessageCodec} encodings.
+ *
+ * <p>The characteristics of the boiler are not part of a recording, so they
+ * must be supplied. Since a fresh controller starts in its initial mode, a
+ * recording only replays faithfully if it begins with the boiler's first cycle.
+ *
+ * @author paula
+ *
+ */
+public final class ReplayEngine {
+
+  /**
+   * The outcome of a replay.
+   *
+   * @author paula
+   *
+   */
+  public static final class Result {
+
+    /**
+     * Number of cycles replayed.
+     */
+    private final long cycles;
+
+    /**
+     * Number of cycles whose outputs differ from the recording.
+     */
+    private final long mismatches;
+
+    /**
+     * Index of the first cycle which differs, or -1.
+     */
+    private final int firstMismatch;
+
+    /**
+     * Time spent clocking the controller (ns).
+     */
+    private final long nanos;
+
+    /**
+     * Construct a result.
+     *
+     * @param cycles1        Number of cycles replayed.
+     * @param mismatches1    Number of cycles whose outputs differ from the recording.
+     * @param firstMismatch1 Index of the first cycle which differs, or -1.
+     * @param nanos1         Time spent clocking the controller (ns).
+     */
+    Result(long cycles1, long mismatches1, int firstMismatch1, long nanos1) {
+      this.cycles = cycles1;
+      this.mismatches = mismatches1;
+      this.firstMismatch = firstMismatch1;
+      this.nanos = nanos1;
+    }
+
+    /**
+     * Get the number of cycles replayed.
+     *
+     * @return the number of cycles.
+     */
+    public long getCycles() {
+      return this.cycles;
+    }
+
+    /**
+     * Get the number of cycles whose outputs differ from the recording.
+     *
+     * @return the number of mismatching cycles.
+     */
+    public long getMismatches() {
+      return this.mismatches;
+    }
+
+    /**
+     * Get the first cycle whose outputs differ from the recording.
+     *
+     * @return the index of the cycle within the recording, or -1 if none differ.
+     */
+    public int getFirstMismatch() {
+      return this.firstMismatch;
+    }
+
+    /**
+     * Get the time spent clocking the controller.
+     *
+     * @return the time (ns).
+     */
+    public long getNanos() {
+      return this.nanos;
+    }
+
+    /**
+     * Get the rate at which cycles were replayed.
+     *
+     * @return the number of cycles per second.
+     */
+    public double getCyclesPerSecond() {
+      return this.nanos == 0 ? 0 : this.cycles * 1e9 / this.nanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d cycles, %d mismatches (first %d), %.0f cycles/s", //$NON-NLS-1$
+          Long.valueOf(this.cycles), Long.valueOf(this.mismatches),
+          Integer.valueOf(this.firstMismatch), Double.valueOf(getCyclesPerSecond()));
+    }
+  }
+
+  /**
+   * The characteristics of the boiler replayed.
+   */
+  private final SteamBoilerCharacteristics characteristics;
+
+  /**
+   * Construct an engine for a given boiler.
+   *
+   * @param characteristics1 The characteristics of the boiler replayed.
+   */
+  public ReplayEngine(SteamBoilerCharacteristics characteristics1) {
+    this.characteristics = characteristics1;
+  }
+
+  /**
+   * Select the cycles of one boiler from a recording.
+   *
+   * @param entries Every cycle of a recording, in the order recorded.
+   * @param boiler  The boiler whose cycles are wanted.
+   * @return the cycles of that boiler, in the order recorded.
+   */
+  public static List<FlightRecorder.Entry> select(List<FlightRecorder.Entry> entries,
+      int boiler) {
+    ArrayList<FlightRecorder.Entry> selected = new ArrayList<>();
+    for (FlightRecorder.Entry e : entries) {
+      if (e.getBoiler() == boiler) {
+        if (e.isTruncated()) {
+          throw new IllegalArgumentException(
+              "cycle " + e.getSequence() + " was recorded without its messages"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        selected.add(e);
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Replay a recording through fresh controllers a number of times. Outputs are
+   * compared with the recording after each pass, so that comparison does not
+   * count towards the measured time.
+   *
+   * @param recording  The cycles of one boiler, in the order recorded.
+   * @param iterations The number of passes.
+   * @return the combined result of every pass.
+   */
+  public Result replay(List<FlightRecorder.Entry> recording, int iterations) {
+    int n = recording.size();
+    Mailbox[] inputs = new Mailbox[n];
+    for (int i = 0; i != n; ++i) {
+      inputs[i] = recording.get(i).getIncoming();
+    }
+    Mailbox[] outputs = new Mailbox[n];
+    MySteamBoilerController.State[] modes = new MySteamBoilerController.State[n];
+    ByteBuffer expected = ByteBuffer.allocate(BoilerGateway.MAX_FRAME);
+    ByteBuffer actual = ByteBuffer.allocate(BoilerGateway.MAX_FRAME);
+    long nanos = 0;
+    long mismatches = 0;
+    int first = -1;
+    for (int pass = 0; pass != iterations; ++pass) {
+      for (int i = 0; i != n; ++i) {
+        outputs[i] = new UnboundedMailbox(16);
+      }
+      MySteamBoilerController controller = new MySteamBoilerController(this.characteristics);
+      long start = System.nanoTime();
+      for (int i = 0; i != n; ++i) {
+        controller.clock(inputs[i], outputs[i]);
+        modes[i] = controller.getMode();
+      }
+      nanos += System.nanoTime() - start;
+      for (int i = 0; i != n; ++i) {
+        FlightRecorder.Entry e = recording.get(i);
+        if (modes[i] != e.getMode() || !sameFrame(e.getOutgoing(), outputs[i], expected, actual)) {
+          mismatches++;
+          if (first < 0) {
+            first = i;
+          }
+        }
+      }
+    }
+    return new Result((long) n * iterations, mismatches, first, nanos);
+  }
+
+  /**
+   * Check whether two mailboxes hold the same messages in the same order.
+   *
+   * @param a        The first mailbox.
+   * @param b        The second mailbox.
+   * @param scratch1 Buffer the first mailbox is encoded into.
+   * @param scratch2 Buffer the second mailbox is encoded into.
+   * @return true if their encodings are identical.
+   */
+  private static boolean sameFrame(Mailbox a, Mailbox b, ByteBuffer scratch1,
+      ByteBuffer scratch2) {
+    if (MessageCodec.frameSize(a) != MessageCodec.frameSize(b)
+        || MessageCodec.frameSize(a) > scratch1.capacity()) {
+      return false;
+    }
+    scratch1.clear();
+    scratch2.clear();
+    MessageCodec.encodeFrame(a, scratch1);
+    MessageCodec.encodeFrame(b, scratch2);
+    scratch1.flip();
+    scratch2.flip();
+    return scratch1.equals(scratch2);
+  }
+
+  /**
+   * Replay the cycles of one boiler from a recording file, and print the result.
+   *
+   * @param args The recording file, the boiler, its number of pumps and
+   *             optionally the number of passes.
+   * @throws IOException if the recording cannot be read.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3 && args.length != 4) {
+      System.err.println("usage: ReplayEngine file boiler pumps [passes]"); //$NON-NLS-1$
+      return;
+    }
+    int boiler = Integer.parseInt(args[1]);
+    int passes = args.length == 4 ? Integer.parseInt(args[3]) : 10;
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(Integer.parseInt(args[2]), config.getPumpCapacity(0));
+    ArrayList<FlightRecorder.Entry> entries = new ArrayList<>();
+    FlightRecorder.read(Paths.get(args[0]), Long.MIN_VALUE, Long.MAX_VALUE, entries::add);
+    Result result = new ReplayEngine(config).replay(select(entries, boiler), passes);
+    System.out.println(result);
+  }
+}
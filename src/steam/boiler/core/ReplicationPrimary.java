@@ -0,0 +1,403 @@
+package steam.boiler.core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.eclipse.jdt.annotation.Nullable;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Streams the state of a controller to a {@link ReplicationStandby}, so that
+ * the standby can take over should this process stop. After every cycle the
+ * controller's checkpoint is compared with the one last sent, eight bytes at a
+ * time, and only the words which changed are sent. In between, a heartbeat is
+ * sent at a fixed interval so the standby can tell a quiet primary from a dead
+ * one.
+ *
+ * <p>The stream starts with a hello (a magic number and the number of words in
+ * a checkpoint). Each frame then starts with a byte giving its type: a delta
+ * (<code>'D'</code>) is followed by its sequence number, the number of words
+ * changed and, for each, its index and new value; a heartbeat
+ * (<code>'H'</code>) has no body. The first delta holds every non-zero word.
+ *
+ * <p>Deltas are taken on the controller's thread but sent by a thread of the
+ * primary's own, which also sends the heartbeats, so a slow standby never
+ * holds up a cycle. Deltas wait for the sender in a ring of preallocated
+ * frames ({@link #DEFAULT_BACKLOG} by default); a standby which falls so far
+ * behind that the ring overflows is dropped, and the primary demoted.
+ *
+ * <p>If the standby cannot be reached, replication stops and the primary is
+ * demoted; {@link #getFailure()} reports why. A standby which takes over drops
+ * the connection, which a thread of the primary watches for, so a primary which
+ * was only slow is demoted as soon as the standby has taken over. Once demoted
+ * the standby may be in charge, so callers must check {@link #isActive()}
+ * before sending each outgoing mailbox of the controller to the physical units,
+ * and stop sending once it is false.
+ *
+ * @author paula
+ *
+ */
+public final class ReplicationPrimary implements Closeable {
+
+  /**
+   * First four bytes of a replication stream ("SBRP").
+   */
+  public static final int MAGIC = 0x53425250;
+
+  /**
+   * Frame type of a delta.
+   */
+  static final byte DELTA = 'D';
+
+  /**
+   * Frame type of a heartbeat.
+   */
+  static final byte HEARTBEAT = 'H';
+
+  /**
+   * Default time between heartbeats (ms).
+   */
+  public static final int DEFAULT_HEARTBEAT = 500;
+
+  /**
+   * Default number of deltas which may wait to be sent before the standby is
+   * taken to have stopped reading. This is generous, so that simulations
+   * clocked faster than real time do not outrun the sender.
+   */
+  public static final int DEFAULT_BACKLOG = 64;
+
+  /**
+   * The controller replicated.
+   */
+  private final MySteamBoilerController controller;
+
+  /**
+   * Connection to the standby.
+   */
+  private final Socket socket;
+
+  /**
+   * Stream of frames to the standby, written only by the sender thread once
+   * the hello has been sent.
+   */
+  private final DataOutputStream out;
+
+  /**
+   * Ring of encoded deltas waiting to be sent.
+   */
+  private final ByteBuffer[] frames;
+
+  /**
+   * Scratch buffer the checkpoint is taken into, a whole number of words long.
+   */
+  private final ByteBuffer record;
+
+  /**
+   * Words of the checkpoint last sent.
+   */
+  private final long[] sent;
+
+  /**
+   * Indices of the words changed by the current delta.
+   */
+  private final int[] changed;
+
+  /**
+   * Time between heartbeats (ns).
+   */
+  private final long interval;
+
+  /**
+   * Thread sending deltas and heartbeats.
+   */
+  private final Thread sender;
+
+  /**
+   * Thread watching for the standby dropping the connection.
+   */
+  private final Thread watcher;
+
+  /**
+   * Sequence number of the last delta queued, which is also the number of
+   * deltas placed in the ring.
+   */
+  private volatile long sequence;
+
+  /**
+   * Number of deltas taken from the ring and sent.
+   */
+  private volatile long consumed;
+
+  /**
+   * Why replication stopped, or <code>null</code> while it is running.
+   */
+  private volatile @Nullable IOException failure;
+
+  /**
+   * Connect to a standby and start sending heartbeats.
+   *
+   * @param controller1 The controller replicated.
+   * @param standby     Address of the standby.
+   * @param heartbeat   Time between heartbeats (ms).
+   * @throws IOException if the standby cannot be reached.
+   */
+  public ReplicationPrimary(MySteamBoilerController controller1, InetSocketAddress standby,
+      int heartbeat) throws IOException {
+    this(controller1, standby, heartbeat, DEFAULT_BACKLOG);
+  }
+
+  /**
+   * Connect to a standby and start sending heartbeats, allowing a given number
+   * of deltas to wait to be sent.
+   *
+   * @param controller1 The controller replicated.
+   * @param standby     Address of the standby.
+   * @param heartbeat   Time between heartbeats (ms).
+   * @param backlog     Number of deltas which may wait to be sent before the
+   *                    primary is demoted.
+   * @throws IOException if the standby cannot be reached.
+   */
+  public ReplicationPrimary(MySteamBoilerController controller1, InetSocketAddress standby,
+      int heartbeat, int backlog) throws IOException {
+    if (backlog <= 0) {
+      throw new IllegalArgumentException("invalid backlog"); //$NON-NLS-1$
+    }
+    this.controller = controller1;
+    int words = (controller1.getCheckpointSize() + 7) / 8;
+    this.record = ByteBuffer.allocate(words * 8);
+    this.sent = new long[words];
+    this.changed = new int[words];
+    this.frames = new ByteBuffer[backlog];
+    for (int i = 0; i != backlog; ++i) {
+      this.frames[i] = ByteBuffer.allocate(1 + 8 + 2 + words * (2 + 8));
+    }
+    this.interval = TimeUnit.MILLISECONDS.toNanos(heartbeat);
+    this.socket = new Socket();
+    this.socket.setTcpNoDelay(true);
+    this.socket.connect(standby);
+    this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+    this.out.writeInt(MAGIC);
+    this.out.writeInt(words);
+    this.out.flush();
+    this.sender = new Thread(this::send, "replication-sender"); //$NON-NLS-1$
+    this.sender.setDaemon(true);
+    this.sender.start();
+    this.watcher = new Thread(this::watch, "replication-watch"); //$NON-NLS-1$
+    this.watcher.setDaemon(true);
+    this.watcher.start();
+  }
+
+  /**
+   * Get a listener which replicates the controller after every cycle. It must
+   * be set on the replicated controller.
+   *
+   * @return the listener.
+   */
+  public CycleListener listener() {
+    return (controller1, incoming, outgoing) -> publish();
+  }
+
+  /**
+   * Queue the words of the controller's state which changed since the last
+   * delta, for the sender thread to send. This never blocks and does not
+   * allocate. If the ring is full the standby has stopped reading, so
+   * replication stops and the primary is demoted. This must be called on the
+   * controller's thread, between cycles.
+   */
+  public void publish() {
+    if (this.failure != null) {
+      return;
+    }
+    long seq = this.sequence;
+    if (seq - this.consumed == this.frames.length) {
+      fail(new IOException("standby is not keeping up")); //$NON-NLS-1$
+      return;
+    }
+    ByteBuffer r = this.record;
+    r.clear();
+    this.controller.checkpoint(r);
+    int count = 0;
+    for (int i = 0; i != this.sent.length; ++i) {
+      long word = r.getLong(i * 8);
+      if (word != this.sent[i]) {
+        this.sent[i] = word;
+        this.changed[count++] = i;
+      }
+    }
+    ByteBuffer frame = this.frames[(int) (seq % this.frames.length)];
+    frame.clear();
+    frame.put(DELTA);
+    frame.putLong(seq + 1);
+    frame.putShort((short) count);
+    for (int i = 0; i != count; ++i) {
+      frame.putShort((short) this.changed[i]);
+      frame.putLong(this.sent[this.changed[i]]);
+    }
+    frame.flip();
+    // Publishes the frame to the sender
+    this.sequence = seq + 1;
+    LockSupport.unpark(this.sender);
+  }
+
+  /**
+   * Get the sequence number of the last delta queued.
+   *
+   * @return the number of deltas queued, whether or not they have been sent
+   *         yet.
+   */
+  public long getSequence() {
+    return this.sequence;
+  }
+
+  /**
+   * Get the number of deltas queued but not yet sent to the standby.
+   *
+   * @return the number of deltas waiting.
+   */
+  public int getBacklog() {
+    return (int) (this.sequence - this.consumed);
+  }
+
+  /**
+   * Check whether this process is still the primary. Once replication has
+   * stopped the standby may have taken over, so the controller's outgoing
+   * mailboxes must no longer be sent to the physical units.
+   *
+   * @return true while replication is running.
+   */
+  public boolean isActive() {
+    return this.failure == null;
+  }
+
+  /**
+   * Get the reason replication stopped.
+   *
+   * @return the failure, or <code>null</code> while replication is running.
+   */
+  public @Nullable IOException getFailure() {
+    return this.failure;
+  }
+
+  /**
+   * Send queued deltas as they arrive, and a heartbeat whenever nothing has
+   * been sent for a heartbeat interval, until replication stops.
+   */
+  private void send() {
+    try {
+      long next = System.nanoTime() + this.interval;
+      while (this.failure == null) {
+        long c = this.consumed;
+        if (c != this.sequence) {
+          ByteBuffer frame = this.frames[(int) (c % this.frames.length)];
+          this.out.write(frame.array(), 0, frame.limit());
+          this.out.flush();
+          // Frees the frame for the controller's thread
+          this.consumed = c + 1;
+          next = System.nanoTime() + this.interval;
+        } else if (System.nanoTime() - next >= 0) {
+          this.out.writeByte(HEARTBEAT);
+          this.out.flush();
+          next = System.nanoTime() + this.interval;
+        } else {
+          LockSupport.parkNanos(this, next - System.nanoTime());
+        }
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Wait for the connection to the standby to close, which it does on taking
+   * over, then demote the primary. The standby never sends anything.
+   */
+  private void watch() {
+    try {
+      if (this.socket.getInputStream().read() < 0) {
+        fail(new IOException("standby dropped the connection")); //$NON-NLS-1$
+      } else {
+        fail(new IOException("unexpected data from standby")); //$NON-NLS-1$
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Stop replicating and demote the primary, keeping the first reason given.
+   * The connection is closed, which releases a sender blocked on a standby
+   * that stopped reading.
+   *
+   * @param e Why replication stopped.
+   */
+  private void fail(IOException e) {
+    synchronized (this) {
+      if (this.failure != null) {
+        return;
+      }
+      this.failure = e;
+    }
+    LockSupport.unpark(this.sender);
+    try {
+      this.socket.close();
+    } catch (IOException e1) {
+      // Only closing
+    }
+  }
+
+  /**
+   * Stop replicating, which demotes the primary. The standby takes over once it
+   * notices the heartbeats have stopped.
+   */
+  @Override
+  public void close() throws IOException {
+    fail(new IOException("closed")); //$NON-NLS-1$
+  }
+
+  /**
+   * Run a simulated boiler whose controller is replicated to a standby, then
+   * stop without warning so the standby takes over.
+   *
+   * @param args The host and port of the standby, and the time to run (s).
+   * @throws IOException if the standby cannot be reached.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      System.err.println("usage: ReplicationPrimary host port seconds"); //$NON-NLS-1$
+      return;
+    }
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    ReplicationPrimary primary = new ReplicationPrimary(controller,
+        new InetSocketAddress(args[0], Integer.parseInt(args[1])), DEFAULT_HEARTBEAT);
+    controller.setCycleListener(primary.listener());
+    SimulationEngine engine = new SimulationEngine(controller, model);
+    int seconds = Integer.parseInt(args[2]);
+    for (int t = 0; t < seconds && primary.isActive(); t += 5) {
+      // Keep to real time so the standby sees a live primary. A demoted primary
+      // stops before the engine sends another cycle to the physical units
+      engine.run(5000, null);
+      try {
+        Thread.sleep(5000);
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+    IOException failure = primary.getFailure();
+    if (failure != null) {
+      System.out.println("demoted: " + failure.getMessage()); //$NON-NLS-1$
+    }
+    System.out.println("stopping in mode " + controller.getMode() //$NON-NLS-1$
+        + " after " + primary.getSequence() + " cycles"); //$NON-NLS-1$ //$NON-NLS-2$
+    System.exit(0);
+  }
+}
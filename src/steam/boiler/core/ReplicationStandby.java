@@ -0,0 +1,333 @@
+package steam.boiler.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import org.eclipse.jdt.annotation.Nullable;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Keeps a replica of the state of a controller streamed by a
+ * {@link ReplicationPrimary}, and takes over once the primary has gone quiet
+ * for longer than a timeout. Taking over restores a new controller from the
+ * replica and hands it to a callback, which clocks it from then on. The timeout
+ * should be a few heartbeats, and well under the five seconds of a cycle, so
+ * that no cycle is missed.
+ *
+ * <p>The replica includes the pump commands the primary last sent, so the new
+ * controller only sends commands where the pumps need to change. Once it has
+ * taken over the standby stops listening and drops the primary's connection,
+ * so a primary which was only slow is demoted (see
+ * {@link ReplicationPrimary#isActive()}).
+ *
+ * <p>Deltas are applied on a thread of the standby's own; the replica is only
+ * taken over once the primary has connected and sent at least one delta. A
+ * delta is applied only once all of it has arrived, so a primary which stops
+ * partway through one leaves the replica as it was after the delta before.
+ *
+ * @author paula
+ *
+ */
+public final class ReplicationStandby implements Closeable {
+
+  /**
+   * Configuration of the boiler the replicated controller is for.
+   */
+  private final SteamBoilerCharacteristics config;
+
+  /**
+   * Socket the primary connects to.
+   */
+  private final ServerSocket server;
+
+  /**
+   * Time without hearing from the primary after which the standby takes over
+   * (ms).
+   */
+  private final int timeout;
+
+  /**
+   * Called with the new controller on taking over.
+   */
+  private final Consumer<MySteamBoilerController> takeover;
+
+  /**
+   * Words of the last checkpoint received.
+   */
+  private final long[] replica;
+
+  /**
+   * Indices of the words of the delta being received.
+   */
+  private final int[] indices;
+
+  /**
+   * New values of the words of the delta being received.
+   */
+  private final long[] values;
+
+  /**
+   * Thread receiving the primary's frames.
+   */
+  private final Thread receiver;
+
+  /**
+   * Connection from the current primary, or <code>null</code> if none.
+   */
+  private volatile @Nullable Socket connection;
+
+  /**
+   * Sequence number of the last delta applied.
+   */
+  private volatile long sequence;
+
+  /**
+   * The controller restored on taking over, or <code>null</code> before then.
+   */
+  private volatile @Nullable MySteamBoilerController controller;
+
+  /**
+   * Listen for a primary.
+   *
+   * @param config1   Configuration of the boiler the replicated controller is
+   *                  for.
+   * @param address   Address to listen on.
+   * @param timeout1  Time without hearing from the primary after which the
+   *                  standby takes over (ms).
+   * @param takeover1 Called with the new controller on taking over.
+   * @throws IOException if the address cannot be bound.
+   */
+  public ReplicationStandby(SteamBoilerCharacteristics config1, InetSocketAddress address,
+      int timeout1, Consumer<MySteamBoilerController> takeover1) throws IOException {
+    if (timeout1 <= 0) {
+      throw new IllegalArgumentException("invalid timeout"); //$NON-NLS-1$
+    }
+    this.config = config1;
+    this.timeout = timeout1;
+    this.takeover = takeover1;
+    int size = new MySteamBoilerController(config1).getCheckpointSize();
+    this.replica = new long[(size + 7) / 8];
+    this.indices = new int[this.replica.length];
+    this.values = new long[this.replica.length];
+    this.server = new ServerSocket();
+    this.server.bind(address);
+    this.receiver = new Thread(this::receive, "replication-standby"); //$NON-NLS-1$
+    this.receiver.setDaemon(true);
+    this.receiver.start();
+  }
+
+  /**
+   * Get the address the standby is listening on.
+   *
+   * @return the address.
+   */
+  public InetSocketAddress getAddress() {
+    return new InetSocketAddress(this.server.getInetAddress(), this.server.getLocalPort());
+  }
+
+  /**
+   * Get the sequence number of the last delta applied.
+   *
+   * @return the number of deltas applied since the current primary connected,
+   *         or zero if none has been.
+   */
+  public long getSequence() {
+    return this.sequence;
+  }
+
+  /**
+   * Get a copy of the replica.
+   *
+   * @return the last checkpoint received, padded to a whole number of words.
+   */
+  public synchronized ByteBuffer getReplica() {
+    ByteBuffer copy = ByteBuffer.allocate(this.replica.length * 8);
+    for (long word : this.replica) {
+      copy.putLong(word);
+    }
+    copy.flip();
+    return copy;
+  }
+
+  /**
+   * Check whether the standby has taken over.
+   *
+   * @return true if the primary went quiet and a controller has been restored.
+   */
+  public boolean isTakenOver() {
+    return this.controller != null;
+  }
+
+  /**
+   * Get the controller restored on taking over.
+   *
+   * @return the controller, or <code>null</code> if the standby has not taken
+   *         over.
+   */
+  public @Nullable MySteamBoilerController getController() {
+    return this.controller;
+  }
+
+  /**
+   * Accept primaries and apply their deltas until one goes quiet after sending
+   * some state, then take over. A primary which reconnects within the timeout
+   * replaces the replica with its own state.
+   */
+  private void receive() {
+    long deadline = Long.MAX_VALUE;
+    try {
+      while (true) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          break;
+        }
+        this.server.setSoTimeout((int) Math.min(left, Integer.MAX_VALUE));
+        Socket s;
+        try {
+          s = this.server.accept();
+        } catch (SocketTimeoutException e) {
+          break;
+        }
+        this.connection = s;
+        try {
+          follow(s);
+        } catch (SocketTimeoutException e) {
+          break;
+        } catch (IOException e) {
+          // The primary disconnected; wait for it to come back
+        } finally {
+          s.close();
+          this.connection = null;
+        }
+        if (this.sequence != 0) {
+          deadline = System.currentTimeMillis() + this.timeout;
+        }
+      }
+    } catch (IOException e) {
+      // Closed
+      return;
+    }
+    if (this.sequence != 0 && !this.server.isClosed()) {
+      takeOver();
+    }
+  }
+
+  /**
+   * Apply the frames sent by a primary until it disconnects or goes quiet. Each
+   * delta is read in full before any of it is applied.
+   *
+   * @param s The primary's connection.
+   * @throws SocketTimeoutException if the primary went quiet after sending
+   *                                some state.
+   * @throws IOException            if the primary disconnected or broke the
+   *                                protocol.
+   */
+  private void follow(Socket s) throws IOException {
+    s.setSoTimeout(this.timeout);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+    if (in.readInt() != ReplicationPrimary.MAGIC || in.readInt() != this.replica.length) {
+      throw new IOException("not a replication stream for this boiler"); //$NON-NLS-1$
+    }
+    long last = 0;
+    while (true) {
+      byte type;
+      try {
+        type = in.readByte();
+      } catch (SocketTimeoutException e) {
+        if (this.sequence == 0) {
+          throw new IOException("primary went quiet before sending any state"); //$NON-NLS-1$
+        }
+        throw e;
+      }
+      if (type == ReplicationPrimary.HEARTBEAT) {
+        continue;
+      } else if (type != ReplicationPrimary.DELTA) {
+        throw new IOException("unknown frame: " + type); //$NON-NLS-1$
+      }
+      long seq = in.readLong();
+      if (seq != last + 1) {
+        throw new IOException("delta " + seq + " out of sequence"); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      int count = in.readUnsignedShort();
+      if (count > this.replica.length) {
+        throw new IOException("delta of " + count + " words"); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      for (int i = 0; i != count; ++i) {
+        int index = in.readUnsignedShort();
+        if (index >= this.replica.length) {
+          throw new IOException("word " + index + " out of range"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        this.indices[i] = index;
+        this.values[i] = in.readLong();
+      }
+      synchronized (this) {
+        if (seq == 1) {
+          // A new primary starts from an empty record
+          Arrays.fill(this.replica, 0);
+        }
+        for (int i = 0; i != count; ++i) {
+          this.replica[this.indices[i]] = this.values[i];
+        }
+        this.sequence = seq;
+      }
+      last = seq;
+    }
+  }
+
+  /**
+   * Stop listening, restore a controller from the replica and hand it over.
+   */
+  private void takeOver() {
+    try {
+      this.server.close();
+    } catch (IOException e) {
+      // Only closing
+    }
+    MySteamBoilerController c = new MySteamBoilerController(this.config);
+    c.restore(getReplica());
+    this.controller = c;
+    this.takeover.accept(c);
+  }
+
+  /**
+   * Stop listening without taking over.
+   */
+  @Override
+  public void close() throws IOException {
+    this.server.close();
+    Socket s = this.connection;
+    if (s != null) {
+      s.close();
+    }
+  }
+
+  /**
+   * Run a standby for a controller of the default boiler, which reports when
+   * it takes over.
+   *
+   * @param args The port to listen on, and optionally the timeout (ms).
+   * @throws IOException if the port cannot be bound.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length != 1 && args.length != 2) {
+      System.err.println("usage: ReplicationStandby port [timeout]"); //$NON-NLS-1$
+      return;
+    }
+    int timeout1 = args.length == 2 ? Integer.parseInt(args[1])
+        : 4 * ReplicationPrimary.DEFAULT_HEARTBEAT;
+    ReplicationStandby standby = new ReplicationStandby(SteamBoilerCharacteristics.DEFAULT,
+        new InetSocketAddress(Integer.parseInt(args[0])), timeout1,
+        c -> System.out.println("took over in mode " + c.getMode())); //$NON-NLS-1$
+    standby.receiver.join();
+    System.out.println("applied " + standby.getSequence() + " deltas"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+}
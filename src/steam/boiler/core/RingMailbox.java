@@ -0,0 +1,161 @@
+package steam.boiler.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import steam.boiler.util.Mailbox;
+
+/**
+ * Fixed capacity mailbox which one thread can send messages to while another
+ * reads them, without locks. Messages are held in a ring of slots allocated
+ * up front; sending a message stores it in the next slot and then publishes
+ * the new end of the ring, so it never waits and never allocates.
+ *
+ * <p>The reader sees every message published so far, starting from the oldest
+ * one not yet discarded. Once it is done with them, {@link #discard(int)} frees
+ * the slots of the messages it has consumed for reuse, so one mailbox can carry
+ * any number of cycles. Only one thread may send, and only one may read and
+ * discard; either may be the same thread. {@link #reset()} is only for a
+ * mailbox which one thread both sends to and reads, between cycles.
+ *
+ * @author paula
+ *
+ */
+public final class RingMailbox implements Mailbox {
+
+  /**
+   * Slots holding the messages, indexed by position modulo their number.
+   */
+  private final Message[] slots;
+
+  /**
+   * Number of slots less one, used to reduce a position to an index.
+   */
+  private final int mask;
+
+  /**
+   * Position of the next message sent. Only the sender writes it.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Position of the oldest message not yet discarded. Only the reader writes it.
+   */
+  private final AtomicLong head = new AtomicLong();
+
+  /**
+   * The sender's last view of the head, so that the sender need only read the
+   * head when the ring appears full.
+   */
+  private long cachedHead;
+
+  /**
+   * Construct an empty mailbox.
+   *
+   * @param capacity Least number of messages which can be held at once; this
+   *                 is rounded up to a power of two.
+   */
+  public RingMailbox(int capacity) {
+    if (capacity <= 0 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("invalid capacity: " + capacity); //$NON-NLS-1$
+    }
+    int n = Integer.highestOneBit(capacity);
+    if (n < capacity) {
+      n <<= 1;
+    }
+    this.slots = new Message[n];
+    this.mask = n - 1;
+  }
+
+  /**
+   * Get the number of messages which can be held at once.
+   *
+   * @return the number of slots.
+   */
+  public int capacity() {
+    return this.slots.length;
+  }
+
+  /**
+   * Send a message.
+   *
+   * @param message The message.
+   * @throws IllegalStateException if every slot holds a message not yet discarded.
+   */
+  @Override
+  public void send(Message message) {
+    if (!offer(message)) {
+      throw new IllegalStateException("mailbox full"); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Send a message if there is room for it.
+   *
+   * @param message The message.
+   * @return true if the message was sent, or false if every slot holds a
+   *         message not yet discarded.
+   */
+  public boolean offer(Message message) {
+    long t = this.tail.get();
+    if (t - this.cachedHead == this.slots.length) {
+      this.cachedHead = this.head.get();
+      if (t - this.cachedHead == this.slots.length) {
+        return false;
+      }
+    }
+    this.slots[(int) t & this.mask] = message;
+    this.tail.lazySet(t + 1);
+    return true;
+  }
+
+  @Override
+  public Message read(int index) {
+    long h = this.head.get();
+    if (index < 0 || index >= this.tail.get() - h) {
+      throw new IndexOutOfBoundsException("no message at " + index); //$NON-NLS-1$
+    }
+    return this.slots[(int) (h + index) & this.mask];
+  }
+
+  @Override
+  public int size() {
+    return (int) (this.tail.get() - this.head.get());
+  }
+
+  /**
+   * Discard the oldest messages, freeing their slots. Only the reader may call
+   * this.
+   *
+   * @param count The number of messages to discard.
+   */
+  public void discard(int count) {
+    long h = this.head.get();
+    if (count < 0 || count > this.tail.get() - h) {
+      throw new IllegalArgumentException("cannot discard " + count); //$NON-NLS-1$
+    }
+    this.head.lazySet(h + count);
+  }
+
+  /**
+   * Discard every message published so far, ready for the next cycle. This is
+   * not safe while another thread may be sending: a message published after the
+   * reader last looked would be discarded unread. A reader on another thread
+   * than the sender must use {@link #discard(int)} with the number of messages
+   * it has consumed instead.
+   */
+  public void reset() {
+    this.head.lazySet(this.tail.get());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder("{"); //$NON-NLS-1$
+    int n = size();
+    for (int i = 0; i != n; ++i) {
+      if (i != 0) {
+        b.append(',');
+      }
+      b.append(MessageCodec.format(read(i)));
+    }
+    return b.append('}').toString();
+  }
+}
@@ -0,0 +1,35 @@
+package steam.boiler.core;
+
+/**
+ * Stage of a pipeline smoothing the readings of a sensor before the controller
+ * acts on them. A filter is fed one sample per cycle and returns the value the
+ * controller should use instead. Filters hold a fixed amount of state, take
+ * constant time per sample and do not allocate, so they can run on every cycle.
+ *
+ * <p>A filter belongs to one sensor of one controller, since it remembers the
+ * samples it has seen.
+ *
+ * @author paula
+ *
+ */
+@FunctionalInterface
+public interface SensorFilter {
+
+  /**
+   * Filter one sample.
+   *
+   * @param sample The raw reading.
+   * @return the filtered reading.
+   */
+  double apply(double sample);
+
+  /**
+   * Get a filter which feeds the output of this filter into another.
+   *
+   * @param next The filter applied second.
+   * @return the combined filter.
+   */
+  default SensorFilter andThen(SensorFilter next) {
+    return sample -> next.apply(apply(sample));
+  }
+}
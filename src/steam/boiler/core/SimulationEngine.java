@@ -0,0 +1,303 @@
+package steam.boiler.core;
+
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import org.eclipse.jdt.annotation.Nullable;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+
+/**
+ * Headless simulation of a controller connected to its physical units. Rather
+ * than stepping the physical model at a fixed rate, the engine jumps from one
+ * event to the next: transmissions between the controller and the physical
+ * units (every five seconds) and any actions scheduled on the model, such as
+ * injecting a fault. The model is advanced between events in steps of at most
+ * <code>maxStep</code> milliseconds.
+ *
+ * <p>Transmissions happen at the same simulated instants as when the model is
+ * clocked every <code>granularity</code> milliseconds and messages are
+ * exchanged whenever the elapsed time is a multiple of five seconds. With
+ * <code>maxStep</code> equal to <code>granularity</code> the model is clocked
+ * exactly as before and the controller sees identical messages. Larger steps
+ * trade the accuracy with which the physical model integrates time varying
+ * behaviour (such as the steam ramp) for speed; for behaviour which is constant
+ * between transmissions the result is the same.
+ *
+ * @author paula
+ *
+ */
+public final class SimulationEngine {
+
+  /**
+   * Time between transmissions of the controller and the physical units (ms).
+   */
+  public static final int TRANSMISSION_INTERVAL = 5000;
+
+  /**
+   * Default resolution of simulated time (ms).
+   */
+  public static final int DEFAULT_GRANULARITY = 100;
+
+  /**
+   * Number of messages each way which a single transmission can carry.
+   */
+  private static final int MAILBOX_CAPACITY = 1024;
+
+  /**
+   * Receives the messages exchanged at every transmission.
+   *
+   * @author paula
+   *
+   */
+  public interface Observer {
+    /**
+     * Called after the controller has processed a transmission. The mailboxes
+     * are reused by the next transmission, so must not be kept.
+     *
+     * @param elapsed  Time since the start of the current run (ms).
+     * @param incoming Messages sent by the physical units to the controller.
+     * @param outgoing Messages sent by the controller to the physical units.
+     * @return true to stop the current run.
+     */
+    boolean observe(int elapsed, Mailbox incoming, Mailbox outgoing);
+  }
+
+  /**
+   * An action applied to the physical units at a given time.
+   *
+   * @author paula
+   *
+   */
+  private static final class Event implements Comparable<Event> {
+
+    /**
+     * Simulated time at which the action is applied (ms).
+     */
+    final int time;
+
+    /**
+     * Order in which the event was scheduled, to break ties.
+     */
+    final long sequence;
+
+    /**
+     * The action to apply.
+     */
+    final Consumer<PhysicalUnits> action;
+
+    /**
+     * Construct an event.
+     *
+     * @param time1     Simulated time at which the action is applied (ms).
+     * @param sequence1 Order in which the event was scheduled.
+     * @param action1   The action to apply.
+     */
+    Event(int time1, long sequence1, Consumer<PhysicalUnits> action1) {
+      this.time = time1;
+      this.sequence = sequence1;
+      this.action = action1;
+    }
+
+    @Override
+    public int compareTo(Event o) {
+      if (this.time != o.time) {
+        return Integer.compare(this.time, o.time);
+      }
+      return Long.compare(this.sequence, o.sequence);
+    }
+  }
+
+  /**
+   * The controller being simulated.
+   */
+  private final MySteamBoilerController controller;
+
+  /**
+   * The physical units being simulated.
+   */
+  private final PhysicalUnits model;
+
+  /**
+   * Resolution of simulated time (ms).
+   */
+  private final int granularity;
+
+  /**
+   * Largest amount of time the model is advanced by in one step (ms).
+   */
+  private final int maxStep;
+
+  /**
+   * Actions scheduled on the physical units, earliest first.
+   */
+  private final PriorityQueue<Event> events = new PriorityQueue<>();
+
+  /**
+   * Notified after every step of the physical units, or <code>null</code>.
+   */
+  private @Nullable Consumer<PhysicalUnits> stepListener;
+
+  /**
+   * Number of events scheduled so far.
+   */
+  private long scheduled;
+
+  /**
+   * Simulated time (ms).
+   */
+  private int time;
+
+  /**
+   * Number of transmissions so far.
+   */
+  private long transmissions;
+
+  /**
+   * Messages from the physical units, reused by every transmission.
+   */
+  private final RingMailbox incoming = new RingMailbox(MAILBOX_CAPACITY);
+
+  /**
+   * Messages from the controller, reused by every transmission.
+   */
+  private final RingMailbox outgoing = new RingMailbox(MAILBOX_CAPACITY);
+
+  /**
+   * Construct an engine which clocks the model at the default granularity.
+   *
+   * @param controller1 The controller being simulated.
+   * @param model1      The physical units being simulated.
+   */
+  public SimulationEngine(MySteamBoilerController controller1, PhysicalUnits model1) {
+    this(controller1, model1, DEFAULT_GRANULARITY, DEFAULT_GRANULARITY);
+  }
+
+  /**
+   * Construct an engine.
+   *
+   * @param controller1  The controller being simulated.
+   * @param model1       The physical units being simulated.
+   * @param granularity1 Resolution of simulated time, which must divide the
+   *                     transmission interval (ms).
+   * @param maxStep1     Largest amount of time the model is advanced by in one
+   *                     step, which must be a multiple of the granularity (ms).
+   */
+  public SimulationEngine(MySteamBoilerController controller1, PhysicalUnits model1,
+      int granularity1, int maxStep1) {
+    if (granularity1 <= 0 || TRANSMISSION_INTERVAL % granularity1 != 0) {
+      throw new IllegalArgumentException("invalid granularity"); //$NON-NLS-1$
+    }
+    if (maxStep1 < granularity1 || maxStep1 % granularity1 != 0) {
+      throw new IllegalArgumentException("invalid maximum step"); //$NON-NLS-1$
+    }
+    this.controller = controller1;
+    this.model = model1;
+    this.granularity = granularity1;
+    this.maxStep = maxStep1;
+  }
+
+  /**
+   * Get the simulated time.
+   *
+   * @return the time simulated so far (ms).
+   */
+  public int getTime() {
+    return this.time;
+  }
+
+  /**
+   * Get the number of transmissions between the controller and the physical
+   * units so far.
+   *
+   * @return the number of controller cycles.
+   */
+  public long getTransmissions() {
+    return this.transmissions;
+  }
+
+  /**
+   * Inspect the physical units after every step they are advanced by, for
+   * example to watch the water level between transmissions. With a large
+   * <code>maxStep</code> there is one step per transmission, plus one per
+   * scheduled action.
+   *
+   * @param listener Notified after every step, or <code>null</code> for none.
+   */
+  public void setStepListener(@Nullable Consumer<PhysicalUnits> listener) {
+    this.stepListener = listener;
+  }
+
+  /**
+   * Schedule an action on the physical units, such as a fault. Times are rounded
+   * up to the granularity of the engine.
+   *
+   * @param at     Simulated time at which the action is applied (ms).
+   * @param action The action to apply.
+   */
+  public void schedule(int at, Consumer<PhysicalUnits> action) {
+    int rounded = ((at + this.granularity - 1) / this.granularity) * this.granularity;
+    this.events.add(new Event(Math.max(rounded, this.time), this.scheduled++, action));
+  }
+
+  /**
+   * Simulate for a given amount of time. Transmissions occur once the first
+   * granule has elapsed, and then every five seconds.
+   *
+   * @param duration The amount of time to simulate (ms).
+   * @param observer Notified after each transmission, or <code>null</code>.
+   * @return true if the observer stopped the run early.
+   */
+  public boolean run(int duration, @Nullable Observer observer) {
+    int start = this.time;
+    int end = start + ((duration + this.granularity - 1) / this.granularity) * this.granularity;
+    int nextTransmission = start + this.granularity;
+    while (this.time < end) {
+      advance(Math.min(end, nextTransmission));
+      if (this.time == nextTransmission) {
+        this.incoming.reset();
+        this.outgoing.reset();
+        this.model.transmit(this.incoming);
+        this.controller.clock(this.incoming, this.outgoing);
+        this.model.receive(this.outgoing);
+        this.transmissions++;
+        if (observer != null && observer.observe(nextTransmission - start - this.granularity,
+            this.incoming, this.outgoing)) {
+          return true;
+        }
+        nextTransmission += TRANSMISSION_INTERVAL;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Advance the physical units to a given time, applying any scheduled actions
+   * which fall due on the way.
+   *
+   * @param target The time to advance to (ms).
+   */
+  private void advance(int target) {
+    while (true) {
+      Event next = this.events.peek();
+      while (next != null && next.time <= this.time) {
+        this.events.poll();
+        next.action.accept(this.model);
+        next = this.events.peek();
+      }
+      if (this.time >= target) {
+        return;
+      }
+      int stop = target;
+      if (next != null && next.time < stop) {
+        stop = next.time;
+      }
+      int step = Math.min(stop - this.time, this.maxStep);
+      this.model.clock(step);
+      this.time += step;
+      Consumer<PhysicalUnits> l = this.stepListener;
+      if (l != null) {
+        l.accept(this.model);
+      }
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ActorRuntime;
+import steam.boiler.core.BoilerActor;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests run controllers as actors, each cycle being handed over from the test thread and
+ * answered on the actor's thread.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ActorTests {
+
+  /**
+   * Check that many boilers run as actors, in lockstep with their physical units, without
+   * emergency stopping.
+   */
+  @Test
+  public void test_actor_01() throws InterruptedException {
+    int boilers = 200;
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    PhysicalUnits[] models = new PhysicalUnits[boilers];
+    Mailbox[] replies = new Mailbox[boilers];
+    CountDownLatch[] done = new CountDownLatch[1];
+    try (ActorRuntime runtime = new ActorRuntime()) {
+      for (int i = 0; i != boilers; ++i) {
+        models[i] = new PhysicalUnits.Template(config).construct();
+        models[i].setMode(PhysicalUnits.Mode.WAITING);
+        runtime.spawn(i, config, (outgoing, boiler) -> {
+          replies[boiler] = outgoing;
+          done[0].countDown();
+        });
+      }
+      for (int cycle = 0; cycle != 120 / 5; ++cycle) {
+        done[0] = new CountDownLatch(boilers);
+        for (int i = 0; i != boilers; ++i) {
+          Mailbox incoming = new UnboundedMailbox(16);
+          models[i].transmit(incoming);
+          assertTrue(runtime.tell(i, incoming));
+        }
+        assertTrue(done[0].await(10, TimeUnit.SECONDS));
+        for (int i = 0; i != boilers; ++i) {
+          models[i].receive(replies[i]);
+          models[i].clock(5000);
+        }
+      }
+      for (int i = 0; i != boilers; ++i) {
+        BoilerActor actor = runtime.getActor(i);
+        assertNotNull(actor);
+        assertEquals(120 / 5, actor.getCycles());
+        assertNotEquals(MySteamBoilerController.State.EMERGENCY_STOP, actor.getMode());
+      }
+    }
+  }
+
+  /**
+   * Check that a boiler whose replies block does not hold up the others, and that its queue
+   * refuses cycles once full.
+   */
+  @Test
+  public void test_actor_02() throws InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    CountDownLatch stuck = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch others = new CountDownLatch(10);
+    try (ActorRuntime runtime = new ActorRuntime()) {
+      runtime.spawn(0, config, (outgoing, boiler) -> {
+        stuck.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      for (int i = 1; i <= 10; ++i) {
+        runtime.spawn(i, config, (outgoing, boiler) -> others.countDown());
+      }
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      // Once the first boiler is stuck replying, its queue fills up
+      Mailbox first = new UnboundedMailbox(16);
+      model.transmit(first);
+      assertTrue(runtime.tell(0, first));
+      assertTrue(stuck.await(10, TimeUnit.SECONDS));
+      for (int i = 0; i != BoilerActor.DEFAULT_QUEUE_CAPACITY; ++i) {
+        Mailbox incoming = new UnboundedMailbox(16);
+        model.transmit(incoming);
+        assertTrue(runtime.tell(0, incoming));
+      }
+      for (int i = 1; i <= 10; ++i) {
+        Mailbox incoming = new UnboundedMailbox(16);
+        model.transmit(incoming);
+        assertTrue(runtime.tell(i, incoming));
+      }
+      assertTrue(others.await(10, TimeUnit.SECONDS));
+      Mailbox incoming = new UnboundedMailbox(16);
+      model.transmit(incoming);
+      assertFalse(runtime.tell(0, incoming));
+      BoilerActor actor = runtime.getActor(0);
+      assertNotNull(actor);
+      assertEquals(1, actor.getRefused());
+      release.countDown();
+    }
+  }
+
+  /**
+   * Check that an actor whose reply callback throws carries on with the next cycles, rather than
+   * being left marked as running and never scheduled again.
+   */
+  @Test
+  public void test_actor_03() throws InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    AtomicInteger thrown = new AtomicInteger();
+    CountDownLatch failed = new CountDownLatch(1);
+    CountDownLatch replied = new CountDownLatch(2);
+    try {
+      BoilerActor actor = new BoilerActor(0, config, BoilerActor.DEFAULT_QUEUE_CAPACITY,
+          task -> pool.execute(() -> {
+            try {
+              task.run();
+            } catch (IllegalStateException e) {
+              failed.countDown();
+            }
+          }), (outgoing, boiler) -> {
+            if (thrown.getAndIncrement() == 0) {
+              throw new IllegalStateException("reply failed");
+            }
+            replied.countDown();
+          });
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      Mailbox incoming = new UnboundedMailbox(16);
+      model.transmit(incoming);
+      assertTrue(actor.tell(incoming));
+      assertTrue(failed.await(10, TimeUnit.SECONDS));
+      for (int i = 0; i != 2; ++i) {
+        incoming = new UnboundedMailbox(16);
+        model.transmit(incoming);
+        assertTrue(actor.tell(incoming));
+      }
+      assertTrue(replied.await(10, TimeUnit.SECONDS));
+      assertEquals(3, actor.getCycles());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Check that a runtime given an executor refuses cycles once closed, both through the runtime and
+   * told to its actors directly, and leaves the executor running. Also check that a cycle rejected
+   * by the executor is refused rather than left queued.
+   */
+  @Test
+  public void test_actor_04() throws InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    CountDownLatch replied = new CountDownLatch(1);
+    try {
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      ActorRuntime runtime = new ActorRuntime(pool, BoilerActor.DEFAULT_QUEUE_CAPACITY);
+      BoilerActor actor = runtime.spawn(0, config, (outgoing, boiler) -> replied.countDown());
+      assertEquals(MySteamBoilerController.State.WAITING, actor.getMode());
+      Mailbox incoming = new UnboundedMailbox(16);
+      model.transmit(incoming);
+      assertTrue(runtime.tell(0, incoming));
+      assertTrue(replied.await(10, TimeUnit.SECONDS));
+      runtime.close();
+      assertFalse(pool.isShutdown());
+      incoming = new UnboundedMailbox(16);
+      model.transmit(incoming);
+      assertFalse(runtime.tell(0, incoming));
+      assertFalse(actor.tell(incoming));
+      assertEquals(1, actor.getCycles());
+    } finally {
+      pool.shutdown();
+    }
+    AtomicInteger submitted = new AtomicInteger();
+    CountDownLatch clocked = new CountDownLatch(1);
+    BoilerActor actor = new BoilerActor(0, config, BoilerActor.DEFAULT_QUEUE_CAPACITY, task -> {
+      if (submitted.getAndIncrement() == 0) {
+        throw new RejectedExecutionException();
+      }
+      task.run();
+    }, (outgoing, boiler) -> clocked.countDown());
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    Mailbox incoming = new UnboundedMailbox(16);
+    model.transmit(incoming);
+    assertFalse(actor.tell(incoming));
+    assertTrue(actor.tell(incoming));
+    assertTrue(clocked.await(10, TimeUnit.SECONDS));
+    assertEquals(1, actor.getCycles());
+    assertEquals(0, actor.getRefused());
+  }
+}
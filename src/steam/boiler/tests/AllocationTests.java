@@ -0,0 +1,192 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+import static steam.boiler.tests.TestUtils.atleast;
+import static steam.boiler.tests.TestUtils.clockForWithout;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ControllerStatus;
+import steam.boiler.core.EmaFilter;
+import steam.boiler.core.MedianFilter;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.MySteamBoilerController.State;
+import steam.boiler.core.RateLimitFilter;
+import steam.boiler.core.SimulationEngine;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests check that the controller does not allocate memory once it has reached a steady
+ * state. The controller is clocked against simulated physical units, so that it stays in the
+ * mode under test. Allocation is measured using the per-thread allocation counters of the JVM.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class AllocationTests {
+
+  /**
+   * Number of cycles used to warm up the controller before measuring.
+   */
+  private static final int WARMUP = 20000;
+
+  /**
+   * Number of cycles measured in each round.
+   */
+  private static final int CYCLES = 1000;
+
+  /**
+   * Largest number of rounds of cycles measured.
+   */
+  private static final int ROUNDS = 5;
+
+  /**
+   * Check that clocking a controller in NORMAL mode allocates nothing.
+   */
+  @Test
+  public void test_allocation_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(120, controller, model, atleast(MODE_emergencystop));
+    assertEquals(0, allocatedDuring(controller, model, State.NORMAL));
+  }
+
+  /**
+   * Check that clocking a controller for multiple pump counts allocates nothing. With the default
+   * characteristics at least three pumps are needed to keep up with the steam at its maximal rate,
+   * and so for the controller to stay in NORMAL mode.
+   */
+  @Test
+  public void test_allocation_02() {
+    for (int numberOfPumps = 3; numberOfPumps <= 6; ++numberOfPumps) {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      config = config.setNumberOfPumps(numberOfPumps, config.getPumpCapacity(0));
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      clockForWithout(120, controller, model, atleast(MODE_emergencystop));
+      assertEquals(0, allocatedDuring(controller, model, State.NORMAL));
+    }
+  }
+
+  /**
+   * Check that taking a status snapshot of a controller allocates nothing.
+   */
+  @Test
+  public void test_allocation_03() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(60, controller, model, atleast(MODE_emergencystop));
+    assertEquals(State.NORMAL, controller.getMode());
+    ControllerStatus status = new ControllerStatus(config.getNumberOfPumps());
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    for (int i = 0; i != WARMUP; ++i) {
+      controller.getStatus(status);
+    }
+    long before = threads.getThreadAllocatedBytes(id);
+    long overhead = threads.getThreadAllocatedBytes(id) - before;
+    before = threads.getThreadAllocatedBytes(id);
+    for (int i = 0; i != CYCLES; ++i) {
+      controller.getStatus(status);
+    }
+    long after = threads.getThreadAllocatedBytes(id);
+    assertEquals(0, Math.max(0, after - before - overhead));
+  }
+
+  /**
+   * Check that clocking a controller which filters its readings allocates nothing.
+   */
+  @Test
+  public void test_allocation_04() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    controller.setFilters(new MedianFilter(5).andThen(new RateLimitFilter(100)),
+        new EmaFilter(0.5));
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(120, controller, model, atleast(MODE_emergencystop));
+    assertEquals(0, allocatedDuring(controller, model, State.NORMAL));
+  }
+
+  /**
+   * Keep clocking a controller against the physical units it controls, and determine how many
+   * bytes were allocated by the controller itself. Since the physical units follow the pump
+   * commands of the controller, the controller sees the traffic it would see in operation rather
+   * than one input repeated, which would soon disagree with its own commands. Only the calls to
+   * the controller are measured, and the controller must stay in the given mode throughout. As
+   * in {@link steam.boiler.benchmarks.ClockBenchmark}, the measurement is repeated and the best
+   * round is reported, since the JVM itself occasionally allocates while recompiling code on a
+   * path taken for the first time.
+   *
+   * @param controller
+   *          The controller under test.
+   * @param model
+   *          The physical units controlled.
+   * @param mode
+   *          The mode the controller is expected to stay in.
+   * @return The fewest bytes allocated whilst clocking the controller over a round of cycles.
+   */
+  private static long allocatedDuring(MySteamBoilerController controller, PhysicalUnits model,
+      State mode) {
+    assertEquals(mode, controller.getMode());
+    // Warm up so that class initialisation and buffer growth are out of the way
+    for (int i = 0; i != WARMUP; ++i) {
+      cycle(controller, model, mode);
+    }
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round != ROUNDS && best != 0; ++round) {
+      long allocated = 0;
+      for (int i = 0; i != CYCLES; ++i) {
+        allocated += cycle(controller, model, mode);
+      }
+      best = Math.min(best, allocated);
+    }
+    return best;
+  }
+
+  /**
+   * Advance the physical units by one transmission interval and exchange messages between them
+   * and the controller.
+   *
+   * @param controller
+   *          The controller under test.
+   * @param model
+   *          The physical units controlled.
+   * @param mode
+   *          The mode the controller is expected to be in after the cycle.
+   * @return The number of bytes allocated by the call to the controller.
+   */
+  private static long cycle(MySteamBoilerController controller, PhysicalUnits model, State mode) {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    Mailbox input = new UnboundedMailbox(100);
+    Mailbox output = new UnboundedMailbox(100);
+    model.clock(SimulationEngine.TRANSMISSION_INTERVAL);
+    model.transmit(input);
+    // Determine the cost of reading the counter itself
+    long before = threads.getThreadAllocatedBytes(id);
+    long overhead = threads.getThreadAllocatedBytes(id) - before;
+    before = threads.getThreadAllocatedBytes(id);
+    controller.clock(input, output);
+    long after = threads.getThreadAllocatedBytes(id);
+    model.receive(output);
+    assertEquals(mode, controller.getMode());
+    return Math.max(0, after - before - overhead);
+  }
+}
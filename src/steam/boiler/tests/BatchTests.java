@@ -0,0 +1,183 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.function.IntConsumer;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.BatchController;
+import steam.boiler.core.ControllerStatus;
+import steam.boiler.core.DecodedMailbox;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.MySteamBoilerController.State;
+import steam.boiler.core.SimulationEngine;
+import steam.boiler.model.LevelSensorModels;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests check that the batch controller reproduces the estimates and pump decisions of
+ * individual controllers exactly.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BatchTests {
+
+  /**
+   * Number of boilers simulated.
+   */
+  private static final int BOILERS = 8;
+
+  /**
+   * Check that, on every cycle of a fleet of healthy boilers starting from different levels, the
+   * batch advances each boiler to the same level estimate and opens the same pumps as its
+   * controller.
+   */
+  @Test
+  public void test_batch_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    PhysicalUnits[] models = new PhysicalUnits[BOILERS];
+    for (int i = 0; i != BOILERS; ++i) {
+      models[i] = new PhysicalUnits.Template(config).construct();
+      models[i].getBoiler().pumpInWater(40 * i);
+    }
+    int[] compared = compare(config, models, 60, cycle -> {
+      // No failures
+    });
+    assertTrue(compared[State.NORMAL.ordinal()] > 0);
+  }
+
+  /**
+   * Check that boilers with more pumps than fit in a mask are rejected.
+   */
+  @Test
+  public void test_batch_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    try {
+      new BatchController(config.setNumberOfPumps(BatchController.MAX_PUMPS + 1,
+          config.getPumpCapacity(0)), 1);
+      fail("accepted too many pumps");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Check that the batch still advances each boiler exactly as its controller does once pumps,
+   * the steam sensor or the level sensor fail, through the degraded and rescue modes.
+   */
+  @Test
+  public void test_batch_03() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    PhysicalUnits[] models = new PhysicalUnits[5];
+    for (int i = 0; i != models.length; ++i) {
+      models[i] = new PhysicalUnits.Template(config).construct();
+      models[i].getBoiler().pumpInWater(240);
+    }
+    int[] compared = compare(config, models, 60, cycle -> {
+      if (cycle == 20) {
+        for (int i : new int[] { 0, 4 }) {
+          models[i].setPump(0, new PumpModels.StuckClosed(0, config.getPumpCapacity(0), models[i]));
+        }
+        models[1].setSteamSensor(new SteamSensorModels.Stuck(models[1], -1));
+        models[2].setLevelSensor(new LevelSensorModels.StuckNegativeOne(models[2]));
+        models[3].setLevelSensor(new LevelSensorModels.Stuck(models[3], config.getCapacity() + 10));
+      } else if (cycle == 30) {
+        // Rescue with a failed pump
+        models[4].setLevelSensor(new LevelSensorModels.StuckNegativeOne(models[4]));
+      }
+    });
+    assertTrue(compared[State.NORMAL.ordinal()] > 0);
+    assertTrue(compared[State.DEGRADED.ordinal()] > 0);
+    assertTrue(compared[State.RESCUE.ordinal()] > 0);
+  }
+
+  /**
+   * Clock a controller for each of a set of boilers, and alongside them a batch of the same
+   * boilers fed the same readings. After every cycle, check that the batch has the same level
+   * estimate, steam rate and commanded pumps as each controller which controlled its pumps in
+   * that cycle, and that any boiler the batch stopped was also stopped by its controller. Then
+   * pass on to the batch the changes of mode and failed pumps which each controller made on its
+   * messages, or load the boiler whole while its controller is still initialising.
+   *
+   * @param config The characteristics of every boiler.
+   * @param models The physical units of the boilers.
+   * @param cycles The number of cycles to run.
+   * @param faults Called with the number of each cycle before it is run, to inject failures.
+   * @return the number of boiler cycles compared in each mode, indexed by ordinal.
+   */
+  private static int[] compare(SteamBoilerCharacteristics config, PhysicalUnits[] models,
+      int cycles, IntConsumer faults) {
+    int n = models.length;
+    MySteamBoilerController[] controllers = new MySteamBoilerController[n];
+    for (int i = 0; i != n; ++i) {
+      controllers[i] = new MySteamBoilerController(config);
+      models[i].setMode(PhysicalUnits.Mode.WAITING);
+    }
+    BatchController batch = new BatchController(config, n);
+    ControllerStatus status = new ControllerStatus(config.getNumberOfPumps());
+    DecodedMailbox decoded = new DecodedMailbox();
+    State[] before = new State[n];
+    int[] compared = new int[State.values().length];
+    for (int cycle = 0; cycle != cycles; ++cycle) {
+      faults.accept(cycle);
+      for (int i = 0; i != n; ++i) {
+        Mailbox incoming = new UnboundedMailbox(32);
+        Mailbox outgoing = new UnboundedMailbox(32);
+        models[i].transmit(incoming);
+        decoded.decode(incoming);
+        long open = 0;
+        for (int p = 0; p != decoded.count(MessageKind.PUMP_STATE_n_b); ++p) {
+          Message m = decoded.get(MessageKind.PUMP_STATE_n_b, p);
+          if (m.getBooleanParameter()) {
+            open |= 1L << m.getIntegerParameter();
+          }
+        }
+        batch.setReadings(i, decoded.value(MessageKind.LEVEL_v),
+            decoded.value(MessageKind.STEAM_v), open);
+        before[i] = controllers[i].getMode();
+        assertEquals(before[i], batch.getMode(i));
+        controllers[i].clock(incoming, outgoing);
+        models[i].receive(outgoing);
+        models[i].clock(SimulationEngine.TRANSMISSION_INTERVAL);
+      }
+      batch.clock();
+      for (int i = 0; i != n; ++i) {
+        controllers[i].getStatus(status);
+        if (before[i] == State.NORMAL || before[i] == State.DEGRADED
+            || before[i] == State.RESCUE) {
+          assertEquals(status.getMinLevel(), batch.getLow(i), 0);
+          assertEquals(status.getMaxLevel(), batch.getHigh(i), 0);
+          assertEquals(status.getSteam(), batch.getSteamRate(i), 0);
+          assertEquals(status.getCommanded(0), batch.getCommanded(i));
+          if (batch.getMode(i) == State.EMERGENCY_STOP) {
+            assertEquals(State.EMERGENCY_STOP, status.getMode());
+          }
+          ++compared[before[i].ordinal()];
+        }
+        if (before[i] == State.WAITING) {
+          batch.load(i, status);
+        } else {
+          batch.setMode(i, status.getMode());
+          if (batch.getFailed(i) != status.getFailed(0)) {
+            batch.setFailed(i, status.getFailed(0));
+          }
+        }
+      }
+    }
+    return compared;
+  }
+}
@@ -0,0 +1,77 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+import static steam.boiler.tests.TestUtils.atleast;
+import static steam.boiler.tests.TestUtils.clockForWithout;
+
+import java.nio.ByteBuffer;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check that a controller restored from a checkpoint carries on where the original
+ * left off.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class CheckpointTests {
+
+  /**
+   * Check that a controller restored mid-operation resumes in normal mode without going through
+   * initialisation again, and keeps the boiler going.
+   */
+  @Test
+  public void test_checkpoint_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController original = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, original, model, atleast(MODE_emergencystop));
+    ByteBuffer saved = ByteBuffer.allocate(original.getCheckpointSize());
+    original.checkpoint(saved);
+    assertEquals(0, saved.remaining());
+    saved.flip();
+    MySteamBoilerController restored = new MySteamBoilerController(config);
+    restored.restore(saved);
+    assertEquals(original.getMode(), restored.getMode());
+    // Restoring then saving again gives the same checkpoint
+    ByteBuffer again = ByteBuffer.allocate(restored.getCheckpointSize());
+    restored.checkpoint(again);
+    saved.flip();
+    again.flip();
+    assertEquals(saved, again);
+    clockForWithout(120, restored, model, atleast(MODE_emergencystop));
+    assertEquals(MySteamBoilerController.State.NORMAL, restored.getMode());
+  }
+
+  /**
+   * Check that a checkpoint cannot be restored into a controller for a different number of
+   * pumps.
+   */
+  @Test
+  public void test_checkpoint_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController original = new MySteamBoilerController(config);
+    ByteBuffer saved = ByteBuffer.allocate(original.getCheckpointSize());
+    original.checkpoint(saved);
+    saved.flip();
+    MySteamBoilerController other = new MySteamBoilerController(
+        config.setNumberOfPumps(6, config.getPumpCapacity(0)));
+    try {
+      other.restore(saved);
+      fail("restored a checkpoint for a different number of pumps");
+    } catch (IllegalArgumentException e) {
+      assertEquals(MySteamBoilerController.State.WAITING, other.getMode());
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.MessageCache;
+import steam.boiler.core.MessageCodec;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.Mailbox.Mode;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests check that every kind of message survives encoding and decoding, that the bytes a
+ * message is encoded in do not depend on the order of constants in the library, and that malformed
+ * input is rejected.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class CodecTests {
+
+  /**
+   * Pump numbers tried for each kind carrying one: the first, one the cache was built for, one
+   * beyond it and the largest which can be encoded.
+   */
+  private static final int[] PUMPS = { 0, 3, 4, MessageCodec.MAX_PUMP };
+
+  /**
+   * Check that every kind of message, with every pump number and mode, decodes to the message it
+   * was encoded from and takes exactly the bytes size() says.
+   */
+  @Test
+  public void test_codec_01() {
+    MessageCodec codec = new MessageCodec(new MessageCache(4));
+    for (MessageKind kind : MessageKind.values()) {
+      for (Message m : examples(kind)) {
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+        MessageCodec.encode(m, buffer);
+        assertEquals(MessageCodec.format(m), MessageCodec.size(m), buffer.position());
+        buffer.flip();
+        Message decoded = codec.decode(buffer);
+        assertEquals(kind, decoded.getKind());
+        assertEquals(MessageCodec.format(m), MessageCodec.format(decoded));
+        assertFalse(buffer.hasRemaining());
+      }
+    }
+  }
+
+  /**
+   * Check that kinds and modes are encoded by their fixed tags, and that no two kinds or modes
+   * share one.
+   */
+  @Test
+  public void test_codec_02() {
+    assertEquals("0004", bytes(new Message(MessageKind.MODE_m, Mode.EMERGENCY_STOP)));
+    assertEquals("0001", bytes(new Message(MessageKind.MODE_m, Mode.NORMAL)));
+    assertEquals("01", bytes(new Message(MessageKind.PROGRAM_READY)));
+    assertEquals("030002", bytes(new Message(MessageKind.OPEN_PUMP_n, 2)));
+    assertEquals("047fff", bytes(new Message(MessageKind.CLOSE_PUMP_n, MessageCodec.MAX_PUMP)));
+    assertEquals("10ffff",
+        bytes(new Message(MessageKind.PUMP_STATE_n_b, MessageCodec.MAX_PUMP, true)));
+    assertEquals("117fff",
+        bytes(new Message(MessageKind.PUMP_CONTROL_STATE_n_b, MessageCodec.MAX_PUMP, false)));
+    assertEquals("123ff8000000000000", bytes(new Message(MessageKind.LEVEL_v, 1.5)));
+    assertEquals("1b", bytes(new Message(MessageKind.STEAM_OUTCOME_FAILURE_ACKNOWLEDGEMENT)));
+    Set<String> tags = new HashSet<>();
+    for (MessageKind kind : MessageKind.values()) {
+      assertTrue(kind.toString(), tags.add(bytes(examples(kind)[0]).substring(0, 2)));
+    }
+    Set<String> modes = new HashSet<>();
+    for (Mode mode : Mode.values()) {
+      assertTrue(mode.toString(), modes.add(bytes(new Message(MessageKind.MODE_m, mode))));
+    }
+  }
+
+  /**
+   * Check that pump numbers which cannot be encoded are rejected on both sides, rather than being
+   * silently truncated to another pump.
+   */
+  @Test
+  public void test_codec_03() {
+    ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+    int[] invalid = { -1, MessageCodec.MAX_PUMP + 1 };
+    for (int pump : invalid) {
+      try {
+        MessageCodec.encode(new Message(MessageKind.OPEN_PUMP_n, pump), buffer);
+        fail("encoded pump " + pump);
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+      try {
+        MessageCodec.encode(new Message(MessageKind.PUMP_STATE_n_b, pump, true), buffer);
+        fail("encoded pump state " + pump);
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+    MessageCodec codec = new MessageCodec(new MessageCache(4));
+    try {
+      // OPEN_PUMP_n with the top bit set, which only a PUMP_STATE_n_b may carry
+      codec.decode(ByteBuffer.wrap(new byte[] { 3, (byte) 0x80, 2 }));
+      fail("decoded pump beyond " + MessageCodec.MAX_PUMP);
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Check that a kind or mode byte without a tag is rejected.
+   */
+  @Test
+  public void test_codec_04() {
+    MessageCodec codec = new MessageCodec(new MessageCache(4));
+    byte[][] frames = { { (byte) 0xFF }, { (byte) MessageKind.values().length },
+        { 0, (byte) 0xFF }, { 0, (byte) Mode.values().length } };
+    for (byte[] frame : frames) {
+      try {
+        codec.decode(ByteBuffer.wrap(frame));
+        fail("decoded unknown tag " + frame[frame.length - 1]);
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+  }
+
+  /**
+   * Check that a frame without messages is just its header and decodes to nothing, while a buffer
+   * too short for even the header is rejected.
+   */
+  @Test
+  public void test_codec_05() {
+    Mailbox empty = new UnboundedMailbox(1);
+    assertEquals(MessageCodec.FRAME_HEADER_SIZE, MessageCodec.frameSize(empty));
+    assertEquals("0000", TestUtils.frame(empty));
+    MessageCodec codec = new MessageCodec(new MessageCache(4));
+    Mailbox decoded = new UnboundedMailbox(1);
+    assertEquals(0, codec.decodeFrame(ByteBuffer.wrap(new byte[2]), decoded));
+    assertEquals(0, decoded.size());
+    try {
+      codec.decodeFrame(ByteBuffer.allocate(0), decoded);
+      fail("decoded an empty buffer");
+    } catch (BufferUnderflowException e) {
+      // Expected
+    }
+    try {
+      // A header promising one message, with none following
+      codec.decodeFrame(ByteBuffer.wrap(new byte[] { 0, 1 }), decoded);
+      fail("decoded a truncated frame");
+    } catch (BufferUnderflowException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Check that a frame holding one of every kind of message decodes to the same messages, in the
+   * same order.
+   */
+  @Test
+  public void test_codec_06() {
+    Mailbox mailbox = new UnboundedMailbox(256);
+    for (MessageKind kind : MessageKind.values()) {
+      for (Message m : examples(kind)) {
+        mailbox.send(m);
+      }
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.frameSize(mailbox));
+    MessageCodec.encodeFrame(mailbox, buffer);
+    assertFalse(buffer.hasRemaining());
+    buffer.flip();
+    Mailbox decoded = new UnboundedMailbox(mailbox.size());
+    assertEquals(mailbox.size(), new MessageCodec(new MessageCache(4)).decodeFrame(buffer, decoded));
+    assertEquals(TestUtils.frame(mailbox), TestUtils.frame(decoded));
+    for (int i = 0; i != mailbox.size(); ++i) {
+      assertEquals(MessageCodec.format(mailbox.read(i)), MessageCodec.format(decoded.read(i)));
+    }
+  }
+
+  /**
+   * Construct example messages of a given kind, covering every mode or every pump number in
+   * {@link #PUMPS} as the kind requires.
+   *
+   * @param kind
+   *          The kind of message.
+   * @return The examples.
+   */
+  private static Message[] examples(MessageKind kind) {
+    switch (kind) {
+      case MODE_m: {
+        Mode[] modes = Mode.values();
+        Message[] r = new Message[modes.length];
+        for (int i = 0; i != modes.length; ++i) {
+          r[i] = new Message(kind, modes[i]);
+        }
+        return r;
+      }
+      case LEVEL_v:
+      case STEAM_v:
+        return new Message[] { new Message(kind, 0.0), new Message(kind, 271.625),
+            new Message(kind, -1.0) };
+      case PUMP_STATE_n_b:
+      case PUMP_CONTROL_STATE_n_b: {
+        Message[] r = new Message[2 * PUMPS.length];
+        for (int i = 0; i != PUMPS.length; ++i) {
+          r[2 * i] = new Message(kind, PUMPS[i], false);
+          r[2 * i + 1] = new Message(kind, PUMPS[i], true);
+        }
+        return r;
+      }
+      default:
+        if (kind.toString().endsWith("_n")) {
+          Message[] r = new Message[PUMPS.length];
+          for (int i = 0; i != PUMPS.length; ++i) {
+            r[i] = new Message(kind, PUMPS[i]);
+          }
+          return r;
+        }
+        return new Message[] { new Message(kind) };
+    }
+  }
+
+  /**
+   * Encode a single message.
+   *
+   * @param message
+   *          The message.
+   * @return The bytes it is encoded in, in hexadecimal.
+   */
+  private static String bytes(Message message) {
+    ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.size(message));
+    MessageCodec.encode(message, buffer);
+    StringBuilder r = new StringBuilder();
+    for (byte b : buffer.array()) {
+      r.append(String.format("%02x", Byte.valueOf(b)));
+    }
+    return r.toString();
+  }
+}
@@ -0,0 +1,105 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static steam.boiler.tests.TestUtils.MODE_degraded;
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+import static steam.boiler.tests.TestUtils.PUMP_FAILURE_DETECTION;
+import static steam.boiler.tests.TestUtils.atleast;
+import static steam.boiler.tests.TestUtils.clockForWithout;
+import static steam.boiler.tests.TestUtils.clockUntil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.BoilerCounters;
+import steam.boiler.core.MetricsEndpoint;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.MySteamBoilerController.State;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check the counters fed by controllers, and the endpoint exposing them.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class CounterTests {
+
+  /**
+   * Check that the counters follow a controller through initialisation into normal mode, and
+   * then into degraded mode once a pump fails.
+   */
+  @Test
+  public void test_counters_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(2, config.getPumpCapacity(0));
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    BoilerCounters counters = new BoilerCounters();
+    controller.setCycleListener(counters.listener(controller));
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.getBoiler().pumpInWater(250);
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(25, controller, model, atleast(MODE_emergencystop));
+    model.setPump(0, new PumpModels.StuckClosed(0, 0, model));
+    clockUntil(60, controller, model, atleast(MODE_degraded, PUMP_FAILURE_DETECTION(0)));
+    assertEquals(1, counters.getTransitions(State.WAITING, State.READY));
+    assertEquals(1, counters.getTransitions(State.READY, State.NORMAL));
+    assertEquals(1, counters.getTransitions(State.NORMAL, State.DEGRADED));
+    assertEquals(0, counters.getTransitions(State.DEGRADED, State.NORMAL));
+    assertEquals(1, counters.getDetections(MessageKind.PUMP_FAILURE_DETECTION_n));
+    assertEquals(0, counters.getDetections(MessageKind.LEVEL_FAILURE_DETECTION));
+    long residency = 0;
+    for (State s : State.values()) {
+      residency += counters.getResidency(s);
+    }
+    assertEquals(5 * counters.getCycles(), residency);
+  }
+
+  /**
+   * Check that the endpoint serves the counters in the text exposition format.
+   *
+   * @throws IOException if the endpoint cannot be reached.
+   */
+  @Test
+  public void test_counters_02() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    BoilerCounters counters = new BoilerCounters();
+    controller.setCycleListener(counters.listener(controller));
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(60, controller, model, atleast(MODE_emergencystop));
+    try (MetricsEndpoint endpoint = new MetricsEndpoint(counters, 0)) {
+      URL url = new URL("http", "localhost", endpoint.getAddress().getPort(),
+          MetricsEndpoint.PATH);
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      assertEquals(200, connection.getResponseCode());
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      try (InputStream in = connection.getInputStream()) {
+        byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+          body.write(buffer, 0, n);
+        }
+      }
+      String text = new String(body.toByteArray(), StandardCharsets.UTF_8);
+      assertTrue(text.contains("\nsteam_boiler_cycles_total " + counters.getCycles() + "\n"));
+      assertTrue(
+          text.contains("steam_boiler_transitions_total{from=\"WAITING\",to=\"READY\"} 1\n"));
+      assertTrue(
+          text.contains("steam_boiler_detections_total{kind=\"STEAM_FAILURE_DETECTION\"} 0\n"));
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static steam.boiler.tests.TestUtils.PROGRAM_READY;
+import static steam.boiler.tests.TestUtils.atleast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationEngine;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check the headless simulation engine against stepping the physical units at the
+ * default granularity.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class EngineTests {
+
+  /**
+   * Check that, while nothing varies between transmissions, clocking the physical units once per
+   * cycle gives the controller the same messages, at the same times, as clocking them every
+   * 100ms. This holds while an empty boiler is filled during initialisation: no steam is produced
+   * until the program is ready, and open pumps deliver a constant inflow. Levels are only compared
+   * to within rounding, since fifty small steps do not add up to exactly one large one. For the
+   * same reason the boiler starts with a little water, so that no transmission sees a level
+   * exactly on a threshold, where rounding alone would decide which side it falls.
+   */
+  @Test
+  public void test_engine_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    checkEquivalent(config, 3);
+  }
+
+  /**
+   * Check that an action scheduled on the physical units is applied at the same time, rounded up
+   * to the granularity, and that transmissions happen at the same rate, whatever the step.
+   */
+  @Test
+  public void test_engine_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    int[] steps = { SimulationEngine.DEFAULT_GRANULARITY, SimulationEngine.TRANSMISSION_INTERVAL };
+    for (int step : steps) {
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      SimulationEngine engine = new SimulationEngine(controller, model,
+          SimulationEngine.DEFAULT_GRANULARITY, step);
+      int[] applied = { -1 };
+      engine.schedule(12345, m -> applied[0] = engine.getTime());
+      engine.run(60 * 1000, null);
+      assertEquals(12400, applied[0]);
+      assertEquals(60 * 1000, engine.getTime());
+      assertEquals(60 / 5, engine.getTransmissions());
+    }
+  }
+
+  /**
+   * Check that the step listener sees every step the physical units are clocked by, and that a
+   * scheduled action splits the step it falls in.
+   */
+  @Test
+  public void test_engine_03() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    int[][] cases = { { SimulationEngine.DEFAULT_GRANULARITY, 600 },
+        { SimulationEngine.TRANSMISSION_INTERVAL, 14 } };
+    for (int[] c : cases) {
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      SimulationEngine engine = new SimulationEngine(controller, model,
+          SimulationEngine.DEFAULT_GRANULARITY, c[0]);
+      int[] steps = { 0 };
+      engine.schedule(12345, m -> {
+        // Nothing to apply
+      });
+      engine.setStepListener(m -> {
+        assertTrue(m == model);
+        steps[0]++;
+      });
+      engine.run(60 * 1000, null);
+      assertEquals(c[1], steps[0]);
+    }
+  }
+
+  /**
+   * Check the same as test_engine_01 while an overfull boiler is drained during initialisation,
+   * where the open valve gives a constant outflow.
+   */
+  @Test
+  public void test_engine_04() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    checkEquivalent(config, config.getMaximalLimitLevel() - 3);
+  }
+
+  /**
+   * Simulate a boiler until the controller declares itself ready, once stepping the physical units
+   * at the default granularity and once per transmission, and check both exchange the same
+   * messages at the same times.
+   *
+   * @param config
+   *          The characteristics of the boiler.
+   * @param water
+   *          The amount of water (in L) in the boiler at the start.
+   */
+  private static void checkEquivalent(SteamBoilerCharacteristics config, double water) {
+    List<List<Message>> stepped = new ArrayList<>();
+    List<List<Message>> fast = new ArrayList<>();
+    List<Integer> steppedTimes = new ArrayList<>();
+    List<Integer> fastTimes = new ArrayList<>();
+    run(config, water, SimulationEngine.DEFAULT_GRANULARITY, stepped, steppedTimes);
+    run(config, water, SimulationEngine.TRANSMISSION_INTERVAL, fast, fastTimes);
+    assertTrue(stepped.size() > 2);
+    assertEquals(steppedTimes, fastTimes);
+    assertEquals(stepped.size(), fast.size());
+    for (int i = 0; i != stepped.size(); ++i) {
+      List<Message> expected = stepped.get(i);
+      List<Message> actual = fast.get(i);
+      assertEquals("transmission " + i, expected.size(), actual.size());
+      for (int j = 0; j != expected.size(); ++j) {
+        Message e = expected.get(j);
+        Message a = actual.get(j);
+        assertEquals(e.toString(), e.getKind(), a.getKind());
+        assertEquals(e.toString(), e.getIntegerParameter(), a.getIntegerParameter());
+        assertEquals(e.toString(), e.getBooleanParameter(), a.getBooleanParameter());
+        assertEquals(e.toString(), e.getModeParameter(), a.getModeParameter());
+        assertEquals(e.toString(), e.getDoubleParameter(), a.getDoubleParameter(), 1e-6);
+      }
+    }
+  }
+
+  /**
+   * Simulate a boiler during initialisation, recording the messages exchanged on every
+   * transmission until the controller declares itself ready.
+   *
+   * @param config
+   *          The characteristics of the boiler.
+   * @param water
+   *          The amount of water (in L) in the boiler at the start.
+   * @param maxStep
+   *          The largest step the physical units are clocked by (ms).
+   * @param frames
+   *          Where the messages of each transmission are recorded, incoming then outgoing.
+   * @param times
+   *          Where the time of each transmission is recorded.
+   */
+  private static void run(SteamBoilerCharacteristics config, double water, int maxStep,
+      List<List<Message>> frames, List<Integer> times) {
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.getBoiler().pumpInWater(water);
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    SimulationEngine engine = new SimulationEngine(controller, model,
+        SimulationEngine.DEFAULT_GRANULARITY, maxStep);
+    engine.run(120 * 1000, (elapsed, incoming, outgoing) -> {
+      List<Message> frame = new ArrayList<>();
+      for (int i = 0; i != incoming.size(); ++i) {
+        frame.add(incoming.read(i));
+      }
+      for (int i = 0; i != outgoing.size(); ++i) {
+        frame.add(outgoing.read(i));
+      }
+      frames.add(frame);
+      times.add(Integer.valueOf(elapsed));
+      return atleast(PROGRAM_READY).matches(outgoing);
+    });
+  }
+}
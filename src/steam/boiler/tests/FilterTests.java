@@ -0,0 +1,119 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+import static steam.boiler.tests.TestUtils.atleast;
+import static steam.boiler.tests.TestUtils.clockForWithout;
+import static steam.boiler.tests.TestUtils.clockOnceExpecting;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.EmaFilter;
+import steam.boiler.core.MedianFilter;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.RateLimitFilter;
+import steam.boiler.core.SensorFilter;
+import steam.boiler.model.LevelSensorModels;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check the sensor filters, and that a controller filtering its readings still
+ * keeps the boiler going.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class FilterTests {
+
+  /**
+   * Check that a median filter removes an isolated spike but follows a step change.
+   */
+  @Test
+  public void test_filter_01() {
+    SensorFilter f = new MedianFilter(3);
+    double[] samples = { 10, 10, 500, 10, 10, 20, 20, 20, 30 };
+    double[] expected = { 10, 10, 10, 10, 10, 10, 20, 20, 20 };
+    for (int i = 0; i != samples.length; ++i) {
+      assertEquals(expected[i], f.apply(samples[i]), 0);
+    }
+  }
+
+  /**
+   * Check that a moving average damps changes, and that a rate limiter bounds them.
+   */
+  @Test
+  public void test_filter_02() {
+    SensorFilter ema = new EmaFilter(0.5);
+    assertEquals(0, ema.apply(0), 0);
+    assertEquals(5, ema.apply(10), 0);
+    assertEquals(7.5, ema.apply(10), 0);
+    SensorFilter limit = new RateLimitFilter(2);
+    assertEquals(0, limit.apply(0), 0);
+    assertEquals(2, limit.apply(10), 0);
+    assertEquals(4, limit.apply(10), 0);
+    assertEquals(2, limit.apply(-10), 0);
+    assertEquals(3, limit.apply(3), 0);
+  }
+
+  /**
+   * Check that filters can be chained, and that invalid parameters are rejected.
+   */
+  @Test
+  public void test_filter_03() {
+    SensorFilter f = new MedianFilter(3).andThen(new RateLimitFilter(1));
+    assertEquals(10, f.apply(10), 0);
+    assertEquals(10, f.apply(500), 0);
+    assertEquals(11, f.apply(500), 0);
+    try {
+      new MedianFilter(0);
+      fail("accepted an empty window");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      new EmaFilter(0);
+      fail("accepted a zero weight");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Check that a controller filtering both its readings gets through initialisation and keeps
+   * the boiler in normal mode.
+   */
+  @Test
+  public void test_filter_04() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    controller.setFilters(new MedianFilter(3), new MedianFilter(3).andThen(new EmaFilter(0.5)));
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    assertEquals(MySteamBoilerController.State.NORMAL, controller.getMode());
+  }
+
+  /**
+   * Check that a step of the level reading past its lower limit stops the boiler on the cycle it
+   * is first read, even though the level filter, which only the pump decision sees, has not
+   * followed it yet.
+   */
+  @Test
+  public void test_filter_05() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    controller.setFilters(new MedianFilter(5), new MedianFilter(5));
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    assertEquals(MySteamBoilerController.State.NORMAL, controller.getMode());
+    model.setLevelSensor(new LevelSensorModels.Stuck(model, 0));
+    clockOnceExpecting(controller, model, atleast(MODE_emergencystop));
+    assertEquals(MySteamBoilerController.State.EMERGENCY_STOP, controller.getMode());
+  }
+}
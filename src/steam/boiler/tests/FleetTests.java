@@ -0,0 +1,104 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static steam.boiler.tests.TestUtils.frame;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.BoilerFleet;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests clock fleets of boilers in parallel, and check them against the same boilers
+ * clocked one at a time.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class FleetTests {
+
+  /**
+   * Check that, on every cycle, each controller of a fleet with differing pump counts sends the
+   * same messages as a controller for the same boiler clocked on its own, and that both end up in
+   * the same mode. Which mode that is depends on whether the boiler's pumps can keep up, which is
+   * not what is being tested.
+   */
+  @Test
+  public void test_fleet_01() {
+    int boilers = 48;
+    SteamBoilerCharacteristics[] configs = new SteamBoilerCharacteristics[boilers];
+    MySteamBoilerController[] references = new MySteamBoilerController[boilers];
+    PhysicalUnits[] models = new PhysicalUnits[boilers];
+    for (int i = 0; i != boilers; ++i) {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      configs[i] = config.setNumberOfPumps(3 + i % 3, config.getPumpCapacity(0));
+      references[i] = new MySteamBoilerController(configs[i]);
+      models[i] = new PhysicalUnits.Template(configs[i]).construct();
+      models[i].getBoiler().pumpInWater(10 * i);
+      models[i].setMode(PhysicalUnits.Mode.WAITING);
+    }
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      BoilerFleet fleet = new BoilerFleet(configs, pool);
+      assertEquals(boilers, fleet.size());
+      Mailbox[] incoming = new Mailbox[boilers];
+      Mailbox[] outgoing = new Mailbox[boilers];
+      for (int cycle = 0; cycle != 180 / 5; ++cycle) {
+        for (int i = 0; i != boilers; ++i) {
+          incoming[i] = new UnboundedMailbox(32);
+          outgoing[i] = new UnboundedMailbox(32);
+          models[i].transmit(incoming[i]);
+        }
+        long makespan = fleet.clock(incoming, outgoing);
+        assertTrue(makespan > 0);
+        assertEquals(makespan, fleet.getLastMakespan());
+        for (int i = 0; i != boilers; ++i) {
+          Mailbox expected = new UnboundedMailbox(32);
+          references[i].clock(incoming[i], expected);
+          assertEquals(frame(expected), frame(outgoing[i]));
+          models[i].receive(outgoing[i]);
+          models[i].clock(5000);
+        }
+      }
+      for (int i = 0; i != boilers; ++i) {
+        assertEquals(references[i].getMode(), fleet.getController(i).getMode());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Check that the characteristics reported for a boiler follow a reconfiguration of its
+   * controller once it takes effect.
+   */
+  @Test
+  public void test_fleet_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    SteamBoilerCharacteristics retuned = config.setPumpCapacity(0, config.getPumpCapacity(0) / 2);
+    BoilerFleet fleet = new BoilerFleet(new SteamBoilerCharacteristics[] { config, config });
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    fleet.getController(1).reconfigure(retuned);
+    assertSame(config, fleet.getCharacteristics(1));
+    Mailbox[] incoming = new Mailbox[2];
+    Mailbox[] outgoing = { new UnboundedMailbox(32), new UnboundedMailbox(32) };
+    for (int i = 0; i != 2; ++i) {
+      incoming[i] = new UnboundedMailbox(32);
+      model.transmit(incoming[i]);
+    }
+    fleet.clock(incoming, outgoing);
+    assertSame(config, fleet.getCharacteristics(0));
+    assertSame(retuned, fleet.getCharacteristics(1));
+  }
+}
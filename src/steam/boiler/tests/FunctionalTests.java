@@ -1,8 +1,10 @@
 package steam.boiler.tests;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static steam.boiler.tests.TestUtils.LEVEL_FAILURE_DETECTION;
+import static steam.boiler.tests.TestUtils.LEVEL_REPAIRED_ACKNOWLEDGEMENT;
 
 import static steam.boiler.tests.TestUtils.MODE_degraded;
 import static steam.boiler.tests.TestUtils.MODE_emergencystop;
@@ -11,8 +13,11 @@ import static steam.boiler.tests.TestUtils.MODE_normal;
 import static steam.boiler.tests.TestUtils.MODE_rescue;
 import static steam.boiler.tests.TestUtils.PROGRAM_READY;
 import static steam.boiler.tests.TestUtils.PUMP_CONTROL_FAILURE_DETECTION;
+import static steam.boiler.tests.TestUtils.PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT;
 import static steam.boiler.tests.TestUtils.PUMP_FAILURE_DETECTION;
+import static steam.boiler.tests.TestUtils.PUMP_REPAIRED_ACKNOWLEDGEMENT;
 import static steam.boiler.tests.TestUtils.STEAM_FAILURE_DETECTION;
+import static steam.boiler.tests.TestUtils.STEAM_REPAIRED_ACKNOWLEDGEMENT;
 import static steam.boiler.tests.TestUtils.atleast;
 import static steam.boiler.tests.TestUtils.clockForWithout;
 import static steam.boiler.tests.TestUtils.clockOnceExpecting;
@@ -216,6 +221,22 @@ public class FunctionalTests {
     }
   }
 
+  /**
+   * Check that steam boiler operates correctly in normal mode with more pumps than fit in one word
+   * of the pump bitmask. The 70 pumps have the combined capacity of six default pumps. Since
+   * initialisation only opens the first two pumps, which here would take minutes to fill the
+   * boiler, the boiler starts half way through the normal range.
+   */
+  @Test
+  public void test_normal_operation_05() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(70, 6 * config.getPumpCapacity(0) / 70);
+    double water = (config.getMinimalNormalLevel() + config.getMaximalNormalLevel()) / 2;
+    for (int t = 20; t <= 560; t += 60) {
+      test_normal_operation(t, config, water);
+    }
+  }
+
   /**
    * Operate the steam boiler system for a given amount of time, and with a given number of pumps.
    * Since the system it otherwise ideal, we're expecting the water level to be held within the
@@ -225,14 +246,29 @@ public class FunctionalTests {
    *          The time (in s) to operate the boiler before checking the levels.
    * @param numberOfPumps
    *          The number of pumps to use in this configuration.
-   * @param config
-   *          The boiler characteristics to use for this run.
    */
   private void test_normal_operation(int time, int numberOfPumps) {
     SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
-    config = config.setNumberOfPumps(numberOfPumps, config.getPumpCapacity(0));
+    test_normal_operation(time, config.setNumberOfPumps(numberOfPumps, config.getPumpCapacity(0)),
+        0);
+  }
+
+  /**
+   * Operate the steam boiler system for a given amount of time with given characteristics, and
+   * check that the water level is held within the normal range.
+   *
+   * @param time
+   *          The time (in s) to operate the boiler before checking the levels.
+   * @param config
+   *          The boiler characteristics to use for this run.
+   * @param water
+   *          The amount of water (in L) in the boiler at the start.
+   */
+  private void test_normal_operation(int time, SteamBoilerCharacteristics config, double water) {
+    int numberOfPumps = config.getNumberOfPumps();
     MySteamBoilerController controller = new MySteamBoilerController(config);
     PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.getBoiler().pumpInWater(water);
     model.setMode(PhysicalUnits.Mode.WAITING);
     // Clock system for a given amount of time. We're not expecting anything to go
     // wrong during this time.
@@ -421,6 +457,100 @@ public class FunctionalTests {
     clockOnceExpecting(controller, model, atleast(MODE_normal));
   }
 
+  /**
+   * Check controller enters degraded mode after a pump failure in the second word of the pump
+   * bitmask. As in test_degraded_operation_03, the 66 pumps have the combined capacity of two
+   * default pumps, which is not enough at full exhaust. Thus, the last pump must be used.
+   */
+  @Test
+  public void test_degraded_operation_08() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(66, 2 * config.getPumpCapacity(0) / 66);
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.getBoiler().pumpInWater(250);
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(25, controller, model, atleast(MODE_emergencystop));
+    // Now, break the last pump by fixing it closed.
+    model.setPump(65, new PumpModels.StuckClosed(65, 0, model));
+    clockUntil(60, controller, model, atleast(MODE_degraded, PUMP_FAILURE_DETECTION(65)));
+  }
+
+  /**
+   * Check controller returns to normal mode once a failed steam sensor is repaired, acknowledging
+   * the repair, and that it stays in degraded mode, reporting it every cycle, until then.
+   */
+  @Test
+  public void test_degraded_operation_09() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    model.setSteamSensor(new SteamSensorModels.StuckNegativeOne(model));
+    clockOnceExpecting(controller, model, atleast(MODE_degraded, STEAM_FAILURE_DETECTION));
+    for (int i = 0; i != 6; ++i) {
+      clockOnceExpecting(controller, model, atleast(MODE_degraded));
+    }
+    // Fix the steam sensor, and signal to physical units it's been repaired
+    model.setSteamSensor(new SteamSensorModels.Ideal(model));
+    model.setSteamSensorStatus(PhysicalUnits.ComponentStatus.REPAIRED);
+    clockOnceExpecting(controller, model, atleast(MODE_normal, STEAM_REPAIRED_ACKNOWLEDGEMENT));
+    clockForWithout(60, controller, model, atleast(MODE_degraded));
+  }
+
+  /**
+   * Check controller returns to normal mode only once every one of several failed pumps is
+   * repaired. The failure acknowledgements from the physical units must not count as repairs, and
+   * each repair must be acknowledged. With six pumps, two failing still leaves enough capacity.
+   */
+  @Test
+  public void test_degraded_operation_10() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(6, config.getPumpCapacity(0));
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(90, controller, model, atleast(MODE_emergencystop));
+    // Pumps 0 and 1 are open at this point, so both failures show at once
+    model.setPump(0, new PumpModels.StuckClosed(0, 0.0, model));
+    model.setPump(1, new PumpModels.StuckClosed(1, 0.0, model));
+    clockUntil(10, controller, model,
+        atleast(MODE_degraded, PUMP_FAILURE_DETECTION(0), PUMP_FAILURE_DETECTION(1)));
+    // The failures are acknowledged, but nothing has been repaired yet
+    clockForWithout(30, controller, model, atleast(MODE_normal));
+    model.setPump(0, new PumpModels.Ideal(0, config.getPumpCapacity(0), model));
+    model.setPumpStatus(0, PhysicalUnits.ComponentStatus.REPAIRED);
+    clockOnceExpecting(controller, model, atleast(MODE_degraded, PUMP_REPAIRED_ACKNOWLEDGEMENT(0)));
+    model.setPump(1, new PumpModels.Ideal(1, config.getPumpCapacity(1), model));
+    model.setPumpStatus(1, PhysicalUnits.ComponentStatus.REPAIRED);
+    clockOnceExpecting(controller, model, atleast(MODE_normal, PUMP_REPAIRED_ACKNOWLEDGEMENT(1)));
+    // The repaired pumps are used again without being taken for failed
+    clockForWithout(60, controller, model, atleast(MODE_degraded));
+  }
+
+  /**
+   * Check controller returns to normal mode once a failed pump controller is repaired, and not
+   * before, acknowledging the repair.
+   */
+  @Test
+  public void test_degraded_operation_11() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(90, controller, model, atleast(MODE_emergencystop));
+    // Pump 0 is open at this point, so its controller is seen to disagree at once
+    model.setPumpController(0, new PumpControllerModels.StuckOff(0, model));
+    clockUntil(10, controller, model, atleast(MODE_degraded, PUMP_CONTROL_FAILURE_DETECTION(0)));
+    clockForWithout(30, controller, model, atleast(MODE_normal));
+    model.setPumpController(0, new PumpControllerModels.Ideal(0, model));
+    model.setPumpControllerStatus(0, PhysicalUnits.ComponentStatus.REPAIRED);
+    clockOnceExpecting(controller, model,
+        atleast(MODE_normal, PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT(0)));
+    clockForWithout(60, controller, model, atleast(MODE_degraded));
+  }
+
   /**
    * 
  * @param controller
@@ -496,9 +626,71 @@ public class FunctionalTests {
     clockOnceExpecting(controller, model, atleast(MODE_rescue, LEVEL_FAILURE_DETECTION));
   }
 
-  // NOTE: Seems like there are most test we could consider here. For example, moving back to normal
-  // or degraded more. Likewise, running the system in rescue more for some amount of time to check
-  // that it manages to keep within the minimal/maximal limit levels, etc.
+  /**
+   * Check controller keeps the boiler going in rescue mode, from its estimate of the water level,
+   * for some time after the level sensor fails.
+   */
+  @Test
+  public void test_rescue_mode_03() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    model.setLevelSensor(new LevelSensorModels.StuckNegativeOne(model));
+    clockOnceExpecting(controller, model, atleast(MODE_rescue, LEVEL_FAILURE_DETECTION));
+    // Without a level reading the controller should still not need to stop for two minutes
+    clockForWithout(120, controller, model, atleast(MODE_emergencystop));
+  }
+
+  /**
+   * Check controller stays in rescue mode once the level sensor failure is acknowledged, and returns
+   * to normal mode as soon as the level sensor is repaired, acknowledging the repair.
+   */
+  @Test
+  public void test_rescue_mode_04() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    model.setLevelSensor(new LevelSensorModels.StuckNegativeOne(model));
+    clockOnceExpecting(controller, model, atleast(MODE_rescue, LEVEL_FAILURE_DETECTION));
+    // The failure is acknowledged, but the level sensor has not been repaired yet
+    clockForWithout(30, controller, model, atleast(MODE_normal));
+    model.setLevelSensor(new LevelSensorModels.Ideal(model));
+    model.setLevelSensorStatus(PhysicalUnits.ComponentStatus.REPAIRED);
+    clockOnceExpecting(controller, model, atleast(MODE_normal, LEVEL_REPAIRED_ACKNOWLEDGEMENT));
+    clockForWithout(60, controller, model, atleast(MODE_rescue));
+    assertEquals(MySteamBoilerController.State.NORMAL, controller.getMode());
+  }
+
+  /**
+   * Check controller returns from rescue mode to degraded mode, rather than normal mode, when the
+   * level sensor is repaired while a pump is still failed, and to normal mode once the pump is also
+   * repaired. With six pumps, one failing still leaves enough capacity.
+   */
+  @Test
+  public void test_rescue_mode_05() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(6, config.getPumpCapacity(0));
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(90, controller, model, atleast(MODE_emergencystop));
+    // Pump 0 is open at this point, so its failure shows at once
+    model.setPump(0, new PumpModels.StuckClosed(0, 0.0, model));
+    clockUntil(10, controller, model, atleast(MODE_degraded, PUMP_FAILURE_DETECTION(0)));
+    model.setLevelSensor(new LevelSensorModels.StuckNegativeOne(model));
+    clockOnceExpecting(controller, model, atleast(MODE_rescue, LEVEL_FAILURE_DETECTION));
+    clockForWithout(30, controller, model, atleast(MODE_emergencystop));
+    model.setLevelSensor(new LevelSensorModels.Ideal(model));
+    model.setLevelSensorStatus(PhysicalUnits.ComponentStatus.REPAIRED);
+    clockOnceExpecting(controller, model, atleast(MODE_degraded, LEVEL_REPAIRED_ACKNOWLEDGEMENT));
+    model.setPump(0, new PumpModels.Ideal(0, config.getPumpCapacity(0), model));
+    model.setPumpStatus(0, PhysicalUnits.ComponentStatus.REPAIRED);
+    clockOnceExpecting(controller, model, atleast(MODE_normal, PUMP_REPAIRED_ACKNOWLEDGEMENT(0)));
+  }
 
   // =====================================================================
   // Helpers
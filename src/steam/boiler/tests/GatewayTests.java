@@ -0,0 +1,126 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+import static steam.boiler.tests.TestUtils.atleast;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.BoilerGateway;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.PhysicalUnitsClient;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests run controllers behind a gateway, with their physical units simulated by a client
+ * connected over loopback.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class GatewayTests {
+
+  /**
+   * Check that a single boiler operates over the gateway without emergency stopping.
+   */
+  @Test
+  public void test_gateway_01() throws IOException {
+    runBoilers(1, 1, 120);
+  }
+
+  /**
+   * Check that many boilers with differing pump counts, spread over several connections, all
+   * operate over the gateway without emergency stopping.
+   */
+  @Test
+  public void test_gateway_02() throws IOException {
+    runBoilers(500, 4, 120);
+  }
+
+  /**
+   * Check that the gateway drops a connection which sends telemetry for an unknown boiler.
+   */
+  @Test
+  public void test_gateway_03() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    try (BoilerGateway gateway = new BoilerGateway(new InetSocketAddress("127.0.0.1", 0))) {
+      gateway.start();
+      try (PhysicalUnitsClient client = new PhysicalUnitsClient(gateway.getAddress())) {
+        client.add(42, config, new PhysicalUnits.Template(config).construct());
+        client.exchange();
+        fail("expected the gateway to close the connection");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * Run a number of boilers through the gateway, checking that none of them emergency stops and
+   * that every telemetry frame is processed.
+   *
+   * @param boilers
+   *          The number of boilers.
+   * @param connections
+   *          The number of connections the boilers are spread over.
+   * @param time
+   *          The amount of time (in seconds) to simulate.
+   */
+  private static void runBoilers(int boilers, int connections, int time) throws IOException {
+    try (BoilerGateway gateway = new BoilerGateway(new InetSocketAddress("127.0.0.1", 0))) {
+      gateway.start();
+      PhysicalUnitsClient[] clients = new PhysicalUnitsClient[connections];
+      try {
+        for (int i = 0; i != connections; ++i) {
+          clients[i] = new PhysicalUnitsClient(gateway.getAddress());
+        }
+        for (int id = 0; id != boilers; ++id) {
+          SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+          config = config.setNumberOfPumps(3 + id % 4, config.getPumpCapacity(0));
+          gateway.register(id, config);
+          PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+          model.setMode(PhysicalUnits.Mode.WAITING);
+          clients[id % connections].add(id, config, model);
+        }
+        for (int elapsed = 0; elapsed < time * 1000; elapsed += 100) {
+          for (PhysicalUnitsClient client : clients) {
+            client.clock(100);
+          }
+          if ((elapsed % 5000) == 0) {
+            for (PhysicalUnitsClient client : clients) {
+              client.exchange();
+            }
+            for (int id = 0; id != boilers; ++id) {
+              if (atleast(MODE_emergencystop)
+                  .matches(clients[id % connections].getResponse(id / connections))) {
+                fail("boiler " + id + " stopped after " + elapsed + "ms");
+              }
+            }
+          }
+        }
+      } finally {
+        for (PhysicalUnitsClient client : clients) {
+          if (client != null) {
+            client.close();
+          }
+        }
+      }
+      assertEquals((long) boilers * (time / 5), gateway.getFrames());
+      for (int id = 0; id != boilers; ++id) {
+        MySteamBoilerController controller = gateway.getController(id);
+        assertNotNull(controller);
+        assertNotEquals(MySteamBoilerController.State.EMERGENCY_STOP, controller.getMode());
+      }
+    }
+  }
+}
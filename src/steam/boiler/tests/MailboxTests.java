@@ -0,0 +1,108 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.RingMailbox;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * These tests check the ring mailbox, both from a single thread and with messages handed from
+ * one thread to another.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MailboxTests {
+
+  /**
+   * Check that a ring mailbox can be refilled after being reset, and refuses messages when full.
+   */
+  @Test
+  public void test_mailbox_01() {
+    RingMailbox mailbox = new RingMailbox(3);
+    assertEquals(4, mailbox.capacity());
+    Message stop = new Message(MessageKind.STOP);
+    for (int cycle = 0; cycle != 10; ++cycle) {
+      Message level = new Message(MessageKind.LEVEL_v, cycle);
+      mailbox.send(level);
+      mailbox.send(stop);
+      assertEquals(2, mailbox.size());
+      assertSame(level, mailbox.read(0));
+      assertSame(stop, mailbox.read(1));
+      mailbox.reset();
+      assertEquals(0, mailbox.size());
+    }
+    for (int i = 0; i != 4; ++i) {
+      mailbox.send(stop);
+    }
+    try {
+      mailbox.send(stop);
+      fail("sent to a full mailbox");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Check that every message sent by one thread is read by another, in order.
+   */
+  @Test
+  public void test_mailbox_02() throws InterruptedException {
+    int count = 100_000;
+    RingMailbox mailbox = new RingMailbox(64);
+    Message[] messages = new Message[256];
+    for (int i = 0; i != messages.length; ++i) {
+      messages[i] = new Message(MessageKind.OPEN_PUMP_n, i);
+    }
+    Thread producer = new Thread(() -> {
+      for (int i = 0; i != count; ++i) {
+        while (!mailbox.offer(messages[i % messages.length])) {
+          Thread.yield();
+        }
+      }
+    });
+    producer.start();
+    int received = 0;
+    while (received != count) {
+      int n = mailbox.size();
+      if (n == 0) {
+        Thread.yield();
+      }
+      for (int i = 0; i != n; ++i) {
+        assertSame(messages[(received + i) % messages.length], mailbox.read(i));
+      }
+      mailbox.discard(n);
+      received += n;
+    }
+    producer.join();
+    assertEquals(0, ((Mailbox) mailbox).size());
+  }
+
+  /**
+   * Check that discarding the messages a reader has consumed keeps those sent since it last
+   * looked.
+   */
+  @Test
+  public void test_mailbox_03() {
+    RingMailbox mailbox = new RingMailbox(4);
+    Message first = new Message(MessageKind.LEVEL_v, 1.0);
+    Message second = new Message(MessageKind.LEVEL_v, 2.0);
+    mailbox.send(first);
+    int consumed = mailbox.size();
+    assertSame(first, mailbox.read(0));
+    // Sent after the reader looked
+    mailbox.send(second);
+    mailbox.discard(consumed);
+    assertEquals(1, mailbox.size());
+    assertSame(second, mailbox.read(0));
+  }
+}
@@ -0,0 +1,220 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ControllerMetrics;
+import steam.boiler.core.ControllerMetrics.Phase;
+import steam.boiler.core.LatencyHistogram;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.MySteamBoilerController.State;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests check the latency histogram, how controller cycles are attributed to modes and
+ * phases, and that metrics can be registered with and removed from the platform MBean server.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MetricsTests {
+
+  /**
+   * Check that values below 64 each have a bucket of their own, so percentiles are exact.
+   */
+  @Test
+  public void test_metrics_01() {
+    for (long v = 0; v != 64; ++v) {
+      LatencyHistogram h = new LatencyHistogram();
+      h.record(v);
+      h.record(1000);
+      assertEquals(v, h.percentile(0.5));
+    }
+  }
+
+  /**
+   * Check bucket boundaries above 64: neighbouring values share a bucket reported by its upper
+   * bound, the next value starts a new bucket, and every bucket is within 1/32 of its values.
+   */
+  @Test
+  public void test_metrics_02() {
+    LatencyHistogram h = new LatencyHistogram();
+    h.record(64);
+    h.record(1000);
+    assertEquals(65, h.percentile(0.5));
+    h.reset();
+    h.record(66);
+    h.record(1000);
+    assertEquals(67, h.percentile(0.5));
+    h.reset();
+    h.record(127);
+    h.record(1000);
+    assertEquals(127, h.percentile(0.5));
+    h.reset();
+    h.record(128);
+    h.record(1000);
+    assertEquals(131, h.percentile(0.5));
+    for (int shift = 6; shift != 62; ++shift) {
+      long[] values = { 1L << shift, (1L << shift) + 1, (3L << (shift - 1)) - 1,
+          (1L << (shift + 1)) - 1 };
+      for (long v : values) {
+        h.reset();
+        h.record(v);
+        h.record(Long.MAX_VALUE);
+        long p = h.percentile(0.5);
+        assertTrue(v + " reported as " + p, p >= v && p - v <= v / 32);
+      }
+    }
+  }
+
+  /**
+   * Check percentiles over a range of values, that the maximum caps the top bucket, and that
+   * negative values count as zero.
+   */
+  @Test
+  public void test_metrics_03() {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.percentile(0.5));
+    for (int v = 1; v <= 100; ++v) {
+      h.record(v);
+    }
+    assertEquals(100, h.count());
+    assertEquals(100, h.max());
+    assertEquals(1, h.percentile(0));
+    assertEquals(50, h.percentile(0.5));
+    assertEquals(99, h.percentile(0.99));
+    assertEquals(100, h.percentile(1));
+    assertEquals(100, h.percentile(2));
+    h.reset();
+    assertEquals(0, h.count());
+    assertEquals(0, h.max());
+    h.record(-5);
+    assertEquals(1, h.count());
+    assertEquals(0, h.percentile(1));
+    h.record(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, h.percentile(1));
+  }
+
+  /**
+   * Check that a recorded cycle is attributed to the mode it began in, and each phase to its own
+   * histogram.
+   */
+  @Test
+  public void test_metrics_04() {
+    ControllerMetrics metrics = new ControllerMetrics();
+    metrics.recordCycle(State.NORMAL, 100, new long[] { 10, 20, 30, 40 });
+    metrics.recordCycle(State.DEGRADED, 50, new long[] { 5, 5, 20, 20 });
+    assertEquals(2, metrics.getCycles());
+    assertEquals(100, metrics.getMax());
+    assertEquals(1, metrics.getStateHistogram(State.NORMAL).count());
+    assertEquals(100, metrics.getStatePercentile("NORMAL", 1));
+    assertEquals(1, metrics.getStateHistogram(State.DEGRADED).count());
+    assertEquals(50, metrics.getStatePercentile("DEGRADED", 1));
+    assertEquals(0, metrics.getStateHistogram(State.RESCUE).count());
+    assertEquals(10, metrics.getPhasePercentile("DECODE", 1));
+    assertEquals(20, metrics.getPhasePercentile("FAILURE_CHECKS", 1));
+    assertEquals(30, metrics.getPhasePercentile("PUMP_DECISION", 1));
+    assertEquals(40, metrics.getPhasePercentile("EMIT", 1));
+    assertEquals(5, metrics.getPhasePercentile("DECODE", 0));
+    for (Phase p : Phase.values()) {
+      assertEquals(2, metrics.getPhaseHistogram(p).count());
+    }
+    metrics.reset();
+    assertEquals(0, metrics.getCycles());
+    assertEquals(0, metrics.getStateHistogram(State.NORMAL).count());
+    assertEquals(0, metrics.getPhaseHistogram(Phase.EMIT).count());
+  }
+
+  /**
+   * Check that each cycle of a real controller is attributed to the mode it began in, and that its
+   * phases add up to the whole cycle.
+   */
+  @Test
+  public void test_metrics_05() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    ControllerMetrics metrics = new ControllerMetrics();
+    controller.setMetrics(metrics);
+    int[] cycles = new int[State.values().length];
+    for (int i = 0; i != 40; ++i) {
+      metrics.reset();
+      State initial = controller.getMode();
+      Mailbox input = new UnboundedMailbox(100);
+      Mailbox output = new UnboundedMailbox(100);
+      model.clock(5000);
+      model.transmit(input);
+      controller.clock(input, output);
+      model.receive(output);
+      cycles[initial.ordinal()]++;
+      // With a single cycle recorded, each histogram reports its exact maximum
+      long phases = 0;
+      for (Phase p : Phase.values()) {
+        assertEquals(1, metrics.getPhaseHistogram(p).count());
+        phases += metrics.getPhaseHistogram(p).max();
+      }
+      assertEquals(metrics.getMax(), phases);
+      for (State s : State.values()) {
+        assertEquals(s == initial ? 1 : 0, metrics.getStateHistogram(s).count());
+      }
+    }
+    assertTrue(cycles[State.WAITING.ordinal()] > 0);
+    assertTrue(cycles[State.NORMAL.ordinal()] > 0);
+    controller.setMetrics(null);
+    metrics.reset();
+    controller.clock(new UnboundedMailbox(100), new UnboundedMailbox(100));
+    assertEquals(0, metrics.getCycles());
+  }
+
+  /**
+   * Check that metrics registered with the platform MBean server can be read and reset through it,
+   * cannot be registered twice under the same name, and can be registered again once removed.
+   */
+  @Test
+  public void test_metrics_06() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ControllerMetrics metrics = new ControllerMetrics();
+    metrics.recordCycle(State.NORMAL, 100, new long[Phase.values().length]);
+    ObjectName name = metrics.register("test_metrics_06");
+    try {
+      assertTrue(server.isRegistered(name));
+      assertEquals(Long.valueOf(1), server.getAttribute(name, "Cycles"));
+      assertEquals(Long.valueOf(100), server.getAttribute(name, "Max"));
+      assertEquals(Long.valueOf(100), server.invoke(name, "getStatePercentile",
+          new Object[] { "NORMAL", Double.valueOf(0.5) },
+          new String[] { String.class.getName(), double.class.getName() }));
+      try {
+        new ControllerMetrics().register("test_metrics_06");
+        fail("registered twice");
+      } catch (InstanceAlreadyExistsException e) {
+        // Expected
+      }
+      server.invoke(name, "reset", new Object[0], new String[0]);
+      assertEquals(0, metrics.getCycles());
+    } finally {
+      server.unregisterMBean(name);
+    }
+    assertFalse(server.isRegistered(name));
+    ObjectName again = metrics.register("test_metrics_06");
+    assertEquals(name, again);
+    server.unregisterMBean(again);
+  }
+}
@@ -0,0 +1,164 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.PumpSet;
+
+/**
+ * These tests check the pump bitmask at and across word boundaries, where a set of more than 64
+ * pumps spills into a second word.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PumpSetTests {
+
+  /**
+   * Sizes either side of, and well beyond, a word boundary.
+   */
+  private static final int[] SIZES = { 63, 64, 65, 130 };
+
+  /**
+   * Check that the number of words follows the number of pumps.
+   */
+  @Test
+  public void test_pumpset_01() {
+    assertEquals(1, new PumpSet(63).words());
+    assertEquals(1, new PumpSet(64).words());
+    assertEquals(2, new PumpSet(65).words());
+    assertEquals(3, new PumpSet(130).words());
+  }
+
+  /**
+   * Check that fill() adds exactly the pumps of the boiler, and that pumps out of range are never
+   * members.
+   */
+  @Test
+  public void test_pumpset_02() {
+    for (int size : SIZES) {
+      PumpSet set = new PumpSet(size);
+      set.fill();
+      assertEquals(size, set.cardinality());
+      assertTrue(set.get(size - 1));
+      assertFalse(set.get(size));
+      assertFalse(set.get(-1));
+      set.set(size, true);
+      assertEquals(size, set.cardinality());
+      set.clear();
+      assertTrue(set.isEmpty());
+    }
+  }
+
+  /**
+   * Check that the last pump of one word and the first pump of the next are kept apart, and are
+   * counted together.
+   */
+  @Test
+  public void test_pumpset_03() {
+    for (int size : SIZES) {
+      PumpSet set = new PumpSet(size);
+      set.set(0, true);
+      set.set(size - 1, true);
+      if (size > 64) {
+        set.set(63, true);
+        set.set(64, true);
+        assertTrue(set.get(63));
+        assertTrue(set.get(64));
+        assertEquals(1L << 63, set.word(0) & (1L << 63));
+        assertEquals(1L, set.word(1) & 1L);
+        set.set(63, false);
+        assertFalse(set.get(63));
+        assertTrue(set.get(64));
+      }
+      // With 65 pumps, pump 64 is also the last pump
+      assertEquals(size > 65 ? 3 : 2, set.cardinality());
+    }
+  }
+
+  /**
+   * Check that next() walks every pump in order, within and across words, and stops at the size of
+   * the set.
+   */
+  @Test
+  public void test_pumpset_04() {
+    for (int size : SIZES) {
+      PumpSet set = new PumpSet(size);
+      for (int i = 0; i < size; i += 3) {
+        set.set(i, true);
+      }
+      set.set(size - 1, true);
+      int count = 0;
+      int last = -1;
+      for (int i = set.next(0); i != -1; i = set.next(i + 1)) {
+        assertTrue(i > last);
+        assertTrue(set.get(i));
+        last = i;
+        count++;
+      }
+      assertEquals(size - 1, last);
+      assertEquals(set.cardinality(), count);
+      assertEquals(-1, set.next(size));
+      assertEquals(-1, set.next(-1));
+    }
+    PumpSet set = new PumpSet(130);
+    set.set(129, true);
+    assertEquals(129, set.next(0));
+    assertEquals(129, set.next(64));
+    assertEquals(129, set.next(128));
+    set.set(64, true);
+    assertEquals(64, set.next(1));
+    assertEquals(64, set.next(64));
+    assertEquals(129, set.next(65));
+  }
+
+  /**
+   * Check that xor() gives the pumps in exactly one set, in every word.
+   */
+  @Test
+  public void test_pumpset_05() {
+    for (int size : SIZES) {
+      PumpSet a = new PumpSet(size);
+      PumpSet b = new PumpSet(size);
+      PumpSet result = new PumpSet(size);
+      a.fill();
+      b.set(0, true);
+      b.set(size - 1, true);
+      result.xor(a, b);
+      assertEquals(size - 2, result.cardinality());
+      assertFalse(result.get(0));
+      assertFalse(result.get(size - 1));
+      result.xor(result, a);
+      assertTrue(result.sameAs(b));
+      result.xor(a, a);
+      assertTrue(result.isEmpty());
+    }
+  }
+
+  /**
+   * Check that setWord() discards bits beyond the last pump, and only in the last word.
+   */
+  @Test
+  public void test_pumpset_06() {
+    for (int size : SIZES) {
+      PumpSet set = new PumpSet(size);
+      for (int i = 0; i != set.words(); ++i) {
+        set.setWord(i, -1L);
+      }
+      assertEquals(size, set.cardinality());
+      assertEquals(-1, set.next(size));
+      int spare = size % 64;
+      long last = spare == 0 ? -1L : (1L << spare) - 1;
+      assertEquals(last, set.word(set.words() - 1));
+      if (set.words() > 1) {
+        assertEquals(-1L, set.word(0));
+      }
+    }
+  }
+}
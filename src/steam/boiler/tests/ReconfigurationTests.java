@@ -0,0 +1,190 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+import static steam.boiler.tests.TestUtils.MODE_initialisation;
+import static steam.boiler.tests.TestUtils.atleast;
+import static steam.boiler.tests.TestUtils.clockForWithout;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ControlProfile;
+import steam.boiler.core.ControllerStatus;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationEngine;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests check that the characteristics of a controller can be replaced while it is running.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ReconfigurationTests {
+
+  /**
+   * Check that new characteristics take effect at the next cycle, without the controller going
+   * through initialisation again.
+   */
+  @Test
+  public void test_reconfiguration_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(120, controller, model, atleast(MODE_emergencystop));
+    assertEquals(0, controller.getConfigurationVersion());
+    SteamBoilerCharacteristics retuned = config.setPumpCapacity(0, config.getPumpCapacity(0));
+    assertEquals(1, controller.reconfigure(retuned));
+    // Nothing changes until the next cycle
+    assertEquals(0, controller.getConfigurationVersion());
+    clockForWithout(5, controller, model, atleast(MODE_initialisation));
+    assertEquals(1, controller.getConfigurationVersion());
+    clockForWithout(120, controller, model, atleast(MODE_emergencystop));
+    assertEquals(MySteamBoilerController.State.NORMAL, controller.getMode());
+  }
+
+  /**
+   * Check that only the last of several reconfigurations between two cycles takes effect.
+   */
+  @Test
+  public void test_reconfiguration_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    assertEquals(1, controller.reconfigure(config));
+    assertEquals(2, controller.reconfigure(config));
+    clockForWithout(60, controller, model, atleast(MODE_emergencystop));
+    assertEquals(2, controller.getConfigurationVersion());
+  }
+
+  /**
+   * Check that characteristics for a different number of pumps are rejected.
+   */
+  @Test
+  public void test_reconfiguration_03() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    try {
+      controller.reconfigure(config.setNumberOfPumps(6, config.getPumpCapacity(0)));
+      fail("reconfigured for a different number of pumps");
+    } catch (IllegalArgumentException e) {
+      assertEquals(0, controller.getConfigurationVersion());
+    }
+  }
+
+  /**
+   * Check that equal characteristics share a profile, and that profiles left behind by repeated
+   * reconfiguration are forgotten rather than kept forever.
+   */
+  @Test
+  public void test_reconfiguration_04() throws InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    ControlProfile profile = ControlProfile.of(config);
+    assertSame(profile, ControlProfile.of(config.setPumpCapacity(0, config.getPumpCapacity(0))));
+    assertNotSame(profile, ControlProfile.of(config.setPumpCapacity(0, 1)));
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    for (int i = 1; i <= 1000; ++i) {
+      controller.reconfigure(config.setPumpCapacity(0, i));
+    }
+    int cached = ControlProfile.cached();
+    for (int i = 0; i != 20 && cached > 100; ++i) {
+      System.gc();
+      Thread.sleep(10);
+      cached = ControlProfile.cached();
+    }
+    assertTrue(cached + " profiles kept", cached <= 100);
+    assertSame(profile, ControlProfile.of(config));
+  }
+
+  /**
+   * Check that raising the normal band changes the pumps chosen from the very next cycle, while
+   * the controller stays in normal mode. The reconfigured controller is clocked alongside one
+   * which keeps the old characteristics, on the same messages, so any difference is down to the
+   * new characteristics.
+   */
+  @Test
+  public void test_reconfiguration_05() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController reference = new MySteamBoilerController(config);
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    ControllerStatus expected = new ControllerStatus(config.getNumberOfPumps());
+    ControllerStatus actual = new ControllerStatus(config.getNumberOfPumps());
+    for (int i = 0; i != 120 / 5; ++i) {
+      clockBoth(model, reference, controller);
+    }
+    reference.getStatus(expected);
+    controller.getStatus(actual);
+    assertEquals(MySteamBoilerController.State.NORMAL, actual.getMode());
+    assertEquals(expected.getCommanded(0), actual.getCommanded(0));
+    // Move the band halfway up to the upper limit, so more water is wanted
+    double shift = (config.getMaximalLimitLevel() - config.getMaximalNormalLevel()) / 2;
+    controller.reconfigure(config.setMinimalNormalLevel(config.getMinimalNormalLevel() + shift)
+        .setMaximalNormalLevel(config.getMaximalNormalLevel() + shift));
+    clockBoth(model, reference, controller);
+    reference.getStatus(expected);
+    controller.getStatus(actual);
+    assertEquals(MySteamBoilerController.State.NORMAL, actual.getMode());
+    assertTrue(Long.bitCount(actual.getCommanded(0)) > Long.bitCount(expected.getCommanded(0)));
+  }
+
+  /**
+   * Check that raising the lower limit above any level the boiler could reach stops it on the
+   * very next cycle, while a controller which keeps the old characteristics carries on.
+   */
+  @Test
+  public void test_reconfiguration_06() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController reference = new MySteamBoilerController(config);
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    for (int i = 0; i != 120 / 5; ++i) {
+      clockBoth(model, reference, controller);
+    }
+    assertEquals(MySteamBoilerController.State.NORMAL, controller.getMode());
+    ControllerStatus status = new ControllerStatus(config.getNumberOfPumps());
+    controller.getStatus(status);
+    // Above anything the pumps could bring the level up to by the next cycle
+    double limit = status.getLevel();
+    for (int i = 0; i != config.getNumberOfPumps(); ++i) {
+      limit += ControlProfile.CYCLE_SECONDS * config.getPumpCapacity(i);
+    }
+    controller.reconfigure(config.setMinimalLimitLevel(limit));
+    clockBoth(model, reference, controller);
+    assertEquals(MySteamBoilerController.State.NORMAL, reference.getMode());
+    assertEquals(MySteamBoilerController.State.EMERGENCY_STOP, controller.getMode());
+  }
+
+  /**
+   * Clock two controllers for one cycle on the same messages from the physical units, which
+   * then act on the messages of the first.
+   *
+   * @param model     The physical units.
+   * @param reference The controller the physical units follow.
+   * @param other     The controller clocked alongside.
+   */
+  private static void clockBoth(PhysicalUnits model, MySteamBoilerController reference,
+      MySteamBoilerController other) {
+    Mailbox incoming = new UnboundedMailbox(32);
+    Mailbox outgoing = new UnboundedMailbox(32);
+    model.transmit(incoming);
+    reference.clock(incoming, outgoing);
+    other.clock(incoming, new UnboundedMailbox(32));
+    model.receive(outgoing);
+    model.clock(SimulationEngine.TRANSMISSION_INTERVAL);
+  }
+}
@@ -0,0 +1,250 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.FlightRecorder;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.MySteamBoilerController.State;
+import steam.boiler.core.ReplayEngine;
+import steam.boiler.core.SimulationEngine;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests record the cycles of simulated boilers with a flight recorder, and check that
+ * replaying the recording through a fresh controller reproduces every output.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ReplayTests {
+
+  /**
+   * Check that a recording of normal operation replays identically.
+   */
+  @Test
+  public void test_replay_01() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    List<FlightRecorder.Entry> recording = record(config, 0, 240, null);
+    assertEquals(240 / 5, recording.size());
+    ReplayEngine.Result result = new ReplayEngine(config).replay(recording, 10);
+    assertEquals(10 * recording.size(), result.getCycles());
+    assertEquals(0, result.getMismatches());
+  }
+
+  /**
+   * Check that a recording in which the steam sensor fails replays identically.
+   */
+  @Test
+  public void test_replay_02() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(6, config.getPumpCapacity(0));
+    List<FlightRecorder.Entry> recording = record(config, 7, 120,
+        model -> model.setSteamSensor(new SteamSensorModels.StuckNegativeOne(model)));
+    ReplayEngine.Result result = new ReplayEngine(config).replay(recording, 10);
+    assertEquals(0, result.getMismatches());
+  }
+
+  /**
+   * Check that replaying with the wrong characteristics is detected.
+   */
+  @Test
+  public void test_replay_03() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    List<FlightRecorder.Entry> recording = record(config, 0, 240, null);
+    config = config.setNumberOfPumps(6, config.getPumpCapacity(0));
+    ReplayEngine.Result result = new ReplayEngine(config).replay(recording, 1);
+    assertEquals(0, result.getFirstMismatch());
+  }
+
+  /**
+   * Check that corrupt slots are skipped, and counted, without abandoning the rest of the
+   * recording: one with an unknown mode, one with an unknown message kind and one whose boiler
+   * number was changed, which would decode but fails its checksum.
+   */
+  @Test
+  public void test_replay_04() throws IOException {
+    Path file = Files.createTempFile("replay", ".rec");
+    try {
+      try (FlightRecorder recorder = new FlightRecorder(file, FlightRecorder.DEFAULT_SLOT_SIZE, 4)) {
+        for (int boiler = 0; boiler != 4; ++boiler) {
+          recorder.record(boiler, State.NORMAL, cycle(boiler), cycle(boiler));
+        }
+      }
+      try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        // An unknown mode in slot 1, and an unknown message kind in slot 2
+        int slot1 = FlightRecorder.HEADER_SIZE + FlightRecorder.DEFAULT_SLOT_SIZE;
+        int slot2 = slot1 + FlightRecorder.DEFAULT_SLOT_SIZE;
+        ch.write(ByteBuffer.wrap(new byte[] { (byte) 0xFF }), slot1 + 20);
+        ch.write(ByteBuffer.wrap(new byte[] { (byte) 0xFF }), slot2
+            + FlightRecorder.SLOT_HEADER_SIZE + 2);
+        // The boiler number of slot 3, from 3 to 2
+        ch.write(ByteBuffer.wrap(new byte[] { 2 }), slot2 + FlightRecorder.DEFAULT_SLOT_SIZE + 19);
+      }
+      List<FlightRecorder.Entry> entries = new ArrayList<>();
+      assertEquals(3, FlightRecorder.read(file, Long.MIN_VALUE, Long.MAX_VALUE, entries::add));
+      assertEquals(1, entries.size());
+      assertEquals(0, entries.get(0).getBoiler());
+      check(entries.get(0));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Check that a ring far smaller than the number of writers, so that writers a lap apart contend
+   * for each slot, never yields a mixed up cycle to a concurrent reader, and ends up holding the
+   * latest cycles which were not dropped. A writer never waits for a slot, so each cycle dropped
+   * can leave its slot holding a cycle one more lap older.
+   */
+  @Test
+  public void test_replay_05() throws IOException, InterruptedException {
+    Path file = Files.createTempFile("replay", ".rec");
+    try {
+      try (FlightRecorder recorder = new FlightRecorder(file, FlightRecorder.DEFAULT_SLOT_SIZE, 2)) {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+          try {
+            while (!done.get()) {
+              FlightRecorder.read(file, Long.MIN_VALUE, Long.MAX_VALUE, ReplayTests::check);
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        });
+        reader.start();
+        Thread[] writers = new Thread[8];
+        for (int i = 0; i != writers.length; ++i) {
+          int boiler = i;
+          writers[i] = new Thread(() -> {
+            for (int j = 0; j != 5000; ++j) {
+              recorder.record(boiler, State.values()[boiler % State.values().length],
+                  cycle(boiler), cycle(boiler));
+            }
+          });
+          writers[i].start();
+        }
+        for (Thread w : writers) {
+          w.join();
+        }
+        done.set(true);
+        reader.join();
+        if (error.get() != null) {
+          throw new AssertionError(error.get());
+        }
+        List<FlightRecorder.Entry> entries = new ArrayList<>();
+        assertEquals(0, FlightRecorder.read(file, Long.MIN_VALUE, Long.MAX_VALUE, entries::add));
+        assertEquals(2, entries.size());
+        long recorded = recorder.getRecorded();
+        long oldest = recorded - 2 - 2 * recorder.getDrops();
+        assertEquals(1, (entries.get(0).getSequence() + entries.get(1).getSequence()) % 2);
+        for (FlightRecorder.Entry e : entries) {
+          assertTrue(e.getSequence() >= oldest && e.getSequence() < recorded);
+          check(e);
+        }
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Construct the mailbox recorded for a boiler in the tests above: one more level reading than the
+   * boiler number, each giving the boiler number, followed by a command to open its pump.
+   *
+   * @param boiler
+   *          The boiler number.
+   * @return The mailbox.
+   */
+  private static Mailbox cycle(int boiler) {
+    Mailbox mailbox = new UnboundedMailbox(16);
+    for (int i = 0; i <= boiler; ++i) {
+      mailbox.send(new Message(MessageKind.LEVEL_v, (double) boiler));
+    }
+    mailbox.send(new Message(MessageKind.OPEN_PUMP_n, boiler));
+    return mailbox;
+  }
+
+  /**
+   * Check that a cycle read back holds exactly what its boiler recorded.
+   *
+   * @param e
+   *          The cycle.
+   */
+  private static void check(FlightRecorder.Entry e) {
+    int boiler = e.getBoiler();
+    assertTrue("boiler " + boiler, boiler >= 0 && boiler < 8);
+    for (Mailbox m : new Mailbox[] { e.getIncoming(), e.getOutgoing() }) {
+      assertEquals(boiler + 2, m.size());
+      for (int i = 0; i <= boiler; ++i) {
+        assertEquals(MessageKind.LEVEL_v, m.read(i).getKind());
+        assertEquals(boiler, m.read(i).getDoubleParameter(), 0);
+      }
+      assertEquals(MessageKind.OPEN_PUMP_n, m.read(boiler + 1).getKind());
+      assertEquals(boiler, m.read(boiler + 1).getIntegerParameter());
+    }
+  }
+
+  /**
+   * Simulate a boiler whilst recording its controller, then read the recording back.
+   *
+   * @param config
+   *          The characteristics of the boiler.
+   * @param boiler
+   *          The number identifying the boiler in the recording.
+   * @param time
+   *          The amount of time (in seconds) to simulate before any fault.
+   * @param fault
+   *          Applied to the physical units after that time, followed by another minute of
+   *          simulation, or <code>null</code> for none.
+   * @return The recorded cycles of the boiler.
+   */
+  private static List<FlightRecorder.Entry> record(SteamBoilerCharacteristics config, int boiler,
+      int time, Consumer<PhysicalUnits> fault) throws IOException {
+    Path file = Files.createTempFile("replay", ".rec");
+    try {
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      try (FlightRecorder recorder = new FlightRecorder(file, FlightRecorder.DEFAULT_SLOT_SIZE,
+          1024)) {
+        controller.setCycleListener(recorder.listener(boiler));
+        SimulationEngine engine = new SimulationEngine(controller, model);
+        engine.run(time * 1000, null);
+        if (fault != null) {
+          fault.accept(model);
+          engine.run(60 * 1000, null);
+        }
+      }
+      List<FlightRecorder.Entry> entries = new ArrayList<>();
+      FlightRecorder.read(file, Long.MIN_VALUE, Long.MAX_VALUE, entries::add);
+      return ReplayEngine.select(entries, boiler);
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
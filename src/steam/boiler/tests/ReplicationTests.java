@@ -0,0 +1,308 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+import static steam.boiler.tests.TestUtils.atleast;
+import static steam.boiler.tests.TestUtils.clockForWithout;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.CycleListener;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.ReplicationPrimary;
+import steam.boiler.core.ReplicationStandby;
+import steam.boiler.core.SimulationEngine;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests check that a standby keeps an exact replica of the primary's controller, and takes
+ * over from where it left off once the primary stops.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ReplicationTests {
+
+  /**
+   * Check that the replica matches the primary, and that the standby takes over within one cycle
+   * of the primary stopping and keeps the boiler going in normal mode.
+   *
+   * @throws IOException          if the standby cannot be reached.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  @Test
+  public void test_replication_01() throws IOException, InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    CountDownLatch taken = new CountDownLatch(1);
+    try (ReplicationStandby standby = new ReplicationStandby(config,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1000, c -> taken.countDown())) {
+      MySteamBoilerController original = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      ReplicationPrimary primary = new ReplicationPrimary(original, standby.getAddress(), 100);
+      original.setCycleListener(primary.listener());
+      new SimulationEngine(original, model).run(120 * 1000, null);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (standby.getSequence() != primary.getSequence()
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(primary.getSequence(), standby.getSequence());
+      ByteBuffer expected = ByteBuffer.allocate(original.getCheckpointSize());
+      original.checkpoint(expected);
+      expected.flip();
+      ByteBuffer replica = standby.getReplica();
+      replica.limit(expected.limit());
+      assertEquals(expected, replica);
+      assertFalse(standby.isTakenOver());
+      // The primary stops without warning
+      primary.close();
+      assertTrue(taken.await(SimulationEngine.TRANSMISSION_INTERVAL, TimeUnit.MILLISECONDS));
+      MySteamBoilerController restored = standby.getController();
+      assertNotNull(restored);
+      assertEquals(original.getMode(), restored.getMode());
+      clockForWithout(60, restored, model, atleast(MODE_emergencystop));
+      assertEquals(MySteamBoilerController.State.NORMAL, restored.getMode());
+    }
+  }
+
+  /**
+   * Check that the standby does not take over while the primary keeps sending heartbeats, even
+   * though no cycles are run.
+   *
+   * @throws IOException          if the standby cannot be reached.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  @Test
+  public void test_replication_02() throws IOException, InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    try (ReplicationStandby standby = new ReplicationStandby(config,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 500, c -> {
+          // Nothing to do
+        })) {
+      MySteamBoilerController original = new MySteamBoilerController(config);
+      try (ReplicationPrimary primary = new ReplicationPrimary(original, standby.getAddress(),
+          100)) {
+        primary.publish();
+        Thread.sleep(1500);
+        assertEquals(1, standby.getSequence());
+        assertFalse(standby.isTakenOver());
+      }
+    }
+  }
+
+  /**
+   * Check that a primary which is only slow, and so is taken over from, is demoted as soon as the
+   * standby takes over, and that the first cycle of the standby repeats none of the pump commands
+   * the primary last sent.
+   *
+   * @throws IOException          if the standby cannot be reached.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  @Test
+  public void test_replication_03() throws IOException, InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    CountDownLatch taken = new CountDownLatch(1);
+    try (ReplicationStandby standby = new ReplicationStandby(config,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 500, c -> taken.countDown())) {
+      MySteamBoilerController original = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      // Heartbeats far apart, so the standby takes over while the primary is still running
+      try (ReplicationPrimary primary = new ReplicationPrimary(original, standby.getAddress(),
+          60 * 1000)) {
+        // The last command sent to each pump by the primary, if any
+        MessageKind[] commands = new MessageKind[config.getNumberOfPumps()];
+        CycleListener record = (c, incoming, outgoing) -> {
+          for (int i = 0; i != outgoing.size(); ++i) {
+            Message m = outgoing.read(i);
+            if (m.getKind() == MessageKind.OPEN_PUMP_n
+                || m.getKind() == MessageKind.CLOSE_PUMP_n) {
+              commands[m.getIntegerParameter()] = m.getKind();
+            }
+          }
+        };
+        original.setCycleListener(record.andThen(primary.listener()));
+        new SimulationEngine(original, model).run(120 * 1000, null);
+        assertTrue(primary.isActive());
+        assertTrue(taken.await(SimulationEngine.TRANSMISSION_INTERVAL, TimeUnit.MILLISECONDS));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (primary.isActive() && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+        assertFalse(primary.isActive());
+        assertNotNull(primary.getFailure());
+        assertTrue(Arrays.stream(commands).anyMatch(k -> k != null));
+        MySteamBoilerController restored = standby.getController();
+        assertNotNull(restored);
+        Mailbox incoming = new UnboundedMailbox(100);
+        Mailbox outgoing = new UnboundedMailbox(100);
+        model.transmit(incoming);
+        restored.clock(incoming, outgoing);
+        for (int i = 0; i != outgoing.size(); ++i) {
+          Message m = outgoing.read(i);
+          if (m.getKind() == MessageKind.OPEN_PUMP_n || m.getKind() == MessageKind.CLOSE_PUMP_n) {
+            assertFalse("repeated " + m.getKind() + " " + m.getIntegerParameter(),
+                m.getKind() == commands[m.getIntegerParameter()]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Check that a delta cut off partway through is not applied at all, so the standby takes over
+   * from the state of the last whole delta rather than a mix of two cycles.
+   *
+   * @throws IOException          if the standby cannot be reached.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  @Test
+  public void test_replication_04() throws IOException, InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    CountDownLatch taken = new CountDownLatch(1);
+    try (ReplicationStandby standby = new ReplicationStandby(config,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 500, c -> taken.countDown())) {
+      MySteamBoilerController original = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      SimulationEngine engine = new SimulationEngine(original, model);
+      engine.run(60 * 1000, null);
+      long[] first = words(original);
+      engine.run(30 * 1000, null);
+      long[] second = words(original);
+      int changed = 0;
+      for (int i = 0; i != first.length; ++i) {
+        if (first[i] != second[i]) {
+          changed++;
+        }
+      }
+      assertTrue(changed >= 2);
+      // Play the primary: one whole delta, then half of the next before the connection drops
+      try (Socket s = new Socket()) {
+        s.connect(standby.getAddress());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        out.writeInt(ReplicationPrimary.MAGIC);
+        out.writeInt(first.length);
+        out.writeByte('D');
+        out.writeLong(1);
+        out.writeShort(first.length);
+        for (int i = 0; i != first.length; ++i) {
+          out.writeShort(i);
+          out.writeLong(first[i]);
+        }
+        out.writeByte('D');
+        out.writeLong(2);
+        out.writeShort(changed);
+        for (int i = 0, written = 0; written != changed / 2; ++i) {
+          if (first[i] != second[i]) {
+            out.writeShort(i);
+            out.writeLong(second[i]);
+            written++;
+          }
+        }
+        out.flush();
+      }
+      assertTrue(taken.await(SimulationEngine.TRANSMISSION_INTERVAL, TimeUnit.MILLISECONDS));
+      assertEquals(1, standby.getSequence());
+      ByteBuffer replica = standby.getReplica();
+      for (long word : first) {
+        assertEquals(word, replica.getLong());
+      }
+      MySteamBoilerController restored = standby.getController();
+      assertNotNull(restored);
+      assertArrayEquals(first, words(restored));
+    }
+  }
+
+  /**
+   * Check that publishing never blocks the controller's thread on a standby which has stopped
+   * reading without closing its connection, and that the primary is demoted once the deltas
+   * waiting behind the stalled sender overflow its backlog.
+   *
+   * @throws IOException if the standby cannot be reached.
+   */
+  @Test
+  public void test_replication_05() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    int backlog = 4;
+    try (ServerSocket standby = new ServerSocket()) {
+      // A small window, so the connection fills up quickly
+      standby.setReceiveBufferSize(1024);
+      standby.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      MySteamBoilerController original = new MySteamBoilerController(config);
+      try (ReplicationPrimary primary = new ReplicationPrimary(original,
+          new InetSocketAddress(standby.getInetAddress(), standby.getLocalPort()), 100, backlog);
+          Socket connection = standby.accept()) {
+        // The standby never reads from the connection. Each delta is given time to be sent, so
+        // the backlog only grows once the sender is stuck on the full connection
+        long published = 0;
+        long stalled = -1;
+        long slowest = 0;
+        long deadline = System.currentTimeMillis() + 20 * 1000;
+        while (primary.isActive() && System.currentTimeMillis() < deadline) {
+          long start = System.nanoTime();
+          primary.publish();
+          slowest = Math.max(slowest, System.nanoTime() - start);
+          published++;
+          if (stalled < 0) {
+            long sent = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+            while (primary.getBacklog() != 0 && System.nanoTime() - sent < 0) {
+              Thread.yield();
+            }
+            if (primary.getBacklog() != 0) {
+              stalled = published;
+            }
+          }
+        }
+        assertFalse(primary.isActive());
+        assertNotNull(primary.getFailure());
+        assertTrue(stalled > 0);
+        assertTrue(published - stalled <= backlog);
+        assertTrue("publish took " + slowest + " ns",
+            slowest < TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(connection.isConnected());
+      }
+    }
+  }
+
+  /**
+   * Take a checkpoint of a controller as the words it is replicated in.
+   *
+   * @param controller The controller.
+   * @return the words of its checkpoint, the last padded with zeros.
+   */
+  private static long[] words(MySteamBoilerController controller) {
+    ByteBuffer record = ByteBuffer.allocate((controller.getCheckpointSize() + 7) / 8 * 8);
+    controller.checkpoint(record);
+    long[] r = new long[record.capacity() / 8];
+    for (int i = 0; i != r.length; ++i) {
+      r[i] = record.getLong(i * 8);
+    }
+    return r;
+  }
+}
@@ -11,8 +11,14 @@ import steam.boiler.model.PumpControllerModels;
 import steam.boiler.model.PumpModels;
 import steam.boiler.model.SteamBoilerModels;
 import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
 import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static steam.boiler.tests.TestUtils.*;
 
 import java.util.function.Function;
@@ -310,6 +316,66 @@ public class SafetyTests {
     clockOnceExpecting(controller, model, atleast(MODE_emergencystop));
   }
 
+  /**
+   * Check that an emergency stop cannot be replaced by another mode in the same cycle. Here the
+   * level reading falls below the minimum limit at the same time as a pump controller disagrees
+   * with its pump, which on its own would lead to degraded mode.
+   */
+  @Test
+  public void safetytest_13() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    // Take the messages of one transmission, but with a low level and a disagreeing controller
+    Mailbox transmitted = new UnboundedMailbox(100);
+    model.transmit(transmitted);
+    Mailbox input = new UnboundedMailbox(100);
+    for (int i = 0; i != transmitted.size(); ++i) {
+      Message m = transmitted.read(i);
+      if (m.getKind() == MessageKind.LEVEL_v) {
+        input.send(new Message(MessageKind.LEVEL_v, config.getMinimalLimitLevel() / 2));
+      } else if (m.getKind() == MessageKind.PUMP_CONTROL_STATE_n_b
+          && m.getIntegerParameter() == 0) {
+        input.send(new Message(MessageKind.PUMP_CONTROL_STATE_n_b, 0, !m.getBooleanParameter()));
+      } else {
+        input.send(m);
+      }
+    }
+    Mailbox output = new UnboundedMailbox(100);
+    controller.clock(input, output);
+    if (!atleast(MODE_emergencystop).matches(output) || atleast(MODE_degraded).matches(output)) {
+      fail("expected only an emergency stop, got " + output);
+    }
+    assertEquals(MySteamBoilerController.State.EMERGENCY_STOP, controller.getMode());
+  }
+
+  /**
+   * Check emergency stop when the level sensor fails while the steam sensor has already failed by
+   * reporting more steam than the boiler can produce, and that the boiler stays stopped.
+   */
+  @Test
+  public void safetytest_14() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    model.setSteamSensor(new SteamSensorModels.Stuck(model, 2 * config.getMaximualSteamRate()));
+    clockOnceExpecting(controller, model, atleast(MODE_degraded, STEAM_FAILURE_DETECTION));
+    clockForWithout(30, controller, model, atleast(MODE_emergencystop));
+    model.setLevelSensor(new LevelSensorModels.Stuck(model, config.getCapacity()));
+    clockOnceExpecting(controller, model, atleast(MODE_emergencystop, LEVEL_FAILURE_DETECTION));
+    // Repairing both sensors does not bring the boiler back
+    model.setSteamSensor(new SteamSensorModels.Ideal(model));
+    model.setLevelSensor(new LevelSensorModels.Ideal(model));
+    clockForWithout(60, controller, model, atleast(MODE_normal));
+    clockForWithout(60, controller, model, atleast(MODE_degraded));
+    clockForWithout(60, controller, model, atleast(MODE_rescue));
+    assertEquals(MySteamBoilerController.State.EMERGENCY_STOP, controller.getMode());
+  }
+
   // ======================================================================
   // Rescue Mode
   // ======================================================================
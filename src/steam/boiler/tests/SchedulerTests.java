@@ -0,0 +1,98 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ControlProfile;
+import steam.boiler.core.PumpScheduler;
+import steam.boiler.core.PumpSet;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check the pump table used to choose which pumps to open.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SchedulerTests {
+
+  /**
+   * Check that identical pumps give one entry per number of pumps open, and that the lowest
+   * numbered pumps are used first.
+   */
+  @Test
+  public void test_scheduler_01() {
+    PumpScheduler scheduler = new PumpScheduler(new double[] { 4, 4, 4, 4, 4, 4 },
+        new PumpSet(6));
+    assertEquals(7, scheduler.size());
+    PumpSet chosen = new PumpSet(6);
+    assertEquals(8, scheduler.choose(9, chosen), 0);
+    assertTrue(chosen.get(0));
+    assertTrue(chosen.get(1));
+    assertEquals(2, chosen.cardinality());
+    assertEquals(24, scheduler.choose(100, chosen), 0);
+    assertEquals(0, scheduler.choose(-100, chosen), 0);
+    assertTrue(chosen.isEmpty());
+  }
+
+  /**
+   * Check that pumps of differing capacities are combined to get nearest to the inflow wanted.
+   */
+  @Test
+  public void test_scheduler_02() {
+    PumpScheduler scheduler = new PumpScheduler(new double[] { 4, 7, 2.5 }, new PumpSet(3));
+    assertEquals(8, scheduler.size());
+    PumpSet chosen = new PumpSet(3);
+    assertEquals(9.5, scheduler.choose(9.8, chosen), 0);
+    assertFalse(chosen.get(0));
+    assertTrue(chosen.get(1));
+    assertTrue(chosen.get(2));
+    chosen.fill();
+    assertEquals(13.5, scheduler.inflow(chosen), 0);
+  }
+
+  /**
+   * Check that unavailable pumps are never chosen.
+   */
+  @Test
+  public void test_scheduler_03() {
+    PumpSet failed = new PumpSet(4);
+    failed.set(0, true);
+    PumpScheduler scheduler = new PumpScheduler(new double[] { 4, 4, 4, 4 }, failed);
+    assertTrue(scheduler.excludes(failed));
+    assertEquals(12, scheduler.getMaximalInflow(), 0);
+    PumpSet chosen = new PumpSet(4);
+    scheduler.choose(100, chosen);
+    assertFalse(chosen.get(0));
+    assertEquals(3, chosen.cardinality());
+  }
+
+  /**
+   * Check that a profile hands out the same table every time it is asked for a set of failed
+   * pumps, whether built with the profile or on demand, and that the table excludes them.
+   */
+  @Test
+  public void test_scheduler_04() {
+    ControlProfile profile = ControlProfile.of(SteamBoilerCharacteristics.DEFAULT);
+    int pumps = profile.getNumberOfPumps();
+    PumpSet failed = new PumpSet(pumps);
+    assertSame(profile.getScheduler(failed), profile.getScheduler(new PumpSet(pumps)));
+    failed.set(1, true);
+    PumpScheduler single = profile.getScheduler(failed);
+    assertTrue(single.excludes(failed));
+    assertSame(single, profile.getScheduler(failed));
+    failed.set(pumps - 1, true);
+    PumpScheduler multiple = profile.getScheduler(failed);
+    assertTrue(multiple.excludes(failed));
+    PumpSet again = new PumpSet(pumps);
+    again.copy(failed);
+    assertSame(multiple, profile.getScheduler(again));
+  }
+}
@@ -0,0 +1,150 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.MessageCache;
+import steam.boiler.core.OutgoingStage;
+import steam.boiler.core.PumpSet;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.Mailbox.Mode;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests check that the outgoing stage only sends the pump commands which change something,
+ * and one mode message per cycle.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class StageTests {
+
+  /**
+   * Check that a pump command is sent once, and not repeated while the pump is seen to follow it.
+   */
+  @Test
+  public void test_stage_01() {
+    OutgoingStage stage = new OutgoingStage(new MessageCache(4), 4);
+    PumpSet observed = new PumpSet(4);
+    stage.pump(1, true);
+    stage.pump(2, false);
+    assertEquals("[OPEN_PUMP_n(1)]", flush(stage, observed));
+    assertTrue(stage.getSent().get(1));
+    observed.set(1, true);
+    for (int i = 0; i != 3; ++i) {
+      stage.pump(1, true);
+      stage.pump(2, false);
+      assertEquals("[]", flush(stage, observed));
+    }
+    stage.pump(1, false);
+    assertEquals("[CLOSE_PUMP_n(1)]", flush(stage, observed));
+  }
+
+  /**
+   * Check that a command is sent again when the pump is seen not to follow it, as if the command
+   * was lost, but only for pumps commanded in that cycle.
+   */
+  @Test
+  public void test_stage_02() {
+    OutgoingStage stage = new OutgoingStage(new MessageCache(4), 4);
+    PumpSet observed = new PumpSet(4);
+    stage.pump(0, true);
+    stage.pump(3, true);
+    assertEquals("[OPEN_PUMP_n(0), OPEN_PUMP_n(3)]", flush(stage, observed));
+    observed.set(3, true);
+    stage.pump(0, true);
+    stage.pump(3, true);
+    assertEquals("[OPEN_PUMP_n(0)]", flush(stage, observed));
+    observed.set(2, true);
+    stage.pump(0, true);
+    assertEquals("[OPEN_PUMP_n(0)]", flush(stage, observed));
+    assertEquals("[]", flush(stage, observed));
+  }
+
+  /**
+   * Check that only the final command of a cycle counts for each pump.
+   */
+  @Test
+  public void test_stage_03() {
+    OutgoingStage stage = new OutgoingStage(new MessageCache(4), 4);
+    PumpSet observed = new PumpSet(4);
+    stage.pump(0, true);
+    stage.pump(0, false);
+    stage.pump(1, false);
+    stage.pump(1, true);
+    assertEquals("[OPEN_PUMP_n(1)]", flush(stage, observed));
+  }
+
+  /**
+   * Check that several mode requests in a cycle collapse to the final one, sent after the pump
+   * commands, and that no mode is sent in a cycle without a request.
+   */
+  @Test
+  public void test_stage_04() {
+    OutgoingStage stage = new OutgoingStage(new MessageCache(4), 4);
+    PumpSet observed = new PumpSet(4);
+    stage.mode(Mode.NORMAL);
+    stage.mode(Mode.DEGRADED);
+    stage.pump(0, true);
+    stage.mode(Mode.RESCUE);
+    assertEquals("[OPEN_PUMP_n(0), MODE_m(RESCUE)]", flush(stage, observed));
+    assertEquals("[]", flush(stage, observed));
+  }
+
+  /**
+   * Check that a requested emergency stop cannot be replaced by a later request in the same
+   * cycle, but does not carry over into the next.
+   */
+  @Test
+  public void test_stage_05() {
+    OutgoingStage stage = new OutgoingStage(new MessageCache(4), 4);
+    PumpSet observed = new PumpSet(4);
+    stage.mode(Mode.NORMAL);
+    stage.mode(Mode.EMERGENCY_STOP);
+    stage.mode(Mode.RESCUE);
+    stage.mode(Mode.NORMAL);
+    Mailbox outgoing = new UnboundedMailbox(10);
+    stage.flush(observed, outgoing);
+    assertEquals(1, outgoing.size());
+    assertEquals(MessageKind.MODE_m, outgoing.read(0).getKind());
+    assertEquals(Mode.EMERGENCY_STOP, outgoing.read(0).getModeParameter());
+    stage.mode(Mode.NORMAL);
+    assertEquals("[MODE_m(NORMAL)]", flush(stage, observed));
+  }
+
+  /**
+   * Flush a stage and describe the messages written, as kind(pump) or kind(mode).
+   *
+   * @param stage
+   *          The stage.
+   * @param observed
+   *          Pumps observed open.
+   * @return the messages written, in order.
+   */
+  private static String flush(OutgoingStage stage, PumpSet observed) {
+    Mailbox outgoing = new UnboundedMailbox(10);
+    stage.flush(observed, outgoing);
+    StringBuilder r = new StringBuilder("[");
+    for (int i = 0; i != outgoing.size(); ++i) {
+      if (i != 0) {
+        r.append(", ");
+      }
+      Message m = outgoing.read(i);
+      r.append(m.getKind()).append('(');
+      if (m.getKind() == MessageKind.MODE_m) {
+        r.append(m.getModeParameter());
+      } else {
+        r.append(m.getIntegerParameter());
+      }
+      r.append(')');
+    }
+    return r.append("]").toString();
+  }
+}
@@ -0,0 +1,164 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static steam.boiler.tests.TestUtils.MODE_degraded;
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+import static steam.boiler.tests.TestUtils.PUMP_FAILURE_DETECTION;
+import static steam.boiler.tests.TestUtils.atleast;
+import static steam.boiler.tests.TestUtils.clockForWithout;
+import static steam.boiler.tests.TestUtils.clockUntil;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ControllerStatus;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests check the structured status snapshot of a controller.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class StatusTests {
+
+  /**
+   * Check the status of a controller in normal mode: nothing has failed, and the level is
+   * measured and within the normal range.
+   */
+  @Test
+  public void test_status_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(120, controller, model, atleast(MODE_emergencystop));
+    ControllerStatus status = new ControllerStatus(config.getNumberOfPumps());
+    controller.getStatus(status);
+    assertEquals(MySteamBoilerController.State.NORMAL, status.getMode());
+    assertEquals(controller.getMode().ordinal(), status.getModeOrdinal());
+    assertEquals(0, status.getFlags());
+    assertEquals(status.getLevel(), status.getMinLevel(), 0);
+    assertEquals(status.getLevel(), status.getMaxLevel(), 0);
+    assertTrue(status.getLevel() >= config.getMinimalNormalLevel());
+    assertTrue(status.getLevel() <= config.getMaximalNormalLevel());
+    assertEquals(0, status.getFailed(0));
+    assertEquals(0, status.getCommanded(0) & ~0xFL);
+  }
+
+  /**
+   * Check that a failed pump shows up in the status.
+   */
+  @Test
+  public void test_status_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(2, config.getPumpCapacity(0));
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.getBoiler().pumpInWater(250);
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(25, controller, model, atleast(MODE_emergencystop));
+    model.setPump(0, new PumpModels.StuckClosed(0, 0, model));
+    clockUntil(60, controller, model, atleast(MODE_degraded, PUMP_FAILURE_DETECTION(0)));
+    ControllerStatus status = new ControllerStatus(2);
+    controller.getStatus(status);
+    assertEquals(MySteamBoilerController.State.DEGRADED, status.getMode());
+    assertTrue(status.hasFlag(ControllerStatus.PUMP_FAILED));
+    assertFalse(status.hasFlag(ControllerStatus.PUMP_CONTROL_FAILED));
+    assertEquals(1, status.getFailed(0));
+    assertEquals(0, status.getCommanded(0) & 1);
+  }
+
+  /**
+   * Check that a snapshot for a different number of pumps is rejected.
+   */
+  @Test
+  public void test_status_03() {
+    MySteamBoilerController controller = new MySteamBoilerController(
+        SteamBoilerCharacteristics.DEFAULT);
+    try {
+      controller.getStatus(new ControllerStatus(6));
+      fail("filled a status for a different number of pumps");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Check that a snapshot taken from another thread while a cycle is running waits for the
+   * cycle, and then shows the state after it rather than a mix of before and after.
+   *
+   * @throws InterruptedException if the test is interrupted.
+   */
+  @Test
+  public void test_status_04() throws InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.getBoiler().pumpInWater(250);
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    ControllerStatus status = new ControllerStatus(config.getNumberOfPumps());
+    controller.getStatus(status);
+    assertTrue(Double.isNaN(status.getLevel()));
+    Mailbox transmitted = new UnboundedMailbox(32);
+    model.transmit(transmitted);
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    // Holds the cycle up as soon as it starts reading its messages
+    Mailbox incoming = new Mailbox() {
+      @Override
+      public void send(Message message) {
+        transmitted.send(message);
+      }
+
+      @Override
+      public Message read(int index) {
+        return transmitted.read(index);
+      }
+
+      @Override
+      public int size() {
+        if (entered.getCount() != 0) {
+          entered.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return transmitted.size();
+      }
+    };
+    Thread cycle = new Thread(() -> controller.clock(incoming, new UnboundedMailbox(32)));
+    cycle.start();
+    entered.await();
+    Thread reader = new Thread(() -> controller.getStatus(status));
+    reader.start();
+    reader.join(100);
+    assertTrue(reader.isAlive());
+    release.countDown();
+    cycle.join();
+    reader.join();
+    double level = Double.NaN;
+    for (int i = 0; i != transmitted.size(); ++i) {
+      if (transmitted.read(i).getKind() == Mailbox.MessageKind.LEVEL_v) {
+        level = transmitted.read(i).getDoubleParameter();
+      }
+    }
+    assertEquals(level, status.getLevel(), 0);
+    assertEquals(level, status.getMinLevel(), 0);
+    assertEquals(level, status.getMaxLevel(), 0);
+  }
+}
@@ -0,0 +1,141 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.FaultSweep;
+import steam.boiler.core.FaultSweep.Fault;
+import steam.boiler.core.FaultSweep.Summary;
+import steam.boiler.core.SimulationEngine;
+
+/**
+ * These tests check that the Monte Carlo fault sweep is reproducible, only injects the faults it
+ * is given, and that its statistics say what they claim: a boiler without faults is never stopped
+ * and stays within its limits, and injected faults are reported.
+ *
+ * @author paula
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SweepTests {
+
+  /**
+   * Check that two sweeps from the same seed give the same results, whatever the parallelism.
+   */
+  @Test
+  public void test_sweep_01() {
+    FaultSweep sweep = new FaultSweep(42, 120 * 1000, SimulationEngine.TRANSMISSION_INTERVAL);
+    ForkJoinPool single = new ForkJoinPool(1);
+    try {
+      Summary[] first = sweep.run(40, single);
+      Summary[] second = sweep.run(40, ForkJoinPool.commonPool());
+      long runs = 0;
+      for (int i = 0; i != first.length; ++i) {
+        assertEquals(first[i].toString(), second[i].toString());
+        assertEquals(first[i].getCycles(), second[i].getCycles());
+        runs += first[i].getRuns();
+      }
+      assertEquals(40, runs);
+    } finally {
+      single.shutdown();
+    }
+  }
+
+  /**
+   * Check that a sweep over some kinds of fault runs every scenario with one of them.
+   */
+  @Test
+  public void test_sweep_02() {
+    FaultSweep sweep = new FaultSweep(7, 120 * 1000, SimulationEngine.TRANSMISSION_INTERVAL,
+        Fault.PUMP_STUCK_CLOSED, Fault.STEAM_STUCK_HIGH);
+    Summary[] summaries = sweep.run(20, ForkJoinPool.commonPool());
+    assertEquals(Fault.values().length, summaries.length);
+    long runs = 0;
+    for (Summary s : summaries) {
+      if (s.getFault() == Fault.PUMP_STUCK_CLOSED || s.getFault() == Fault.STEAM_STUCK_HIGH) {
+        runs += s.getRuns();
+      } else {
+        assertEquals(0, s.getRuns());
+      }
+    }
+    assertEquals(20, runs);
+  }
+
+  /**
+   * Check that a sweep cannot be constructed without any fault to inject.
+   */
+  @Test
+  public void test_sweep_03() {
+    try {
+      new FaultSweep(0, 120 * 1000, SimulationEngine.TRANSMISSION_INTERVAL, new Fault[0]);
+      fail("accepted no faults");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Check that, without faults, no scenario stops the boiler or lets the water go beyond a limit.
+   * The level is checked every 100ms, so that short excursions are seen.
+   */
+  @Test
+  public void test_sweep_04() {
+    FaultSweep sweep = new FaultSweep(3, 300 * 1000, SimulationEngine.DEFAULT_GRANULARITY,
+        Fault.NONE);
+    Summary s = sweep.run(30, ForkJoinPool.commonPool())[Fault.NONE.ordinal()];
+    assertEquals(30, s.getRuns());
+    assertEquals(30, s.getInjections());
+    assertEquals(0, s.getEmergencyStops());
+    assertEquals(0, s.getLimitViolations());
+  }
+
+  /**
+   * Check that every stuck sensor is reported, within two cycles of going wrong, and without
+   * stopping the boiler.
+   */
+  @Test
+  public void test_sweep_05() {
+    Fault[] faults = { Fault.STEAM_STUCK_NEGATIVE_ONE, Fault.STEAM_STUCK_HIGH,
+        Fault.LEVEL_STUCK_NEGATIVE_ONE, Fault.LEVEL_STUCK };
+    FaultSweep sweep = new FaultSweep(5, 300 * 1000, SimulationEngine.DEFAULT_GRANULARITY,
+        faults);
+    Summary[] summaries = sweep.run(40, ForkJoinPool.commonPool());
+    for (Fault f : faults) {
+      Summary s = summaries[f.ordinal()];
+      assertTrue(s.toString(), s.getInjections() > 0);
+      assertEquals(s.toString(), s.getRuns(), s.getInjections());
+      assertEquals(s.toString(), 1.0, s.getDetectionRate(), 0);
+      assertTrue(s.toString(),
+          s.getMeanTimeToDetection() <= 2 * SimulationEngine.TRANSMISSION_INTERVAL);
+      assertEquals(s.toString(), 0, s.getEmergencyStops());
+      assertEquals(s.toString(), 0, s.getLimitViolations());
+    }
+  }
+
+  /**
+   * Check that most stuck pumps and pump controllers are reported. Not all can be: a pump which
+   * stays closed after sticking closed, or a controller whose pump is never opened, looks exactly
+   * like a working one.
+   */
+  @Test
+  public void test_sweep_06() {
+    Fault[] faults = { Fault.PUMP_STUCK_CLOSED, Fault.PUMP_STICKS_OPEN,
+        Fault.PUMP_CONTROLLER_STUCK_OFF };
+    FaultSweep sweep = new FaultSweep(11, 300 * 1000, SimulationEngine.DEFAULT_GRANULARITY,
+        faults);
+    Summary[] summaries = sweep.run(60, ForkJoinPool.commonPool());
+    for (Fault f : faults) {
+      Summary s = summaries[f.ordinal()];
+      assertTrue(s.toString(), s.getInjections() > 0);
+      assertTrue(s.toString(), s.getDetectionRate() >= 0.5);
+      assertEquals(s.toString(), 0, s.getLimitViolations());
+    }
+  }
+}
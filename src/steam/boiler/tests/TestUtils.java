@@ -2,9 +2,12 @@ package steam.boiler.tests;
 
 import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import steam.boiler.core.MessageCodec;
 import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationEngine;
 import steam.boiler.model.PhysicalUnits;
 import steam.boiler.tests.TestUtils.MailboxMatcher;
 import steam.boiler.util.Mailbox;
@@ -72,6 +75,18 @@ public class TestUtils {
   public static MessageMatcher STEAM_FAILURE_DETECTION = new ConcreteMessageMatcher(
       MessageKind.STEAM_FAILURE_DETECTION);
 
+  /**
+   * Match STEAM_REPAIRED_ACKNOWLEDGEMENT messages.
+   */
+  public static MessageMatcher STEAM_REPAIRED_ACKNOWLEDGEMENT = new ConcreteMessageMatcher(
+      MessageKind.STEAM_REPAIRED_ACKNOWLEDGEMENT);
+
+  /**
+   * Match LEVEL_REPAIRED_ACKNOWLEDGEMENT messages.
+   */
+  public static MessageMatcher LEVEL_REPAIRED_ACKNOWLEDGEMENT = new ConcreteMessageMatcher(
+      MessageKind.LEVEL_REPAIRED_ACKNOWLEDGEMENT);
+
   /**
    * Match PUMP_FAILURE_DETECTION_n messages.
    */
@@ -100,6 +115,22 @@ public class TestUtils {
     return new ConcreteMessageMatcher(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n, matcher);
   }
 
+  /**
+   * Match PUMP_REPAIRED_ACKNOWLEDGEMENT_n messages.
+   */
+  public static MessageMatcher PUMP_REPAIRED_ACKNOWLEDGEMENT(int n) {
+    return new ConcreteMessageMatcher(MessageKind.PUMP_REPAIRED_ACKNOWLEDGEMENT_n,
+        new IntegerParameterMatcher(n));
+  }
+
+  /**
+   * Match PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n messages.
+   */
+  public static MessageMatcher PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT(int n) {
+    return new ConcreteMessageMatcher(MessageKind.PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n,
+        new IntegerParameterMatcher(n));
+  }
+
   /**
    * Return a given PUMP message.
    *
@@ -172,8 +203,8 @@ public class TestUtils {
   }
 
   /**
-   * Clock the system until a given even has occurred. A maximum timeout is given in microseconds.
-   * If this expires, then the test is failed.
+   * Clock the system until a given even has occurred. A maximum timeout is given in seconds. If
+   * this expires, then the test is failed.
    *
    * @param timeout
    *          The maximum amount of time (in seconds) to wait for the event in question. This helps
@@ -187,23 +218,14 @@ public class TestUtils {
    */
   public static void clockUntil(int timeout, MySteamBoilerController controller,
       PhysicalUnits physicalUnits, MailboxMatcher matcher) {
-    final int granularity = 100; // ms
-    int totalElapsed = 0; // ms
-    // Convert timeout into microseconds
-    timeout = timeout * 1000;
-    //
-    while (totalElapsed < timeout) {
-      Mailbox received = clock(granularity, totalElapsed, controller, physicalUnits);
-      if (received != null) {
-        // We received something back from controller, there see whether we have matched our event.
-        if (matcher.matches(received)) {
-          return;
-        }
-      }
-      totalElapsed += granularity;
+    SimulationEngine engine = new SimulationEngine(controller, physicalUnits);
+    // Convert timeout into milliseconds
+    boolean matched = engine.run(timeout * 1000,
+        (elapsed, incoming, received) -> matcher.matches(received));
+    if (!matched) {
+      // If we get here, then the event wasn't matched within the required timeframe.
+      fail("timeout occurred");
     }
-    // If we get here, then the event wasn't matched within the required timeframe.
-    fail("timeout occurred");
   }
 
   /**
@@ -221,22 +243,16 @@ public class TestUtils {
    */
   public static void clockForWithout(int time, MySteamBoilerController controller,
       PhysicalUnits physicalUnits, MailboxMatcher matcher) {
-    final int granularity = 100; // ms
-    int totalElapsed = 0; // ms
-    // Convert timeout into microseconds
-    time = time * 1000;
-    //
-    while (totalElapsed < time) {
-      Mailbox received = clock(granularity, totalElapsed, controller, physicalUnits);
-      if (received != null) {
-        // We received something back from controller, there see whether we have matched our event.
-        if (matcher.matches(received)) {
-          // If we've matched this event, then that's bad news.
-          fail("bad event happened after " + totalElapsed + "ms (" + received + ")");
-        }
+    SimulationEngine engine = new SimulationEngine(controller, physicalUnits);
+    // Convert time into milliseconds
+    engine.run(time * 1000, (elapsed, incoming, received) -> {
+      // We received something back from controller, there see whether we have matched our event.
+      if (matcher.matches(received)) {
+        // If we've matched this event, then that's bad news.
+        fail("bad event happened after " + elapsed + "ms (" + received + ")");
       }
-      totalElapsed += granularity;
-    }
+      return false;
+    });
     // If we get here, then the given event obviously didn't happen so we're done.
   }
 
@@ -279,6 +295,24 @@ public class TestUtils {
     }
   }
 
+  /**
+   * Encode the messages of a mailbox as a frame, so that two mailboxes can be compared message
+   * by message.
+   *
+   * @param mailbox
+   *          The mailbox.
+   * @return The bytes of its frame, in hexadecimal.
+   */
+  public static String frame(Mailbox mailbox) {
+    ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.frameSize(mailbox));
+    MessageCodec.encodeFrame(mailbox, buffer);
+    StringBuilder r = new StringBuilder();
+    for (byte b : buffer.array()) {
+      r.append(String.format("%02x", Byte.valueOf(b)));
+    }
+    return r.toString();
+  }
+
   /**
    * A mailbox match provides a way to match concrete messages without having to explicitly provide
    * all the details. For example, suppose we wanted to match any possible LEVEL_v message (e.g.